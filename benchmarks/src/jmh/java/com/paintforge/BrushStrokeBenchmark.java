@@ -0,0 +1,41 @@
+package com.paintforge;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A 1000-pixel zig-zag stroke through {@link BrushEngine} at brush sizes
+ * from 1 to 50, hard and soft.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BrushStrokeBenchmark {
+    private static final int SIZE = 1024;
+
+    @Param({"1", "2", "5", "10", "20", "35", "50"})
+    public int brushSize;
+
+    @Param({"1.0", "0.5"})
+    public float hardness;
+
+    private final BrushEngine brush = new BrushEngine();
+
+    @Setup
+    public void setup() {
+        brush.setTarget(new int[SIZE * SIZE], SIZE, SIZE);
+        brush.setSize(brushSize);
+        brush.setHardness(hardness);
+        brush.setColor(0xCC2255AA);
+    }
+
+    @Benchmark
+    public void stroke() {
+        brush.beginStroke(100, 100);
+        for (int i = 1; i <= 100; i++) {
+            // Mouse-event sized steps of about 10 pixels
+            brush.strokeTo(100 + i * 8, i % 2 == 0 ? 100 : 106);
+        }
+    }
+}
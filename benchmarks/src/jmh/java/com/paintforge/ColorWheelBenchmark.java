@@ -0,0 +1,32 @@
+package com.paintforge;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Regenerating the colour wheel image for a new brightness, as happens on
+ * every tick of the brightness slider.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ColorWheelBenchmark {
+    @Param({"100", "200"})
+    public int radius;
+
+    private ColorWheel wheel;
+    private float brightness = 1f;
+
+    @Setup
+    public void setup() {
+        wheel = new ColorWheel(radius);
+    }
+
+    @Benchmark
+    public ColorWheel generateWheelImage() {
+        brightness = brightness > 0.5f ? 0.25f : 0.9f;
+        wheel.setBrightness(brightness);
+        return wheel;
+    }
+}
@@ -0,0 +1,52 @@
+package com.paintforge;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Contiguous bucket fill of a whole canvas. "open" is one empty region;
+ * "maze" is a single one-pixel corridor snaking through the canvas, the
+ * worst case for span bookkeeping. Each call fills the region with the
+ * other of two colours, so the canvas never needs resetting.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FloodFillBenchmark {
+    private static final int WALL = 0xFF000000;
+    private static final PixelWriteListener NO_LISTENER = (x, y, w, h) -> { };
+
+    @Param({"512", "2048"})
+    public int size;
+
+    @Param({"open", "maze"})
+    public String region;
+
+    private final ScanlineFill fill = new ScanlineFill();
+    private int[] pixels;
+    private int color = 0xFFFFFFFF;
+
+    @Setup
+    public void setup() {
+        pixels = new int[size * size];
+        Arrays.fill(pixels, color);
+        if ("maze".equals(region)) {
+            // Horizontal walls on every other row, open alternately at the right and left end
+            for (int y = 1; y < size; y += 2) {
+                int gap = (y / 2) % 2 == 0 ? size - 1 : 0;
+                for (int x = 0; x < size; x++) {
+                    if (x != gap) pixels[y * size + x] = WALL;
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public Rectangle fill() {
+        color = color == 0xFFFFFFFF ? 0xFF3366CC : 0xFFFFFFFF;
+        return fill.fill(pixels, size, size, 0, 0, color, NO_LISTENER);
+    }
+}
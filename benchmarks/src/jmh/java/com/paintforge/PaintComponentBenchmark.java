@@ -0,0 +1,52 @@
+package com.paintforge;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.swing.SwingUtilities;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Painting a 1280x800 canvas view into an offscreen Graphics2D at several
+ * zoom levels, with a 2048x2048 document.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PaintComponentBenchmark {
+    private static final int VIEW_WIDTH = 1280, VIEW_HEIGHT = 800;
+
+    @Param({"0.25", "0.5", "1", "2", "8"})
+    public double zoom;
+
+    private PaintCanvas canvas;
+    private BufferedImage target;
+    private Graphics2D g;
+
+    @Setup
+    public void setup() throws Exception {
+        SwingUtilities.invokeAndWait(() -> {
+            canvas = new PaintCanvas();
+            canvas.setSize(VIEW_WIDTH, VIEW_HEIGHT);
+            canvas.initCanvas(2048, 2048);
+            canvas.zoom(zoom, 0, 0);
+        });
+        // Let the repaint bookkeeping queued by the setup run before measuring
+        SwingUtilities.invokeAndWait(() -> { });
+        target = new BufferedImage(VIEW_WIDTH, VIEW_HEIGHT, BufferedImage.TYPE_INT_RGB);
+        g = target.createGraphics();
+        g.setClip(0, 0, VIEW_WIDTH, VIEW_HEIGHT);
+    }
+
+    @TearDown
+    public void tearDown() {
+        g.dispose();
+    }
+
+    @Benchmark
+    public BufferedImage paintComponent() {
+        canvas.paintComponent(g);
+        return target;
+    }
+}
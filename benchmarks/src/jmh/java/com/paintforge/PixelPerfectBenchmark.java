@@ -0,0 +1,44 @@
+package com.paintforge;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One pixel-perfect segment of 256 steps along x at various slopes
+ * (rise per run), including the staircase corner removal.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PixelPerfectBenchmark {
+    private static final int SIZE = 1024;
+    private static final int LENGTH = 256;
+
+    @Param({"0", "0.25", "0.5", "1", "2", "8"})
+    public double slope;
+
+    private final PixelPerfectFilter filter = new PixelPerfectFilter();
+    private int endX, endY;
+
+    @Setup
+    public void setup() {
+        filter.setTarget(new int[SIZE * SIZE], SIZE, SIZE);
+        filter.setColor(0xFF000000);
+        // Steep slopes are walked along y so the segment stays on the canvas
+        if (slope > 1) {
+            endX = 16 + (int) Math.round(LENGTH / slope);
+            endY = 16 + LENGTH;
+        } else {
+            endX = 16 + LENGTH;
+            endY = 16 + (int) Math.round(LENGTH * slope);
+        }
+    }
+
+    @Benchmark
+    public void segment() {
+        filter.begin(16, 16);
+        filter.lineTo(endX, endY);
+        filter.end();
+    }
+}
@@ -0,0 +1,54 @@
+package com.paintforge;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of recording one undo step versus canvas size: a brush-sized edit
+ * touching a single tile, and a whole-canvas edit such as Clear. The
+ * history is cleared after each step so memory stays flat.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UndoSnapshotBenchmark {
+    @Param({"512", "2048", "4096"})
+    public int size;
+
+    @Param({"stroke", "full"})
+    public String edit;
+
+    private final UndoHistory history = new UndoHistory();
+    private int[] pixels;
+    private int color;
+    private int x, y, w, h;
+
+    @Setup
+    public void setup() {
+        pixels = new int[size * size];
+        if ("full".equals(edit)) {
+            w = size;
+            h = size;
+        } else {
+            x = size / 2;
+            y = size / 2;
+            w = 32;
+            h = 32;
+        }
+    }
+
+    @Benchmark
+    public boolean recordStep() {
+        color ^= 0xFFFFFFFF;
+        history.beginOperation(pixels, size, size);
+        history.beforeWrite(x, y, w, h);
+        for (int row = y; row < y + h; row++) {
+            Arrays.fill(pixels, row * size + x, row * size + x + w, color);
+        }
+        boolean recorded = history.commit();
+        history.clear();
+        return recorded;
+    }
+}
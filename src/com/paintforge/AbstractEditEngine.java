@@ -0,0 +1,393 @@
+package com.paintforge;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+
+/**
+ * The tools shared by {@link EditEngine} and {@link IndexedEditEngine}:
+ * brush and eraser strokes, bucket fill, lines, clear, selection, undo and
+ * redo on a {@link PixelDocument}. Subclasses point the rasterizers at their
+ * pixels and turn colours into raw values (ARGB or palette index).
+ * <p>
+ * Tool settings are plain properties; a stroke reads them when it begins.
+ * Strokes arrive as {@link StrokeSink} calls, either from a
+ * {@link StrokePipeline} render thread (the canvas) or directly from the
+ * caller. Every operation runs to completion on the calling thread and is
+ * one undo step, so the same sequence of calls always yields the same
+ * pixels, with or without a display. An engine is used by one thread at a
+ * time. Operation times are recorded in its {@link Telemetry}.
+ * <p>
+ * When the document has a selection every tool writes only inside it:
+ * whole-image operations walk the selection's spans, flood fills treat its
+ * edge as a wall, and brushes and lines write only the parts of each dab
+ * row inside its spans.
+ */
+public abstract class AbstractEditEngine<D extends PixelDocument> implements EditTools {
+    protected final D document;
+    protected final Telemetry telemetry;
+    // Tools & brush settings
+    private Color currentColor = Color.BLACK;
+    private int brushSize = 1;
+    private String currentTool = "BRUSH";
+    private boolean pixelPerfectMode = true;
+    private int stabilizerStrength = 0;
+    // Dab-stamping rasterizer for the brush and eraser
+    private final BrushEngine brush = new BrushEngine();
+    private final PixelPerfectFilter pixelPerfect = new PixelPerfectFilter();
+    private final StrokeStabilizer stabilizer = new StrokeStabilizer();
+    private final StrokeStabilizer.Output stabilized = this::rasterize;
+    // Stroke in progress: previous point, pixel-perfect mode and telemetry name
+    private int prevX = -1, prevY = -1;
+    private boolean strokePixelPerfect = false;
+    private String strokeTool;
+    // Bucket fill engine (reuses its buffers between fills)
+    protected final ScanlineFill scanlineFill = new ScanlineFill();
+    private boolean fillContiguous = true;
+
+    protected AbstractEditEngine(D document, Telemetry telemetry) {
+        this.document = document;
+        this.telemetry = telemetry;
+    }
+
+    public D getDocument() {
+        return document;
+    }
+
+    public Telemetry getTelemetry() {
+        return telemetry;
+    }
+
+    // ----- Tool Settings -----
+    /**
+     * BRUSH, ERASER, BUCKET, LINE, COLOR_PICKER, SELECT_RECT, SELECT_LASSO or
+     * MAGIC_WAND; strokes use BRUSH or ERASER.
+     */
+    public void setTool(String tool) {
+        this.currentTool = tool;
+    }
+
+    public String getTool() {
+        return currentTool;
+    }
+
+    public void setColor(Color color) {
+        this.currentColor = color;
+    }
+
+    public Color getColor() {
+        return currentColor;
+    }
+
+    public void setBrushSize(int size) {
+        this.brushSize = Math.max(1, size);
+    }
+
+    public int getBrushSize() {
+        return brushSize;
+    }
+
+    public void setPixelPerfectMode(boolean enabled) {
+        this.pixelPerfectMode = enabled;
+    }
+
+    public boolean isPixelPerfectMode() {
+        return pixelPerfectMode;
+    }
+
+    /** Sets the stroke stabilizer strength, 0 (off) to {@link StrokeStabilizer#MAX_STRENGTH}. */
+    public void setStabilizerStrength(int strength) {
+        this.stabilizerStrength = strength;
+    }
+
+    public int getStabilizerStrength() {
+        return stabilizerStrength;
+    }
+
+    public void setFillContiguous(boolean contiguous) {
+        this.fillContiguous = contiguous;
+    }
+
+    public boolean isFillContiguous() {
+        return fillContiguous;
+    }
+
+    // ----- Pixel access -----
+    /** Points the brush at the document's pixels. */
+    protected abstract void aim(BrushEngine brush);
+
+    /** Points the pixel-perfect filter at the document's pixels. */
+    protected abstract void aim(PixelPerfectFilter filter);
+
+    /** The raw value (ARGB or palette index) a tool writes for a colour. */
+    protected abstract int toValue(Color color);
+
+    /** The raw value the current stroke tool paints with. */
+    protected abstract int strokeValue();
+
+    /** Dab edge hardness for brush strokes, 0 (soft) to 1 (hard). */
+    protected abstract float strokeHardness();
+
+    /** True if brush strokes clear pixels instead of painting them. */
+    protected abstract boolean strokeErases();
+
+    /**
+     * Flood fills from the seed with a raw value, contiguous or everywhere;
+     * returns the area written, or null.
+     */
+    protected abstract Rectangle floodFill(int x, int y, int value, SelectionMask mask, boolean contiguous);
+
+    /** Adds the pixels matching the one at (x, y) to picked; returns null if none. */
+    protected abstract Rectangle wand(int x, int y, boolean contiguous, SelectionMask picked);
+
+    // ----- Strokes -----
+    @Override
+    public void strokeBegin(int x, int y, long nanoTime) {
+        long start = telemetry.beginTool();
+        document.beginEdit();
+        prevX = x;
+        prevY = y;
+        strokePixelPerfect = "BRUSH".equals(currentTool) && pixelPerfectMode && brushSize == 1;
+        touch(x, y, x, y, brushSize);
+        SelectionMask mask = document.getSelection();
+        if (strokePixelPerfect) {
+            aim(pixelPerfect);
+            pixelPerfect.setClip(mask);
+            pixelPerfect.setColor(strokeValue());
+            pixelPerfect.begin(x, y);
+        } else {
+            brush.setSize(brushSize);
+            brush.setHardness(strokeHardness());
+            aim(brush);
+            brush.setClip(mask);
+            brush.setColor(strokeValue());
+            brush.setErase(strokeErases());
+            brush.beginStroke(x, y);
+        }
+        stabilizer.setStrength(stabilizerStrength);
+        stabilizer.begin(x, y, stabilized);
+        strokeTool = strokePixelPerfect ? "PIXEL" : currentTool;
+        telemetry.endTool(strokeTool, start);
+        telemetry.inputRasterized(nanoTime);
+    }
+
+    @Override
+    public void strokeMove(int x, int y, long nanoTime) {
+        long start = telemetry.beginTool();
+        stabilizer.add(x, y);
+        telemetry.endTool(strokeTool, start);
+        telemetry.inputRasterized(nanoTime);
+    }
+
+    @Override
+    public void strokeEnd(long nanoTime) {
+        stabilizer.end();
+        if (strokePixelPerfect) pixelPerfect.end();
+        releaseTargets();
+        document.commitEdit();
+        reportUndoMemory();
+    }
+
+    /**
+     * Draws a whole stroke through the given points with the current settings.
+     */
+    public void stroke(int[] xs, int[] ys) {
+        long now = System.nanoTime();
+        strokeBegin(xs[0], ys[0], now);
+        for (int i = 1; i < xs.length; i++) {
+            strokeMove(xs[i], ys[i], now);
+        }
+        strokeEnd(now);
+    }
+
+    /**
+     * Draws the stroke on to a stabilized point.
+     */
+    private void rasterize(int x, int y) {
+        if (x == prevX && y == prevY) return;
+        if (strokePixelPerfect) {
+            touch(prevX, prevY, x, y, 1);
+            pixelPerfect.lineTo(x, y);
+        } else {
+            touch(prevX, prevY, x, y, brush.getSize());
+            brush.strokeTo(x, y);
+        }
+        prevX = x;
+        prevY = y;
+    }
+
+    /**
+     * Declares that the box spanning both points, grown by the brush size, is
+     * about to be written: the document preserves it and reports it changed.
+     */
+    private void touch(int x0, int y0, int x1, int y1, int size) {
+        int pad = size / 2 + 1;
+        int minX = Math.min(x0, x1) - pad, minY = Math.min(y0, y1) - pad;
+        int maxX = Math.max(x0, x1) + size + pad, maxY = Math.max(y0, y1) + size + pad;
+        document.beforeWrite(minX, minY, maxX - minX, maxY - minY);
+        document.markChanged(minX, minY, maxX - minX, maxY - minY);
+    }
+
+    /** Lets go of the pixel arrays between operations, so a spilled layer's can be freed. */
+    private void releaseTargets() {
+        brush.setTarget((int[]) null, 0, 0);
+        pixelPerfect.setTarget((int[]) null, 0, 0);
+    }
+
+    // ----- Operations -----
+    /**
+     * Bucket fill from a seed point, contiguous or global per the fill
+     * settings. With a selection the seed must lie inside it.
+     */
+    @Override
+    public void fill(int x, int y, Color color) {
+        long start = telemetry.beginTool();
+        SelectionMask mask = document.getSelection();
+        if (mask != null && !mask.contains(x, y)) {
+            telemetry.endTool("BUCKET", start);
+            return;
+        }
+        document.beginEdit();
+        // Tiles still on disk are loaded as the walk reaches them
+        scanlineFill.setReadListener(document.hasTilesOnDisk() ? document : null);
+        Rectangle filled = floodFill(x, y, toValue(color), mask, fillContiguous);
+        if (filled != null) {
+            document.markChanged(filled.x, filled.y, filled.width, filled.height);
+        }
+        document.commitEdit();
+        telemetry.endTool("BUCKET", start);
+        reportUndoMemory();
+    }
+
+    /**
+     * Straight line of hard round dabs, so it has round caps.
+     */
+    @Override
+    public void line(int x0, int y0, int x1, int y1, Color color, int size) {
+        long start = telemetry.beginTool();
+        document.beginEdit();
+        size = Math.max(1, size);
+        touch(x0, y0, x1, y1, size);
+        brush.setSize(size);
+        brush.setHardness(1f);
+        brush.setErase(false);
+        aim(brush);
+        brush.setClip(document.getSelection());
+        brush.setColor(toValue(color));
+        brush.beginStroke(x0, y0);
+        brush.strokeTo(x1, y1);
+        releaseTargets();
+        document.commitEdit();
+        telemetry.endTool("LINE", start);
+        reportUndoMemory();
+    }
+
+    /**
+     * Fills the image (or the selection) with white, or its nearest entry.
+     */
+    @Override
+    public void clear() {
+        long start = telemetry.beginTool();
+        SelectionMask mask = document.getSelection();
+        Rectangle area = editArea(mask);
+        document.beginEdit();
+        document.beforeWrite(area.x, area.y, area.width, area.height);
+        PixelRaster raster = document.getRaster();
+        int white = toValue(Color.WHITE);
+        int[] spans = SelectionClip.rowBuffer(mask);
+        for (int y = area.y; y < area.y + area.height; y++) {
+            int count = SelectionClip.clipRow(mask, y, area.x, area.x + area.width, spans);
+            for (int s = 0; s < count; s += 2) {
+                raster.fill(y, spans[s], spans[s + 1], white);
+            }
+        }
+        document.commitEdit();
+        telemetry.endTool("CLEAR", start);
+        reportUndoMemory();
+        document.markChanged(area.x, area.y, area.width, area.height);
+    }
+
+    /**
+     * The bounds of the selection, or the whole document without one.
+     */
+    protected Rectangle editArea(SelectionMask mask) {
+        Rectangle bounds = mask == null ? null : mask.getBounds();
+        return bounds != null ? bounds : new Rectangle(0, 0, document.getWidth(), document.getHeight());
+    }
+
+    // ----- Selection -----
+    /**
+     * Combines a rectangle or lasso mask with the current selection.
+     */
+    @Override
+    public void select(SelectionMask shape, SelectionMask.Mode mode) {
+        long start = telemetry.beginTool();
+        combineSelection(shape, mode);
+        telemetry.endTool("SELECT", start);
+    }
+
+    /**
+     * Magic wand: selects the pixels matching the one at (x, y), contiguous
+     * or global per the fill settings.
+     */
+    @Override
+    public void magicWand(int x, int y, SelectionMask.Mode mode) {
+        long start = telemetry.beginTool();
+        SelectionMask picked = new SelectionMask(document.getWidth(), document.getHeight());
+        scanlineFill.setReadListener(document.hasTilesOnDisk() ? document : null);
+        if (wand(x, y, fillContiguous, picked) != null) {
+            combineSelection(picked, mode);
+        }
+        telemetry.endTool("MAGIC_WAND", start);
+    }
+
+    @Override
+    public void selectAll() {
+        document.setSelection(SelectionMask.all(document.getWidth(), document.getHeight()));
+    }
+
+    @Override
+    public void deselect() {
+        document.setSelection(null);
+    }
+
+    @Override
+    public void invertSelection() {
+        SelectionMask current = document.getSelection();
+        if (current == null) {
+            selectAll();
+            return;
+        }
+        SelectionMask inverted = current.copy();
+        inverted.invert();
+        document.setSelection(inverted);
+    }
+
+    private void combineSelection(SelectionMask shape, SelectionMask.Mode mode) {
+        document.setSelection(SelectionMask.combine(document.getSelection(), shape, mode));
+    }
+
+    // ----- Undo / Redo -----
+    /** Returns the area restored, or null if there was nothing to undo. */
+    @Override
+    public Rectangle undo() {
+        long start = telemetry.beginTool();
+        Rectangle changed = document.undo();
+        telemetry.endTool("UNDO", start);
+        reportUndoMemory();
+        return changed;
+    }
+
+    /** Returns the area restored, or null if there was nothing to redo. */
+    @Override
+    public Rectangle redo() {
+        long start = telemetry.beginTool();
+        Rectangle changed = document.redo();
+        telemetry.endTool("REDO", start);
+        reportUndoMemory();
+        return changed;
+    }
+
+    protected void reportUndoMemory() {
+        telemetry.undoMemory(document.getHistoryMemoryUsage(), document.getHistoryDiskUsage());
+    }
+}
@@ -0,0 +1,105 @@
+package com.paintforge;
+
+import java.awt.Color;
+import java.util.Locale;
+
+/**
+ * One step of a {@link BatchProcessor} script, applied to each image through
+ * an {@link EditEngine}.
+ * <p>
+ * Steps are written {@code name:arguments}:
+ * <pre>
+ *   swap:#FF0000=#00FF00,#0000FF=#FFFF00   palette swap (exact colours)
+ *   fill:x,y,#RRGGBB[,tolerance]           contiguous, alpha-aware bucket fill
+ *   outline:#RRGGBB[,thickness]            outline around the opaque shapes
+ *   scale:2 | scale:0.5 | scale:64x64      nearest-neighbour rescale;
+ *                                          append ",smooth" for bilinear
+ * </pre>
+ * Colours are {@code #RRGGBB}, {@code #AARRGGBB} or {@code transparent}.
+ */
+public interface BatchOperation {
+    void apply(EditEngine engine);
+
+    /**
+     * Parses one script step.
+     *
+     * @throws IllegalArgumentException if the step is malformed
+     */
+    static BatchOperation parse(String step) {
+        int colon = step.indexOf(':');
+        if (colon < 0) throw new IllegalArgumentException("Missing ':' in step: " + step);
+        String name = step.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+        String[] args = step.substring(colon + 1).split(",");
+        try {
+            switch (name) {
+                case "swap":
+                    return parseSwap(args);
+                case "fill":
+                    return parseFill(args);
+                case "outline":
+                    return parseOutline(args);
+                case "scale":
+                    return parseScale(args);
+                default:
+                    throw new IllegalArgumentException("Unknown operation: " + name);
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Malformed step: " + step, e);
+        }
+    }
+
+    private static BatchOperation parseSwap(String[] args) {
+        int[] from = new int[args.length], to = new int[args.length];
+        for (int i = 0; i < args.length; i++) {
+            String[] pair = args[i].split("=");
+            if (pair.length != 2) throw new IllegalArgumentException("Expected from=to: " + args[i]);
+            from[i] = parseColor(pair[0]).getRGB();
+            to[i] = parseColor(pair[1]).getRGB();
+        }
+        return engine -> engine.replaceColors(from, to);
+    }
+
+    private static BatchOperation parseFill(String[] args) {
+        int x = Integer.parseInt(args[0].trim()), y = Integer.parseInt(args[1].trim());
+        Color color = parseColor(args[2]);
+        int tolerance = args.length > 3 ? Integer.parseInt(args[3].trim()) : 0;
+        return engine -> {
+            engine.setFillTolerance(tolerance);
+            engine.setFillContiguous(true);
+            engine.fill(x, y, color);
+        };
+    }
+
+    private static BatchOperation parseOutline(String[] args) {
+        Color color = parseColor(args[0]);
+        int thickness = args.length > 1 ? Integer.parseInt(args[1].trim()) : 1;
+        return engine -> engine.outline(color, thickness);
+    }
+
+    private static BatchOperation parseScale(String[] args) {
+        String size = args[0].trim().toLowerCase(Locale.ROOT);
+        boolean smooth = args.length > 1 && "smooth".equalsIgnoreCase(args[1].trim());
+        int x = size.indexOf('x');
+        if (x > 0) {
+            int width = Integer.parseInt(size.substring(0, x)), height = Integer.parseInt(size.substring(x + 1));
+            if (width <= 0 || height <= 0) throw new IllegalArgumentException("Bad size: " + size);
+            return engine -> engine.rescale(width, height, smooth);
+        }
+        double factor = Double.parseDouble(size);
+        if (factor <= 0) throw new IllegalArgumentException("Bad scale factor: " + size);
+        return engine -> {
+            Document document = engine.getDocument();
+            engine.rescale(Math.max(1, (int) Math.round(document.getWidth() * factor)),
+                    Math.max(1, (int) Math.round(document.getHeight() * factor)), smooth);
+        };
+    }
+
+    static Color parseColor(String text) {
+        String s = text.trim();
+        if ("transparent".equalsIgnoreCase(s)) return new Color(0, true);
+        if (s.startsWith("#")) s = s.substring(1);
+        if (s.length() == 6) return new Color(Integer.parseInt(s, 16));
+        if (s.length() == 8) return new Color((int) Long.parseLong(s, 16), true);
+        throw new IllegalArgumentException("Bad colour: " + text);
+    }
+}
@@ -0,0 +1,297 @@
+package com.paintforge;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Command-line batch processing for asset pipelines: runs a script of
+ * {@link BatchOperation}s over every image in a directory and writes the
+ * results as PNG, headless, on the same {@link Document}/{@link EditEngine}
+ * the editor uses.
+ * <p>
+ * Each file goes through three stages, and different files are in different
+ * stages at the same time so disk and CPU work overlap:
+ * <ol>
+ *   <li>decode, on an I/O pool</li>
+ *   <li>process, on a work-stealing fork/join pool</li>
+ *   <li>encode, with {@link PngEncoder} deflating bands on the fork/join
+ *       pool while an I/O thread writes them</li>
+ * </ol>
+ * At most {@code 2 x threads} files are in flight, which bounds memory. Per
+ * file timings are printed as files finish, followed by totals, throughput
+ * and per-operation latency.
+ *
+ * <pre>
+ * usage: BatchProcessor [options] &lt;input dir&gt; &lt;output dir&gt; [step...]
+ *   --script &lt;file&gt;     read steps from a file, one per line (# comments)
+ *   --threads &lt;n&gt;       processing threads (default: all cores)
+ *   --io-threads &lt;n&gt;    decode/write threads (default: 2)
+ *   --preset &lt;name&gt;     fastest | balanced | smallest (default: balanced)
+ * </pre>
+ */
+public class BatchProcessor {
+    private static final String[] EXTENSIONS = {".png", ".gif", ".bmp", ".jpg", ".jpeg"};
+
+    private final List<BatchOperation> operations;
+    private final PngEncoder.Preset preset;
+    private final int threads, ioThreads;
+    private final Telemetry telemetry = new Telemetry();
+
+    /** Timings of one file, in nanoseconds. */
+    public static class FileResult {
+        final Path input;
+        long decodeNanos, processNanos, encodeNanos, totalNanos;
+        long pixels, bytesIn, bytesOut;
+        Throwable error;
+
+        FileResult(Path input) {
+            this.input = input;
+        }
+
+        public boolean isOk() {
+            return error == null;
+        }
+    }
+
+    public BatchProcessor(List<BatchOperation> operations, PngEncoder.Preset preset, int threads, int ioThreads) {
+        this.operations = operations;
+        this.preset = preset;
+        this.threads = Math.max(1, threads);
+        this.ioThreads = Math.max(1, ioThreads);
+    }
+
+    public static void main(String[] args) {
+        List<String> steps = new ArrayList<>();
+        List<String> paths = new ArrayList<>();
+        int threads = Runtime.getRuntime().availableProcessors(), ioThreads = 2;
+        PngEncoder.Preset preset = PngEncoder.Preset.BALANCED;
+        List<BatchOperation> operations = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--script":
+                        for (String line : Files.readAllLines(Paths.get(args[++i]))) {
+                            line = line.trim();
+                            if (!line.isEmpty() && !line.startsWith("#")) steps.add(line);
+                        }
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--io-threads":
+                        ioThreads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--preset":
+                        preset = PngEncoder.Preset.valueOf(args[++i].toUpperCase(Locale.ROOT));
+                        break;
+                    default:
+                        if (paths.size() < 2) paths.add(args[i]);
+                        else steps.add(args[i]);
+                }
+            }
+            if (paths.size() < 2) throw new IllegalArgumentException("Input and output directories are required");
+            for (String step : steps) {
+                operations.add(BatchOperation.parse(step));
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException | IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            printUsage();
+            System.exit(2);
+            return;
+        }
+
+        System.setProperty("java.awt.headless", "true");
+        BatchProcessor processor = new BatchProcessor(operations, preset, threads, ioThreads);
+        try {
+            List<FileResult> results = processor.run(Paths.get(paths.get(0)), Paths.get(paths.get(1)));
+            boolean failed = results.stream().anyMatch(r -> !r.isOk());
+            System.exit(failed ? 1 : 0);
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static void printUsage() {
+        System.err.println("usage: BatchProcessor [options] <input dir> <output dir> [step...]");
+        System.err.println("  --script <file>     read steps from a file, one per line (# comments)");
+        System.err.println("  --threads <n>       processing threads (default: all cores)");
+        System.err.println("  --io-threads <n>    decode/write threads (default: 2)");
+        System.err.println("  --preset <name>     fastest | balanced | smallest (default: balanced)");
+        System.err.println("steps:");
+        System.err.println("  swap:#FF0000=#00FF00,...         palette swap");
+        System.err.println("  fill:x,y,#RRGGBB[,tolerance]      bucket fill");
+        System.err.println("  outline:#RRGGBB[,thickness]       outline the opaque shapes");
+        System.err.println("  scale:2 | scale:0.5 | scale:WxH   rescale, add ,smooth for bilinear");
+    }
+
+    /**
+     * Processes every image directly inside inputDir into outputDir (created
+     * if needed), printing progress to standard output.
+     */
+    public List<FileResult> run(Path inputDir, Path outputDir) throws IOException, InterruptedException {
+        List<Path> inputs;
+        try (Stream<Path> files = Files.list(inputDir)) {
+            inputs = files.filter(Files::isRegularFile).filter(BatchProcessor::isImage).sorted()
+                    .collect(Collectors.toList());
+        }
+        Files.createDirectories(outputDir);
+        return run(inputs, outputDir);
+    }
+
+    public List<FileResult> run(List<Path> inputs, Path outputDir) throws InterruptedException {
+        ForkJoinPool cpu = new ForkJoinPool(threads);
+        AtomicInteger ioThreadNumber = new AtomicInteger();
+        ExecutorService io = Executors.newFixedThreadPool(ioThreads, r -> {
+            Thread t = new Thread(r, "batch-io-" + ioThreadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        PngEncoder encoder = new PngEncoder(preset, cpu);
+        Semaphore inFlight = new Semaphore(2 * threads);
+        List<FileResult> results = new ArrayList<>();
+        List<CompletableFuture<?>> pending = new ArrayList<>();
+        AtomicInteger finished = new AtomicInteger();
+        long start = System.nanoTime();
+        try {
+            for (Path input : inputs) {
+                FileResult result = new FileResult(input);
+                results.add(result);
+                Path output = outputDir.resolve(outputName(input));
+                inFlight.acquire();
+                long fileStart = System.nanoTime();
+                pending.add(CompletableFuture
+                        .supplyAsync(() -> decode(result), io)
+                        .thenApplyAsync(document -> process(document, result), cpu)
+                        .thenAcceptAsync(flat -> encode(encoder, flat, output, result), io)
+                        .whenComplete((v, error) -> {
+                            if (error != null) result.error = error.getCause() != null ? error.getCause() : error;
+                            result.totalNanos = System.nanoTime() - fileStart;
+                            report(result, finished.incrementAndGet(), inputs.size());
+                            inFlight.release();
+                        }));
+            }
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).exceptionally(e -> null).join();
+        } finally {
+            io.shutdown();
+            cpu.shutdown();
+        }
+        printSummary(results, System.nanoTime() - start);
+        return results;
+    }
+
+    // ----- Stages -----
+    private Document decode(FileResult result) {
+        long start = System.nanoTime();
+        try {
+            result.bytesIn = Files.size(result.input);
+            Document document = new Document(Document.readImage(result.input));
+            document.setHistoryEnabled(false);
+            result.decodeNanos = System.nanoTime() - start;
+            return document;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private BufferedImage process(Document document, FileResult result) {
+        long start = System.nanoTime();
+        EditEngine engine = new EditEngine(document, telemetry);
+        for (BatchOperation operation : operations) {
+            operation.apply(engine);
+        }
+        // Single-layer documents (every decoded image) need no flattening copy
+        LayerStack layers = document.getLayers();
+        BufferedImage flat = layers.size() == 1 ? layers.get(0).getImage() : new DocumentSnapshot(layers).flatten(null);
+        result.pixels = (long) flat.getWidth() * flat.getHeight();
+        result.processNanos = System.nanoTime() - start;
+        document.close();
+        return flat;
+    }
+
+    private void encode(PngEncoder encoder, BufferedImage flat, Path output, FileResult result) {
+        long start = System.nanoTime();
+        try {
+            int[] pixels = ((DataBufferInt) flat.getRaster().getDataBuffer()).getData();
+            encoder.writeFile(pixels, flat.getWidth(), flat.getHeight(), output, null, null);
+            result.bytesOut = Files.size(output);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        result.encodeNanos = System.nanoTime() - start;
+    }
+
+    // ----- Reporting -----
+    private static synchronized void report(FileResult r, int done, int total) {
+        String name = r.input.getFileName().toString();
+        if (r.isOk()) {
+            System.out.printf(Locale.ROOT, "[%d/%d] %-32s decode %7.1f  process %7.1f  encode %7.1f  total %7.1f ms  %,d -> %,d bytes%n",
+                    done, total, name, r.decodeNanos / 1e6, r.processNanos / 1e6, r.encodeNanos / 1e6,
+                    r.totalNanos / 1e6, r.bytesIn, r.bytesOut);
+        } else {
+            System.out.printf(Locale.ROOT, "[%d/%d] %-32s FAILED: %s%n", done, total, name, r.error);
+        }
+    }
+
+    private void printSummary(List<FileResult> results, long wallNanos) {
+        int ok = 0;
+        long pixels = 0, bytesIn = 0, bytesOut = 0, decode = 0, process = 0, encode = 0;
+        for (FileResult r : results) {
+            if (!r.isOk()) continue;
+            ok++;
+            pixels += r.pixels;
+            bytesIn += r.bytesIn;
+            bytesOut += r.bytesOut;
+            decode += r.decodeNanos;
+            process += r.processNanos;
+            encode += r.encodeNanos;
+        }
+        double seconds = Math.max(1e-9, wallNanos / 1e9);
+        System.out.printf(Locale.ROOT, "%nProcessed %d of %d files in %.2f s (%d threads, %d I/O threads)%n",
+                ok, results.size(), seconds, threads, ioThreads);
+        System.out.printf(Locale.ROOT, "Throughput: %.1f files/s, %.1f Mpixel/s, %.1f MB/s in, %.1f MB/s out%n",
+                ok / seconds, pixels / 1e6 / seconds, bytesIn / 1048576.0 / seconds, bytesOut / 1048576.0 / seconds);
+        if (ok > 0) {
+            System.out.printf(Locale.ROOT, "Stage time per file: decode %.1f ms, process %.1f ms, encode %.1f ms%n",
+                    decode / 1e6 / ok, process / 1e6 / ok, encode / 1e6 / ok);
+        }
+        Map<String, LatencyHistogram> sorted = new TreeMap<>(telemetry.tools());
+        for (Map.Entry<String, LatencyHistogram> tool : sorted.entrySet()) {
+            LatencyHistogram.Snapshot s = tool.getValue().snapshot(false);
+            System.out.printf(Locale.ROOT, "  %-8s %5d ops  p50 %8.2f  p99 %8.2f  max %8.2f ms%n", tool.getKey(), s.count(),
+                    s.percentile(50) / 1e6, s.percentile(99) / 1e6, s.max() / 1e6);
+        }
+    }
+
+    private static boolean isImage(Path file) {
+        String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        for (String extension : EXTENSIONS) {
+            if (name.endsWith(extension)) return true;
+        }
+        return false;
+    }
+
+    private static String outputName(Path input) {
+        String name = input.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return (dot > 0 ? name.substring(0, dot) : name) + ".png";
+    }
+}
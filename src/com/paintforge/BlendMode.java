@@ -0,0 +1,51 @@
+package com.paintforge;
+
+/**
+ * Separable blend modes used when compositing a layer onto the layers below it.
+ * Channel values are 0..255; {@link #blend} returns the mixed colour channel
+ * before alpha compositing.
+ */
+public enum BlendMode {
+    NORMAL("Normal"),
+    MULTIPLY("Multiply"),
+    SCREEN("Screen"),
+    OVERLAY("Overlay"),
+    DARKEN("Darken"),
+    LIGHTEN("Lighten"),
+    ADD("Add");
+
+    private final String displayName;
+
+    BlendMode(String displayName) {
+        this.displayName = displayName;
+    }
+
+    /**
+     * Blends one channel of the source (layer) over the backdrop.
+     */
+    public int blend(int backdrop, int source) {
+        switch (this) {
+            case MULTIPLY:
+                return source * backdrop / 255;
+            case SCREEN:
+                return source + backdrop - source * backdrop / 255;
+            case OVERLAY:
+                return backdrop < 128
+                        ? 2 * source * backdrop / 255
+                        : 255 - 2 * (255 - source) * (255 - backdrop) / 255;
+            case DARKEN:
+                return Math.min(source, backdrop);
+            case LIGHTEN:
+                return Math.max(source, backdrop);
+            case ADD:
+                return Math.min(255, source + backdrop);
+            default:
+                return source;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return displayName;
+    }
+}
@@ -0,0 +1,57 @@
+package com.paintforge;
+
+/**
+ * Per-pixel colour distance test used by the bucket tool.
+ * <p>
+ * Distance is the largest per-channel difference (0..255). Alpha only counts
+ * when the match is alpha-aware; at tolerance 0 a match is always the exact
+ * ARGB value, so transparent pixels never match opaque ones. The row kernels
+ * are straight-line loops over the raw int array with no branches on the
+ * pixel data, so HotSpot's superword pass turns them into SIMD code on CPUs
+ * that support it and runs them as plain scalar loops everywhere else.
+ */
+public final class ColorDistanceKernel {
+    private ColorDistanceKernel() {
+    }
+
+    /**
+     * Returns the largest channel difference between two ARGB values.
+     */
+    public static int distance(int a, int b, boolean alphaAware) {
+        int dr = Math.abs(((a >> 16) & 0xFF) - ((b >> 16) & 0xFF));
+        int dg = Math.abs(((a >> 8) & 0xFF) - ((b >> 8) & 0xFF));
+        int db = Math.abs((a & 0xFF) - (b & 0xFF));
+        int da = alphaAware ? Math.abs((a >>> 24) - (b >>> 24)) : 0;
+        return Math.max(Math.max(dr, dg), Math.max(db, da));
+    }
+
+    public static boolean matches(int pixel, int target, int tolerance, boolean alphaAware) {
+        return tolerance == 0 ? pixel == target : distance(pixel, target, alphaAware) <= tolerance;
+    }
+
+    /**
+     * Replaces every pixel in [from, to) that lies within tolerance of target.
+     *
+     * @return the number of pixels that changed value
+     */
+    public static int replaceRow(int[] pixels, int from, int to, int target, int fillColor,
+                                 int tolerance, boolean alphaAware) {
+        int tr = (target >> 16) & 0xFF;
+        int tg = (target >> 8) & 0xFF;
+        int tb = target & 0xFF;
+        int ta = target >>> 24;
+        int alphaScale = alphaAware || tolerance == 0 ? 1 : 0;
+        int changed = 0;
+        for (int i = from; i < to; i++) {
+            int p = pixels[i];
+            int d = Math.max(
+                    Math.max(Math.abs(((p >> 16) & 0xFF) - tr), Math.abs(((p >> 8) & 0xFF) - tg)),
+                    Math.max(Math.abs((p & 0xFF) - tb), Math.abs((p >>> 24) - ta) * alphaScale));
+            int hit = (d - tolerance - 1) >>> 31;    // 1 when d <= tolerance
+            int out = hit != 0 ? fillColor : p;
+            changed += (out != p) ? 1 : 0;
+            pixels[i] = out;
+        }
+        return changed;
+    }
+}
@@ -3,11 +3,14 @@ package com.paintforge;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
-import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 
 public class ColorWheel extends JPanel {
     private BufferedImage wheelImage;
+    private int[] wheelPixels;
+    // Hue/saturation wheel at full brightness (0 outside the circle)
+    private int[] fullBrightness;
     private int wheelRadius;
     private float brightness = 1.0f;   // user-controlled brightness
     private Color selectedColor = Color.WHITE;
@@ -19,6 +22,7 @@ public class ColorWheel extends JPanel {
         this.wheelRadius = radius;
         setPreferredSize(new Dimension(radius * 2, radius * 2));
 
+        buildHueSaturationTable();
         generateWheelImage();
 
         // Listen for clicks/drags to pick color
@@ -49,33 +53,46 @@ public class ColorWheel extends JPanel {
     }
 
     /**
-     * Generates the hue/sat wheel image using the current brightness.
+     * Computes the hue/sat wheel once at full brightness; every brightness is
+     * then a linear scale of these RGB values (HSB brightness scales R, G and B
+     * equally).
      */
-    private void generateWheelImage() {
-        wheelImage = new BufferedImage(wheelRadius * 2, wheelRadius * 2, BufferedImage.TYPE_INT_ARGB);
+    private void buildHueSaturationTable() {
+        int size = wheelRadius * 2;
+        wheelImage = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        wheelPixels = ((DataBufferInt) wheelImage.getRaster().getDataBuffer()).getData();
+        fullBrightness = new int[size * size];
         for (int y = -wheelRadius; y < wheelRadius; y++) {
             for (int x = -wheelRadius; x < wheelRadius; x++) {
-                double angle = Math.atan2(y, x) + Math.PI;
-                double distance = Point2D.distance(0, 0, x, y);
-
+                double distance = Math.sqrt(x * x + y * y);
                 if (distance <= wheelRadius) {
+                    double angle = Math.atan2(y, x) + Math.PI;
                     float hue = (float) (angle / (2 * Math.PI));
-                    if (hue < 0) {
-                        hue += 1.0f; // ensure hue in [0..1]
-                    }
                     float saturation = Math.min((float) (distance / wheelRadius), 1.0f);
-
-                    // Use the current brightness
-                    int rgb = Color.HSBtoRGB(hue, saturation, brightness);
-                    wheelImage.setRGB(x + wheelRadius, y + wheelRadius, rgb);
-                } else {
-                    // Outside the wheel => transparent
-                    wheelImage.setRGB(x + wheelRadius, y + wheelRadius, 0x00000000);
+                    fullBrightness[(y + wheelRadius) * size + x + wheelRadius] = Color.HSBtoRGB(hue, saturation, 1f);
                 }
+                // Outside the wheel stays 0 => transparent
             }
         }
     }
 
+    /**
+     * Writes the wheel at the current brightness into the image's raster in
+     * one pass over the precomputed table.
+     */
+    private void generateWheelImage() {
+        int[] src = fullBrightness;
+        int[] dst = wheelPixels;
+        int scale = Math.round(brightness * 256);
+        for (int i = 0; i < src.length; i++) {
+            int p = src[i];
+            int r = (((p >> 16) & 0xFF) * scale + 128) >> 8;
+            int g = (((p >> 8) & 0xFF) * scale + 128) >> 8;
+            int b = ((p & 0xFF) * scale + 128) >> 8;
+            dst[i] = (p & 0xFF000000) | (r << 16) | (g << 8) | b;
+        }
+    }
+
     /**
      * Attempt to pick a color from the hue/sat wheel at point p.
      */
@@ -156,7 +173,7 @@ public class ColorWheel extends JPanel {
     // ----------------------------------------------------------------
 
     /**
-     * 0 <= brightness <= 1; re-generates the wheel with new brightness.
+     * 0 <= brightness <= 1; rescales the wheel to the new brightness.
      */
     public void setBrightness(float b) {
         this.brightness = Math.max(0, Math.min(1, b));
@@ -0,0 +1,42 @@
+package com.paintforge;
+
+import java.awt.Rectangle;
+
+/**
+ * Accumulates the canvas-space area touched by tools between repaints.
+ * Regions are merged into a single bounding box and handed out (and reset)
+ * with {@link #take()}. Safe to feed from any thread.
+ */
+public class DirtyRegion {
+    private int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+    private int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+
+    public synchronized void add(int x, int y, int width, int height) {
+        if (width <= 0 || height <= 0) return;
+        if (x < minX) minX = x;
+        if (y < minY) minY = y;
+        if (x + width > maxX) maxX = x + width;
+        if (y + height > maxY) maxY = y + height;
+    }
+
+    public void add(Rectangle r) {
+        add(r.x, r.y, r.width, r.height);
+    }
+
+    public synchronized boolean isEmpty() {
+        return minX > maxX;
+    }
+
+    /**
+     * Returns the merged region and resets the accumulator.
+     *
+     * @return the dirty bounds, or null if nothing was added since the last call
+     */
+    public synchronized Rectangle take() {
+        if (minX > maxX) return null;
+        Rectangle r = new Rectangle(minX, minY, maxX - minX, maxY - minY);
+        minX = minY = Integer.MAX_VALUE;
+        maxX = maxY = Integer.MIN_VALUE;
+        return r;
+    }
+}
@@ -0,0 +1,546 @@
+package com.paintforge;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A document independent of any view: the layer stack, the undo history and
+ * everything that keeps a copy of the pixels in step with edits (save
+ * snapshots, the native project file, the crash-recovery journal).
+ * <p>
+ * Edits follow the protocol of {@link PixelDocument} on the active layer;
+ * {@link EditEngine} drives it for the tools. A document is edited by one
+ * thread at a time and reports changes to its {@link DocumentListener}, so it
+ * runs the same with or without a display (batch jobs, benchmarks,
+ * {@code java.awt.headless=true}).
+ */
+public class Document extends PixelDocument {
+    // Layer stack; image, g2 & pixels belong to the active layer
+    private LayerStack layers;
+    private BufferedImage image;
+    private Graphics2D g2;
+    private int[] pixels;
+    // Scratch file holding the layers' pixels while spilled, and the history budget to restore
+    private final HistoryJournal spillFile = new HistoryJournal();
+    private boolean spilled = false;
+    private long spilledBudget;
+    // Copy-on-write snapshots held by background saves
+    private final List<DocumentSnapshot> snapshots = new CopyOnWriteArrayList<>();
+    // Native project the document was opened from or last saved to (null = none)
+    private volatile ProjectFile projectFile;
+    // Crash-recovery journal (null until started)
+    private volatile RecoveryJournal recovery;
+    // Set when undo/redo swapped the layer structure rather than pixels
+    private boolean structureSwapped;
+
+    public Document(LayerStack stack) {
+        setLayers(stack);
+    }
+
+    /** A new document with one white background layer. */
+    public Document(int width, int height) {
+        this(LayerStack.withBackground(width, height, Color.WHITE));
+    }
+
+    // ----- Layers -----
+    /**
+     * Replaces the document with a new layer stack (New / Open). The history
+     * is cleared, any open project is closed and spilled layers are dropped.
+     */
+    public void setLayers(LayerStack stack) {
+        RecoveryJournal journal = recovery;
+        if (journal != null) journal.newDocument(stack);
+        closeProject();
+        history.clear();
+        dropSpill();
+        layers = stack;
+        syncActiveLayer();
+        listener.structureChanged();
+        setSelection(null);
+    }
+
+    private void syncActiveLayer() {
+        Layer active = layers.getActive();
+        image = active.getImage();
+        g2 = active.getGraphics2D();
+        pixels = active.getPixels();
+    }
+
+    public LayerStack getLayers() {
+        return layers;
+    }
+
+    @Override
+    public int getWidth() {
+        return layers.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return layers.getHeight();
+    }
+
+    /** The active layer's pixels. */
+    @Override
+    public PixelRaster getRaster() {
+        return layers.getActive().getRaster();
+    }
+
+    public BufferedImage getActiveImage() {
+        return image;
+    }
+
+    /** Graphics of the active layer (SRC composite, no antialiasing). */
+    public Graphics2D getActiveGraphics() {
+        return g2;
+    }
+
+    /**
+     * Returns the int[] backing the active layer.
+     */
+    public int[] getActivePixels() {
+        return pixels;
+    }
+
+    /**
+     * Converts an ARGB colour to the value stored in the raster (RGB images drop alpha).
+     */
+    public int toRawPixel(int argb) {
+        return image.getColorModel().hasAlpha() ? argb : argb & 0x00FFFFFF;
+    }
+
+    // Layer add, delete and move are undoable
+    public void addLayer() {
+        history.commit();
+        LayerStack.State before = layers.saveState();
+        layers.addLayer();
+        structureEdited(before, 0);
+    }
+
+    public void removeActiveLayer() {
+        history.commit();
+        // A layer restored by undo must not come back with tiles still on disk
+        if (projectFile != null) loadTiles(0, 0, getWidth(), getHeight());
+        LayerStack.State before = layers.saveState();
+        if (layers.removeActive()) {
+            // The entry keeps the deleted layer's pixels alive
+            structureEdited(before, 4L * getWidth() * getHeight());
+        }
+    }
+
+    public void moveActiveLayer(int delta) {
+        history.commit();
+        LayerStack.State before = layers.saveState();
+        if (layers.moveActive(delta)) {
+            structureEdited(before, 0);
+        }
+    }
+
+    /**
+     * Swaps in the layers of another stack of the same size as one undo step,
+     * keeping the history, project and journal (converting back from
+     * indexed colour).
+     */
+    public void replaceLayers(LayerStack stack) {
+        if (stack.getWidth() != getWidth() || stack.getHeight() != getHeight()) {
+            throw new IllegalArgumentException("Layer stack size does not match the document");
+        }
+        history.commit();
+        // The replaced layers must not come back from undo with tiles still on disk
+        if (projectFile != null) loadTiles(0, 0, getWidth(), getHeight());
+        LayerStack.State before = layers.saveState();
+        int replaced = layers.size();
+        layers.restoreState(stack.saveState());
+        structureEdited(before, 4L * getWidth() * getHeight() * replaced);
+    }
+
+    private void structureEdited(LayerStack.State before, long bytes) {
+        if (historyEnabled) history.recordStructure(new StructureUndo(before), bytes);
+        syncActiveLayer();
+        listener.structureChanged();
+    }
+
+    /** Undo entry for a change of the layer set or order. */
+    private final class StructureUndo implements UndoHistory.StructureChange {
+        private LayerStack.State state;
+
+        StructureUndo(LayerStack.State state) {
+            this.state = state;
+        }
+
+        @Override
+        public Rectangle swap() {
+            state = layers.restoreState(state);
+            syncActiveLayer();
+            structureSwapped = true;
+            return new Rectangle(0, 0, getWidth(), getHeight());
+        }
+    }
+
+    public void setActiveLayer(int index) {
+        if (index == layers.getActiveIndex()) return;
+        history.commit();
+        layers.setActiveIndex(index);
+        syncActiveLayer();
+        listener.structureChanged();
+    }
+
+    public void setLayerVisible(int index, boolean visible) {
+        layers.get(index).setVisible(visible);
+        listener.structureChanged();
+    }
+
+    public void setLayerOpacity(int index, float opacity) {
+        layers.get(index).setOpacity(opacity);
+        listener.structureChanged();
+    }
+
+    public void setLayerBlendMode(int index, BlendMode mode) {
+        layers.get(index).setBlendMode(mode);
+        listener.structureChanged();
+    }
+
+    // ----- Editing -----
+    /**
+     * Every write to the active layer's pixels is announced here first, so the
+     * undo history and any save snapshots can keep the old contents.
+     */
+    @Override
+    public void beforeWrite(int x, int y, int w, int h) {
+        ProjectFile project = projectFile;
+        if (project != null) {
+            loadTiles(x, y, w, h);
+            project.markDirty(layers.getActive(), x, y, w, h);
+        }
+        RecoveryJournal journal = recovery;
+        if (journal != null) {
+            journal.markDirty(layers.getActive(), x, y, w, h);
+        }
+        super.beforeWrite(x, y, w, h);
+        if (!snapshots.isEmpty()) {
+            int[] target = getActivePixels();
+            for (DocumentSnapshot snapshot : snapshots) {
+                snapshot.beforeWrite(target, x, y, w, h);
+            }
+        }
+    }
+
+    @Override
+    protected Rectangle applyHistory(boolean redo) {
+        // Undo/redo can write any layer anywhere: detach pending save snapshots first
+        for (DocumentSnapshot snapshot : snapshots) {
+            snapshot.preserveAll();
+        }
+        structureSwapped = false;
+        Rectangle changed = super.applyHistory(redo);
+        if (changed != null && structureSwapped) {
+            // The project and journal pick up the layer table on their next save
+            listener.structureChanged();
+        } else if (changed != null) {
+            ProjectFile project = projectFile;
+            if (project != null) project.markDirty(changed);
+            RecoveryJournal journal = recovery;
+            if (journal != null) journal.markDirty(changed);
+            listener.layersChanged(changed);
+        }
+        return changed;
+    }
+
+    /** While the layers are spilled the budget is kept for {@link #restoreLayers()}. */
+    @Override
+    public void setHistoryMemoryBudget(long bytes) {
+        if (spilled) spilledBudget = bytes;
+        else super.setHistoryMemoryBudget(bytes);
+    }
+
+    @Override
+    public long getHistoryMemoryBudget() {
+        return spilled ? spilledBudget : super.getHistoryMemoryBudget();
+    }
+
+    // ----- Spilling -----
+    /**
+     * Moves the layers' pixels out of memory into a scratch file while an
+     * indexed-colour document is edited in their place, and pushes the undo
+     * history down to its disk tier. The history, project and journal stay
+     * attached, and {@link #restoreLayers()} brings the pixels back. In
+     * between the document must not be edited, snapshotted or captured;
+     * {@link #setLayers} and {@link #close()} drop the spilled pixels.
+     */
+    public void spillLayers() {
+        if (spilled) return;
+        history.commit();
+        // Restoring then needs the scratch file only, not the project
+        loadTiles(0, 0, getWidth(), getHeight());
+        try {
+            for (int i = 0; i < layers.size(); i++) {
+                layers.get(i).spill(spillFile);
+            }
+        } catch (UncheckedIOException e) {
+            // No room on disk: the layers stay in memory
+            e.printStackTrace();
+            for (int i = 0; i < layers.size(); i++) {
+                layers.get(i).restore(spillFile);
+            }
+            spillFile.close();
+            return;
+        }
+        image = null;
+        g2 = null;
+        pixels = null;
+        spilledBudget = history.getMemoryBudget();
+        history.setMemoryBudget(0);
+        spilled = true;
+    }
+
+    /** Reads back the layers spilled by {@link #spillLayers()}. */
+    public void restoreLayers() {
+        if (!spilled) return;
+        for (int i = 0; i < layers.size(); i++) {
+            layers.get(i).restore(spillFile);
+        }
+        dropSpill();
+        syncActiveLayer();
+    }
+
+    public boolean isSpilled() {
+        return spilled;
+    }
+
+    private void dropSpill() {
+        if (!spilled) return;
+        spilled = false;
+        spillFile.close();
+        history.setMemoryBudget(spilledBudget);
+    }
+
+    // ----- Snapshots -----
+    /**
+     * Loads the whole document and takes a copy-on-write snapshot of it, kept
+     * in step with later edits until {@link #releaseSnapshot} is called. No
+     * edit may be in progress.
+     */
+    public DocumentSnapshot takeSnapshot() {
+        loadTiles(0, 0, getWidth(), getHeight());
+        DocumentSnapshot snapshot = new DocumentSnapshot(layers);
+        snapshots.add(snapshot);
+        return snapshot;
+    }
+
+    public void releaseSnapshot(DocumentSnapshot snapshot) {
+        snapshots.remove(snapshot);
+    }
+
+    // ----- Image Files -----
+    /**
+     * Decodes an image file into a single-layer stack.
+     */
+    public static LayerStack readImage(Path file) throws IOException {
+        BufferedImage loaded = ImageIO.read(file.toFile());
+        if (loaded == null) throw new IOException("Unsupported image format: " + file.getFileName());
+        LayerStack stack = new LayerStack(loaded.getWidth(), loaded.getHeight());
+        stack.addLayer(Layer.fromImage(file.getFileName().toString(), loaded));
+        return stack;
+    }
+
+    /** Replaces the document with an image file. */
+    public void openImage(Path file) throws IOException {
+        setLayers(readImage(file));
+    }
+
+    /**
+     * Flattens the document and writes it as PNG, on the calling thread.
+     */
+    public void saveImage(Path file, PngEncoder.Preset preset) throws IOException {
+        DocumentSnapshot snapshot = takeSnapshot();
+        BufferedImage flat;
+        try {
+            flat = snapshot.flatten(null);
+        } finally {
+            releaseSnapshot(snapshot);
+        }
+        int[] pixels = ((DataBufferInt) flat.getRaster().getDataBuffer()).getData();
+        new PngEncoder(preset).writeFile(pixels, flat.getWidth(), flat.getHeight(), file, null, null);
+    }
+
+    // ----- Project Files -----
+    public ProjectFile getProjectFile() {
+        return projectFile;
+    }
+
+    /**
+     * Creates a native project for the document; later saves go to it.
+     */
+    public void createProject(Path file) throws IOException {
+        ProjectFile project = ProjectFile.create(file, layers);
+        closeProject();
+        projectFile = project;
+    }
+
+    /**
+     * Opens a native project. Only its layer table and tile index are read
+     * here; tile pixels are decoded as they are needed.
+     */
+    public void openProject(Path file) throws IOException {
+        LayerStack[] document = new LayerStack[1];
+        ProjectFile project = ProjectFile.open(file, document);
+        setLayers(document[0]);
+        projectFile = project;
+    }
+
+    /**
+     * Starts an incremental save into the document's project. The returned
+     * task writes the tiles changed since the previous save and may run on
+     * any thread while editing continues; it returns the number of tiles
+     * written. Returns null if there is no project or a save is still running.
+     */
+    public Callable<Integer> beginProjectSave() {
+        ProjectFile project = projectFile;
+        if (project == null || project.isSaving()) return null;
+        DocumentSnapshot snapshot = new DocumentSnapshot(layers);
+        snapshots.add(snapshot);
+        ProjectFile.SaveJob job = project.beginSave(layers, snapshot);
+        return () -> {
+            try {
+                return project.save(job);
+            } finally {
+                releaseSnapshot(snapshot);
+            }
+        };
+    }
+
+    /**
+     * Loads any project tiles still on disk inside the rectangle, from any thread.
+     */
+    @Override
+    public void loadTiles(int x, int y, int w, int h) {
+        Rectangle loaded = ensureLoaded(x, y, w, h);
+        if (loaded != null) {
+            listener.layersChanged(loaded);
+        }
+    }
+
+    /** True while some project tiles are still only on disk, so reads must be announced. */
+    @Override
+    public boolean hasTilesOnDisk() {
+        ProjectFile project = projectFile;
+        return project != null && !project.isFullyLoaded();
+    }
+
+    /**
+     * Like {@link #loadTiles} but returns the area loaded (null = none)
+     * instead of reporting it, for a caller about to present it.
+     */
+    public Rectangle ensureLoaded(int x, int y, int w, int h) {
+        ProjectFile project = projectFile;
+        return project != null ? project.ensureLoaded(x, y, w, h) : null;
+    }
+
+    /**
+     * Releases the files the document holds: the undo journal's and spilled
+     * layers' scratch files and the open project. The document must not be
+     * edited afterwards.
+     */
+    @Override
+    public void close() {
+        super.close();
+        dropSpill();
+        closeProject();
+    }
+
+    public void closeProject() {
+        ProjectFile project = projectFile;
+        if (project == null) return;
+        projectFile = null;
+        try {
+            project.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // ----- Crash Recovery -----
+    /**
+     * Starts journaling the document for crash recovery.
+     *
+     * @return true if the previous run did not shut down cleanly
+     */
+    public boolean startRecovery(Path directory) throws IOException {
+        RecoveryJournal journal = new RecoveryJournal(directory);
+        journal.newDocument(layers);
+        recovery = journal;
+        return journal.hadUncleanShutdown();
+    }
+
+    /**
+     * Writes the last changes to the journal and closes it.
+     */
+    public void stopRecovery() {
+        stopRecovery(null);
+    }
+
+    /**
+     * Like {@link #stopRecovery()}, but ends with the indexed document being
+     * edited in place of the layers (null = none).
+     */
+    public void stopRecovery(IndexedDocument shown) {
+        RecoveryJournal journal = recovery;
+        if (journal == null) return;
+        if (shown != null) captureRecovery(shown);
+        else captureRecovery();
+        recovery = null;
+        journal.close();
+    }
+
+    public boolean isRecovering() {
+        return recovery != null;
+    }
+
+    /** True while the journal is still writing the previous capture. */
+    public boolean isRecoveryBusy() {
+        RecoveryJournal journal = recovery;
+        return journal != null && journal.isBusy();
+    }
+
+    /**
+     * The journal of the previous session, or null if there is none. Waits
+     * for the journal to finish rotating the last session, so call it off
+     * the EDT.
+     */
+    public Path getPreviousSession() {
+        RecoveryJournal journal = recovery;
+        return journal != null ? journal.getPreviousSession() : null;
+    }
+
+    /**
+     * Hands the changes since the last capture to the journal's writer
+     * thread. Must not run during an edit.
+     */
+    public void captureRecovery() {
+        RecoveryJournal journal = recovery;
+        if (journal == null) return;
+        RecoveryJournal.Capture capture = journal.prepare(layers);
+        if (capture == null) return;
+        DocumentSnapshot snapshot = new DocumentSnapshot(layers);
+        snapshots.add(snapshot);
+        journal.write(capture, snapshot, projectFile, () -> releaseSnapshot(snapshot));
+    }
+
+    /**
+     * Journals an indexed document edited in place of the layers, if it
+     * changed since its last capture. Must not run during its edits.
+     */
+    public void captureRecovery(IndexedDocument shown) {
+        RecoveryJournal journal = recovery;
+        if (journal == null || !shown.takeChanges()) return;
+        journal.writeIndexed(shown.getImage());
+    }
+}
@@ -0,0 +1,43 @@
+package com.paintforge;
+
+import java.awt.Rectangle;
+
+/**
+ * Receives change notifications from a {@link Document}, e.g. to repaint a
+ * view. Pixel notifications can arrive on any thread that edits the document.
+ */
+public interface DocumentListener {
+    /**
+     * Pixels of the active layer changed, or are about to be drawn, inside
+     * the rectangle. The rectangle may extend past the document.
+     */
+    default void pixelsChanged(int x, int y, int width, int height) {
+    }
+
+    /**
+     * Pixels of any layer changed inside the rectangle (undo, redo, project
+     * tiles loaded from disk).
+     */
+    default void layersChanged(Rectangle r) {
+    }
+
+    /**
+     * The document was replaced or its layer set, order, active layer or a
+     * layer property changed.
+     */
+    default void structureChanged() {
+    }
+
+    /**
+     * The selection was replaced or cleared.
+     */
+    default void selectionChanged() {
+    }
+
+    /**
+     * Palette entries of an indexed document changed or were added; pixels
+     * using them now show different colours.
+     */
+    default void paletteChanged() {
+    }
+}
@@ -0,0 +1,150 @@
+package com.paintforge;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.function.DoubleConsumer;
+
+/**
+ * Copy-on-write snapshot of a layer stack, so a document can be written out
+ * on a background thread while the user keeps painting.
+ * <p>
+ * Taking the snapshot copies no pixels: it records each layer's live pixel
+ * array and properties. Before a tool writes to a layer, the canvas calls
+ * {@link #beforeWrite}, and the {@value #TILE_SIZE}x{@value #TILE_SIZE} tiles
+ * about to change are copied once; readers then see the copy for those tiles
+ * and the live array everywhere else. Writes the canvas cannot bound in
+ * advance (undo, redo) call {@link #preserveAll()} instead.
+ */
+public class DocumentSnapshot {
+    public static final int TILE_SIZE = 64;
+
+    private final int width, height, tilesX, tilesY;
+    private final int[][] live;
+    private final boolean[] visible;
+    private final int[] opacity;
+    private final BlendMode[] blendModes;
+    // Tiles copied before their first write, per layer (null = unchanged)
+    private final int[][][] preserved;
+
+    public DocumentSnapshot(LayerStack stack) {
+        width = stack.getWidth();
+        height = stack.getHeight();
+        tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        int n = stack.size();
+        live = new int[n][];
+        visible = new boolean[n];
+        opacity = new int[n];
+        blendModes = new BlendMode[n];
+        preserved = new int[n][][];
+        for (int i = 0; i < n; i++) {
+            Layer layer = stack.get(i);
+            live[i] = layer.getPixels();
+            visible[i] = layer.isVisible();
+            opacity[i] = Math.round(layer.getOpacity() * 255);
+            blendModes[i] = layer.getBlendMode();
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * The given layer pixels are about to change inside the rectangle.
+     */
+    public synchronized void beforeWrite(int[] target, int x, int y, int w, int h) {
+        int layer = indexOf(target);
+        if (layer < 0) return;
+        int x0 = Math.max(0, x), y0 = Math.max(0, y);
+        int x1 = Math.min(width, x + w), y1 = Math.min(height, y + h);
+        if (x0 >= x1 || y0 >= y1) return;
+        for (int ty = y0 / TILE_SIZE, tyEnd = (y1 - 1) / TILE_SIZE; ty <= tyEnd; ty++) {
+            for (int tx = x0 / TILE_SIZE, txEnd = (x1 - 1) / TILE_SIZE; tx <= txEnd; tx++) {
+                preserve(layer, ty * tilesX + tx);
+            }
+        }
+    }
+
+    /**
+     * Copies every tile not copied yet, detaching the snapshot from the live layers.
+     */
+    public synchronized void preserveAll() {
+        for (int layer = 0; layer < live.length; layer++) {
+            for (int tile = 0; tile < tilesX * tilesY; tile++) {
+                preserve(layer, tile);
+            }
+        }
+    }
+
+    private int indexOf(int[] target) {
+        for (int i = 0; i < live.length; i++) {
+            if (live[i] == target) return i;
+        }
+        return -1;
+    }
+
+    private void preserve(int layer, int tile) {
+        if (preserved[layer] == null) {
+            preserved[layer] = new int[tilesX * tilesY][];
+        }
+        if (preserved[layer][tile] != null) return;
+        int[] copy = new int[TILE_SIZE * TILE_SIZE];
+        copyTile(live[layer], tile, copy);
+        preserved[layer][tile] = copy;
+    }
+
+    private void copyTile(int[] pixels, int tile, int[] dst) {
+        int tx = (tile % tilesX) * TILE_SIZE, ty = (tile / tilesX) * TILE_SIZE;
+        int tw = Math.min(TILE_SIZE, width - tx), th = Math.min(TILE_SIZE, height - ty);
+        for (int row = 0; row < th; row++) {
+            System.arraycopy(pixels, (ty + row) * width + tx, dst, row * TILE_SIZE, tw);
+        }
+    }
+
+    /**
+     * Copies one layer's tile as it was when the snapshot was taken into dst
+     * (row stride {@value #TILE_SIZE}).
+     */
+    public synchronized void readTile(int layer, int tile, int[] dst) {
+        int[] copy = preserved[layer] == null ? null : preserved[layer][tile];
+        if (copy != null) {
+            System.arraycopy(copy, 0, dst, 0, copy.length);
+        } else {
+            copyTile(live[layer], tile, dst);
+        }
+    }
+
+    /**
+     * Flattens the snapshot into a new ARGB image, tile by tile.
+     *
+     * @param progress receives the fraction of tiles done, may be null
+     */
+    public BufferedImage flatten(DoubleConsumer progress) {
+        BufferedImage flat = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] out = ((DataBufferInt) flat.getRaster().getDataBuffer()).getData();
+        int[] tilePixels = new int[TILE_SIZE * TILE_SIZE];
+        int tiles = tilesX * tilesY;
+        for (int tile = 0; tile < tiles; tile++) {
+            int tx = (tile % tilesX) * TILE_SIZE, ty = (tile / tilesX) * TILE_SIZE;
+            int tw = Math.min(TILE_SIZE, width - tx), th = Math.min(TILE_SIZE, height - ty);
+            for (int layer = 0; layer < live.length; layer++) {
+                if (!visible[layer] || opacity[layer] == 0) continue;
+                readTile(layer, tile, tilePixels);
+                BlendMode mode = blendModes[layer];
+                for (int row = 0; row < th; row++) {
+                    int o = (ty + row) * width + tx, s = row * TILE_SIZE;
+                    for (int i = 0; i < tw; i++) {
+                        out[o + i] = LayerCompositor.composite(out[o + i], tilePixels[s + i], opacity[layer], mode);
+                    }
+                }
+            }
+            if (progress != null && (tile & 63) == 63) progress.accept((tile + 1) / (double) tiles);
+        }
+        return flat;
+    }
+}
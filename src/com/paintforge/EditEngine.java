@@ -0,0 +1,271 @@
+package com.paintforge;
+
+import java.awt.*;
+import java.util.Arrays;
+
+/**
+ * The painting tools on a layered {@link Document}: the shared tools of
+ * {@link AbstractEditEngine} on the active layer's ARGB pixels, with soft
+ * brushes and a fill tolerance, plus the whole-image operations of batch
+ * jobs (palette swap, outline, rescale).
+ */
+public class EditEngine extends AbstractEditEngine<Document> {
+    private float brushHardness = 1f;
+
+    public EditEngine(Document document) {
+        this(document, new Telemetry());
+    }
+
+    public EditEngine(Document document, Telemetry telemetry) {
+        super(document, telemetry);
+    }
+
+    // ----- Tool Settings -----
+    /** Sets the brush/eraser edge hardness, 0 (soft) to 1 (hard). */
+    public void setBrushHardness(float hardness) {
+        this.brushHardness = hardness;
+    }
+
+    public void setFillTolerance(int tolerance) {
+        scanlineFill.setTolerance(tolerance);
+    }
+
+    public void setFillAlphaAware(boolean alphaAware) {
+        scanlineFill.setAlphaAware(alphaAware);
+    }
+
+    // ----- Pixel access -----
+    @Override
+    protected void aim(BrushEngine brush) {
+        brush.setTarget(document.getActivePixels(), document.getWidth(), document.getHeight());
+    }
+
+    @Override
+    protected void aim(PixelPerfectFilter filter) {
+        filter.setTarget(document.getActivePixels(), document.getWidth(), document.getHeight());
+    }
+
+    @Override
+    protected int toValue(Color color) {
+        return document.toRawPixel(color.getRGB());
+    }
+
+    @Override
+    protected int strokeValue() {
+        return toValue(getColor());
+    }
+
+    @Override
+    protected float strokeHardness() {
+        return brushHardness;
+    }
+
+    @Override
+    protected boolean strokeErases() {
+        return "ERASER".equals(getTool());
+    }
+
+    @Override
+    protected Rectangle floodFill(int x, int y, int value, SelectionMask mask, boolean contiguous) {
+        int width = document.getWidth(), height = document.getHeight();
+        if (contiguous) {
+            // The flood stops at the selection's edge, so nothing outside it is written
+            return scanlineFill.fill(document.getActivePixels(), width, height, x, y, value, mask, document);
+        }
+        // Row bands run in parallel, so clip each row to the spans instead
+        return scanlineFill.replaceAll(document.getActivePixels(), width, height, x, y, value, mask, document);
+    }
+
+    /** Matches with the tolerance of the fill settings. */
+    @Override
+    protected Rectangle wand(int x, int y, boolean contiguous, SelectionMask picked) {
+        return scanlineFill.select(document.getActivePixels(), document.getWidth(), document.getHeight(),
+                x, y, contiguous, picked);
+    }
+
+    // ----- Operations -----
+    /**
+     * Palette swap: every pixel of the active layer exactly equal to from[i]
+     * becomes to[i] (ARGB; for duplicate sources the last pair wins).
+     */
+    public void replaceColors(int[] from, int[] to) {
+        long start = telemetry.beginTool();
+        int n = from.length;
+        // Sorted source colours with their replacements, for a binary search per colour run
+        long[] pairs = new long[n];
+        for (int i = 0; i < n; i++) {
+            pairs[i] = ((long) document.toRawPixel(from[i]) << 32) | i;
+        }
+        Arrays.sort(pairs);
+        int[] keys = new int[n], values = new int[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = (int) (pairs[i] >> 32);
+            values[i] = document.toRawPixel(to[(int) pairs[i]]);
+        }
+
+        int width = document.getWidth(), height = document.getHeight();
+        SelectionMask mask = document.getSelection();
+        Rectangle area = editArea(mask);
+        document.beginEdit();
+        // Loads the project tiles of the area, too
+        document.beforeWrite(area.x, area.y, area.width, area.height);
+        int[] pixels = document.getActivePixels();
+        int[] spans = SelectionClip.rowBuffer(mask);
+        int minX = width, minY = height, maxX = -1, maxY = -1;
+        // Sprites are long runs of few colours: remember the last lookup
+        int lastColor = pixels.length > 0 ? ~pixels[0] : 0, lastIndex = -1;
+        for (int y = area.y; y < area.y + area.height; y++) {
+            int count = SelectionClip.clipRow(mask, y, area.x, area.x + area.width, spans);
+            for (int s = 0; s < count; s += 2) {
+                for (int x = spans[s], i = y * width + x; x < spans[s + 1]; x++, i++) {
+                    int c = pixels[i];
+                    if (c != lastColor) {
+                        lastColor = c;
+                        lastIndex = Arrays.binarySearch(keys, c);
+                        while (lastIndex >= 0 && lastIndex + 1 < n && keys[lastIndex + 1] == c) lastIndex++;
+                    }
+                    if (lastIndex < 0 || values[lastIndex] == c) continue;
+                    pixels[i] = values[lastIndex];
+                    if (x < minX) minX = x;
+                    if (x > maxX) maxX = x;
+                    if (y < minY) minY = y;
+                    maxY = y;
+                }
+            }
+        }
+        document.commitEdit();
+        telemetry.endTool("SWAP", start);
+        reportUndoMemory();
+        if (maxX >= 0) document.markChanged(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    }
+
+    /**
+     * Sprite outline: colours the transparent pixels within thickness steps
+     * (4-connected) of a non-transparent pixel of the active layer. Only the
+     * selection's bounds grown by the thickness are read.
+     */
+    public void outline(Color color, int thickness) {
+        long start = telemetry.beginTool();
+        int width = document.getWidth(), height = document.getHeight();
+        SelectionMask mask = document.getSelection();
+        thickness = Math.max(1, Math.min(thickness, 126));
+        // Only shapes within thickness steps of the selection can outline it
+        Rectangle reach = editArea(mask);
+        reach.grow(thickness, thickness);
+        reach = reach.intersection(new Rectangle(0, 0, width, height));
+        document.loadTiles(reach.x, reach.y, reach.width, reach.height);
+        int[] pixels = document.getActivePixels();
+        int reachX1 = reach.x + reach.width, reachY1 = reach.y + reach.height;
+        // Distance ring per pixel: 1 = shape, k + 1 = added by pass k, 0 = untouched
+        byte[] ring = new byte[width * height];
+        for (int y = reach.y; y < reachY1; y++) {
+            for (int i = y * width + reach.x, end = y * width + reachX1; i < end; i++) {
+                if ((pixels[i] >>> 24) != 0) ring[i] = 1;
+            }
+        }
+        int minX = width, minY = height, maxX = -1, maxY = -1;
+        for (int pass = 1; pass <= thickness; pass++) {
+            byte frontier = (byte) pass, next = (byte) (pass + 1);
+            boolean grew = false;
+            for (int y = reach.y; y < reachY1; y++) {
+                for (int x = reach.x, i = y * width + x; x < reachX1; x++, i++) {
+                    if (ring[i] != 0) continue;
+                    if ((x > 0 && ring[i - 1] == frontier) || (x + 1 < width && ring[i + 1] == frontier)
+                            || (y > 0 && ring[i - width] == frontier) || (y + 1 < height && ring[i + width] == frontier)) {
+                        ring[i] = next;
+                        grew = true;
+                        if (x < minX) minX = x;
+                        if (x > maxX) maxX = x;
+                        if (y < minY) minY = y;
+                        if (y > maxY) maxY = y;
+                    }
+                }
+            }
+            if (!grew) break;
+        }
+        // The shapes are found around the selection, but only the selection is drawn on
+        if (maxX >= 0 && mask != null) {
+            Rectangle drawn = editArea(mask).intersection(new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1));
+            minX = drawn.x;
+            minY = drawn.y;
+            maxX = drawn.x + drawn.width - 1;
+            maxY = drawn.y + drawn.height - 1;
+        }
+        document.beginEdit();
+        if (maxX >= minX && maxY >= minY) {
+            int w = maxX - minX + 1, h = maxY - minY + 1;
+            document.beforeWrite(minX, minY, w, h);
+            int outlineColor = document.toRawPixel(color.getRGB());
+            int[] spans = SelectionClip.rowBuffer(mask);
+            for (int y = minY; y <= maxY; y++) {
+                int count = SelectionClip.clipRow(mask, y, minX, maxX + 1, spans);
+                for (int s = 0; s < count; s += 2) {
+                    for (int i = y * width + spans[s], end = y * width + spans[s + 1]; i < end; i++) {
+                        if (ring[i] > 1) pixels[i] = outlineColor;
+                    }
+                }
+            }
+        }
+        document.commitEdit();
+        telemetry.endTool("OUTLINE", start);
+        reportUndoMemory();
+        if (maxX >= minX && maxY >= minY) document.markChanged(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    }
+
+    /**
+     * Scales every layer to newWidth x newHeight, nearest neighbour (crisp
+     * pixel art) or bilinear. This replaces the document's layer stack, which
+     * like New/Open restarts the history.
+     */
+    public void rescale(int newWidth, int newHeight, boolean smooth) {
+        long start = telemetry.beginTool();
+        document.loadTiles(0, 0, document.getWidth(), document.getHeight());
+        LayerStack old = document.getLayers();
+        int width = old.getWidth(), height = old.getHeight();
+        LayerStack scaled = new LayerStack(newWidth, newHeight);
+        for (int l = 0; l < old.size(); l++) {
+            Layer source = old.get(l);
+            Layer layer = Layer.create(source.getName(), newWidth, newHeight, null);
+            if (smooth) {
+                Graphics2D g = layer.getImage().createGraphics();
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.setComposite(AlphaComposite.Src);
+                g.drawImage(source.getImage(), 0, 0, newWidth, newHeight, null);
+                g.dispose();
+            } else {
+                int[] src = source.getPixels(), dst = layer.getPixels();
+                // 16.16 fixed-point source steps, sampling pixel centres
+                long stepX = ((long) width << 16) / newWidth, stepY = ((long) height << 16) / newHeight;
+                for (int y = 0; y < newHeight; y++) {
+                    int row = (int) ((y * stepY + stepY / 2) >> 16) * width;
+                    long sx = stepX / 2;
+                    for (int x = 0, o = y * newWidth; x < newWidth; x++, o++, sx += stepX) {
+                        dst[o] = src[row + (int) (sx >> 16)];
+                    }
+                }
+            }
+            layer.setVisible(source.isVisible());
+            layer.setOpacity(source.getOpacity());
+            layer.setBlendMode(source.getBlendMode());
+            scaled.addLayer(layer);
+        }
+        scaled.setActiveIndex(old.getActiveIndex());
+        document.setLayers(scaled);
+        telemetry.endTool("SCALE", start);
+    }
+
+    /**
+     * Colour of the active layer at a point, or null outside the document.
+     */
+    @Override
+    public Color pickColor(int x, int y) {
+        long start = telemetry.beginTool();
+        Color picked = null;
+        document.loadTiles(x, y, 1, 1);
+        if (x >= 0 && y >= 0 && x < document.getWidth() && y < document.getHeight()) {
+            picked = new Color(document.getActivePixels()[y * document.getWidth() + x], true);
+        }
+        telemetry.endTool("COLOR_PICKER", start);
+        return picked;
+    }
+}
@@ -0,0 +1,41 @@
+package com.paintforge;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+
+/**
+ * The tool operations a view forwards to an engine, implemented for ARGB
+ * documents by {@link EditEngine} and for indexed-colour documents by
+ * {@link IndexedEditEngine}. Tool settings stay on the engines themselves.
+ */
+public interface EditTools extends StrokeSink {
+    /** Bucket fill from a seed point. */
+    void fill(int x, int y, Color color);
+
+    /** Straight line with round caps. */
+    void line(int x0, int y0, int x1, int y1, Color color, int size);
+
+    /** Fills the image (or the selection) with white. */
+    void clear();
+
+    /** Colour at a point, or null outside the document. */
+    Color pickColor(int x, int y);
+
+    /** Returns the area restored, or null if there was nothing to undo. */
+    Rectangle undo();
+
+    /** Returns the area restored, or null if there was nothing to redo. */
+    Rectangle redo();
+
+    /** Combines a rectangle or lasso mask with the current selection. */
+    void select(SelectionMask shape, SelectionMask.Mode mode);
+
+    /** Selects the pixels matching the one at (x, y). */
+    void magicWand(int x, int y, SelectionMask.Mode mode);
+
+    void selectAll();
+
+    void deselect();
+
+    void invertSelection();
+}
@@ -0,0 +1,44 @@
+package com.paintforge;
+
+import javax.swing.*;
+import java.awt.*;
+
+/**
+ * Small non-modal progress window for a background open/save. It follows the
+ * worker's progress, cancels it from its Cancel button and closes itself when
+ * the worker is done.
+ */
+public class FileProgressDialog extends JDialog {
+    public FileProgressDialog(Component parent, String title, SwingWorker<?, ?> worker) {
+        super(SwingUtilities.getWindowAncestor(parent), title, ModalityType.MODELESS);
+        setDefaultCloseOperation(DO_NOTHING_ON_CLOSE);
+
+        JProgressBar progressBar = new JProgressBar(0, 100);
+        progressBar.setStringPainted(true);
+        progressBar.setPreferredSize(new Dimension(280, 22));
+
+        JButton cancelButton = new JButton("Cancel");
+        cancelButton.setFocusPainted(false);
+        cancelButton.addActionListener(e -> {
+            cancelButton.setEnabled(false);
+            worker.cancel(false);
+        });
+
+        JPanel content = new JPanel(new BorderLayout(8, 8));
+        content.setBorder(BorderFactory.createEmptyBorder(12, 12, 12, 12));
+        content.setBackground(new Color(60, 63, 65));
+        content.add(progressBar, BorderLayout.CENTER);
+        content.add(cancelButton, BorderLayout.EAST);
+        setContentPane(content);
+        pack();
+        setLocationRelativeTo(parent);
+
+        worker.addPropertyChangeListener(evt -> {
+            if ("progress".equals(evt.getPropertyName())) {
+                progressBar.setValue((Integer) evt.getNewValue());
+            } else if ("state".equals(evt.getPropertyName()) && evt.getNewValue() == SwingWorker.StateValue.DONE) {
+                dispose();
+            }
+        });
+    }
+}
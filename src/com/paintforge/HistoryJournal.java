@@ -0,0 +1,172 @@
+package com.paintforge;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Append-only scratch file in the temp directory that holds undo entries
+ * spilled out of memory, or the layers of a document while it is shown in
+ * indexed colour ({@link Document#spillLayers()}). Records are written and read back through memory
+ * mappings of fixed {@value #REGION_SIZE}-byte regions of the file; each
+ * region is mapped once and reused by every record that falls in it, so the
+ * mapped address space never exceeds the file size. Released records go on a
+ * free list of extents (neighbours merged); appends take the first extent
+ * large enough before growing the file, so the file stays near the peak of
+ * live records however long the session runs. {@link #close()} deletes the
+ * file; the next append opens a new one.
+ */
+public class HistoryJournal {
+    static final int REGION_SIZE = 16 * 1024 * 1024;
+
+    private Path file;
+    private FileChannel channel;
+    private final List<MappedByteBuffer> regions = new ArrayList<>();
+    // End of the used part of the file, and the released extents below it (offset -> length)
+    private long writePosition = 0;
+    private final TreeMap<Long, Integer> free = new TreeMap<>();
+    private long liveBytes = 0;
+
+    /**
+     * Appends a record and returns its offset in the journal.
+     */
+    public synchronized long append(byte[] data) {
+        try {
+            ensureOpen();
+            long offset = allocate(data.length);
+            copy(offset, data, true);
+            liveBytes += data.length;
+            return offset;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write undo journal", e);
+        }
+    }
+
+    public synchronized byte[] read(long offset, int length) {
+        try {
+            byte[] data = new byte[length];
+            copy(offset, data, false);
+            return data;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read undo journal", e);
+        }
+    }
+
+    /** First free extent that fits, else the end of the file. */
+    private long allocate(int length) {
+        for (Iterator<Map.Entry<Long, Integer>> it = free.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Long, Integer> extent = it.next();
+            if (extent.getValue() < length) continue;
+            long offset = extent.getKey();
+            it.remove();
+            if (extent.getValue() > length) free.put(offset + length, extent.getValue() - length);
+            return offset;
+        }
+        long offset = writePosition;
+        writePosition += length;
+        return offset;
+    }
+
+    /**
+     * Copies between the record at offset and data, region by region.
+     */
+    private void copy(long offset, byte[] data, boolean write) throws IOException {
+        int done = 0;
+        while (done < data.length) {
+            long position = offset + done;
+            MappedByteBuffer region = region((int) (position / REGION_SIZE));
+            int at = (int) (position % REGION_SIZE);
+            int n = Math.min(data.length - done, REGION_SIZE - at);
+            if (write) region.put(at, data, done, n);
+            else region.get(at, data, done, n);
+            done += n;
+        }
+    }
+
+    private MappedByteBuffer region(int index) throws IOException {
+        while (regions.size() <= index) {
+            long start = (long) regions.size() * REGION_SIZE;
+            regions.add(channel.map(FileChannel.MapMode.READ_WRITE, start, REGION_SIZE));
+        }
+        return regions.get(index);
+    }
+
+    /**
+     * Marks a record as no longer needed; its space is reused by later appends.
+     */
+    public synchronized void release(long offset, int length) {
+        liveBytes -= length;
+        if (liveBytes <= 0) {
+            liveBytes = 0;
+            writePosition = 0;
+            free.clear();
+            return;
+        }
+        Map.Entry<Long, Integer> before = free.floorEntry(offset);
+        if (before != null && before.getKey() + before.getValue() == offset) {
+            free.remove(before.getKey());
+            offset = before.getKey();
+            length += before.getValue();
+        }
+        Integer after = free.remove(offset + length);
+        if (after != null) length += after;
+        if (offset + length == writePosition) {
+            writePosition = offset;
+        } else {
+            free.put(offset, length);
+        }
+    }
+
+    /** Bytes of live records currently held on disk. */
+    public synchronized long getLiveBytes() {
+        return liveBytes;
+    }
+
+    /** Bytes of the file in use, live records and free extents between them. */
+    public synchronized long getUsedBytes() {
+        return writePosition;
+    }
+
+    /** Number of regions currently mapped. */
+    synchronized int getMappedRegions() {
+        return regions.size();
+    }
+
+    /**
+     * Drops every record, closes the file and deletes it. The journal can be
+     * used again afterwards and then starts a new file.
+     */
+    public synchronized void close() {
+        regions.clear();
+        free.clear();
+        writePosition = 0;
+        liveBytes = 0;
+        if (channel == null) return;
+        try {
+            channel.close();
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // Still deleted on exit
+            e.printStackTrace();
+        }
+        channel = null;
+        file = null;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (channel == null) {
+            file = Files.createTempFile("paintforge-history", ".journal");
+            file.toFile().deleteOnExit();
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.paintforge;
+
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadProgressListener;
+import java.util.function.BooleanSupplier;
+import java.util.function.DoubleConsumer;
+
+/**
+ * Forwards ImageIO read progress as a 0..1 fraction and aborts the reader
+ * as soon as the owning task is cancelled. Saves go through
+ * {@link PngEncoder}, which reports its own progress.
+ */
+public class ImageIOProgress implements IIOReadProgressListener {
+    private final DoubleConsumer progress;
+    private final BooleanSupplier cancelled;
+
+    public ImageIOProgress(DoubleConsumer progress, BooleanSupplier cancelled) {
+        this.progress = progress;
+        this.cancelled = cancelled;
+    }
+
+    @Override
+    public void imageProgress(ImageReader source, float percentageDone) {
+        progress.accept(percentageDone / 100.0);
+        if (cancelled.getAsBoolean()) source.abort();
+    }
+
+    @Override
+    public void sequenceStarted(ImageReader source, int minIndex) {
+    }
+
+    @Override
+    public void sequenceComplete(ImageReader source) {
+    }
+
+    @Override
+    public void imageStarted(ImageReader source, int imageIndex) {
+    }
+
+    @Override
+    public void imageComplete(ImageReader source) {
+    }
+
+    @Override
+    public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {
+    }
+
+    @Override
+    public void thumbnailProgress(ImageReader source, float percentageDone) {
+    }
+
+    @Override
+    public void thumbnailComplete(ImageReader source) {
+    }
+
+    @Override
+    public void readAborted(ImageReader source) {
+    }
+}
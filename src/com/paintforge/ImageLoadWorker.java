@@ -0,0 +1,62 @@
+package com.paintforge;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.swing.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Decodes an image file on a background thread and converts it, still off
+ * the EDT, into a single-layer document in the canvas' ARGB int layout.
+ * Progress runs 0-90 while decoding and 90-100 while converting.
+ * <p>
+ * Palette images (palette PNGs, GIFs) are kept in indexed colour instead:
+ * {@link #get()} then returns null and {@link #getIndexedImage()} the image.
+ */
+public class ImageLoadWorker extends SwingWorker<LayerStack, Void> {
+    private final File file;
+    private volatile IndexedImage indexed;
+
+    public ImageLoadWorker(File file) {
+        this.file = file;
+    }
+
+    @Override
+    protected LayerStack doInBackground() throws IOException {
+        BufferedImage loaded;
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            if (in == null) throw new IOException("Cannot open " + file);
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) throw new IOException("Unsupported image format: " + file.getName());
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                reader.addIIOReadProgressListener(new ImageIOProgress(
+                        f -> setProgress((int) (f * 90)), this::isCancelled));
+                loaded = reader.read(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+        if (isCancelled() || loaded == null) return null;
+
+        indexed = IndexedImage.fromImage(loaded);
+        if (indexed != null) {
+            setProgress(100);
+            return null;
+        }
+        LayerStack stack = new LayerStack(loaded.getWidth(), loaded.getHeight());
+        stack.addLayer(Layer.fromImage(file.getName(), loaded));
+        setProgress(100);
+        return stack;
+    }
+
+    /** The decoded image if it was a palette image, else null. */
+    public IndexedImage getIndexedImage() {
+        return indexed;
+    }
+}
@@ -0,0 +1,65 @@
+package com.paintforge;
+
+import javax.swing.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writes a {@link DocumentSnapshot} as PNG on a background thread.
+ * <p>
+ * The snapshot is flattened (progress 0-20) and encoded with
+ * {@link PngEncoder} (20-100) into a temporary file next to the target,
+ * which then replaces the target (see {@link PngEncoder#writeFile}). The snapshot is released as soon as it has been
+ * flattened. An indexed-colour image is written as a palette PNG instead,
+ * with no flattening.
+ */
+public class ImageSaveWorker extends SwingWorker<File, Void> {
+    private final DocumentSnapshot snapshot;
+    private final IndexedImage indexed;
+    private final File file;
+    private final PngEncoder.Preset preset;
+    private final Runnable release;
+
+    public ImageSaveWorker(DocumentSnapshot snapshot, File file, PngEncoder.Preset preset, Runnable release) {
+        this.snapshot = snapshot;
+        this.indexed = null;
+        this.file = file;
+        this.preset = preset;
+        this.release = release;
+    }
+
+    /** Saves an indexed image, which must not change meanwhile (pass a copy). */
+    public ImageSaveWorker(IndexedImage image, File file, PngEncoder.Preset preset) {
+        this.snapshot = null;
+        this.indexed = image;
+        this.file = file;
+        this.preset = preset;
+        this.release = () -> {
+        };
+    }
+
+    @Override
+    protected File doInBackground() throws IOException {
+        if (indexed != null) {
+            boolean complete = new PngEncoder(preset).writeFile(indexed, file.toPath(),
+                    f -> setProgress((int) (f * 100)), this::isCancelled);
+            return complete ? file : null;
+        }
+        BufferedImage flat;
+        try {
+            flat = snapshot.flatten(f -> setProgress((int) (f * 20)));
+        } finally {
+            release.run();
+        }
+        if (isCancelled()) return null;
+
+        int[] pixels = ((DataBufferInt) flat.getRaster().getDataBuffer()).getData();
+        boolean complete = new PngEncoder(preset).writeFile(pixels, flat.getWidth(), flat.getHeight(), file.toPath(),
+                f -> setProgress(20 + (int) (f * 80)), this::isCancelled);
+        if (!complete) return null;
+        setProgress(100);
+        return file;
+    }
+}
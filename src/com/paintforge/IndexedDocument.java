@@ -0,0 +1,169 @@
+package com.paintforge;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.nio.file.Path;
+
+/**
+ * An indexed-colour document: one {@link IndexedImage} with its palette. It
+ * is the pixel-art counterpart of {@link Document}: the same edit protocol,
+ * selection and {@link UndoHistory}, which records the index bytes and keeps
+ * palette edits as structure entries. {@link IndexedEditEngine} drives it
+ * for the tools. Indexed documents are flat: converting from a layered
+ * document flattens it.
+ */
+public class IndexedDocument extends PixelDocument {
+    private final IndexedImage image;
+    private final PixelRaster raster;
+    // The palette PNG the document was opened from or last saved to (null = never saved)
+    private volatile Path file;
+    // Set by every change, cleared by takeChanges() for the recovery journal
+    private volatile boolean dirty = true;
+    // Set when undo/redo swapped a palette rather than pixels
+    private boolean paletteSwapped;
+
+    public IndexedDocument(IndexedImage image) {
+        this.image = image;
+        this.raster = PixelRaster.of(image.getPixels(), image.getWidth(), image.getHeight());
+    }
+
+    /** A new document filled with one colour. */
+    public IndexedDocument(int width, int height, Color background) {
+        this(new IndexedImage(width, height, new Palette(new int[]{background.getRGB()}, 1)));
+    }
+
+    /**
+     * Flattens a layer stack into an indexed document.
+     *
+     * @return the document, or null if the image has more than {@link Palette#MAX_COLORS} colours
+     */
+    public static IndexedDocument fromLayers(LayerStack stack) {
+        BufferedImage flat = new DocumentSnapshot(stack).flatten(null);
+        int width = flat.getWidth(), height = flat.getHeight();
+        IndexedImage image = IndexedImage.fromArgb(flat.getRGB(0, 0, width, height, null, 0, width), width, height);
+        return image == null ? null : new IndexedDocument(image);
+    }
+
+    /** The document as a one-layer ARGB stack. */
+    public LayerStack toLayers() {
+        int width = getWidth(), height = getHeight();
+        LayerStack stack = new LayerStack(width, height);
+        Layer layer = Layer.create("Background", width, height, null);
+        System.arraycopy(image.toArgb(), 0, layer.getPixels(), 0, width * height);
+        stack.addLayer(layer);
+        return stack;
+    }
+
+    public IndexedImage getImage() {
+        return image;
+    }
+
+    public Palette getPalette() {
+        return image.getPalette();
+    }
+
+    @Override
+    public int getWidth() {
+        return image.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return image.getHeight();
+    }
+
+    /** The palette indices. */
+    @Override
+    public PixelRaster getRaster() {
+        return raster;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public void setFile(Path file) {
+        this.file = file;
+    }
+
+    // ----- Palette -----
+    /**
+     * Changes one palette entry: every pixel using it changes colour, and no
+     * pixel is touched. One undo step.
+     */
+    public void setPaletteEntry(int index, int argb) {
+        Palette palette = image.getPalette();
+        if (palette.get(index) == argb) return;
+        Palette before = palette.copy();
+        palette.set(index, argb);
+        paletteEdited(before);
+    }
+
+    /**
+     * Appends a colour to the palette; one undo step. The tools never add
+     * entries themselves.
+     *
+     * @return the new index, or -1 if the palette is full
+     */
+    public int addPaletteEntry(int argb) {
+        Palette palette = image.getPalette();
+        if (palette.isFull()) return -1;
+        Palette before = palette.copy();
+        int index = palette.add(argb);
+        paletteEdited(before);
+        return index;
+    }
+
+    private void paletteEdited(Palette before) {
+        if (historyEnabled) history.recordStructure(new PaletteUndo(before), 4L * Palette.MAX_COLORS);
+        dirty = true;
+        listener.paletteChanged();
+    }
+
+    /** Undo entry for a palette edit. */
+    private final class PaletteUndo implements UndoHistory.StructureChange {
+        private Palette state;
+
+        PaletteUndo(Palette state) {
+            this.state = state;
+        }
+
+        @Override
+        public Rectangle swap() {
+            Palette current = image.getPalette().copy();
+            image.getPalette().setAll(state);
+            state = current;
+            paletteSwapped = true;
+            // Nothing to redraw pixel by pixel: the palette change repaints everything
+            return new Rectangle();
+        }
+    }
+
+    // ----- Editing -----
+    /** Reports drawn pixels to the listener. */
+    @Override
+    public void markChanged(int x, int y, int w, int h) {
+        dirty = true;
+        super.markChanged(x, y, w, h);
+    }
+
+    /** Whether anything changed since the last call; the recovery journal skips unchanged documents. */
+    public boolean takeChanges() {
+        boolean result = dirty;
+        dirty = false;
+        return result;
+    }
+
+    @Override
+    protected Rectangle applyHistory(boolean redo) {
+        paletteSwapped = false;
+        Rectangle changed = super.applyHistory(redo);
+        if (changed != null) {
+            dirty = true;
+            if (paletteSwapped) listener.paletteChanged();
+            else listener.layersChanged(changed);
+        }
+        return changed;
+    }
+}
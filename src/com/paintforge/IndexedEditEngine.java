@@ -0,0 +1,122 @@
+package com.paintforge;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+
+/**
+ * The painting tools for an {@link IndexedDocument}: they write palette
+ * indices, never colours.
+ * <p>
+ * The tools never change the palette. A tool colour paints with its exact
+ * palette entry, or with the nearest one when it has none ({@link #paintIndex()}
+ * tells the UI which); the eraser paints with the most transparent entry.
+ * Colours are added to the palette only on request, see
+ * {@link IndexedDocument#addPaletteEntry}. The pixels are written by the same
+ * {@link BrushEngine}, {@link PixelPerfectFilter} and {@link ScanlineFill} as
+ * the RGB tools, pointed at the index bytes: there is no blending in an
+ * indexed image, so brushes are hard-edged and 1px strokes can be
+ * pixel-perfect. Every write is clipped to the selection span by span.
+ */
+public class IndexedEditEngine extends AbstractEditEngine<IndexedDocument> {
+    private final byte[] pixels;
+    private final int width, height;
+
+    public IndexedEditEngine(IndexedDocument document) {
+        this(document, new Telemetry());
+    }
+
+    public IndexedEditEngine(IndexedDocument document, Telemetry telemetry) {
+        super(document, telemetry);
+        this.pixels = document.getImage().getPixels();
+        this.width = document.getWidth();
+        this.height = document.getHeight();
+    }
+
+    // ----- Palette -----
+    /** Changes a palette entry, recolouring its pixels without touching them. */
+    public void setPaletteEntry(int index, Color color) {
+        long start = telemetry.beginTool();
+        document.setPaletteEntry(index, color.getRGB());
+        telemetry.endTool("PALETTE", start);
+    }
+
+    /**
+     * The palette index the current tool paints with: the most transparent
+     * entry for the eraser, else the entry for the tool colour (see
+     * {@link #indexFor}).
+     */
+    public int paintIndex() {
+        return "ERASER".equals(getTool()) ? document.getPalette().mostTransparent() : indexFor(getColor());
+    }
+
+    /** The exact palette entry for a colour, or the nearest when it has none. */
+    public int indexFor(Color color) {
+        return document.getPalette().nearest(color.getRGB());
+    }
+
+    /**
+     * Adds the tool colour to the palette as one undo step.
+     *
+     * @return its index, the existing one if it was already there, or -1 if the palette is full
+     */
+    public int addPaletteEntry() {
+        long start = telemetry.beginTool();
+        int rgb = getColor().getRGB();
+        int index = document.getPalette().indexOf(rgb);
+        if (index < 0) index = document.addPaletteEntry(rgb);
+        telemetry.endTool("PALETTE", start);
+        return index;
+    }
+
+    // ----- Pixel access -----
+    @Override
+    protected void aim(BrushEngine brush) {
+        brush.setTarget(pixels, width, height);
+    }
+
+    @Override
+    protected void aim(PixelPerfectFilter filter) {
+        filter.setTarget(pixels, width, height);
+    }
+
+    /** The palette entry for the colour, see {@link #indexFor}. */
+    @Override
+    protected int toValue(Color color) {
+        return indexFor(color);
+    }
+
+    @Override
+    protected int strokeValue() {
+        return paintIndex();
+    }
+
+    @Override
+    protected float strokeHardness() {
+        return 1f;
+    }
+
+    /** The eraser paints the most transparent entry instead. */
+    @Override
+    protected boolean strokeErases() {
+        return false;
+    }
+
+    /** The pixels with the seed's index, contiguous (the selection edge stops it) or everywhere in the selection. */
+    @Override
+    protected Rectangle floodFill(int x, int y, int value, SelectionMask mask, boolean contiguous) {
+        if (contiguous) return scanlineFill.fill(pixels, width, height, x, y, value, mask, document);
+        return scanlineFill.replaceAll(pixels, width, height, x, y, value, mask, document);
+    }
+
+    /** Selects the pixels with the index at (x, y). */
+    @Override
+    protected Rectangle wand(int x, int y, boolean contiguous, SelectionMask picked) {
+        return scanlineFill.select(pixels, width, height, x, y, contiguous, picked);
+    }
+
+    @Override
+    public Color pickColor(int x, int y) {
+        if (x < 0 || y < 0 || x >= width || y >= height) return null;
+        return new Color(document.getImage().getArgb(x, y), true);
+    }
+}
@@ -0,0 +1,104 @@
+package com.paintforge;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram in the style of HdrHistogram: values below
+ * {@value #SUB_BUCKETS} are counted exactly and larger ones in log-linear
+ * buckets of {@value #HALF} linear steps per power of two, so a bucket spans
+ * at most 1/16 of its values (6.25% worst case, about 3% on average) from
+ * single nanoseconds up to minutes with a fixed 8 KB of counters. Recording
+ * is one atomic increment and may happen from any thread.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /** Counts one value (nanoseconds, bytes, ...); negative values count as 0. */
+    public void record(long value) {
+        counts.incrementAndGet(indexOf(Math.max(0, value)));
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    /** Smallest value that falls into the bucket. */
+    static long lowestValueAt(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long top = (index - SUB_BUCKETS) % HALF + HALF;
+        return top << shift;
+    }
+
+    /** Largest value that falls into the bucket. */
+    static long highestValueAt(int index) {
+        return index + 1 < BUCKETS ? lowestValueAt(index + 1) - 1 : Long.MAX_VALUE;
+    }
+
+    /**
+     * Copies the counts, optionally starting a new interval. Values recorded
+     * while the copy is taken land in one interval or the other.
+     */
+    public Snapshot snapshot(boolean reset) {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = reset ? counts.getAndSet(i, 0) : counts.get(i);
+        }
+        return new Snapshot(copy);
+    }
+
+    /** Immutable copy of a histogram's counts. */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long total;
+
+        private Snapshot(long[] counts) {
+            this.counts = counts;
+            long sum = 0;
+            for (long c : counts) sum += c;
+            this.total = sum;
+        }
+
+        public long count() {
+            return total;
+        }
+
+        /**
+         * Value at the given percentile (0-100), reported as the upper end of
+         * its bucket; 0 if nothing was recorded.
+         */
+        public long percentile(double percentile) {
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(total * Math.min(100, percentile) / 100.0));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return highestValueAt(i);
+            }
+            return max();
+        }
+
+        public long max() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] != 0) return highestValueAt(i);
+            }
+            return 0;
+        }
+
+        public double mean() {
+            if (total == 0) return 0;
+            double sum = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] != 0) sum += counts[i] * ((lowestValueAt(i) + highestValueAt(i)) / 2.0);
+            }
+            return sum / total;
+        }
+    }
+}
@@ -1,16 +1,75 @@
 package com.paintforge;
 
+import java.awt.AlphaComposite;
+import java.awt.Color;
 import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class Layer {
     private BufferedImage image;
     private Graphics2D g2;
+    private final int width, height, imageType;
     private boolean visible = true;  // Toggles layer visibility
+    private String name = "Layer";
+    private float opacity = 1.0f;
+    private BlendMode blendMode = BlendMode.NORMAL;
+    // Pixel access that follows the image across spill/restore
+    private PixelRaster raster;
+    // Where the deflated pixels sit in the scratch file while spilled
+    private long spillOffset = -1;
+    private int spillLength;
 
     public Layer(BufferedImage image, Graphics2D g2) {
         this.image = image;
         this.g2 = g2;
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+        this.imageType = image.getType();
+    }
+
+    /**
+     * Creates a TYPE_INT_ARGB layer filled with the given colour (null = transparent).
+     */
+    public static Layer create(String name, int width, int height, Color fill) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Layer layer = new Layer(image, createGraphics(image));
+        layer.setName(name);
+        if (fill != null) {
+            layer.g2.setColor(fill);
+            layer.g2.fillRect(0, 0, width, height);
+        }
+        return layer;
+    }
+
+    /**
+     * Wraps an image as a layer, converting it to TYPE_INT_ARGB if needed.
+     */
+    public static Layer fromImage(String name, BufferedImage source) {
+        BufferedImage image = source;
+        if (source.getType() != BufferedImage.TYPE_INT_ARGB) {
+            image = new BufferedImage(source.getWidth(), source.getHeight(), BufferedImage.TYPE_INT_ARGB);
+            Graphics2D gg = image.createGraphics();
+            gg.drawImage(source, 0, 0, null);
+            gg.dispose();
+        }
+        Layer layer = new Layer(image, createGraphics(image));
+        layer.setName(name);
+        return layer;
+    }
+
+    private static Graphics2D createGraphics(BufferedImage image) {
+        Graphics2D g = image.createGraphics();
+        g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC));
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+        return g;
     }
 
     public BufferedImage getImage() {
@@ -21,6 +80,108 @@ public class Layer {
         return g2;
     }
 
+    /** The packed ARGB pixels backing the layer image. */
+    public int[] getPixels() {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * The layer's pixels for the undo history. It reads whichever pixel array
+     * the layer has when it is used, so history entries keep no array alive
+     * while the layer is spilled.
+     */
+    public PixelRaster getRaster() {
+        if (raster == null) raster = PixelRaster.of(this::getPixels, width, height);
+        return raster;
+    }
+
+    // ----- Spilling -----
+    /**
+     * Deflates the pixels into the scratch file and drops the image, until
+     * {@link #restore}. The layer's image, graphics and pixels must not be
+     * used in between; its properties can be.
+     */
+    void spill(HistoryJournal journal) {
+        if (isSpilled()) return;
+        byte[] packed = deflate(getPixels());
+        spillOffset = journal.append(packed);
+        spillLength = packed.length;
+        g2.dispose();
+        g2 = null;
+        image = null;
+    }
+
+    /** Brings back the pixels of a spilled layer in a new image. */
+    void restore(HistoryJournal journal) {
+        if (!isSpilled()) return;
+        byte[] packed = journal.read(spillOffset, spillLength);
+        journal.release(spillOffset, spillLength);
+        spillOffset = -1;
+        BufferedImage restored = new BufferedImage(width, height, imageType);
+        inflate(packed, ((DataBufferInt) restored.getRaster().getDataBuffer()).getData());
+        image = restored;
+        g2 = createGraphics(restored);
+    }
+
+    public boolean isSpilled() {
+        return spillOffset >= 0;
+    }
+
+    /** Deflates the pixels a stripe at a time, so no second full-size buffer is needed. */
+    private static byte[] deflate(int[] pixels) {
+        ByteBuffer stripe = ByteBuffer.allocate(64 * 1024);
+        IntBuffer ints = stripe.asIntBuffer();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, pixels.length / 4));
+        byte[] chunk = new byte[16 * 1024];
+        try {
+            for (int i = 0; i < pixels.length; ) {
+                int n = Math.min(ints.capacity(), pixels.length - i);
+                ints.clear();
+                ints.put(pixels, i, n);
+                i += n;
+                deflater.setInput(stripe.array(), 0, n * 4);
+                // The stripe is refilled only once the deflater has taken all of it
+                while (!deflater.needsInput()) {
+                    out.write(chunk, 0, deflater.deflate(chunk));
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+        } finally {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    private static void inflate(byte[] packed, int[] pixels) {
+        ByteBuffer stripe = ByteBuffer.allocate(64 * 1024);
+        IntBuffer ints = stripe.asIntBuffer();
+        Inflater inflater = new Inflater();
+        inflater.setInput(packed);
+        try {
+            for (int i = 0; i < pixels.length; ) {
+                int n = Math.min(ints.capacity(), pixels.length - i), off = 0;
+                while (off < n * 4) {
+                    int read = inflater.inflate(stripe.array(), off, n * 4 - off);
+                    if (read == 0 && (inflater.finished() || inflater.needsInput())) {
+                        throw new IllegalStateException("Truncated spilled layer");
+                    }
+                    off += read;
+                }
+                ints.clear();
+                ints.get(pixels, i, n);
+                i += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt spilled layer", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
     public boolean isVisible() {
         return visible;
     }
@@ -28,4 +189,33 @@ public class Layer {
     public void setVisible(boolean visible) {
         this.visible = visible;
     }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public float getOpacity() {
+        return opacity;
+    }
+
+    public void setOpacity(float opacity) {
+        this.opacity = Math.max(0f, Math.min(1f, opacity));
+    }
+
+    public BlendMode getBlendMode() {
+        return blendMode;
+    }
+
+    public void setBlendMode(BlendMode blendMode) {
+        this.blendMode = blendMode;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
 }
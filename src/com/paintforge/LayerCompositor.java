@@ -0,0 +1,194 @@
+package com.paintforge;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * Flattens a {@link LayerStack} into one ARGB buffer for display.
+ * <p>
+ * The layers below the active layer and the layers above it are each kept
+ * flattened in a cache, so drawing on the active layer only recomposites
+ * three surfaces (below, active, above) over the dirty rectangle no matter
+ * how many layers the document has. Caches are rebuilt in full when the
+ * stack changes (active layer, order, visibility, opacity, blend mode) and
+ * per rectangle when a non-active layer's pixels change (e.g. undo).
+ * <p>
+ * Flattening the layers above is only exact when they all use
+ * {@link BlendMode#NORMAL}; otherwise those layers are composited one by one
+ * over the dirty rectangle instead. A document with a single plain layer is
+ * shown straight from that layer's pixels with no copy.
+ */
+public class LayerCompositor {
+    private LayerStack stack;
+    private int width, height;
+    private int[] below, above, output;
+    private boolean cachesValid = false;
+    private boolean aboveFlattened = false;
+    private boolean passThrough = false;
+
+    public void setStack(LayerStack stack) {
+        this.stack = stack;
+        invalidateCaches();
+    }
+
+    public LayerStack getStack() {
+        return stack;
+    }
+
+    /**
+     * The layer set, order, active layer or a layer property changed.
+     */
+    public void invalidateCaches() {
+        cachesValid = false;
+    }
+
+    /**
+     * Drops the flattened buffers while the layers are not shown (indexed
+     * colour); the next {@link #output()} rebuilds them.
+     */
+    public void release() {
+        below = above = output = null;
+        cachesValid = false;
+    }
+
+    /**
+     * Pixels of any layer (not only the active one) changed inside the
+     * rectangle; the caches are re-flattened there, and the following
+     * {@link #update} recomposites it.
+     */
+    public void layersChanged(Rectangle r) {
+        if (!cachesValid) return;
+        Rectangle area = clip(r);
+        if (!area.isEmpty()) rebuildCaches(area);
+    }
+
+    /**
+     * Recomposites the rectangle after the active layer was drawn on.
+     */
+    public void update(Rectangle r) {
+        if (!cachesValid) {
+            rebuildAll();
+            return;
+        }
+        Rectangle area = clip(r);
+        if (!area.isEmpty()) recomposite(area);
+    }
+
+    /**
+     * The flattened image (the active layer itself when nothing needs compositing).
+     */
+    public int[] output() {
+        if (!cachesValid) rebuildAll();
+        return passThrough ? stack.getActive().getPixels() : output;
+    }
+
+    private Rectangle clip(Rectangle r) {
+        return r.intersection(new Rectangle(0, 0, width, height));
+    }
+
+    private void rebuildAll() {
+        width = stack.getWidth();
+        height = stack.getHeight();
+        Layer active = stack.getActive();
+        passThrough = stack.size() == 1 && active.isVisible()
+                && active.getOpacity() >= 1f && active.getBlendMode() == BlendMode.NORMAL;
+        if (passThrough) {
+            below = above = output = null;
+        } else {
+            int n = width * height;
+            if (output == null || output.length != n) {
+                below = new int[n];
+                above = new int[n];
+                output = new int[n];
+            }
+            aboveFlattened = true;
+            for (int i = stack.getActiveIndex() + 1; i < stack.size(); i++) {
+                if (stack.get(i).getBlendMode() != BlendMode.NORMAL) aboveFlattened = false;
+            }
+            Rectangle all = new Rectangle(0, 0, width, height);
+            rebuildCaches(all);
+            recomposite(all);
+        }
+        cachesValid = true;
+    }
+
+    /**
+     * Re-flattens the below/above caches over a rectangle.
+     */
+    private void rebuildCaches(Rectangle r) {
+        if (passThrough) return;
+        int activeIndex = stack.getActiveIndex();
+        for (int y = r.y; y < r.y + r.height; y++) {
+            int from = y * width + r.x, to = from + r.width;
+            Arrays.fill(below, from, to, 0);
+            for (int i = 0; i < activeIndex; i++) {
+                compositeRow(below, stack.get(i), from, to);
+            }
+            if (aboveFlattened) {
+                Arrays.fill(above, from, to, 0);
+                for (int i = activeIndex + 1; i < stack.size(); i++) {
+                    compositeRow(above, stack.get(i), from, to);
+                }
+            }
+        }
+    }
+
+    /**
+     * output = below + active + above over a rectangle.
+     */
+    private void recomposite(Rectangle r) {
+        if (passThrough) return;
+        int activeIndex = stack.getActiveIndex();
+        Layer active = stack.getActive();
+        for (int y = r.y; y < r.y + r.height; y++) {
+            int from = y * width + r.x, to = from + r.width;
+            System.arraycopy(below, from, output, from, to - from);
+            compositeRow(output, active, from, to);
+            if (aboveFlattened) {
+                int[] src = above;
+                for (int i = from; i < to; i++) {
+                    output[i] = composite(output[i], src[i], 255, BlendMode.NORMAL);
+                }
+            } else {
+                for (int i = activeIndex + 1; i < stack.size(); i++) {
+                    compositeRow(output, stack.get(i), from, to);
+                }
+            }
+        }
+    }
+
+    private static void compositeRow(int[] dst, Layer layer, int from, int to) {
+        if (!layer.isVisible()) return;
+        int opacity = Math.round(layer.getOpacity() * 255);
+        if (opacity == 0) return;
+        int[] src = layer.getPixels();
+        BlendMode mode = layer.getBlendMode();
+        for (int i = from; i < to; i++) {
+            dst[i] = composite(dst[i], src[i], opacity, mode);
+        }
+    }
+
+    /**
+     * Composites one non-premultiplied ARGB source pixel over a backdrop pixel
+     * (W3C compositing: blend, then source-over).
+     */
+    static int composite(int backdrop, int source, int opacity, BlendMode mode) {
+        int as = (source >>> 24) * opacity / 255;
+        if (as == 0) return backdrop;
+        int ab = backdrop >>> 24;
+        if (ab == 0 || (as == 255 && mode == BlendMode.NORMAL)) {
+            return (as << 24) | (source & 0x00FFFFFF);
+        }
+        int backdropWeight = ab * (255 - as) / 255;
+        int ao = as + backdropWeight;
+        int result = ao << 24;
+        for (int shift = 16; shift >= 0; shift -= 8) {
+            int cs = (source >> shift) & 0xFF;
+            int cb = (backdrop >> shift) & 0xFF;
+            int mixed = ((255 - ab) * cs + ab * mode.blend(cb, cs)) / 255;
+            int c = (mixed * as + cb * backdropWeight) / ao;
+            result |= c << shift;
+        }
+        return result;
+    }
+}
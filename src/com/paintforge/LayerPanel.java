@@ -0,0 +1,117 @@
+package com.paintforge;
+
+import javax.swing.*;
+import java.awt.*;
+
+/**
+ * Layer list with visibility, opacity and blend mode controls for the
+ * properties panel. The list shows the top layer first.
+ */
+public class LayerPanel extends JPanel {
+    private final PaintCanvas canvas;
+    private final DefaultListModel<Layer> listModel = new DefaultListModel<>();
+    private final JList<Layer> layerList = new JList<>(listModel);
+    private final JCheckBox visibleCheckbox = new JCheckBox("Visible");
+    private final JSlider opacitySlider = new JSlider(JSlider.HORIZONTAL, 0, 100, 100);
+    private final JComboBox<BlendMode> blendCombo = new JComboBox<>(BlendMode.values());
+    private boolean updating = false;
+
+    public LayerPanel(PaintCanvas canvas) {
+        this.canvas = canvas;
+        setLayout(new BorderLayout(0, 4));
+        setOpaque(false);
+        setPreferredSize(new Dimension(200, 260));
+
+        JLabel title = new JLabel("Layers");
+        title.setForeground(Color.WHITE);
+        add(title, BorderLayout.NORTH);
+
+        layerList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        layerList.setBackground(new Color(45, 45, 45));
+        layerList.setForeground(Color.WHITE);
+        layerList.addListSelectionListener(e -> {
+            if (updating || e.getValueIsAdjusting() || layerList.getSelectedIndex() < 0) return;
+            canvas.setActiveLayer(toStackIndex(layerList.getSelectedIndex()));
+        });
+        add(new JScrollPane(layerList), BorderLayout.CENTER);
+
+        // Properties of the active layer
+        JPanel controls = new JPanel(new GridLayout(0, 1, 0, 2));
+        controls.setOpaque(false);
+
+        visibleCheckbox.setForeground(Color.WHITE);
+        visibleCheckbox.setOpaque(false);
+        visibleCheckbox.addActionListener(e -> {
+            if (!updating) canvas.setLayerVisible(activeIndex(), visibleCheckbox.isSelected());
+        });
+
+        opacitySlider.setOpaque(false);
+        opacitySlider.setToolTipText("Opacity");
+        opacitySlider.addChangeListener(e -> {
+            if (!updating && !opacitySlider.getValueIsAdjusting()) {
+                canvas.setLayerOpacity(activeIndex(), opacitySlider.getValue() / 100f);
+            }
+        });
+
+        blendCombo.addActionListener(e -> {
+            if (!updating) canvas.setLayerBlendMode(activeIndex(), (BlendMode) blendCombo.getSelectedItem());
+        });
+
+        JPanel buttons = new JPanel(new GridLayout(1, 4, 2, 0));
+        buttons.setOpaque(false);
+        buttons.add(createButton("+", "Add Layer", () -> canvas.addLayer()));
+        buttons.add(createButton("-", "Delete Layer", () -> canvas.removeActiveLayer()));
+        buttons.add(createButton("▲", "Move Up", () -> canvas.moveActiveLayer(1)));
+        buttons.add(createButton("▼", "Move Down", () -> canvas.moveActiveLayer(-1)));
+
+        controls.add(visibleCheckbox);
+        controls.add(opacitySlider);
+        controls.add(blendCombo);
+        controls.add(buttons);
+        add(controls, BorderLayout.SOUTH);
+
+        canvas.addPropertyChangeListener("layers", evt -> refresh());
+        // Indexed documents are flat
+        canvas.addPropertyChangeListener("indexed", evt -> setVisible(!canvas.isIndexed()));
+        refresh();
+    }
+
+    private JButton createButton(String text, String tooltip, Runnable action) {
+        JButton btn = new JButton(text);
+        btn.setToolTipText(tooltip);
+        btn.setFocusPainted(false);
+        btn.setMargin(new Insets(2, 2, 2, 2));
+        btn.addActionListener(e -> action.run());
+        return btn;
+    }
+
+    private int activeIndex() {
+        return canvas.getLayers().getActiveIndex();
+    }
+
+    private int toStackIndex(int listIndex) {
+        return canvas.getLayers().size() - 1 - listIndex;
+    }
+
+    /**
+     * Rebuilds the list and controls from the canvas' layer stack.
+     */
+    private void refresh() {
+        LayerStack layers = canvas.getLayers();
+        if (layers == null) return;
+        updating = true;
+        try {
+            listModel.clear();
+            for (int i = layers.size() - 1; i >= 0; i--) {
+                listModel.addElement(layers.get(i));
+            }
+            layerList.setSelectedIndex(layers.size() - 1 - layers.getActiveIndex());
+            Layer active = layers.getActive();
+            visibleCheckbox.setSelected(active.isVisible());
+            opacitySlider.setValue(Math.round(active.getOpacity() * 100));
+            blendCombo.setSelectedItem(active.getBlendMode());
+        } finally {
+            updating = false;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.paintforge;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ordered list of layers (index 0 = bottom) sharing one size, plus the index
+ * of the layer that tools draw on.
+ */
+public class LayerStack {
+    private final List<Layer> layers = new ArrayList<>();
+    private final int width, height;
+    private int activeIndex = 0;
+    private int nextLayerNumber = 1;
+
+    public LayerStack(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Creates a stack with a single opaque background layer.
+     */
+    public static LayerStack withBackground(int width, int height, Color background) {
+        LayerStack stack = new LayerStack(width, height);
+        stack.layers.add(Layer.create("Background", width, height, background));
+        return stack;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int size() {
+        return layers.size();
+    }
+
+    public Layer get(int index) {
+        return layers.get(index);
+    }
+
+    public Layer getActive() {
+        return layers.get(activeIndex);
+    }
+
+    public int getActiveIndex() {
+        return activeIndex;
+    }
+
+    public void setActiveIndex(int index) {
+        if (index >= 0 && index < layers.size()) {
+            activeIndex = index;
+        }
+    }
+
+    /**
+     * Adds a transparent layer above the active one and makes it active.
+     */
+    public Layer addLayer() {
+        Layer layer = Layer.create("Layer " + nextLayerNumber++, width, height, null);
+        layers.add(activeIndex + 1, layer);
+        activeIndex++;
+        return layer;
+    }
+
+    /**
+     * Adds an existing layer on top of the stack (it must match the stack size).
+     */
+    public void addLayer(Layer layer) {
+        if (layer.getImage().getWidth() != width || layer.getImage().getHeight() != height) {
+            throw new IllegalArgumentException("Layer size does not match the document");
+        }
+        layers.add(layer);
+    }
+
+    /**
+     * Removes the active layer; the last remaining layer cannot be removed.
+     * The layer stays usable, so undo can put it back.
+     */
+    public boolean removeActive() {
+        if (layers.size() <= 1) return false;
+        layers.remove(activeIndex);
+        if (activeIndex >= layers.size()) activeIndex = layers.size() - 1;
+        return true;
+    }
+
+    /**
+     * Moves the active layer up (+1) or down (-1) the stack.
+     */
+    public boolean moveActive(int delta) {
+        int target = activeIndex + delta;
+        if (target < 0 || target >= layers.size()) return false;
+        Layer layer = layers.remove(activeIndex);
+        layers.add(target, layer);
+        activeIndex = target;
+        return true;
+    }
+
+    /**
+     * A stack with the same layers (shared, not copied) in the same order and
+     * the same active layer, for a view on another thread: later changes to
+     * this stack's order do not reach it.
+     */
+    public LayerStack view() {
+        LayerStack view = new LayerStack(width, height);
+        view.layers.addAll(layers);
+        view.activeIndex = activeIndex;
+        view.nextLayerNumber = nextLayerNumber;
+        return view;
+    }
+
+    // ----- Structure undo -----
+    /** The layer order and active layer, as kept by undo entries. */
+    public State saveState() {
+        return new State(new ArrayList<>(layers), activeIndex);
+    }
+
+    /**
+     * Puts back a saved layer order and active layer.
+     *
+     * @return the state that was replaced
+     */
+    public State restoreState(State state) {
+        State previous = saveState();
+        layers.clear();
+        layers.addAll(state.layers);
+        activeIndex = state.activeIndex;
+        return previous;
+    }
+
+    /** An immutable layer order plus active index. */
+    public static final class State {
+        private final List<Layer> layers;
+        private final int activeIndex;
+
+        private State(List<Layer> layers, int activeIndex) {
+            this.layers = layers;
+            this.activeIndex = activeIndex;
+        }
+    }
+}
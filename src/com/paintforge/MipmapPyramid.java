@@ -0,0 +1,162 @@
+package com.paintforge;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Lazily built mipmap pyramid (1/2, 1/4, 1/8, ...) of the document, used when
+ * painting zoomed out so a frame never has to downsample the full-resolution
+ * image.
+ * <p>
+ * Each level is a 2x2 box-filtered copy of the level below (in premultiplied
+ * alpha, so transparent pixels do not bleed their colour), split into
+ * {@value #TILE}x{@value #TILE} tiles. Levels are only created the first time
+ * they are asked for. A change at level 0 marks just the parent tiles that
+ * cover it on each existing level, and those tiles are rebuilt the next time
+ * the level is requested.
+ */
+public class MipmapPyramid {
+    private static final int TILE = 64;
+    private static final int MAX_LEVEL = 8;
+
+    private int[] source;
+    private int width, height;
+    private final List<Level> levels = new ArrayList<>();
+
+    /**
+     * Picks the level to render from at the given zoom: the smallest level that
+     * still has at least one pixel per screen pixel.
+     */
+    public static int levelForZoom(double zoom) {
+        if (zoom >= 1.0) return 0;
+        int level = (int) Math.floor(Math.log(1.0 / zoom) / Math.log(2.0));
+        return Math.max(0, Math.min(MAX_LEVEL, level));
+    }
+
+    /**
+     * Points the pyramid at the document's level-0 pixels; a different buffer
+     * or size discards all levels.
+     */
+    public void setSource(int[] pixels, int width, int height) {
+        if (pixels != source || width != this.width || height != this.height) {
+            source = pixels;
+            this.width = width;
+            this.height = height;
+            levels.clear();
+        }
+    }
+
+    /**
+     * Marks the parent tiles of a changed level-0 rectangle on every built level.
+     */
+    public void invalidate(Rectangle canvasRect) {
+        for (int k = 1; k <= levels.size(); k++) {
+            Level level = levels.get(k - 1);
+            int x1 = Math.max(0, canvasRect.x >> k);
+            int y1 = Math.max(0, canvasRect.y >> k);
+            int x2 = Math.min(level.width, ((canvasRect.x + canvasRect.width - 1) >> k) + 1);
+            int y2 = Math.min(level.height, ((canvasRect.y + canvasRect.height - 1) >> k) + 1);
+            if (x1 >= x2 || y1 >= y2) continue;
+            for (int ty = y1 / TILE; ty <= (y2 - 1) / TILE; ty++) {
+                for (int tx = x1 / TILE; tx <= (x2 - 1) / TILE; tx++) {
+                    int tile = ty * level.tilesX + tx;
+                    level.dirty[tile >>> 6] |= 1L << tile;
+                }
+            }
+            level.anyDirty = true;
+        }
+    }
+
+    /**
+     * Returns the pixels of level k (0 = the document itself), building or
+     * refreshing it from the level below as needed.
+     */
+    public int[] level(int k) {
+        if (k <= 0) return source;
+        Level level = ensureLevel(k);
+        return level.pixels;
+    }
+
+    public int levelWidth(int k) {
+        return k <= 0 ? width : ensureLevel(k).width;
+    }
+
+    public int levelHeight(int k) {
+        return k <= 0 ? height : ensureLevel(k).height;
+    }
+
+    private Level ensureLevel(int k) {
+        int[] below = level(k - 1);
+        int belowW = levelWidth(k - 1), belowH = levelHeight(k - 1);
+        if (levels.size() < k) {
+            Level level = new Level((belowW + 1) / 2, (belowH + 1) / 2);
+            levels.add(level);
+            downsample(below, belowW, belowH, level, 0, 0, level.width, level.height);
+        } else {
+            Level level = levels.get(k - 1);
+            if (level.anyDirty) {
+                for (int ty = 0; ty < level.tilesY; ty++) {
+                    for (int tx = 0; tx < level.tilesX; tx++) {
+                        int tile = ty * level.tilesX + tx;
+                        if ((level.dirty[tile >>> 6] & (1L << tile)) != 0) {
+                            downsample(below, belowW, belowH, level, tx * TILE, ty * TILE,
+                                    Math.min(level.width, tx * TILE + TILE), Math.min(level.height, ty * TILE + TILE));
+                        }
+                    }
+                }
+                Arrays.fill(level.dirty, 0L);
+                level.anyDirty = false;
+            }
+        }
+        return levels.get(k - 1);
+    }
+
+    /**
+     * Averages 2x2 blocks of the level below into [x0, x1) x [y0, y1) of the
+     * target level. Colours are weighted by alpha (averaged premultiplied, then
+     * divided back out), so transparent pixels add no colour to an edge.
+     */
+    private static void downsample(int[] below, int belowW, int belowH, Level level, int x0, int y0, int x1, int y1) {
+        int[] out = level.pixels;
+        for (int y = y0; y < y1; y++) {
+            int row0 = (2 * y) * belowW;
+            int row1 = Math.min(2 * y + 1, belowH - 1) * belowW;
+            for (int x = x0; x < x1; x++) {
+                int sx0 = 2 * x;
+                int sx1 = Math.min(sx0 + 1, belowW - 1);
+                int a = below[row0 + sx0], b = below[row0 + sx1], c = below[row1 + sx0], d = below[row1 + sx1];
+                int aa = a >>> 24, ba = b >>> 24, ca = c >>> 24, da = d >>> 24;
+                int weight = aa + ba + ca + da;
+                if (weight == 0) {
+                    out[y * level.width + x] = 0;
+                    continue;
+                }
+                int red = (((a >> 16) & 0xFF) * aa + ((b >> 16) & 0xFF) * ba + ((c >> 16) & 0xFF) * ca
+                        + ((d >> 16) & 0xFF) * da + weight / 2) / weight;
+                int green = (((a >> 8) & 0xFF) * aa + ((b >> 8) & 0xFF) * ba + ((c >> 8) & 0xFF) * ca
+                        + ((d >> 8) & 0xFF) * da + weight / 2) / weight;
+                int blue = ((a & 0xFF) * aa + (b & 0xFF) * ba + (c & 0xFF) * ca + (d & 0xFF) * da + weight / 2) / weight;
+                int alpha = (weight + 2) >> 2;
+                out[y * level.width + x] = (alpha << 24) | (red << 16) | (green << 8) | blue;
+            }
+        }
+    }
+
+    private static final class Level {
+        final int width, height, tilesX, tilesY;
+        final int[] pixels;
+        final long[] dirty;
+        boolean anyDirty = false;
+
+        Level(int width, int height) {
+            this.width = width;
+            this.height = height;
+            this.tilesX = (width + TILE - 1) / TILE;
+            this.tilesY = (height + TILE - 1) / TILE;
+            this.pixels = new int[width * height];
+            this.dirty = new long[(tilesX * tilesY + 63) >>> 6];
+        }
+    }
+}
@@ -1,49 +1,141 @@
 package com.paintforge;
 
-import javax.imageio.ImageIO;
 import javax.swing.*;
 import javax.swing.Scrollable;
+import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
 import java.awt.event.*;
-import java.awt.image.BufferedImage;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
 import java.io.File;
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.Queue;
-import java.util.Stack;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 public class PaintCanvas extends JPanel implements Scrollable {
     // Temporary tool flag (for eyedropper, etc.)
     private boolean isTemporaryToolActive = false;
-    // Single-layer image & graphics
-    private BufferedImage image;
-    private Graphics2D g2;
+    private String previousTool = "BRUSH";
+    // Latency/frame-time instrumentation and its overlay
+    private final Telemetry telemetry = new Telemetry();
+    private final PerformanceHud hud = new PerformanceHud(this, telemetry);
+    // The document and the tools that edit it; this class is their input adapter and view
+    private final Document document = new Document(512, 512);
+    private final EditEngine engine = new EditEngine(document, telemetry);
+    // Indexed-colour mode: the document being edited instead, and its tools; the
+    // ARGB document keeps its history, with its layers spilled to disk meanwhile.
+    // Tool settings live on the ARGB engine.
+    // The render thread switches tools in order with the edits; the EDT follows with indexed.
+    private IndexedDocument indexed;
+    private IndexedEditEngine indexedEngine;
+    private volatile EditTools tools = engine;
+    // Composites the EDT's view of the layer order, replaced after each structure change
+    private final LayerCompositor compositor = new LayerCompositor();
     // Zoom & Pan
     private double zoomFactor = 1.0;
     private double panX = 0, panY = 0;
     private boolean isPanning = false;
     private int lastPanX, lastPanY;
-    // Undo/Redo stacks
-    private final Stack<BufferedImage> undoStack = new Stack<>();
-    private final Stack<BufferedImage> redoStack = new Stack<>();
-    // Tools & brush settings
-    private Color currentColor = Color.BLACK;
-    private int brushSize = 1;
-    private String currentTool = "BRUSH";
-    private String previousTool = "BRUSH";
-    // For freehand brush: track previous coordinates
-    private int prevX = -1, prevY = -1;
+    // Pointer samples are rasterized on a render thread by the active tools
+    private final StrokePipeline strokes = new StrokePipeline(new StrokeSink() {
+        @Override
+        public void strokeBegin(int x, int y, long nanoTime) {
+            tools.strokeBegin(x, y, nanoTime);
+        }
+
+        @Override
+        public void strokeMove(int x, int y, long nanoTime) {
+            tools.strokeMove(x, y, nanoTime);
+        }
+
+        @Override
+        public void strokeEnd(long nanoTime) {
+            tools.strokeEnd(nanoTime);
+        }
+
+        @Override
+        public void batchDone() {
+            tools.batchDone();
+        }
+    });
+    private boolean strokeActive = false;
     // Line tool fields
     private boolean drawingLine = false;
     private int lineStartX, lineStartY;
     private int lineEndX, lineEndY;
-    private boolean pixelPerfectMode = true;
-    private Timer pixelCorrectionTimer;
-    private int lastDrawX = -1, lastDrawY = -1;
+    // Rectangle / lasso selection being dragged
+    private boolean selecting = false;
+    private SelectionMask.Mode selectMode = SelectionMask.Mode.REPLACE;
+    private int selectStartX, selectStartY, selectEndX, selectEndY;
+    private int[] lassoXs = new int[256], lassoYs = new int[256];
+    private int lassoCount;
+    // Outline of the document's selection (canvas space) and its marching-ants phase
+    private volatile Path2D selectionOutline;
+    private float antsPhase = 0;
+    private final Timer antsTimer = new Timer(120, e -> advanceAnts());
+    // Screen-space outline segments inside the visible rectangle, rebuilt when the view changes
+    private Path2D antsPath;
+    private Path2D antsOutline;
+    private final Rectangle antsVisible = new Rectangle();
+    private double antsZoom, antsPanX, antsPanY;
+    // Compression preset for PNG saves
+    private PngEncoder.Preset pngPreset = PngEncoder.Preset.BALANCED;
+    // Tiles of other layers changed off the EDT whose layer caches still need rebuilding
+    private final DirtyRegion loadedRegion = new DirtyRegion();
+    // Project tiles the view asked for that the render thread has not loaded yet
+    private final DirtyRegion requestedTiles = new DirtyRegion();
+    private final AtomicBoolean tileLoadQueued = new AtomicBoolean();
+
+    // Crash-recovery capture schedule
+    private static final int RECOVERY_INTERVAL_MS = 2000;
+    private final AtomicBoolean recoveryCaptureQueued = new AtomicBoolean();
+    private final Runnable recoveryCapture = this::captureRecovery;
+    private final Timer recoveryTimer = new Timer(RECOVERY_INTERVAL_MS, e -> scheduleRecoveryCapture());
+
+    // Canvas-space area touched since the last repaint
+    private final DirtyRegion dirtyRegion = new DirtyRegion();
+    private final AtomicBoolean dirtyRepaintScheduled = new AtomicBoolean();
+    private final Runnable flushDirtyTask = this::flushDirtyRegion;
+    // Zoomed presentation buffer for the visible area
+    private final ViewportRenderer viewRenderer = new ViewportRenderer();
+    private final MipmapPyramid mipmaps = new MipmapPyramid();
 
     public PaintCanvas() {
         setDoubleBuffered(true);
         setBackground(Color.WHITE);
+        document.setListener(new DocumentListener() {
+            @Override
+            public void pixelsChanged(int x, int y, int width, int height) {
+                markDirty(x, y, width, height);
+            }
+
+            @Override
+            public void layersChanged(Rectangle r) {
+                loadedRegion.add(r);
+                markDirty(r);
+            }
+
+            @Override
+            public void structureChanged() {
+                // Usually on the render thread: the EDT gets the new order as it is now
+                LayerStack view = document.getLayers().view();
+                SwingUtilities.invokeLater(() -> layersModified(view));
+            }
+
+            @Override
+            public void selectionChanged() {
+                SelectionMask mask = document.getSelection();
+                Path2D outline = mask == null ? null : mask.outline(0, mask.getHeight());
+                SwingUtilities.invokeLater(() -> selectionOutlineChanged(outline));
+            }
+        });
         initCanvas();
 
         // Mouse listeners
@@ -55,30 +147,44 @@ public class PaintCanvas extends JPanel implements Scrollable {
                     lastPanX = e.getX();
                     lastPanY = e.getY();
                 } else {
-                    saveState();
+                    telemetry.inputEvent();
+                    long eventNanos = System.nanoTime();
                     int cx = screenToCanvasX(e.getX());
                     int cy = screenToCanvasY(e.getY());
-                    if ("COLOR_PICKER".equals(currentTool)) {
-                        if (cx >= 0 && cy >= 0 && cx < image.getWidth() && cy < image.getHeight()) {
-                            int argb = image.getRGB(cx, cy);
-                            Color pickedColor = new Color(argb, true);
-                            if (!pickedColor.equals(Color.WHITE)) {
-                                setBrushColor(pickedColor);
-                                System.out.println("Eyedropper picked: " + pickedColor);
+                    String tool = engine.getTool();
+                    if ("COLOR_PICKER".equals(tool)) {
+                        strokes.submit(() -> {
+                            Color pickedColor = tools.pickColor(cx, cy);
+                            if (pickedColor != null && !pickedColor.equals(Color.WHITE)) {
+                                SwingUtilities.invokeLater(() -> setBrushColor(pickedColor));
                             }
-                        }
-                    } else if ("BUCKET".equals(currentTool)) {
-                        floodFill(cx, cy, currentColor);
-                    } else if ("LINE".equals(currentTool)) {
+                        });
+                    } else if ("BUCKET".equals(tool)) {
+                        Color fillColor = engine.getColor();
+                        strokes.submit(() -> {
+                            tools.fill(cx, cy, fillColor);
+                            telemetry.inputRasterized(eventNanos);
+                        });
+                    } else if ("MAGIC_WAND".equals(tool)) {
+                        SelectionMask.Mode mode = selectionMode(e);
+                        strokes.submit(() -> tools.magicWand(cx, cy, mode));
+                    } else if ("SELECT_RECT".equals(tool) || "SELECT_LASSO".equals(tool)) {
+                        selecting = true;
+                        selectMode = selectionMode(e);
+                        selectStartX = selectEndX = cx;
+                        selectStartY = selectEndY = cy;
+                        lassoCount = 0;
+                        addLassoPoint(cx, cy);
+                    } else if ("LINE".equals(tool)) {
                         drawingLine = true;
                         lineStartX = cx;
                         lineStartY = cy;
                         lineEndX = cx;
                         lineEndY = cy;
                     } else {
-                        // For BRUSH/ERASER, initialize previous coordinates
-                        prevX = cx;
-                        prevY = cy;
+                        // BRUSH/ERASER: hand the samples to the render thread
+                        strokes.begin(cx, cy);
+                        strokeActive = true;
                     }
                 }
             }
@@ -88,28 +194,26 @@ public class PaintCanvas extends JPanel implements Scrollable {
                 if (SwingUtilities.isMiddleMouseButton(e)) {
                     isPanning = false;
                 }
-                else if ("BRUSH".equals(currentTool) || "ERASER".equals(currentTool)) {
-                    stopPixelCorrection();
+                else if (strokeActive) {
+                    strokes.end();
+                    strokeActive = false;
                 }
-                else if ("LINE".equals(currentTool) && drawingLine) {
-                    int dx = lineEndX - lineStartX;
-                    int dy = lineEndY - lineStartY;
-                    double angleDeg = Math.toDegrees(Math.atan2(dy, dx));
-                    double snappedAngleDeg = Math.round(angleDeg / 15.0) * 15.0;
-                    double length = Math.hypot(dx, dy);
-                    double rad = Math.toRadians(snappedAngleDeg);
-                    int finalEndX = lineStartX + (int) Math.round(length * Math.cos(rad));
-                    int finalEndY = lineStartY + (int) Math.round(length * Math.sin(rad));
-                    g2.setColor(currentColor);
-                    g2.setStroke(new BasicStroke(brushSize, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-                    if ("BRUSH".equals(currentTool) && brushSize == 1) {
-                        int cx = screenToCanvasX(e.getX());
-                        int cy = screenToCanvasY(e.getY());
-                        drawPixelPerfectSegment(prevX, prevY, cx, cy, currentColor);
-                    }
+                else if (selecting) {
+                    finishSelection();
+                }
+                else if ("LINE".equals(engine.getTool()) && drawingLine) {
+                    telemetry.inputEvent();
+                    long eventNanos = System.nanoTime();
+                    Point end = snappedLineEnd();
+                    int x0 = lineStartX, y0 = lineStartY, size = engine.getBrushSize();
+                    Color color = engine.getColor();
+                    // Clear the guide line, then draw the snapped line
+                    repaint(lineGuideBounds());
+                    strokes.submit(() -> {
+                        tools.line(x0, y0, end.x, end.y, color, size);
+                        telemetry.inputRasterized(eventNanos);
+                    });
                     drawingLine = false;
-                    revalidate();
-                    repaint();
                 }
             }
         });
@@ -131,20 +235,28 @@ public class PaintCanvas extends JPanel implements Scrollable {
                 int cx = screenToCanvasX(e.getX());
                 int cy = screenToCanvasY(e.getY());
 
-                // Only allow movement if there's at least a 1-pixel gap
-                if (Math.abs(cx - prevX) > 1 || Math.abs(cy - prevY) > 1) {
-                    if ("BRUSH".equals(currentTool) && pixelPerfectMode && brushSize == 1) {
-                        drawPixelPerfectSegment(prevX, prevY, cx, cy, currentColor);
-                    } else {
-                        g2.setColor(currentColor);
-                        g2.setStroke(new BasicStroke(brushSize, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-                        g2.drawLine(prevX, prevY, cx, cy);
-                        image.setRGB(cx, cy, currentColor.getRGB());
+                if ("LINE".equals(engine.getTool())) {
+                    if (drawingLine) {
+                        Rectangle oldGuide = lineGuideBounds();
+                        lineEndX = cx;
+                        lineEndY = cy;
+                        repaint(oldGuide.union(lineGuideBounds()));
                     }
+                    return;
+                }
 
-                    prevX = cx;
-                    prevY = cy;
-                    repaint();
+                if (selecting) {
+                    Rectangle oldGuide = selectionGuideBounds();
+                    selectEndX = cx;
+                    selectEndY = cy;
+                    if ("SELECT_LASSO".equals(engine.getTool())) addLassoPoint(cx, cy);
+                    repaint(oldGuide.union(selectionGuideBounds()));
+                    return;
+                }
+
+                if (strokeActive) {
+                    telemetry.inputEvent();
+                    strokes.move(cx, cy);
                 }
             }
 
@@ -155,75 +267,12 @@ public class PaintCanvas extends JPanel implements Scrollable {
             double factor = (e.getWheelRotation() < 0) ? 1.2 : 0.8;
             zoom(factor, e.getX(), e.getY());
         });
-
-        // Timer to enforce pixel-perfect drawing correction every 10ms
-        pixelCorrectionTimer = new Timer(10, e -> {
-            if (prevX != -1 && prevY != -1 && lastDrawX != -1 && lastDrawY != -1) {
-                drawPixelPerfectSegment(prevX, prevY, lastDrawX, lastDrawY, currentColor);
-                revalidate();
-                repaint();
-            }
-        });
-        pixelCorrectionTimer.start();
-
     }
 
 
-    // ----- Drawing Methods (Pixel Perfect) -----
-    /**
-     * Draws a 1-pixel-wide line between (x0, y0) and (x1, y1) using a DDA-like algorithm.
-     * If skipLastPixel is true, the final pixel is not drawn.
-     */
-    private void drawPixelPerfectSegment(int x0, int y0, int x1, int y1, Color color) {
-        int dx = Math.abs(x1 - x0);
-        int dy = Math.abs(y1 - y0);
-        int sx = (x0 < x1) ? 1 : -1;
-        int sy = (y0 < y1) ? 1 : -1;
-        int err = dx - dy;
-
-        boolean lastMoveWasDiagonal = false;
-
-        while (x0 != x1 || y0 != y1) {
-            if (x0 >= 0 && y0 >= 0 && x0 < image.getWidth() && y0 < image.getHeight()) {
-                if (!lastMoveWasDiagonal) {
-                    image.setRGB(x0, y0, color.getRGB());
-                } else {
-                    erasePixel(x0, y0); // Remove any misdrawn pixels
-                }
-            }
-
-            int e2 = 2 * err;
-            if (e2 > -dy) {
-                err -= dy;
-                x0 += sx;
-                lastMoveWasDiagonal = (dy != 0);
-            }
-            if (e2 < dx) {
-                err += dx;
-                y0 += sy;
-                lastMoveWasDiagonal = (dx != 0);
-            }
-        }
-    }
-
-
-
-    /**
-     * Prevents forming extra diagonal pixels by removing the last straight pixel.
-     */
-    private boolean shouldRemovePrevious(int lastX, int lastY, int x, int y, boolean lastMoveWasStraight) {
-        // If the last move was straight and the new one is diagonal, remove the last one
-        return lastMoveWasStraight && Math.abs(x - lastX) == 1 && Math.abs(y - lastY) == 1;
-    }
-
     // ----- Canvas Initialization -----
     public void initCanvas(int w, int h) {
-        image = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
-        g2 = image.createGraphics();
-        g2.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC));
-        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
-        g2.setColor(Color.WHITE);
-        g2.fillRect(0, 0, w, h);
+        setDocument(LayerStack.withBackground(w, h, Color.WHITE));
         zoomFactor = 1.0;
 
         SwingUtilities.invokeLater(() -> {
@@ -241,36 +290,56 @@ public class PaintCanvas extends JPanel implements Scrollable {
         revalidate();
         repaint();
     }
-    private void erasePixel(int x, int y) {
-        if (x >= 0 && y >= 0 && x < image.getWidth() && y < image.getHeight()) {
-            g2.setComposite(AlphaComposite.getInstance(AlphaComposite.CLEAR)); // Ensure it erases
-            g2.setColor(new Color(0, 0, 0, 0)); // Fully transparent
-            g2.fillRect(x, y, brushSize, brushSize); // Erase in a small square
-            repaint();
+    // ----- Dirty Region Repaint -----
+    /**
+     * Queues a canvas-space region for repaint. All regions marked before the
+     * EDT gets back to painting are merged into one repaint(Rectangle) call.
+     */
+    private void markDirty(int x, int y, int w, int h) {
+        dirtyRegion.add(x, y, w, h);
+        if (dirtyRepaintScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(flushDirtyTask);
         }
     }
 
+    private void markDirty(Rectangle r) {
+        markDirty(r.x, r.y, r.width, r.height);
+    }
 
-
+    private void flushDirtyRegion() {
+        dirtyRepaintScheduled.set(false);
+        Rectangle loaded = loadedRegion.take();
+        if (loaded != null && indexed == null) {
+            compositor.layersChanged(loaded);
+        }
+        Rectangle dirty = dirtyRegion.take();
+        if (dirty != null) {
+            telemetry.repaintScheduled();
+            // Indexed documents are drawn straight from their indices
+            if (indexed == null) {
+                compositor.update(dirty);
+                mipmaps.invalidate(dirty);
+            }
+            viewRenderer.invalidate(dirty);
+            repaint(canvasToScreen(dirty));
+        }
+    }
 
     public void setPixelPerfectMode(boolean enabled) {
-        this.pixelPerfectMode = enabled;
+        engine.setPixelPerfectMode(enabled);
+        if (indexedEngine != null) indexedEngine.setPixelPerfectMode(enabled);
     }
 
-    //timer
-    public void stopPixelCorrection() {
-        if (pixelCorrectionTimer != null) {
-            pixelCorrectionTimer.stop();
-        }
+    /** Sets the stroke stabilizer strength, 0 (off) to {@link StrokeStabilizer#MAX_STRENGTH}. */
+    public void setStabilizerStrength(int strength) {
+        engine.setStabilizerStrength(strength);
+        if (indexedEngine != null) indexedEngine.setStabilizerStrength(strength);
     }
+
     private void initCanvas() {
-        int w = 512;
-        int h = 512;
-        image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-        g2 = image.createGraphics();
-        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
-        g2.setColor(Color.WHITE);
-        g2.fillRect(0, 0, w, h);
+        layersModified(document.getLayers().view());
+        int w = canvasWidth();
+        int h = canvasHeight();
 
         zoomFactor = 1.0;
 
@@ -293,30 +362,13 @@ public class PaintCanvas extends JPanel implements Scrollable {
             int viewWidth = viewport.getWidth();
             int viewHeight = viewport.getHeight();
 
-            panX = (viewWidth - image.getWidth()) / 2.0;
-            panY = (viewHeight - image.getHeight()) / 2.0;
+            panX = (viewWidth - canvasWidth()) / 2.0;
+            panY = (viewHeight - canvasHeight()) / 2.0;
             repaint();
         }
     }
 
 
-    private void resizeCanvas() {
-        int w = getWidth();
-        int h = getHeight();
-        if (w <= 0 || h <= 0) return;
-        BufferedImage newImage = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-        Graphics2D gg = newImage.createGraphics();
-        gg.setColor(Color.WHITE);
-        gg.fillRect(0, 0, w, h);
-        gg.drawImage(image, 0, 0, null);
-        gg.dispose();
-        image = newImage;
-        g2 = image.createGraphics();
-        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
-        g2.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER)); // Ensures new colors replace old ones
-
-    }
-
     @Override
     public Dimension getPreferredSize() {
         return new Dimension(1000, 700);
@@ -324,49 +376,262 @@ public class PaintCanvas extends JPanel implements Scrollable {
 
     @Override
     protected void paintComponent(Graphics g) {
+        long paintStart = telemetry.beginPaint();
         super.paintComponent(g);
         Graphics2D g2d = (Graphics2D) g;
+        Rectangle clip = g2d.getClipBounds();
+        if (clip == null) {
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+        }
 
         // Fill background with gray
         g2d.setColor(new Color(35, 35, 35));
-        g2d.fillRect(0, 0, getWidth(), getHeight());
+        g2d.fillRect(clip.x, clip.y, clip.width, clip.height);
 
         // Ensure strokes overwrite previous ones (no transparency issues)
         g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER));
 
-        // Calculate zoomed image size
-        int scaledW = (int) (image.getWidth() * zoomFactor);
-        int scaledH = (int) (image.getHeight() * zoomFactor);
-        // Ensure strokes overwrite previous ones (no transparency issues)
-        g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER));
-        // Draw the image at the correct position
-        g2d.drawImage(image, (int) panX, (int) panY, scaledW, scaledH, null);
+        IndexedDocument indexed = this.indexed;
+        LayerStack shown = compositor.getStack();
+        // Ask for any project tiles that are about to become visible; they are
+        // decoded on the render thread and repainted when they arrive
+        if (indexed == null && document.hasTilesOnDisk()) {
+            int x0 = screenToCanvasX(clip.x) - 1, y0 = screenToCanvasY(clip.y) - 1;
+            int x1 = screenToCanvasX(clip.x + clip.width) + 2, y1 = screenToCanvasY(clip.y + clip.height) + 2;
+            requestTiles(x0, y0, x1 - x0, y1 - y0);
+        }
 
-        // Draw guide lines for the line tool (if active)
-        if ("LINE".equals(currentTool) && drawingLine) {
-            int dx = lineEndX - lineStartX;
-            int dy = lineEndY - lineStartY;
-            double angleDeg = Math.toDegrees(Math.atan2(dy, dx));
-            double snappedAngleDeg = Math.round(angleDeg / 10.0) * 10.0;
-            double length = Math.hypot(dx, dy);
-            double rad = Math.toRadians(snappedAngleDeg);
-            int snappedX = lineStartX + (int) Math.round(length * Math.cos(rad));
-            int snappedY = lineStartY + (int) Math.round(length * Math.sin(rad));
-            // **SHIFT CANVAS DOWN TO AVOID OVERLAP**
-            int offsetY = 40; // Push down so top bar is not covered
-            g2d.drawImage(image, (int) panX, (int) panY + offsetY, scaledW, scaledH, null);
-            int screenX1 = (int) (lineStartX * zoomFactor + panX);
-            int screenY1 = (int) (lineStartY * zoomFactor + panY);
-            int screenX2 = (int) (snappedX * zoomFactor + panX);
-            int screenY2 = (int) (snappedY * zoomFactor + panY);
+        // Draw the visible part of the flattened layers from the zoomed presentation
+        // buffer, sampling a downsampled mipmap level when zoomed out
+        if (indexed != null) {
+            viewRenderer.paintIndexed(g2d, clip, getWidth(), getHeight(), indexed.getImage().getPixels(),
+                    indexed.getPalette().lookupTable(), indexed.getWidth(), indexed.getHeight(),
+                    zoomFactor, panX, panY);
+        } else {
+            mipmaps.setSource(compositor.output(), shown.getWidth(), shown.getHeight());
+            int level = MipmapPyramid.levelForZoom(zoomFactor);
+            viewRenderer.paint(g2d, clip, getWidth(), getHeight(), shown.getWidth(), shown.getHeight(),
+                    mipmaps.level(level), mipmaps.levelWidth(level), level, true,
+                    zoomFactor, panX, panY);
+        }
 
+        // Draw guide lines for the line tool (if active)
+        if ("LINE".equals(engine.getTool()) && drawingLine) {
+            Point end = snappedLineEnd();
             g2d.setColor(Color.BLACK);
             g2d.setStroke(new BasicStroke(1));
-            g2d.drawLine(screenX1, screenY1, screenX2, screenY2);
+            g2d.drawLine(canvasToScreenX(lineStartX), canvasToScreenY(lineStartY),
+                    canvasToScreenX(end.x), canvasToScreenY(end.y));
+        }
+
+        paintSelection(g2d);
+
+        telemetry.endPaint(paintStart, clip.width, clip.height, zoomFactor);
+        hud.paint(g2d);
+    }
+
+    /**
+     * Queues loading the project tiles in a canvas-space area. Requests made
+     * before the render thread gets to them are merged into one load, whose
+     * tiles come back through the document listener like any layer change.
+     */
+    private void requestTiles(int x, int y, int w, int h) {
+        requestedTiles.add(x, y, w, h);
+        if (tileLoadQueued.compareAndSet(false, true)) {
+            strokes.submit(() -> {
+                tileLoadQueued.set(false);
+                Rectangle wanted = requestedTiles.take();
+                if (wanted != null) document.loadTiles(wanted.x, wanted.y, wanted.width, wanted.height);
+            });
+        }
+    }
+
+    /**
+     * Marching ants around the selection, plus the rectangle or lasso being dragged.
+     */
+    private void paintSelection(Graphics2D g2d) {
+        Path2D outline = selectionOutline;
+        Stroke oldStroke = g2d.getStroke();
+        AffineTransform toScreen = new AffineTransform(zoomFactor, 0, 0, zoomFactor, panX, panY);
+        if (outline != null) {
+            Path2D screen = visibleOutline(outline);
+            g2d.setColor(Color.WHITE);
+            g2d.setStroke(new BasicStroke(1));
+            g2d.draw(screen);
+            g2d.setColor(Color.BLACK);
+            g2d.setStroke(new BasicStroke(1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 10,
+                    new float[]{4, 4}, antsPhase));
+            g2d.draw(screen);
+        }
+        if (selecting) {
+            Shape guide;
+            if ("SELECT_LASSO".equals(engine.getTool())) {
+                Path2D.Float lasso = new Path2D.Float();
+                lasso.moveTo(lassoXs[0] + 0.5f, lassoYs[0] + 0.5f);
+                for (int i = 1; i < lassoCount; i++) lasso.lineTo(lassoXs[i] + 0.5f, lassoYs[i] + 0.5f);
+                guide = lasso;
+            } else {
+                guide = selectionRectangle();
+            }
+            g2d.setColor(Color.BLACK);
+            g2d.setStroke(new BasicStroke(1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 10,
+                    new float[]{4, 4}, 0));
+            g2d.draw(toScreen.createTransformedShape(guide));
+        }
+        g2d.setStroke(oldStroke);
+    }
+
+    /**
+     * End point of the line tool snapped to 15 degree steps.
+     */
+    private Point snappedLineEnd() {
+        int dx = lineEndX - lineStartX;
+        int dy = lineEndY - lineStartY;
+        double angleDeg = Math.toDegrees(Math.atan2(dy, dx));
+        double snappedAngleDeg = Math.round(angleDeg / 15.0) * 15.0;
+        double length = Math.hypot(dx, dy);
+        double rad = Math.toRadians(snappedAngleDeg);
+        return new Point(lineStartX + (int) Math.round(length * Math.cos(rad)),
+                lineStartY + (int) Math.round(length * Math.sin(rad)));
+    }
+
+    /**
+     * Screen area covered by the line tool's guide line.
+     */
+    private Rectangle lineGuideBounds() {
+        Point end = snappedLineEnd();
+        Rectangle r = new Rectangle(Math.min(lineStartX, end.x), Math.min(lineStartY, end.y),
+                Math.abs(end.x - lineStartX) + 1, Math.abs(end.y - lineStartY) + 1);
+        Rectangle screen = canvasToScreen(r);
+        screen.grow(2, 2);
+        return screen;
+    }
+
+    // ----- Selection -----
+    /**
+     * Shift adds to the selection, Ctrl subtracts, both intersect.
+     */
+    private static SelectionMask.Mode selectionMode(MouseEvent e) {
+        if (e.isShiftDown() && e.isControlDown()) return SelectionMask.Mode.INTERSECT;
+        if (e.isShiftDown()) return SelectionMask.Mode.ADD;
+        if (e.isControlDown()) return SelectionMask.Mode.SUBTRACT;
+        return SelectionMask.Mode.REPLACE;
+    }
+
+    private void addLassoPoint(int x, int y) {
+        if (lassoCount > 0 && lassoXs[lassoCount - 1] == x && lassoYs[lassoCount - 1] == y) return;
+        if (lassoCount == lassoXs.length) {
+            lassoXs = Arrays.copyOf(lassoXs, lassoCount * 2);
+            lassoYs = Arrays.copyOf(lassoYs, lassoCount * 2);
         }
+        lassoXs[lassoCount] = x;
+        lassoYs[lassoCount] = y;
+        lassoCount++;
     }
 
+    private Rectangle selectionRectangle() {
+        return new Rectangle(Math.min(selectStartX, selectEndX), Math.min(selectStartY, selectEndY),
+                Math.abs(selectEndX - selectStartX), Math.abs(selectEndY - selectStartY));
+    }
 
+    /**
+     * Screen area covered by the rectangle or lasso being dragged.
+     */
+    private Rectangle selectionGuideBounds() {
+        Rectangle r = selectionRectangle();
+        if ("SELECT_LASSO".equals(engine.getTool())) {
+            for (int i = 0; i < lassoCount; i++) r.add(new Rectangle(lassoXs[i], lassoYs[i], 1, 1));
+        }
+        Rectangle screen = canvasToScreen(r);
+        screen.grow(2, 2);
+        return screen;
+    }
+
+    /**
+     * Turns the dragged rectangle or lasso into a mask and hands it to the
+     * render thread, which combines it with the current selection.
+     */
+    private void finishSelection() {
+        selecting = false;
+        repaint(selectionGuideBounds());
+        int width = canvasWidth(), height = canvasHeight();
+        SelectionMask shape;
+        if ("SELECT_LASSO".equals(engine.getTool())) {
+            shape = SelectionMask.polygon(width, height, lassoXs, lassoYs, lassoCount);
+        } else {
+            Rectangle r = selectionRectangle();
+            shape = SelectionMask.rectangle(width, height, r.x, r.y, r.width, r.height);
+        }
+        SelectionMask.Mode mode = selectMode;
+        strokes.submit(() -> tools.select(shape, mode));
+    }
+
+    private void selectionOutlineChanged(Path2D outline) {
+        selectionOutline = outline;
+        if (outline != null) antsTimer.start();
+        else antsTimer.stop();
+        repaint();
+    }
+
+    private void advanceAnts() {
+        Path2D outline = selectionOutline;
+        if (outline == null) return;
+        antsPhase = (antsPhase + 1) % 8;
+        Path2D screen = visibleOutline(outline);
+        if (screen.getCurrentPoint() == null) return;
+        Rectangle bounds = screen.getBounds();
+        bounds.grow(2, 2);
+        repaint(bounds);
+    }
+
+    /**
+     * The outline's segments that touch the visible part of the canvas, in
+     * screen space. Cached until the outline, zoom, pan or visible area
+     * change, so the ants never stroke the off-screen part of a selection.
+     */
+    private Path2D visibleOutline(Path2D outline) {
+        Rectangle visible = getVisibleRect();
+        if (outline == antsOutline && zoomFactor == antsZoom && panX == antsPanX && panY == antsPanY
+                && visible.equals(antsVisible)) {
+            return antsPath;
+        }
+        // Visible area in canvas space, a pixel wider for the stroke
+        double left = (visible.x - panX) / zoomFactor - 1, right = (visible.x + visible.width - panX) / zoomFactor + 1;
+        double top = (visible.y - panY) / zoomFactor - 1, bottom = (visible.y + visible.height - panY) / zoomFactor + 1;
+        Path2D.Float path = new Path2D.Float();
+        double[] coords = new double[6];
+        double x0 = 0, y0 = 0;
+        for (PathIterator it = outline.getPathIterator(null); !it.isDone(); it.next()) {
+            int type = it.currentSegment(coords);
+            double x1 = coords[0], y1 = coords[1];
+            if (type == PathIterator.SEG_LINETO && Math.max(x0, x1) >= left && Math.min(x0, x1) <= right
+                    && Math.max(y0, y1) >= top && Math.min(y0, y1) <= bottom) {
+                path.moveTo(x0 * zoomFactor + panX, y0 * zoomFactor + panY);
+                path.lineTo(x1 * zoomFactor + panX, y1 * zoomFactor + panY);
+            }
+            x0 = x1;
+            y0 = y1;
+        }
+        antsPath = path;
+        antsOutline = outline;
+        antsVisible.setBounds(visible);
+        antsZoom = zoomFactor;
+        antsPanX = panX;
+        antsPanY = panY;
+        return path;
+    }
+
+    public void selectAll() {
+        strokes.submit(() -> tools.selectAll());
+    }
+
+    public void deselect() {
+        strokes.submit(() -> tools.deselect());
+    }
+
+    public void invertSelection() {
+        strokes.submit(() -> tools.invertSelection());
+    }
 
     private int screenToCanvasX(int sx) {
         return (int) ((sx - panX) / zoomFactor);
@@ -377,89 +642,113 @@ public class PaintCanvas extends JPanel implements Scrollable {
 
     // ----- Tool and Brush Methods -----
     public void setBrushMode() {
-        currentTool = "BRUSH";
+        selectTool("BRUSH");
         drawingLine = false;
     }
     public void setEraserMode() {
-        currentTool = "ERASER";
+        selectTool("ERASER");
         drawingLine = false;
     }
     public void setBucketMode() {
-        currentTool = "BUCKET";
+        selectTool("BUCKET");
         drawingLine = false;
     }
     public void setLineMode() {
-        currentTool = "LINE";
+        selectTool("LINE");
     }
     public void setColorPickerMode() {
-        currentTool = "COLOR_PICKER";
+        selectTool("COLOR_PICKER");
+    }
+    public void setRectSelectMode() {
+        selectTool("SELECT_RECT");
+        drawingLine = false;
+    }
+    public void setLassoMode() {
+        selectTool("SELECT_LASSO");
+        drawingLine = false;
+    }
+    public void setMagicWandMode() {
+        selectTool("MAGIC_WAND");
+        drawingLine = false;
+    }
+    private void selectTool(String tool) {
+        engine.setTool(tool);
+        if (indexedEngine != null) indexedEngine.setTool(tool);
+        firePropertyChange("tool", null, tool);
     }
     public void setBrushColor(Color color) {
-        this.currentColor = color;
+        engine.setColor(color);
+        if (indexedEngine != null) indexedEngine.setColor(color);
+        firePropertyChange("brushColor", null, color);
     }
     public void setBrushSize(int size) {
-        this.brushSize = size;
-    }
-
-    // ----- Bucket Fill -----
-    private void floodFill(int x, int y, Color newColor) {
-        if (image == null) return;
-        int targetColor = image.getRGB(x, y);
-        int fillColor = newColor.getRGB();
-        if (targetColor == fillColor) return;
-        Queue<Point> queue = new LinkedList<>();
-        queue.add(new Point(x, y));
-        while (!queue.isEmpty()) {
-            Point p = queue.poll();
-            int px = p.x, py = p.y;
-            if (px < 0 || py < 0 || px >= image.getWidth() || py >= image.getHeight()) continue;
-            if (image.getRGB(px, py) != targetColor) continue;
-            image.setRGB(px, py, fillColor);
-            queue.add(new Point(px + 1, py));
-            queue.add(new Point(px - 1, py));
-            queue.add(new Point(px, py + 1));
-            queue.add(new Point(px, py - 1));
-        }
-        repaint();
+        engine.setBrushSize(size);
+        if (indexedEngine != null) indexedEngine.setBrushSize(size);
+    }
+    /** Sets the brush/eraser edge hardness, 0 (soft) to 1 (hard). */
+    public void setBrushHardness(float hardness) {
+        engine.setBrushHardness(hardness);
+    }
+    public void setFillTolerance(int tolerance) {
+        engine.setFillTolerance(tolerance);
+    }
+    public void setFillContiguous(boolean contiguous) {
+        engine.setFillContiguous(contiguous);
+        if (indexedEngine != null) indexedEngine.setFillContiguous(contiguous);
+    }
+    public void setFillAlphaAware(boolean alphaAware) {
+        engine.setFillAlphaAware(alphaAware);
     }
 
-    // ----- Clear / Undo / Redo -----
-    public void clearCanvas() {
-        g2.setColor(Color.WHITE);
-        g2.fillRect(0, 0, image.getWidth(), image.getHeight());
-        repaint();
+    /**
+     * Maps a canvas-space rectangle to the screen rectangle it covers at the current zoom.
+     */
+    private Rectangle canvasToScreen(Rectangle r) {
+        int x1 = canvasToScreenX(r.x);
+        int y1 = canvasToScreenY(r.y);
+        int x2 = canvasToScreenX(r.x + r.width);
+        int y2 = canvasToScreenY(r.y + r.height);
+        return new Rectangle(x1, y1, x2 - x1 + 1, y2 - y1 + 1);
+    }
+
+    private int canvasToScreenX(int cx) {
+        return (int) Math.floor(cx * zoomFactor + panX);
+    }
+
+    private int canvasToScreenY(int cy) {
+        return (int) Math.floor(cy * zoomFactor + panY);
     }
 
-    private void saveState() {
-        BufferedImage snapshot = copyImage(image);
-        undoStack.push(snapshot);
-        redoStack.clear();
+    // ----- Clear / Undo / Redo -----
+    public void clearCanvas() {
+        strokes.submit(() -> tools.clear());
     }
 
     public void undo() {
-        if (!undoStack.isEmpty()) {
-            redoStack.push(copyImage(image));
-            image = undoStack.pop();
-            g2 = image.createGraphics();
-            repaint();
-        }
+        strokes.submit(() -> tools.undo());
     }
 
     public void redo() {
-        if (!redoStack.isEmpty()) {
-            undoStack.push(copyImage(image));
-            image = redoStack.pop();
-            g2 = image.createGraphics();
-            repaint();
-        }
+        strokes.submit(() -> tools.redo());
     }
 
-    private BufferedImage copyImage(BufferedImage img) {
-        BufferedImage copy = new BufferedImage(img.getWidth(), img.getHeight(), img.getType());
-        Graphics2D gg = copy.createGraphics();
-        gg.drawImage(img, 0, 0, null);
-        gg.dispose();
-        return copy;
+    /** Sets how many bytes of undo history may stay in memory before spilling to disk. */
+    public void setHistoryMemoryBudget(long bytes) {
+        document.setHistoryMemoryBudget(bytes);
+        IndexedDocument indexed = this.indexed;
+        if (indexed != null) indexed.setHistoryMemoryBudget(bytes);
+    }
+
+    public long getHistoryMemoryUsage() {
+        IndexedDocument indexed = this.indexed;
+        long layered = document.getHistoryMemoryUsage();
+        return indexed != null ? indexed.getHistoryMemoryUsage() + layered : layered;
+    }
+
+    public long getHistoryDiskUsage() {
+        IndexedDocument indexed = this.indexed;
+        long layered = document.getHistoryDiskUsage();
+        return indexed != null ? indexed.getHistoryDiskUsage() + layered : layered;
     }
 
     // ----- Zoom & Pan -----
@@ -476,9 +765,6 @@ public class PaintCanvas extends JPanel implements Scrollable {
         double relY = (mouseY - panY) / oldZoom;
         panX = mouseX - (relX * zoomFactor);
         panY = mouseY - (relY * zoomFactor);
-        // Reset freehand references after zoom
-        prevX = -1;
-        prevY = -1;
         revalidate();
         repaint();
     }
@@ -492,52 +778,667 @@ public class PaintCanvas extends JPanel implements Scrollable {
     }
 
     // ----- Save / Open -----
+    /**
+     * Saves the flattened document as PNG in the background, or an indexed
+     * one as a palette PNG. Painting can continue meanwhile; the file gets
+     * the document as it was after the edits made before the save.
+     */
     public void saveImage() {
         JFileChooser fileChooser = new JFileChooser();
         int choice = fileChooser.showSaveDialog(null);
         if (choice == JFileChooser.APPROVE_OPTION) {
             File file = fileChooser.getSelectedFile();
-            try {
-                ImageIO.write(image, "png", file);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            // The snapshot is taken on the render thread, after the queued edits
+            strokes.submit(() -> {
+                IndexedDocument shown = shownIndexed();
+                if (shown != null) {
+                    IndexedImage copy = shown.getImage().copy();
+                    SwingUtilities.invokeLater(() -> saveIndexedImage(copy, file));
+                    return;
+                }
+                DocumentSnapshot snapshot = document.takeSnapshot();
+                SwingUtilities.invokeLater(() -> saveSnapshot(snapshot, file));
+            });
         }
     }
 
+    private void saveSnapshot(DocumentSnapshot snapshot, File file) {
+        ImageSaveWorker worker = new ImageSaveWorker(snapshot, file, pngPreset, () -> document.releaseSnapshot(snapshot)) {
+            @Override
+            protected void done() {
+                try {
+                    get();
+                } catch (CancellationException ignored) {
+                    // Cancelled from the progress dialog
+                } catch (InterruptedException | ExecutionException e) {
+                    showFileError("save", file, e);
+                }
+            }
+        };
+        runWithProgress("Saving " + file.getName(), worker);
+    }
+
+    /**
+     * Saves a copy of the indexed document's image as a palette PNG in the
+     * background.
+     */
+    private void saveIndexedImage(IndexedImage copy, File file) {
+        ImageSaveWorker worker = new ImageSaveWorker(copy, file, pngPreset) {
+            @Override
+            protected void done() {
+                try {
+                    get();
+                } catch (CancellationException ignored) {
+                    // Cancelled from the progress dialog
+                } catch (InterruptedException | ExecutionException e) {
+                    showFileError("save", file, e);
+                }
+            }
+        };
+        runWithProgress("Saving " + file.getName(), worker);
+    }
+
+    /**
+     * Loads an image in the background and makes it the document once
+     * decoded. Palette images open in indexed colour.
+     */
     public void openImage() {
         JFileChooser fileChooser = new JFileChooser();
         int choice = fileChooser.showOpenDialog(null);
         if (choice == JFileChooser.APPROVE_OPTION) {
             File file = fileChooser.getSelectedFile();
+            ImageLoadWorker worker = new ImageLoadWorker(file) {
+                @Override
+                protected void done() {
+                    try {
+                        LayerStack stack = get();
+                        IndexedImage image = getIndexedImage();
+                        if (image != null) openIndexed(image, file);
+                        else if (stack != null) setDocument(stack);
+                    } catch (CancellationException ignored) {
+                        // Cancelled from the progress dialog
+                    } catch (InterruptedException | ExecutionException e) {
+                        showFileError("open", file, e);
+                    }
+                }
+            };
+            runWithProgress("Opening " + file.getName(), worker);
+        }
+    }
+
+    /**
+     * Saves the document as a native project. The first save asks for a file;
+     * later saves append only the tiles changed since the previous one. An
+     * indexed document is saved as a palette PNG instead.
+     */
+    public void saveProject() {
+        if (indexed != null) {
+            savePalettePng();
+            return;
+        }
+        File created = null;
+        if (document.getProjectFile() == null) {
+            JFileChooser fileChooser = new JFileChooser();
+            fileChooser.setFileFilter(new FileNameExtensionFilter("PaintForge project", "pfs"));
+            if (fileChooser.showSaveDialog(null) != JFileChooser.APPROVE_OPTION) return;
+            created = fileChooser.getSelectedFile();
+            if (!created.getName().endsWith(ProjectFile.EXTENSION)) {
+                created = new File(created.getParentFile(), created.getName() + ProjectFile.EXTENSION);
+            }
+        }
+        File newFile = created;
+        // The tiles to write are collected on the render thread, after the queued edits
+        strokes.submit(() -> {
+            if (newFile != null && document.getProjectFile() == null) {
+                try {
+                    document.createProject(newFile.toPath());
+                } catch (IOException e) {
+                    SwingUtilities.invokeLater(() -> showFileError("save", newFile, e));
+                    return;
+                }
+            }
+            ProjectFile project = document.getProjectFile();
+            Callable<Integer> save = project != null ? document.beginProjectSave() : null;
+            if (save != null) SwingUtilities.invokeLater(() -> writeProject(project.getPath().toFile(), save));
+        });
+    }
+
+    /**
+     * Saves the indexed document as a palette PNG, its native form. The first
+     * save asks for a file unless the document was opened from one.
+     */
+    private void savePalettePng() {
+        IndexedDocument target = indexed;
+        Path path = target.getFile();
+        if (path == null) {
+            JFileChooser fileChooser = new JFileChooser();
+            fileChooser.setFileFilter(new FileNameExtensionFilter("PNG image", "png"));
+            if (fileChooser.showSaveDialog(null) != JFileChooser.APPROVE_OPTION) return;
+            File chosen = fileChooser.getSelectedFile();
+            if (!chosen.getName().toLowerCase(Locale.ROOT).endsWith(".png")) {
+                chosen = new File(chosen.getParentFile(), chosen.getName() + ".png");
+            }
+            path = chosen.toPath();
+        }
+        Path file = path;
+        // The pixels are copied on the render thread, after the queued edits
+        strokes.submit(() -> {
+            if (shownIndexed() != target) return;
+            target.setFile(file);
+            IndexedImage copy = target.getImage().copy();
+            SwingUtilities.invokeLater(() -> saveIndexedImage(copy, file.toFile()));
+        });
+    }
+
+    private void writeProject(File file, Callable<Integer> save) {
+        new SwingWorker<Integer, Void>() {
+            @Override
+            protected Integer doInBackground() throws Exception {
+                return save.call();
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    get();
+                } catch (InterruptedException | ExecutionException e) {
+                    showFileError("save", file, e);
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Opens a native project. Only its layer table and tile index are read
+     * here; tile pixels are decoded as they come into view or get edited.
+     */
+    public void openProject() {
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setFileFilter(new FileNameExtensionFilter("PaintForge project", "pfs"));
+        if (fileChooser.showOpenDialog(null) != JFileChooser.APPROVE_OPTION) return;
+        File file = fileChooser.getSelectedFile();
+        strokes.submit(() -> {
             try {
-                image = ImageIO.read(file);
-                g2 = image.createGraphics();
-                repaint();
+                document.openProject(file.toPath());
+            } catch (IOException e) {
+                SwingUtilities.invokeLater(() -> showFileError("open", file, e));
+                return;
+            }
+            leaveIndexed();
+        });
+    }
+
+    // ----- Crash Recovery -----
+    /**
+     * Starts journaling the document for crash recovery, on the render
+     * thread. If the previous run did not shut down cleanly, uncleanExit is
+     * then run on the EDT; its document can be brought back with
+     * {@link #restorePreviousSession()}.
+     */
+    public void startRecovery(Path directory, Runnable uncleanExit) {
+        strokes.submit(() -> {
+            boolean unclean;
+            try {
+                unclean = document.startRecovery(directory);
             } catch (IOException e) {
                 e.printStackTrace();
+                return;
             }
+            SwingUtilities.invokeLater(() -> {
+                recoveryTimer.start();
+                if (unclean) uncleanExit.run();
+            });
+        });
+    }
+
+    /**
+     * Releases the documents' scratch files and project (application exit),
+     * after the queued edits. Call it off the EDT.
+     */
+    public void closeDocument() {
+        strokes.submit(() -> {
+            IndexedDocument shown = shownIndexed();
+            if (shown != null) shown.close();
+            document.close();
+        });
+        strokes.awaitIdle();
+    }
+
+    /**
+     * Writes the last changes to the journal and closes it (application exit).
+     * Waits for the disk, so call it off the EDT.
+     */
+    public void stopRecovery() {
+        if (!document.isRecovering()) return;
+        recoveryTimer.stop();
+        strokes.awaitIdle();
+        document.stopRecovery(shownIndexed());
+    }
+
+    private void scheduleRecoveryCapture() {
+        if (!document.isRecovering() || document.isRecoveryBusy()) return;
+        // Runs on the render thread between strokes, so the EDT never waits for it
+        if (recoveryCaptureQueued.compareAndSet(false, true)) {
+            strokes.submit(recoveryCapture);
+        }
+    }
+
+    private void captureRecovery() {
+        recoveryCaptureQueued.set(false);
+        IndexedDocument shown = shownIndexed();
+        if (shown != null) document.captureRecovery(shown);
+        else document.captureRecovery();
+    }
+
+    /**
+     * Replays the journal of the previous session (the document before the
+     * last New/Open, or the one open when the application last exited or
+     * crashed) and makes it the document.
+     */
+    public void restorePreviousSession() {
+        SwingWorker<LayerStack, Void> worker = new SwingWorker<LayerStack, Void>() {
+            private Path journal;
+
+            @Override
+            protected LayerStack doInBackground() throws IOException {
+                // Waits for the journal writer to finish rotating the session
+                journal = document.getPreviousSession();
+                return journal != null ? RecoveryJournal.replay(journal, f -> setProgress((int) (f * 100))) : null;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    LayerStack stack = get();
+                    if (stack != null) {
+                        setDocument(stack);
+                    } else if (journal == null) {
+                        JOptionPane.showMessageDialog(PaintCanvas.this, "There is no previous document to recover.",
+                                "PaintForge", JOptionPane.INFORMATION_MESSAGE);
+                    } else {
+                        JOptionPane.showMessageDialog(PaintCanvas.this, "The previous session holds no document.",
+                                "PaintForge", JOptionPane.INFORMATION_MESSAGE);
+                    }
+                } catch (CancellationException ignored) {
+                    // Cancelled from the progress dialog
+                } catch (InterruptedException | ExecutionException e) {
+                    // The journal path is unknown if looking it up failed
+                    showFileError("recover", "the previous session", e);
+                }
+            }
+        };
+        runWithProgress("Recovering document", worker);
+    }
+
+    public PngEncoder.Preset getPngPreset() {
+        return pngPreset;
+    }
+
+    public void setPngPreset(PngEncoder.Preset preset) {
+        this.pngPreset = preset;
+    }
+
+    private void runWithProgress(String title, SwingWorker<?, ?> worker) {
+        FileProgressDialog dialog = new FileProgressDialog(this, title, worker);
+        worker.execute();
+        dialog.setVisible(true);
+    }
+
+    private void showFileError(String action, File file, Exception e) {
+        showFileError(action, file.getName(), e);
+    }
+
+    private void showFileError(String action, String name, Exception e) {
+        Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+        cause.printStackTrace();
+        JOptionPane.showMessageDialog(this, "Could not " + action + " " + name + ":\n" + cause.getMessage(),
+                "PaintForge", JOptionPane.ERROR_MESSAGE);
+    }
+
+    // ----- Performance -----
+    public Telemetry getTelemetry() {
+        return telemetry;
+    }
+
+    public boolean isHudVisible() {
+        return hud.isVisible();
+    }
+
+    public void toggleHud() {
+        hud.setVisible(!hud.isVisible());
+    }
+
+    public boolean isFlightRecording() {
+        return telemetry.isRecording();
+    }
+
+    /**
+     * Starts a Java Flight Recording, or stops the running one and asks where
+     * to save it.
+     */
+    public void toggleFlightRecording() {
+        if (!telemetry.isRecording()) {
+            try {
+                telemetry.startRecording();
+            } catch (Exception e) {
+                e.printStackTrace();
+                JOptionPane.showMessageDialog(this, "Could not start flight recording:\n" + e.getMessage(),
+                        "PaintForge", JOptionPane.ERROR_MESSAGE);
+            }
+            return;
+        }
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setFileFilter(new FileNameExtensionFilter("Flight Recording (*.jfr)", "jfr"));
+        fileChooser.setSelectedFile(new File("paintforge.jfr"));
+        if (fileChooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        File file = fileChooser.getSelectedFile();
+        if (!file.getName().toLowerCase(Locale.ROOT).endsWith(".jfr")) {
+            file = new File(file.getParentFile(), file.getName() + ".jfr");
         }
+        try {
+            telemetry.stopRecording(file.toPath());
+        } catch (IOException e) {
+            showFileError("save", file, e);
+        }
+    }
+
+    // ----- Layers -----
+    /**
+     * Replaces the document with a new layer stack (New / Open), after the
+     * edits queued before.
+     */
+    public void setDocument(LayerStack stack) {
+        strokes.submit(() -> {
+            // The EDT gets the new layers before it stops showing the indexed document
+            document.setLayers(stack);
+            leaveIndexed();
+        });
+    }
+
+    /**
+     * EDT: makes a palette image the document, in indexed colour, after the
+     * queued edits. The layered document becomes a flattened copy of it for
+     * {@link #convertToRgb()}.
+     */
+    private void openIndexed(IndexedImage image, File file) {
+        Consumer<IndexedEditEngine> settings = toolSettings();
+        strokes.submit(() -> {
+            IndexedDocument opened = new IndexedDocument(image);
+            opened.setFile(file.toPath());
+            document.setLayers(opened.toLayers());
+            leaveIndexed();
+            showIndexed(opened, settings);
+        });
+    }
+
+    // ----- Indexed Colour -----
+    /**
+     * Flattens the document into an indexed-colour one: one byte per pixel
+     * and an editable palette of up to {@value Palette#MAX_COLORS} colours.
+     * Images with more colours are refused rather than quantized. The layered
+     * document is kept, with its history and project, for
+     * {@link #convertToRgb()}; the indexed one is journaled in its place.
+     */
+    public void convertToIndexed() {
+        if (indexed != null) return;
+        // Settings are read here, the layers on the render thread after the queued edits
+        Consumer<IndexedEditEngine> settings = toolSettings();
+        strokes.submit(() -> {
+            if (tools != engine) return;
+            IndexedDocument converted = flattenToIndexed();
+            if (converted == null) {
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this, "The image has more than "
+                                + Palette.MAX_COLORS + " colours and cannot be converted to indexed colour.",
+                        "PaintForge", JOptionPane.INFORMATION_MESSAGE));
+                return;
+            }
+            showIndexed(converted, settings);
+        });
+    }
+
+    /** Render thread: the layers as an indexed document, or null if they have too many colours. */
+    private IndexedDocument flattenToIndexed() {
+        if (document.getProjectFile() != null) document.ensureLoaded(0, 0, document.getWidth(), document.getHeight());
+        return IndexedDocument.fromLayers(document.getLayers());
+    }
+
+    /** EDT: the current tool settings, to apply to indexed tools made later on the render thread. */
+    private Consumer<IndexedEditEngine> toolSettings() {
+        String tool = engine.getTool();
+        Color color = engine.getColor();
+        int size = engine.getBrushSize(), stabilizer = engine.getStabilizerStrength();
+        boolean pixelPerfect = engine.isPixelPerfectMode(), contiguous = engine.isFillContiguous();
+        return target -> {
+            target.setTool(tool);
+            target.setColor(color);
+            target.setBrushSize(size);
+            target.setPixelPerfectMode(pixelPerfect);
+            target.setStabilizerStrength(stabilizer);
+            target.setFillContiguous(contiguous);
+        };
+    }
+
+    /** Render thread: switches the tools to an indexed document; the EDT follows. */
+    private void showIndexed(IndexedDocument converted, Consumer<IndexedEditEngine> settings) {
+        converted.setHistoryMemoryBudget(document.getHistoryMemoryBudget());
+        converted.setListener(new DocumentListener() {
+            @Override
+            public void pixelsChanged(int x, int y, int width, int height) {
+                markDirty(x, y, width, height);
+            }
+
+            @Override
+            public void layersChanged(Rectangle r) {
+                markDirty(r);
+            }
+
+            @Override
+            public void selectionChanged() {
+                SelectionMask mask = converted.getSelection();
+                Path2D outline = mask == null ? null : mask.outline(0, mask.getHeight());
+                SwingUtilities.invokeLater(() -> selectionOutlineChanged(outline));
+            }
+
+            @Override
+            public void paletteChanged() {
+                SwingUtilities.invokeLater(() -> {
+                    // Pixels are looked up at present time: nothing to recolour
+                    viewRenderer.invalidateAll();
+                    repaint();
+                    firePropertyChange("palette", null, converted.getPalette());
+                });
+            }
+        });
+        IndexedEditEngine converter = new IndexedEditEngine(converted, telemetry);
+        settings.accept(converter);
+        tools = converter;
+        SwingUtilities.invokeLater(() -> enterIndexed(converter));
+    }
+
+    /**
+     * EDT: shows the indexed document the render thread now edits. The
+     * layers are not shown meanwhile: their composite is dropped and the
+     * render thread moves their pixels to disk.
+     */
+    private void enterIndexed(IndexedEditEngine converter) {
+        IndexedDocument shown = converter.getDocument();
+        indexed = shown;
+        indexedEngine = converter;
+        compositor.release();
+        mipmaps.setSource(null, 0, 0);
+        strokes.submit(() -> {
+            if (shownIndexed() == shown) document.spillLayers();
+        });
+        viewRenderer.invalidateAll();
+        telemetry.undoMemory(0, 0);
+        firePropertyChange("indexed", false, true);
+        repaint();
+    }
+
+    /**
+     * Returns to the layered document. If the indexed one was edited, its
+     * image replaces the layers as one undo step; otherwise the layers come
+     * back untouched.
+     */
+    public void convertToRgb() {
+        if (indexed == null) return;
+        strokes.submit(() -> {
+            IndexedDocument shown = shownIndexed();
+            if (shown == null) return;
+            document.restoreLayers();
+            LayerStack stack = shown.canUndo() ? shown.toLayers() : null;
+            leaveIndexed();
+            if (stack != null) document.replaceLayers(stack);
+        });
+    }
+
+    /**
+     * Render thread: goes back to the RGB tools and closes the indexed
+     * document, bringing back spilled layers; the EDT follows.
+     */
+    private void leaveIndexed() {
+        if (tools == engine) return;
+        IndexedDocument left = shownIndexed();
+        document.restoreLayers();
+        tools = engine;
+        left.close();
+        SwingUtilities.invokeLater(() -> {
+            indexed = null;
+            indexedEngine = null;
+            compositor.invalidateCaches();
+            viewRenderer.invalidateAll();
+            firePropertyChange("indexed", true, false);
+            repaint();
+        });
+    }
+
+    /** Render thread: the indexed document the tools edit, or null in RGB mode. */
+    private IndexedDocument shownIndexed() {
+        EditTools active = tools;
+        return active instanceof IndexedEditEngine ? ((IndexedEditEngine) active).getDocument() : null;
+    }
+
+    public boolean isIndexed() {
+        return indexed != null;
+    }
+
+    /** The palette of the indexed document, or null in RGB mode. */
+    public Palette getPalette() {
+        IndexedDocument indexed = this.indexed;
+        return indexed != null ? indexed.getPalette() : null;
+    }
+
+    /**
+     * The palette index the current tool paints with in indexed mode (the
+     * brush colour's entry, or the nearest when it has none), or -1 in RGB mode.
+     */
+    public int getPaintIndex() {
+        IndexedEditEngine target = indexedEngine;
+        return target != null ? target.paintIndex() : -1;
+    }
+
+    /** Adds the brush colour to the indexed document's palette (one undo step). */
+    public void addPaletteColor() {
+        IndexedEditEngine target = indexedEngine;
+        if (target == null) return;
+        strokes.submit(target::addPaletteEntry);
+    }
+
+    /** Changes a colour of the indexed document's palette (one undo step). */
+    public void setPaletteEntry(int index, Color color) {
+        IndexedEditEngine target = indexedEngine;
+        if (target == null) return;
+        strokes.submit(() -> target.setPaletteEntry(index, color));
+    }
+
+    private int canvasWidth() {
+        IndexedDocument indexed = this.indexed;
+        return indexed != null ? indexed.getWidth() : compositor.getStack().getWidth();
+    }
+
+    private int canvasHeight() {
+        IndexedDocument indexed = this.indexed;
+        return indexed != null ? indexed.getHeight() : compositor.getStack().getHeight();
+    }
+
+    /**
+     * Layer set, order or properties changed: shows the given view of the
+     * new order, recomposited and repainted everywhere.
+     */
+    private void layersModified(LayerStack view) {
+        compositor.setStack(view);
+        compositor.invalidateCaches();
+        markDirty(0, 0, view.getWidth(), view.getHeight());
+        firePropertyChange("layers", null, view);
+    }
+
+    public Document getDocument() {
+        return document;
+    }
+
+    public EditEngine getEngine() {
+        return engine;
+    }
+
+    /** The layer order as last shown, for the EDT; layer changes are applied on the render thread. */
+    public LayerStack getLayers() {
+        return compositor.getStack();
+    }
+
+    public void addLayer() {
+        editLayers(document::addLayer);
+    }
+
+    public void removeActiveLayer() {
+        editLayers(document::removeActiveLayer);
+    }
+
+    public void moveActiveLayer(int delta) {
+        editLayers(() -> document.moveActiveLayer(delta));
+    }
+
+    public void setActiveLayer(int index) {
+        if (index == getLayers().getActiveIndex()) return;
+        editLayers(() -> document.setActiveLayer(index));
+    }
+
+    public void setLayerVisible(int index, boolean visible) {
+        editLayers(() -> document.setLayerVisible(index, visible));
+    }
+
+    public void setLayerOpacity(int index, float opacity) {
+        editLayers(() -> document.setLayerOpacity(index, opacity));
+    }
+
+    public void setLayerBlendMode(int index, BlendMode mode) {
+        editLayers(() -> document.setLayerBlendMode(index, mode));
+    }
+
+    /** Runs a layer edit after the queued edits, unless an indexed document (flat) is shown then. */
+    private void editLayers(Runnable edit) {
+        strokes.submit(() -> {
+            if (tools == engine) edit.run();
+        });
     }
 
     // ----- Tool State Methods -----
     public void setTool(String tool) {
         if (!isTemporaryToolActive) {
-            previousTool = currentTool;
+            previousTool = engine.getTool();
             isTemporaryToolActive = true;
         }
-        currentTool = tool;
+        selectTool(tool);
     }
 
     public void revertTool() {
         if (isTemporaryToolActive) {
-            currentTool = previousTool;
+            selectTool(previousTool);
             isTemporaryToolActive = false;
         }
     }
 
     public Color getBrushColor() {
-        return currentColor;
+        return engine.getColor();
     }
 
     // ----- Scrollable Interface Methods -----
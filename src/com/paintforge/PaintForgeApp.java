@@ -5,10 +5,19 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.net.URL;
+import java.util.Arrays;
 
 public class PaintForgeApp {
     public static void main(String[] args) {
+        // "--batch ..." runs the headless batch processor instead of the editor
+        if (args.length > 0 && "--batch".equals(args[0])) {
+            BatchProcessor.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         // Apply FlatLaf theme
         try {
             UIManager.setLookAndFeel(new FlatDarculaLaf());
@@ -17,7 +26,8 @@ public class PaintForgeApp {
         }
 
         JFrame frame = new JFrame("PaintForge Studio");
-        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        // Exits from the window listener once the recovery journal is closed
+        frame.setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
         frame.setLayout(new BorderLayout());
 
         // Create the canvas
@@ -78,10 +88,8 @@ public class PaintForgeApp {
         KeyboardFocusManager.getCurrentKeyboardFocusManager().addKeyEventDispatcher(event -> {
             if (event.getKeyCode() == KeyEvent.VK_ALT) {
                 if (event.getID() == KeyEvent.KEY_PRESSED) {
-                    System.out.println("Alt PRESSED -> switching to COLOR_PICKER");
                     canvas.setTool("COLOR_PICKER");
                 } else if (event.getID() == KeyEvent.KEY_RELEASED) {
-                    System.out.println("Alt RELEASED -> reverting tool");
                     canvas.revertTool(); // Restore previous tool
                 }
                 return true;
@@ -117,8 +125,18 @@ public class PaintForgeApp {
         JButton lineBtn = createIconButton("line.png", "Line (Shortcut: L)");
         lineBtn.addActionListener(e -> canvas.setLineMode());
 
+        JButton rectSelectBtn = createIconButton("select-rect.png", "Rectangle Select (Shortcut: M)");
+        rectSelectBtn.addActionListener(e -> canvas.setRectSelectMode());
+
+        JButton lassoBtn = createIconButton("lasso.png", "Lasso Select (Shortcut: Shift+L)");
+        lassoBtn.addActionListener(e -> canvas.setLassoMode());
+
+        JButton magicWandBtn = createIconButton("magic-wand.png", "Magic Wand (Shortcut: W)");
+        magicWandBtn.addActionListener(e -> canvas.setMagicWandMode());
+
         JButton[] buttons = {
-                brushBtn, colorPickerBtn, eraserBtn, bucketBtn, clearBtn, lineBtn
+                brushBtn, colorPickerBtn, eraserBtn, bucketBtn, clearBtn, lineBtn,
+                rectSelectBtn, lassoBtn, magicWandBtn
         };
         for (JButton btn : buttons) {
             btn.setPreferredSize(new Dimension(24, 24));
@@ -164,6 +182,24 @@ public class PaintForgeApp {
         brushSizeSlider.addChangeListener(e -> canvas.setBrushSize(brushSizeSlider.getValue()));
         propertiesPanel.add(brushSizeSlider);
 
+        // Brush hardness slider
+        JSlider hardnessSlider = new JSlider(JSlider.HORIZONTAL, 0, 100, 100);
+        hardnessSlider.setPreferredSize(new Dimension(200, 48));
+        hardnessSlider.setMajorTickSpacing(25);
+        hardnessSlider.setPaintTicks(true);
+        hardnessSlider.setPaintLabels(true);
+        hardnessSlider.setToolTipText("Brush Hardness");
+        hardnessSlider.addChangeListener(e -> canvas.setBrushHardness(hardnessSlider.getValue() / 100f));
+        propertiesPanel.add(hardnessSlider);
+
+        // Layers
+        LayerPanel layerPanel = new LayerPanel(canvas);
+        propertiesPanel.add(layerPanel);
+
+        // Palette (indexed-colour documents)
+        PalettePanel palettePanel = new PalettePanel(canvas);
+        propertiesPanel.add(palettePanel);
+
         // Layout
         // Layout Setup - Set BorderLayout
         frame.setLayout(new BorderLayout());
@@ -261,6 +297,85 @@ public class PaintForgeApp {
             }
         });
 
+        inputMap.put(KeyStroke.getKeyStroke('m'), "rectSelectTool");
+        actionMap.put("rectSelectTool", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                canvas.setRectSelectMode();
+            }
+        });
+
+        inputMap.put(KeyStroke.getKeyStroke('L'), "lassoTool");
+        actionMap.put("lassoTool", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                canvas.setLassoMode();
+            }
+        });
+
+        inputMap.put(KeyStroke.getKeyStroke('w'), "magicWandTool");
+        actionMap.put("magicWandTool", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                canvas.setMagicWandMode();
+            }
+        });
+
+        inputMap.put(KeyStroke.getKeyStroke("control A"), "selectAll");
+        actionMap.put("selectAll", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                canvas.selectAll();
+            }
+        });
+
+        inputMap.put(KeyStroke.getKeyStroke("control D"), "deselect");
+        actionMap.put("deselect", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                canvas.deselect();
+            }
+        });
+
+        inputMap.put(KeyStroke.getKeyStroke("control shift I"), "invertSelection");
+        actionMap.put("invertSelection", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                canvas.invertSelection();
+            }
+        });
+
+        inputMap.put(KeyStroke.getKeyStroke("F3"), "performanceHud");
+        actionMap.put("performanceHud", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                canvas.toggleHud();
+            }
+        });
+
+        // Crash recovery: journal the document, keep it on exit, offer it back after a crash
+        frame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                frame.setVisible(false);
+                // The last capture is written off the EDT, then the application exits
+                Thread shutdown = new Thread(() -> {
+                    canvas.stopRecovery();
+                    canvas.closeDocument();
+                    System.exit(0);
+                }, "shutdown");
+                shutdown.start();
+            }
+        });
+        canvas.startRecovery(RecoveryJournal.defaultDirectory(), () -> {
+            int choice = JOptionPane.showConfirmDialog(frame,
+                    "PaintForge did not shut down properly last time.\nRestore the last session?",
+                    "Restore Session", JOptionPane.YES_NO_OPTION);
+            if (choice == JOptionPane.YES_OPTION) {
+                canvas.restorePreviousSession();
+            }
+        });
+
         // Show the frame
         frame.setLocationRelativeTo(null);
         frame.setVisible(true);
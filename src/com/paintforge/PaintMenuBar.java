@@ -28,28 +28,82 @@ public class PaintMenuBar extends JMenuBar {
         fileMenu.add(newFile);
         JMenuItem saveFile = createStyledMenuItem("Save Ctrl+S");
         JMenuItem openFile = createStyledMenuItem("Open Ctrl+O");
+        JMenuItem saveProject = createStyledMenuItem("Save Project");
+        JMenuItem openProject = createStyledMenuItem("Open Project...");
 
         newFile.addActionListener(e -> canvas.clearCanvas());
         saveFile.addActionListener(e -> canvas.saveImage());
         openFile.addActionListener(e -> canvas.openImage());
+        saveProject.addActionListener(e -> canvas.saveProject());
+        openProject.addActionListener(e -> canvas.openProject());
 
         fileMenu.add(newFile);
         fileMenu.add(saveFile);
         fileMenu.add(openFile);
+        fileMenu.addSeparator();
+        fileMenu.add(saveProject);
+        fileMenu.add(openProject);
+        JMenuItem recoverPrevious = createStyledMenuItem("Recover Previous Document...");
+        recoverPrevious.addActionListener(e -> canvas.restorePreviousSession());
+        fileMenu.add(recoverPrevious);
+
+        // PNG export speed/size preset
+        JMenu pngMenu = createStyledMenu("PNG Compression");
+        ButtonGroup pngGroup = new ButtonGroup();
+        for (PngEncoder.Preset preset : PngEncoder.Preset.values()) {
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem(preset.toString());
+            item.setForeground(Color.WHITE);
+            item.setBackground(new Color(60, 63, 65));
+            item.setSelected(preset == canvas.getPngPreset());
+            item.addActionListener(e -> canvas.setPngPreset(preset));
+            pngGroup.add(item);
+            pngMenu.add(item);
+        }
+        fileMenu.addSeparator();
+        fileMenu.add(pngMenu);
 
         // 🔹 Edit Menu
         JMenu editMenu = createStyledMenu("Edit");
         JMenuItem undo = createStyledMenuItem("Undo Ctrl-Z");
         JMenuItem redo = createStyledMenuItem("Redo Ctrl-Y");
         JMenuItem clear = createStyledMenuItem("Clear Canvas Ctrl-E");
+        JMenuItem historyUsage = createStyledMenuItem("History Usage...");
 
         undo.addActionListener(e -> canvas.undo());
         redo.addActionListener(e -> canvas.redo());
         clear.addActionListener(e -> canvas.clearCanvas());
+        historyUsage.addActionListener(e -> showHistoryUsage());
 
         editMenu.add(undo);
         editMenu.add(redo);
         editMenu.add(clear);
+        editMenu.addSeparator();
+        editMenu.add(historyUsage);
+
+        // 🔹 Select Menu
+        JMenu selectMenu = createStyledMenu("Select");
+        JMenuItem selectAll = createStyledMenuItem("All Ctrl-A");
+        JMenuItem deselect = createStyledMenuItem("Deselect Ctrl-D");
+        JMenuItem invertSelection = createStyledMenuItem("Invert Ctrl-Shift-I");
+
+        selectAll.addActionListener(e -> canvas.selectAll());
+        deselect.addActionListener(e -> canvas.deselect());
+        invertSelection.addActionListener(e -> canvas.invertSelection());
+
+        selectMenu.add(selectAll);
+        selectMenu.add(deselect);
+        selectMenu.add(invertSelection);
+
+        // 🔹 Image Menu
+        JMenu imageMenu = createStyledMenu("Image");
+        JMenuItem indexedColour = createStyledMenuItem("Indexed Colour");
+        JMenuItem rgbColour = createStyledMenuItem("RGB Colour");
+
+        indexedColour.addActionListener(e -> canvas.convertToIndexed());
+        rgbColour.addActionListener(e -> canvas.convertToRgb());
+
+        imageMenu.add(indexedColour);
+        imageMenu.add(rgbColour);
 
         // 🔹 View Menu
         JMenu viewMenu = createStyledMenu("View");
@@ -61,13 +115,26 @@ public class PaintMenuBar extends JMenuBar {
         zoomOut.addActionListener(e -> canvas.zoom(0.8)); // 🔹 Now zooms out!
         resetZoom.addActionListener(e -> canvas.resetZoom()); // 🔹 Resets zoom to default
 
+        JMenuItem performanceHud = createStyledMenuItem("Performance HUD (F3)");
+        JMenuItem flightRecording = createStyledMenuItem("Start Flight Recording");
+        performanceHud.addActionListener(e -> canvas.toggleHud());
+        flightRecording.addActionListener(e -> {
+            canvas.toggleFlightRecording();
+            flightRecording.setText(canvas.isFlightRecording() ? "Stop Flight Recording..." : "Start Flight Recording");
+        });
+
         viewMenu.add(zoomIn);
         viewMenu.add(zoomOut);
         viewMenu.add(resetZoom);
+        viewMenu.addSeparator();
+        viewMenu.add(performanceHud);
+        viewMenu.add(flightRecording);
 
         // Add menus to the menu bar
         this.add(fileMenu);
         this.add(editMenu);
+        this.add(selectMenu);
+        this.add(imageMenu);
         this.add(viewMenu);
     }
     //Dialog for New File
@@ -133,6 +200,14 @@ public class PaintMenuBar extends JMenuBar {
         dialog.setVisible(true);
     }
 
+    //Undo history memory/disk usage
+    private void showHistoryUsage() {
+        String message = String.format("Undo history in memory: %.1f MB%nSpilled to disk: %.1f MB",
+                canvas.getHistoryMemoryUsage() / (1024.0 * 1024.0),
+                canvas.getHistoryDiskUsage() / (1024.0 * 1024.0));
+        JOptionPane.showMessageDialog(parentFrame, message, "History Usage", JOptionPane.INFORMATION_MESSAGE);
+    }
+
 
     private JMenu createStyledMenu(String name) {
         JMenu menu = new JMenu(name);
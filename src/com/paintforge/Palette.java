@@ -0,0 +1,123 @@
+package com.paintforge;
+
+import java.util.Arrays;
+
+/**
+ * Up to 256 editable ARGB colours for an {@link IndexedImage}.
+ * <p>
+ * Pixels store an index into the palette, so changing an entry recolours
+ * every pixel that uses it at the cost of one array write. Views read the
+ * {@link #lookupTable()} when they present the image; entries past the
+ * palette size are transparent.
+ */
+public class Palette {
+    public static final int MAX_COLORS = 256;
+
+    private final int[] colors = new int[MAX_COLORS];
+    private int size;
+
+    public Palette() {
+    }
+
+    public Palette(int[] argb, int size) {
+        if (size > MAX_COLORS) throw new IllegalArgumentException("More than " + MAX_COLORS + " colours");
+        System.arraycopy(argb, 0, colors, 0, size);
+        this.size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == MAX_COLORS;
+    }
+
+    public int get(int index) {
+        return colors[index];
+    }
+
+    public void set(int index, int argb) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Palette index " + index);
+        colors[index] = argb;
+    }
+
+    /** Appends a colour; returns its index, or -1 if the palette is full. */
+    public int add(int argb) {
+        if (size == MAX_COLORS) return -1;
+        colors[size] = argb;
+        return size++;
+    }
+
+    /** Index of the first entry exactly equal to argb, or -1. */
+    public int indexOf(int argb) {
+        for (int i = 0; i < size; i++) {
+            if (colors[i] == argb) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Index of the entry closest to argb (squared distance over all four
+     * channels), or -1 for an empty palette. An exact entry is always the
+     * closest.
+     */
+    public int nearest(int argb) {
+        int best = -1;
+        long bestDistance = Long.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            int c = colors[i];
+            long distance = 0;
+            for (int shift = 0; shift < 32; shift += 8) {
+                int d = ((c >>> shift) & 0xFF) - ((argb >>> shift) & 0xFF);
+                distance += d * d;
+            }
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /** Index of the entry with the lowest alpha (the first of equals), or -1 for an empty palette. */
+    public int mostTransparent() {
+        int best = -1;
+        for (int i = 0; i < size; i++) {
+            if (best < 0 || (colors[i] >>> 24) < (colors[best] >>> 24)) best = i;
+        }
+        return best;
+    }
+
+    /**
+     * The live 256-entry colour table, indexed by pixel value. Not a copy:
+     * later edits show up in it.
+     */
+    public int[] lookupTable() {
+        return colors;
+    }
+
+    public Palette copy() {
+        return new Palette(colors, size);
+    }
+
+    /** Makes this palette equal to another. */
+    public void setAll(Palette other) {
+        System.arraycopy(other.colors, 0, colors, 0, MAX_COLORS);
+        size = other.size;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Palette)) return false;
+        Palette other = (Palette) o;
+        return size == other.size && Arrays.equals(colors, 0, size, other.colors, 0, size);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = size;
+        for (int i = 0; i < size; i++) hash = hash * 31 + colors[i];
+        return hash;
+    }
+}
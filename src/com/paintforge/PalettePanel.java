@@ -0,0 +1,138 @@
+package com.paintforge;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+
+/**
+ * Swatch grid of the indexed document's palette for the properties panel.
+ * A click picks the colour for the brush; a double click edits the entry,
+ * recolouring every pixel that uses it. Only shown in indexed-colour mode.
+ * <p>
+ * The tools never add colours to the palette, so the panel says which entry
+ * the current tool paints with (outlined in the grid) and, when the brush
+ * colour is not in the palette, that the nearest entry stands in for it and
+ * offers to add it.
+ */
+public class PalettePanel extends JPanel {
+    private static final int COLUMNS = 16;
+    private static final int SWATCH = 12;
+
+    private final PaintCanvas canvas;
+    private final Swatches swatches = new Swatches();
+    private final JLabel status = new JLabel();
+    private final JButton addColor = new JButton("Add to Palette");
+    // Entry the current tool paints with (-1 = none)
+    private int paintIndex = -1;
+
+    public PalettePanel(PaintCanvas canvas) {
+        this.canvas = canvas;
+        setLayout(new BorderLayout(0, 4));
+        setOpaque(false);
+
+        JLabel title = new JLabel("Palette");
+        title.setForeground(Color.WHITE);
+        add(title, BorderLayout.NORTH);
+        add(swatches, BorderLayout.CENTER);
+
+        JPanel footer = new JPanel(new BorderLayout(0, 4));
+        footer.setOpaque(false);
+        status.setForeground(Color.WHITE);
+        footer.add(status, BorderLayout.CENTER);
+        addColor.setToolTipText("Add the brush colour as a new palette entry");
+        addColor.setFocusPainted(false);
+        addColor.setMargin(new Insets(2, 2, 2, 2));
+        addColor.addActionListener(e -> canvas.addPaletteColor());
+        footer.add(addColor, BorderLayout.SOUTH);
+        add(footer, BorderLayout.SOUTH);
+
+        canvas.addPropertyChangeListener("palette", evt -> refresh());
+        canvas.addPropertyChangeListener("indexed", evt -> refresh());
+        canvas.addPropertyChangeListener("brushColor", evt -> refresh());
+        canvas.addPropertyChangeListener("tool", evt -> refresh());
+        refresh();
+    }
+
+    private void refresh() {
+        setVisible(canvas.isIndexed());
+        updateStatus();
+        swatches.revalidate();
+        swatches.repaint();
+        revalidate();
+    }
+
+    /** Tells which entry the tool paints with, and whether the brush colour is missing. */
+    private void updateStatus() {
+        Palette palette = canvas.getPalette();
+        paintIndex = canvas.getPaintIndex();
+        if (palette == null || paintIndex < 0) {
+            status.setText(" ");
+            addColor.setVisible(false);
+            return;
+        }
+        int brush = canvas.getBrushColor().getRGB();
+        boolean missing = palette.indexOf(brush) < 0;
+        if (missing && !"ERASER".equals(canvas.getEngine().getTool())) {
+            status.setText(String.format("<html>#%06X is not in the palette:<br>paints as entry %d</html>",
+                    brush & 0xFFFFFF, paintIndex));
+        } else {
+            status.setText("Paints with entry " + paintIndex);
+        }
+        addColor.setVisible(missing);
+        addColor.setEnabled(!palette.isFull());
+        addColor.setText(palette.isFull() ? "Add to Palette (palette full)" : "Add to Palette");
+    }
+
+    /** The palette entries, {@value #COLUMNS} to a row. */
+    private class Swatches extends JComponent {
+        Swatches() {
+            setBackground(new Color(45, 45, 45));
+            setToolTipText("Click to paint, double-click to edit");
+            addMouseListener(new MouseAdapter() {
+                @Override
+                public void mouseClicked(MouseEvent e) {
+                    Palette palette = canvas.getPalette();
+                    int index = indexAt(e.getX(), e.getY());
+                    if (palette == null || index < 0 || index >= palette.size()) return;
+                    Color color = new Color(palette.get(index), true);
+                    if (e.getClickCount() >= 2) {
+                        Color chosen = JColorChooser.showDialog(PalettePanel.this, "Palette Entry " + index, color);
+                        if (chosen != null) canvas.setPaletteEntry(index, chosen);
+                    } else {
+                        canvas.setBrushColor(color);
+                    }
+                }
+            });
+        }
+
+        private int indexAt(int x, int y) {
+            int column = x / SWATCH, row = y / SWATCH;
+            return column < COLUMNS ? row * COLUMNS + column : -1;
+        }
+
+        @Override
+        public Dimension getPreferredSize() {
+            Palette palette = canvas.getPalette();
+            int rows = palette == null ? 1 : Math.max(1, (palette.size() + COLUMNS - 1) / COLUMNS);
+            return new Dimension(COLUMNS * SWATCH + 1, rows * SWATCH + 1);
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            g.setColor(getBackground());
+            g.fillRect(0, 0, getWidth(), getHeight());
+            Palette palette = canvas.getPalette();
+            if (palette == null) return;
+            for (int i = 0; i < palette.size(); i++) {
+                int x = (i % COLUMNS) * SWATCH, y = (i / COLUMNS) * SWATCH;
+                g.setColor(new Color(palette.get(i), true));
+                g.fillRect(x + 1, y + 1, SWATCH - 1, SWATCH - 1);
+            }
+            if (paintIndex >= 0 && paintIndex < palette.size()) {
+                g.setColor(Color.WHITE);
+                g.drawRect((paintIndex % COLUMNS) * SWATCH, (paintIndex / COLUMNS) * SWATCH, SWATCH, SWATCH);
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.paintforge;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Translucent overlay in the corner of the canvas showing the last second of
+ * {@link Telemetry}: paint and event-to-pixel latency percentiles, per-tool
+ * operation times, undo memory, GC activity and event rates. While visible
+ * it refreshes once a second and repaints only its own area.
+ */
+public class PerformanceHud {
+    private static final int REFRESH_MS = 1000;
+    private static final int MARGIN = 8, PADDING = 6;
+    private static final Font FONT = new Font(Font.MONOSPACED, Font.PLAIN, 11);
+
+    private final JComponent host;
+    private final Telemetry telemetry;
+    private final Timer timer;
+    private boolean visible = false;
+    private List<String> lines = new ArrayList<>();
+    private final Rectangle bounds = new Rectangle();
+
+    private long lastRefresh, lastInputEvents, lastPaints;
+    private long[] lastGc = new long[2];
+
+    public PerformanceHud(JComponent host, Telemetry telemetry) {
+        this.host = host;
+        this.telemetry = telemetry;
+        this.timer = new Timer(REFRESH_MS, e -> refresh());
+    }
+
+    public boolean isVisible() {
+        return visible;
+    }
+
+    public void setVisible(boolean visible) {
+        if (this.visible == visible) return;
+        this.visible = visible;
+        if (visible) {
+            // Show figures right away; each later refresh covers the last second
+            refresh();
+            timer.start();
+        } else {
+            timer.stop();
+        }
+        host.repaint(bounds);
+    }
+
+    private void refresh() {
+        long now = System.nanoTime();
+        double seconds = lastRefresh == 0 ? 1 : Math.max(1e-3, (now - lastRefresh) / 1e9);
+        lastRefresh = now;
+
+        List<String> next = new ArrayList<>();
+        LatencyHistogram.Snapshot paint = telemetry.paint(true);
+        LatencyHistogram.Snapshot input = telemetry.eventToPixel(true);
+        long paints = telemetry.getPaints(), events = telemetry.getInputEvents();
+        next.add(String.format("Paint      %s  %5.0f/s", percentiles(paint), (paints - lastPaints) / seconds));
+        next.add(String.format("Input>px   %s  %5.0f ev/s", percentiles(input), (events - lastInputEvents) / seconds));
+        lastPaints = paints;
+        lastInputEvents = events;
+
+        Map<String, LatencyHistogram> sorted = new TreeMap<>(telemetry.tools());
+        for (Map.Entry<String, LatencyHistogram> tool : sorted.entrySet()) {
+            LatencyHistogram.Snapshot s = tool.getValue().snapshot(true);
+            if (s.count() == 0) continue;
+            next.add(String.format("%-10.10s %s  %5d ops", tool.getKey(), percentiles(s), s.count()));
+        }
+
+        next.add(String.format("Undo       %.1f MB memory, %.1f MB disk",
+                telemetry.getUndoMemoryBytes() / (1024.0 * 1024.0), telemetry.getUndoDiskBytes() / (1024.0 * 1024.0)));
+        long[] gc = Telemetry.gcTotals();
+        Runtime rt = Runtime.getRuntime();
+        next.add(String.format("GC         %d runs, %d ms  heap %d/%d MB", gc[0] - lastGc[0], gc[1] - lastGc[1],
+                (rt.totalMemory() - rt.freeMemory()) >> 20, rt.maxMemory() >> 20));
+        lastGc = gc;
+        if (telemetry.isRecording()) next.add("JFR        recording");
+
+        // Repaint both the old and the new extent of the overlay
+        Rectangle old = new Rectangle(bounds);
+        lines = next;
+        host.repaint(old);
+        host.repaint(layout(host.getVisibleRect(), host.getFontMetrics(FONT)));
+    }
+
+    private static String percentiles(LatencyHistogram.Snapshot s) {
+        if (s.count() == 0) return "   -      -      -   ms";
+        return String.format("p50 %6.2f p99 %6.2f max %6.2f ms",
+                s.percentile(50) / 1e6, s.percentile(99) / 1e6, s.max() / 1e6);
+    }
+
+    private Rectangle layout(Rectangle visibleArea, FontMetrics fm) {
+        int width = 0;
+        for (String line : lines) width = Math.max(width, fm.stringWidth(line));
+        bounds.setBounds(visibleArea.x + MARGIN, visibleArea.y + MARGIN,
+                width + 2 * PADDING, lines.size() * fm.getHeight() + 2 * PADDING);
+        return bounds;
+    }
+
+    /**
+     * Draws the overlay in the top-left corner of the host's visible area.
+     */
+    public void paint(Graphics2D g) {
+        if (!visible || lines.isEmpty()) return;
+        g.setFont(FONT);
+        FontMetrics fm = g.getFontMetrics();
+        Rectangle r = layout(host.getVisibleRect(), fm);
+        g.setColor(new Color(20, 20, 20, 200));
+        g.fillRoundRect(r.x, r.y, r.width, r.height, 8, 8);
+        g.setColor(Color.WHITE);
+        int y = r.y + PADDING + fm.getAscent();
+        for (String line : lines) {
+            g.drawString(line, r.x + PADDING, y);
+            y += fm.getHeight();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.paintforge;
+
+import java.awt.Rectangle;
+
+/**
+ * What the tools edit, shared by the layered {@link Document} and the
+ * indexed-colour {@link IndexedDocument}: a {@link PixelRaster} to write, the
+ * selection that clips it, the undo history and the listener.
+ * <p>
+ * Edits go through {@link #beginEdit()}, {@link #beforeWrite} for every area
+ * about to be written, and {@link #commitEdit()}; {@link AbstractEditEngine}
+ * does this for the tools. A document is edited by one thread at a time.
+ */
+public abstract class PixelDocument implements PixelWriteListener, PixelReadListener {
+    // Undo/Redo history (tile deltas)
+    protected final UndoHistory history = new UndoHistory();
+    protected boolean historyEnabled = true;
+    // Area tools may write (null = everything)
+    private volatile SelectionMask selection;
+    protected DocumentListener listener = new DocumentListener() {
+    };
+
+    public void setListener(DocumentListener listener) {
+        this.listener = listener;
+    }
+
+    public abstract int getWidth();
+
+    public abstract int getHeight();
+
+    /** The pixels the tools write: the active layer, or the palette indices. */
+    public abstract PixelRaster getRaster();
+
+    /** True while some pixels are still only on disk, so reads must be announced. */
+    public boolean hasTilesOnDisk() {
+        return false;
+    }
+
+    /** Makes sure the pixels inside the rectangle are in memory before they are read. */
+    public void loadTiles(int x, int y, int w, int h) {
+    }
+
+    /** Loads the pixels a tool is about to read, see {@link #loadTiles}. */
+    @Override
+    public void beforeRead(int x, int y, int w, int h) {
+        loadTiles(x, y, w, h);
+    }
+
+    // ----- Selection -----
+    /**
+     * The selection tools are clipped to, or null if nothing is selected
+     * (tools then write anywhere). Callers must not modify the mask.
+     */
+    public SelectionMask getSelection() {
+        return selection;
+    }
+
+    /**
+     * Replaces the selection; an empty mask or null deselects. The mask must
+     * match the document size and is not copied.
+     */
+    public void setSelection(SelectionMask mask) {
+        if (mask != null && (mask.getWidth() != getWidth() || mask.getHeight() != getHeight())) {
+            throw new IllegalArgumentException("Selection size does not match the document");
+        }
+        selection = mask == null || mask.isEmpty() ? null : mask;
+        listener.selectionChanged();
+    }
+
+    // ----- Editing -----
+    /**
+     * Starts an undoable edit (one stroke, fill, line...).
+     */
+    public void beginEdit() {
+        if (!historyEnabled) return;
+        history.beginOperation(getRaster());
+    }
+
+    /**
+     * Turns undo recording off (and drops the history) for one-way batch
+     * edits, which then copy no tiles; on by default.
+     */
+    public void setHistoryEnabled(boolean enabled) {
+        history.commit();
+        if (!enabled) history.clear();
+        historyEnabled = enabled;
+    }
+
+    /**
+     * Ends the edit; returns false if it changed nothing and left no history entry.
+     */
+    public boolean commitEdit() {
+        return history.commit();
+    }
+
+    /**
+     * Every write to the pixels is announced here first, so the undo history
+     * can keep the old contents.
+     */
+    @Override
+    public void beforeWrite(int x, int y, int w, int h) {
+        history.beforeWrite(x, y, w, h);
+    }
+
+    /**
+     * Reports drawn pixels to the listener.
+     */
+    public void markChanged(int x, int y, int w, int h) {
+        listener.pixelsChanged(x, y, w, h);
+    }
+
+    public Rectangle undo() {
+        return applyHistory(false);
+    }
+
+    public Rectangle redo() {
+        return applyHistory(true);
+    }
+
+    /** Swaps in the previous or next history entry; returns the area changed, or null. */
+    protected Rectangle applyHistory(boolean redo) {
+        return redo ? history.redo() : history.undo();
+    }
+
+    public boolean canUndo() {
+        return history.canUndo();
+    }
+
+    public boolean canRedo() {
+        return history.canRedo();
+    }
+
+    /** Sets how many bytes of undo history may stay in memory before spilling to disk. */
+    public void setHistoryMemoryBudget(long bytes) {
+        history.setMemoryBudget(bytes);
+    }
+
+    public long getHistoryMemoryBudget() {
+        return history.getMemoryBudget();
+    }
+
+    public long getHistoryMemoryUsage() {
+        return history.getMemoryUsage();
+    }
+
+    public long getHistoryDiskUsage() {
+        return history.getDiskUsage();
+    }
+
+    /**
+     * Releases the files the document holds, such as the undo journal's
+     * scratch file. The document must not be edited afterwards.
+     */
+    public void close() {
+        history.close();
+    }
+}
@@ -0,0 +1,154 @@
+package com.paintforge;
+
+/**
+ * Streaming pixel-perfect 1px line drawing.
+ * <p>
+ * Input points are joined with Bresenham lines and each resulting pixel is
+ * written as soon as it arrives. Whenever a new pixel makes the previous one
+ * an L-shaped corner (its neighbours touch diagonally and it sits orthogonally
+ * between them), that corner pixel is dropped again by restoring the value it
+ * replaced. Only the last two pixels are ever looked at, so each input point
+ * costs time proportional to the segment length and nothing runs between
+ * strokes.
+ * <p>
+ * The target is either ARGB pixels or the palette indices of an indexed
+ * image, and pixels outside an optional selection are skipped: the
+ * selection's spans on the current row are clipped once when the stroke
+ * reaches the row, and each pixel is tested against the span it last fell in.
+ */
+public class PixelPerfectFilter {
+    private int[] pixels;
+    private byte[] indices;
+    private int width, height;
+    private int color;
+    private SelectionMask clip;
+    // The clip's spans on row clipY (start/end pairs) and the one last hit
+    private int[] spans = new int[2];
+    private int spanCount, clipY = -1, lastSpan;
+
+    // The last two emitted pixels (a before b) and the value b overwrote
+    private int ax, ay, bx, by;
+    private int bSaved;
+    private boolean bWritten;
+    private int count = 0;
+
+    public void setTarget(int[] pixels, int width, int height) {
+        this.pixels = pixels;
+        this.indices = null;
+        this.width = width;
+        this.height = height;
+    }
+
+    /** Writes palette indices into an indexed image instead of ARGB pixels. */
+    public void setTarget(byte[] indices, int width, int height) {
+        this.indices = indices;
+        this.pixels = null;
+        this.width = width;
+        this.height = height;
+    }
+
+    /** Leaves pixels outside the selection alone (null = none). */
+    public void setClip(SelectionMask clip) {
+        this.clip = clip;
+        if (clip != null && spans.length < clip.getWidth() + 2) spans = SelectionClip.rowBuffer(clip);
+        clipY = -1;
+    }
+
+    /** Raw pixel value (or palette index) to write. */
+    public void setColor(int color) {
+        this.color = color;
+    }
+
+    /**
+     * Starts a stroke at (x, y) and draws its first pixel.
+     */
+    public void begin(int x, int y) {
+        count = 0;
+        clipY = -1;
+        emit(x, y);
+    }
+
+    /**
+     * Extends the stroke with a line from the last point to (x, y).
+     */
+    public void lineTo(int x, int y) {
+        if (count == 0) {
+            begin(x, y);
+            return;
+        }
+        int x0 = bx, y0 = by;
+        int dx = Math.abs(x - x0), dy = Math.abs(y - y0);
+        int sx = x0 < x ? 1 : -1, sy = y0 < y ? 1 : -1;
+        int err = dx - dy;
+        while (x0 != x || y0 != y) {
+            int e2 = 2 * err;
+            if (e2 > -dy) {
+                err -= dy;
+                x0 += sx;
+            }
+            if (e2 < dx) {
+                err += dx;
+                y0 += sy;
+            }
+            emit(x0, y0);
+        }
+    }
+
+    /**
+     * Ends the stroke; the drawn pixels stay as they are.
+     */
+    public void end() {
+        count = 0;
+    }
+
+    private void emit(int x, int y) {
+        if (count >= 2 && isCorner(ax, ay, bx, by, x, y)) {
+            // Drop b: put back what it replaced and make c follow a directly
+            if (bWritten) write(by * width + bx, bSaved);
+            bx = x;
+            by = y;
+        } else {
+            ax = bx;
+            ay = by;
+            bx = x;
+            by = y;
+            count++;
+        }
+        bWritten = x >= 0 && y >= 0 && x < width && y < height && (clip == null || inClip(x, y));
+        if (bWritten) {
+            int i = y * width + x;
+            bSaved = indices != null ? indices[i] : pixels[i];
+            write(i, color);
+        }
+    }
+
+    private boolean inClip(int x, int y) {
+        if (y != clipY) {
+            spanCount = SelectionClip.clipRow(clip, y, 0, width, spans);
+            clipY = y;
+            lastSpan = 0;
+        }
+        // Consecutive pixels mostly fall in the same span
+        if (lastSpan < spanCount && x >= spans[lastSpan] && x < spans[lastSpan + 1]) return true;
+        for (int s = 0; s < spanCount && spans[s] <= x; s += 2) {
+            if (x < spans[s + 1]) {
+                lastSpan = s;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void write(int i, int value) {
+        if (indices != null) indices[i] = (byte) value;
+        else pixels[i] = value;
+    }
+
+    /**
+     * True when b is the orthogonal elbow between two diagonal neighbours a and c.
+     */
+    static boolean isCorner(int ax, int ay, int bx, int by, int cx, int cy) {
+        return Math.abs(cx - ax) == 1 && Math.abs(cy - ay) == 1
+                && (bx == ax || bx == cx) && (by == ay || by == cy);
+    }
+}
@@ -0,0 +1,219 @@
+package com.paintforge;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ * Pixel access shared by the undo history and the tools, so they run the same
+ * on packed ARGB layers and on the palette indices of an {@link IndexedImage}.
+ * <p>
+ * A tile is an array of the raster's own pixel type holding a w x h block row
+ * by row. Tiles are made by {@link #copy} and only read back by a raster of
+ * the same kind.
+ */
+public abstract class PixelRaster {
+    private final int width, height;
+
+    private PixelRaster(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /** A raster over packed ARGB (or RGB) pixels. */
+    public static PixelRaster of(int[] pixels, int width, int height) {
+        return new Argb(() -> pixels, width, height);
+    }
+
+    /** A raster over one byte per pixel (palette indices). */
+    public static PixelRaster of(byte[] indices, int width, int height) {
+        return new Indexed(indices, width, height);
+    }
+
+    /**
+     * A raster over whatever pixels the supplier returns when it is used, for
+     * a layer whose pixel array may be replaced (see {@link Layer#spill}).
+     */
+    static PixelRaster of(Supplier<int[]> pixels, int width, int height) {
+        return new Argb(pixels, width, height);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /** Bytes one pixel takes, in memory and when packed. */
+    public abstract int bytesPerPixel();
+
+    /** Copies the w x h block at (x, y) into a new tile. */
+    public abstract Object copy(int x, int y, int w, int h);
+
+    /** True if the block at (x, y) still holds the tile's pixels. */
+    public abstract boolean matches(Object tile, int x, int y, int w, int h);
+
+    /** Exchanges the tile's pixels with the block at (x, y). */
+    public abstract void swap(Object tile, int x, int y, int w, int h);
+
+    /** Pixels in a tile. */
+    public abstract int length(Object tile);
+
+    /** Appends the tile's pixels to the buffer, {@link #bytesPerPixel()} bytes each. */
+    public abstract void pack(Object tile, ByteBuffer out);
+
+    /** Reads a tile of the given pixel count written by {@link #pack}. */
+    public abstract Object unpack(ByteBuffer in, int length);
+
+    /** Sets pixels [x0, x1) of row y to a raw value (ARGB or palette index). */
+    public abstract void fill(int y, int x0, int x1, int value);
+
+    private static final class Argb extends PixelRaster {
+        private final Supplier<int[]> pixels;
+
+        Argb(Supplier<int[]> pixels, int width, int height) {
+            super(width, height);
+            this.pixels = pixels;
+        }
+
+        @Override
+        public int bytesPerPixel() {
+            return 4;
+        }
+
+        @Override
+        public Object copy(int x, int y, int w, int h) {
+            int[] src = pixels.get(), tile = new int[w * h];
+            int width = getWidth();
+            for (int row = 0; row < h; row++) {
+                System.arraycopy(src, (y + row) * width + x, tile, row * w, w);
+            }
+            return tile;
+        }
+
+        @Override
+        public boolean matches(Object tile, int x, int y, int w, int h) {
+            int[] src = pixels.get(), stored = (int[]) tile;
+            int width = getWidth();
+            for (int row = 0; row < h; row++) {
+                int from = (y + row) * width + x;
+                if (!Arrays.equals(src, from, from + w, stored, row * w, row * w + w)) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void swap(Object tile, int x, int y, int w, int h) {
+            int[] target = pixels.get(), stored = (int[]) tile;
+            int width = getWidth();
+            for (int row = 0; row < h; row++) {
+                int p = (y + row) * width + x;
+                for (int s = row * w, end = s + w; s < end; s++, p++) {
+                    int live = target[p];
+                    target[p] = stored[s];
+                    stored[s] = live;
+                }
+            }
+        }
+
+        @Override
+        public int length(Object tile) {
+            return ((int[]) tile).length;
+        }
+
+        @Override
+        public void pack(Object tile, ByteBuffer out) {
+            int[] data = (int[]) tile;
+            out.asIntBuffer().put(data);
+            out.position(out.position() + 4 * data.length);
+        }
+
+        @Override
+        public Object unpack(ByteBuffer in, int length) {
+            int[] tile = new int[length];
+            in.asIntBuffer().get(tile);
+            in.position(in.position() + 4 * length);
+            return tile;
+        }
+
+        @Override
+        public void fill(int y, int x0, int x1, int value) {
+            int row = y * getWidth();
+            Arrays.fill(pixels.get(), row + x0, row + x1, value);
+        }
+    }
+
+    private static final class Indexed extends PixelRaster {
+        private final byte[] indices;
+
+        Indexed(byte[] indices, int width, int height) {
+            super(width, height);
+            this.indices = indices;
+        }
+
+        @Override
+        public int bytesPerPixel() {
+            return 1;
+        }
+
+        @Override
+        public Object copy(int x, int y, int w, int h) {
+            byte[] tile = new byte[w * h];
+            int width = getWidth();
+            for (int row = 0; row < h; row++) {
+                System.arraycopy(indices, (y + row) * width + x, tile, row * w, w);
+            }
+            return tile;
+        }
+
+        @Override
+        public boolean matches(Object tile, int x, int y, int w, int h) {
+            byte[] stored = (byte[]) tile;
+            int width = getWidth();
+            for (int row = 0; row < h; row++) {
+                int from = (y + row) * width + x;
+                if (!Arrays.equals(indices, from, from + w, stored, row * w, row * w + w)) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void swap(Object tile, int x, int y, int w, int h) {
+            byte[] stored = (byte[]) tile;
+            int width = getWidth();
+            for (int row = 0; row < h; row++) {
+                int p = (y + row) * width + x;
+                for (int s = row * w, end = s + w; s < end; s++, p++) {
+                    byte live = indices[p];
+                    indices[p] = stored[s];
+                    stored[s] = live;
+                }
+            }
+        }
+
+        @Override
+        public int length(Object tile) {
+            return ((byte[]) tile).length;
+        }
+
+        @Override
+        public void pack(Object tile, ByteBuffer out) {
+            out.put((byte[]) tile);
+        }
+
+        @Override
+        public Object unpack(ByteBuffer in, int length) {
+            byte[] tile = new byte[length];
+            in.get(tile);
+            return tile;
+        }
+
+        @Override
+        public void fill(int y, int x0, int x1, int value) {
+            int row = y * getWidth();
+            Arrays.fill(indices, row + x0, row + x1, (byte) value);
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.paintforge;
+
+/**
+ * Notified before a tool reads a region of the canvas raster whose pixels
+ * may not be in memory yet (project tiles still on disk), so they can be
+ * loaded first.
+ */
+public interface PixelReadListener {
+    /**
+     * Called before pixels in the given canvas-space rectangle are read.
+     * The rectangle may extend past the canvas; implementations clip it.
+     */
+    void beforeRead(int x, int y, int width, int height);
+}
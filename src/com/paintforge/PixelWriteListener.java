@@ -0,0 +1,13 @@
+package com.paintforge;
+
+/**
+ * Notified before a tool writes to a region of the canvas raster, so the
+ * original pixels can be preserved (undo history, snapshots, dirty tracking).
+ */
+public interface PixelWriteListener {
+    /**
+     * Called before pixels in the given canvas-space rectangle are modified.
+     * The rectangle may extend past the canvas; implementations clip it.
+     */
+    void beforeWrite(int x, int y, int width, int height);
+}
@@ -0,0 +1,504 @@
+package com.paintforge;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BooleanSupplier;
+import java.util.function.DoubleConsumer;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * PNG writer that filters and deflates row bands in parallel.
+ * <p>
+ * The image is cut into bands of about {@value #BAND_BYTES} bytes of raw
+ * scanlines. Each band is filtered and deflated on the fork/join pool as its
+ * own raw deflate stream, primed with the last 32 KB of the band before it
+ * as the dictionary, so compression barely suffers from the split. Every band
+ * but the last ends with a sync flush on a byte boundary, which makes the
+ * concatenation one valid zlib stream (the pigz technique); the Adler-32
+ * checksums of the bands are combined for the trailer. Finished bands are
+ * written in order to a {@link FileChannel}, with a bounded number of bands
+ * in flight.
+ * <p>
+ * Images with at most 256 distinct colours are written as indexed PNGs with
+ * a PLTE (and tRNS when needed) chunk, packed at the smallest bit depth that
+ * holds the palette (1, 2, 4 or 8 bits per pixel); others as RGB or RGBA
+ * depending on whether any pixel is translucent. An {@link IndexedImage} is
+ * written the same way with its own palette and indices, unchanged.
+ */
+public class PngEncoder {
+    /** Speed/size trade-off for {@link PngEncoder}. */
+    public enum Preset {
+        FASTEST("Fastest", 1, false),
+        BALANCED("Balanced", 6, true),
+        SMALLEST("Smallest", 9, true);
+
+        private final String displayName;
+        final int level;
+        final boolean adaptiveFilters;
+
+        Preset(String displayName, int level, boolean adaptiveFilters) {
+            this.displayName = displayName;
+            this.level = level;
+            this.adaptiveFilters = adaptiveFilters;
+        }
+
+        @Override
+        public String toString() {
+            return displayName;
+        }
+    }
+
+    private static final int BAND_BYTES = 128 * 1024;
+    private static final int DICTIONARY_BYTES = 32 * 1024;
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    private static final int COLOR_RGB = 2, COLOR_INDEXED = 3, COLOR_RGBA = 6;
+    private static final int FILTER_NONE = 0, FILTER_SUB = 1, FILTER_UP = 2, FILTER_AVERAGE = 3, FILTER_PAETH = 4;
+
+    private final Preset preset;
+    private final ForkJoinPool pool;
+
+    public PngEncoder(Preset preset) {
+        this(preset, ForkJoinPool.commonPool());
+    }
+
+    public PngEncoder(Preset preset, ForkJoinPool pool) {
+        this.preset = preset;
+        this.pool = pool;
+    }
+
+    /**
+     * Writes the PNG to a temporary file next to the target, which then
+     * replaces the target, so a cancelled or failed save leaves the previous
+     * file untouched.
+     *
+     * @return true if the whole image was written and moved into place
+     */
+    public boolean writeFile(int[] argb, int width, int height, Path target,
+                             DoubleConsumer progress, BooleanSupplier cancelled) throws IOException {
+        return writeFile(Layout.analyze(argb, width, height, preset), target, progress, cancelled);
+    }
+
+    /** {@link #writeFile(int[], int, int, Path, DoubleConsumer, BooleanSupplier)} for a palette image. */
+    public boolean writeFile(IndexedImage image, Path target,
+                             DoubleConsumer progress, BooleanSupplier cancelled) throws IOException {
+        return writeFile(Layout.indexed(image, preset), target, progress, cancelled);
+    }
+
+    private boolean writeFile(Layout layout, Path target,
+                              DoubleConsumer progress, BooleanSupplier cancelled) throws IOException {
+        target = target.toAbsolutePath();
+        Path temp = target.resolveSibling("." + target.getFileName() + ".tmp");
+        try {
+            boolean complete;
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                complete = write(layout, channel, progress, cancelled);
+            }
+            if (!complete || (cancelled != null && cancelled.getAsBoolean())) return false;
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Encodes packed ARGB pixels and writes the PNG to the channel at its current position.
+     *
+     * @param progress  receives the fraction of bands written, may be null
+     * @param cancelled polled between bands; when it returns true, encoding stops
+     *                  and false is returned. May be null.
+     * @return true if the whole image was written
+     */
+    public boolean write(int[] argb, int width, int height, FileChannel channel,
+                         DoubleConsumer progress, BooleanSupplier cancelled) throws IOException {
+        return write(Layout.analyze(argb, width, height, preset), channel, progress, cancelled);
+    }
+
+    /** {@link #write(int[], int, int, FileChannel, DoubleConsumer, BooleanSupplier)} for a palette image. */
+    public boolean write(IndexedImage image, FileChannel channel,
+                         DoubleConsumer progress, BooleanSupplier cancelled) throws IOException {
+        return write(Layout.indexed(image, preset), channel, progress, cancelled);
+    }
+
+    private boolean write(Layout layout, FileChannel channel,
+                          DoubleConsumer progress, BooleanSupplier cancelled) throws IOException {
+        int height = layout.height;
+        channel.write(ByteBuffer.wrap(SIGNATURE));
+        ByteBuffer header = ByteBuffer.allocate(13);
+        header.putInt(layout.width).putInt(height)
+                .put((byte) layout.bitDepth).put((byte) layout.colorType)
+                .put((byte) 0).put((byte) 0).put((byte) 0);
+        writeChunk(channel, "IHDR", header.array(), 0, 13);
+        if (layout.palette != null) {
+            byte[] plte = new byte[layout.palette.length * 3];
+            byte[] trns = new byte[layout.palette.length];
+            boolean anyAlpha = false;
+            for (int i = 0; i < layout.palette.length; i++) {
+                int c = layout.palette[i];
+                plte[i * 3] = (byte) (c >> 16);
+                plte[i * 3 + 1] = (byte) (c >> 8);
+                plte[i * 3 + 2] = (byte) c;
+                trns[i] = (byte) (c >>> 24);
+                if ((c >>> 24) != 0xFF) anyAlpha = true;
+            }
+            writeChunk(channel, "PLTE", plte, 0, plte.length);
+            if (anyAlpha) writeChunk(channel, "tRNS", trns, 0, trns.length);
+        }
+
+        // zlib header: deflate, 32K window, level hint
+        int levelHint = preset.level <= 1 ? 0 : preset.level < 6 ? 1 : preset.level == 6 ? 2 : 3;
+        int cmf = 0x78, flg = levelHint << 6;
+        flg += 31 - ((cmf << 8) + flg) % 31;
+        writeChunk(channel, "IDAT", new byte[]{(byte) cmf, (byte) flg}, 0, 2);
+
+        int rowsPerBand = Math.max(1, BAND_BYTES / (layout.rowBytes + 1));
+        int bands = (height + rowsPerBand - 1) / rowsPerBand;
+        int window = Math.max(2, pool.getParallelism() * 2);
+        List<ForkJoinTask<Band>> inFlight = new ArrayList<>(Collections.nCopies(bands, null));
+        long adler = 1;
+        int submitted = 0;
+        try {
+            for (int band = 0; band < bands; band++) {
+                while (submitted < bands && submitted < band + window) {
+                    int y0 = submitted * rowsPerBand;
+                    inFlight.set(submitted, pool.submit(new DeflateBandTask(layout, y0,
+                            Math.min(height, y0 + rowsPerBand), submitted == bands - 1)));
+                    submitted++;
+                }
+                Band result = inFlight.get(band).join();
+                inFlight.set(band, null);
+                writeChunk(channel, "IDAT", result.data, 0, result.length);
+                adler = adler32Combine(adler, result.adler, result.rawLength);
+                if (progress != null) progress.accept((band + 1) / (double) bands);
+                if (cancelled != null && cancelled.getAsBoolean()) return false;
+            }
+        } finally {
+            for (int i = 0; i < submitted; i++) {
+                ForkJoinTask<Band> task = inFlight.get(i);
+                if (task != null) task.cancel(false);
+            }
+        }
+
+        ByteBuffer trailer = ByteBuffer.allocate(4).putInt((int) adler);
+        writeChunk(channel, "IDAT", trailer.array(), 0, 4);
+        writeChunk(channel, "IEND", new byte[0], 0, 0);
+        return true;
+    }
+
+    private static void writeChunk(FileChannel channel, String type, byte[] data, int offset, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, offset, length);
+        ByteBuffer head = ByteBuffer.allocate(8).putInt(length).put(typeBytes);
+        ByteBuffer tail = ByteBuffer.allocate(4).putInt((int) crc.getValue());
+        head.flip();
+        tail.flip();
+        ByteBuffer[] buffers = {head, ByteBuffer.wrap(data, offset, length), tail};
+        while (tail.hasRemaining()) {
+            channel.write(buffers);
+        }
+    }
+
+    /**
+     * Adler-32 of two concatenated byte sequences from their separate checksums
+     * (as zlib's adler32_combine).
+     */
+    static long adler32Combine(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long rem = length2 % base;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xFFFF) + base - 1;
+        sum2 += ((adler1 >> 16) & 0xFFFF) + ((adler2 >> 16) & 0xFFFF) + base - rem;
+        if (sum1 >= base) sum1 -= base;
+        if (sum1 >= base) sum1 -= base;
+        if (sum2 >= (base << 1)) sum2 -= (base << 1);
+        if (sum2 >= base) sum2 -= base;
+        return sum1 | (sum2 << 16);
+    }
+
+    // ----- Pixel layout -----
+    /**
+     * Chosen colour type plus the means to turn a source row into PNG bytes.
+     */
+    private static final class Layout {
+        final int[] argb;
+        // Palette indices of an IndexedImage, read instead of argb
+        final byte[] indices;
+        final int width, height;
+        final int colorType, bitDepth, bytesPerPixel, rowBytes;
+        final boolean adaptiveFilters;
+        final int level;
+        final int[] palette;
+        // Open-addressing colour -> palette index table
+        final int[] paletteKeys;
+        final byte[] paletteIndex;
+
+        private Layout(int[] argb, byte[] indices, int width, int height, int colorType, int[] palette,
+                       int[] paletteKeys, byte[] paletteIndex, Preset preset) {
+            this.argb = argb;
+            this.indices = indices;
+            this.width = width;
+            this.height = height;
+            this.colorType = colorType;
+            // Sub-byte depths still filter byte by byte
+            this.bitDepth = palette == null || palette.length > 16 ? 8 : palette.length > 4 ? 4 : palette.length > 2 ? 2 : 1;
+            this.bytesPerPixel = colorType == COLOR_RGBA ? 4 : colorType == COLOR_RGB ? 3 : 1;
+            this.rowBytes = colorType == COLOR_INDEXED ? (width * bitDepth + 7) / 8 : width * bytesPerPixel;
+            this.palette = palette;
+            this.paletteKeys = paletteKeys;
+            this.paletteIndex = paletteIndex;
+            // Palette images compress best unfiltered
+            this.adaptiveFilters = preset.adaptiveFilters && colorType != COLOR_INDEXED;
+            this.level = preset.level;
+        }
+
+        static Layout analyze(int[] argb, int width, int height, Preset preset) {
+            int n = width * height;
+            int[] keys = new int[1024];
+            byte[] used = new byte[1024];
+            int[] colors = new int[256];
+            int count = 0;
+            boolean translucent = false;
+            for (int i = 0; i < n; i++) {
+                int c = argb[i];
+                if ((c >>> 24) != 0xFF) translucent = true;
+                if (count > 256) {
+                    if (translucent) break;
+                    continue;
+                }
+                int slot = mix(c) & 1023;
+                while (used[slot] != 0 && keys[slot] != c) slot = (slot + 1) & 1023;
+                if (used[slot] == 0) {
+                    if (count < 256) colors[count] = c;
+                    count++;
+                    used[slot] = 1;
+                    keys[slot] = c;
+                }
+            }
+            if (count <= 256) {
+                int[] palette = Arrays.copyOf(colors, count);
+                byte[] index = new byte[1024];
+                for (int i = 0; i < count; i++) {
+                    int slot = mix(palette[i]) & 1023;
+                    while (keys[slot] != palette[i]) slot = (slot + 1) & 1023;
+                    index[slot] = (byte) i;
+                }
+                return new Layout(argb, null, width, height, COLOR_INDEXED, palette, keys, index, preset);
+            }
+            return new Layout(argb, null, width, height, translucent ? COLOR_RGBA : COLOR_RGB, null, null, null, preset);
+        }
+
+        static Layout indexed(IndexedImage image, Preset preset) {
+            // Pixels past the palette size show as transparent entries, as on screen
+            byte[] indices = image.getPixels();
+            int entries = Math.max(1, image.getPalette().size());
+            for (byte index : indices) entries = Math.max(entries, (index & 0xFF) + 1);
+            int[] colors = Arrays.copyOf(image.getPalette().lookupTable(), entries);
+            return new Layout(null, indices, image.getWidth(), image.getHeight(), COLOR_INDEXED,
+                    colors, null, null, preset);
+        }
+
+        private static int mix(int c) {
+            int h = c * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        /**
+         * Writes source row y as unfiltered PNG bytes.
+         */
+        void rawRow(int y, byte[] out) {
+            int src = y * width;
+            if (colorType == COLOR_INDEXED) {
+                int perByte = 8 / bitDepth;
+                if (bitDepth < 8) Arrays.fill(out, 0, rowBytes, (byte) 0);
+                for (int x = 0; x < width; x++) {
+                    int index;
+                    if (indices != null) {
+                        index = indices[src + x] & 0xFF;
+                    } else {
+                        int c = argb[src + x];
+                        int slot = mix(c) & 1023;
+                        while (paletteKeys[slot] != c) slot = (slot + 1) & 1023;
+                        index = paletteIndex[slot] & 0xFF;
+                    }
+                    if (bitDepth == 8) out[x] = (byte) index;
+                    // Leftmost pixel in the high bits
+                    else out[x / perByte] |= (byte) (index << (8 - bitDepth * (x % perByte + 1)));
+                }
+            } else if (colorType == COLOR_RGBA) {
+                for (int x = 0, o = 0; x < width; x++, o += 4) {
+                    int c = argb[src + x];
+                    out[o] = (byte) (c >> 16);
+                    out[o + 1] = (byte) (c >> 8);
+                    out[o + 2] = (byte) c;
+                    out[o + 3] = (byte) (c >>> 24);
+                }
+            } else {
+                for (int x = 0, o = 0; x < width; x++, o += 3) {
+                    int c = argb[src + x];
+                    out[o] = (byte) (c >> 16);
+                    out[o + 1] = (byte) (c >> 8);
+                    out[o + 2] = (byte) c;
+                }
+            }
+        }
+    }
+
+    // ----- Band compression -----
+    private static final class Band {
+        byte[] data;
+        int length;
+        long adler;
+        long rawLength;
+    }
+
+    /**
+     * Filters and deflates rows [y0, y1) as one piece of the zlib stream.
+     */
+    private static final class DeflateBandTask extends RecursiveTask<Band> {
+        private final Layout layout;
+        private final int y0, y1;
+        private final boolean last;
+
+        DeflateBandTask(Layout layout, int y0, int y1, boolean last) {
+            this.layout = layout;
+            this.y0 = y0;
+            this.y1 = y1;
+            this.last = last;
+        }
+
+        @Override
+        protected Band compute() {
+            int stride = layout.rowBytes + 1;
+            byte[] prev = new byte[layout.rowBytes];
+            byte[] cur = new byte[layout.rowBytes];
+
+            // Dictionary: the filtered tail of the rows before this band
+            int dictRows = y0 == 0 ? 0 : Math.min(y0, (DICTIONARY_BYTES + stride - 1) / stride);
+            int firstRow = y0 - dictRows;
+            if (firstRow > 0) layout.rawRow(firstRow - 1, prev);
+            byte[] filtered = new byte[(y1 - firstRow) * stride];
+            for (int y = firstRow; y < y1; y++) {
+                layout.rawRow(y, cur);
+                filterRow(cur, y == 0 ? null : prev, layout.bytesPerPixel, layout.adaptiveFilters,
+                        layout.colorType == COLOR_INDEXED, filtered, (y - firstRow) * stride);
+                byte[] t = prev;
+                prev = cur;
+                cur = t;
+            }
+
+            int dictLength = dictRows * stride;
+            int start = dictLength;
+            int length = filtered.length - start;
+            Deflater deflater = new Deflater(layout.level, true);
+            Band band = new Band();
+            try {
+                if (dictLength > 0) {
+                    int d = Math.min(dictLength, DICTIONARY_BYTES);
+                    deflater.setDictionary(filtered, dictLength - d, d);
+                }
+                deflater.setInput(filtered, start, length);
+                if (last) deflater.finish();
+                byte[] out = new byte[Math.max(64, length / 2)];
+                int written = 0;
+                int flush = last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH;
+                while (true) {
+                    if (written == out.length) out = Arrays.copyOf(out, out.length * 2);
+                    int space = out.length - written;
+                    int n = deflater.deflate(out, written, space, flush);
+                    written += n;
+                    // A sync flush is complete once it no longer fills the buffer
+                    if (last ? deflater.finished() : n < space) break;
+                }
+                band.data = out;
+                band.length = written;
+            } finally {
+                deflater.end();
+            }
+            Adler32 checksum = new Adler32();
+            checksum.update(filtered, start, length);
+            band.adler = checksum.getValue();
+            band.rawLength = length;
+            return band;
+        }
+    }
+
+    /**
+     * Writes the filter type byte plus the filtered row at out[offset].
+     */
+    static void filterRow(byte[] row, byte[] prev, int bpp, boolean adaptive, boolean indexed,
+                          byte[] out, int offset) {
+        int n = row.length;
+        int type;
+        if (indexed) {
+            type = FILTER_NONE;
+        } else if (!adaptive) {
+            type = FILTER_SUB;
+        } else {
+            // Minimum sum of absolute differences heuristic
+            type = FILTER_NONE;
+            long best = Long.MAX_VALUE;
+            for (int f = FILTER_NONE; f <= FILTER_PAETH; f++) {
+                long sum = 0;
+                for (int i = 0; i < n && sum < best; i++) {
+                    sum += Math.abs((byte) filterByte(f, row, prev, bpp, i));
+                }
+                if (sum < best) {
+                    best = sum;
+                    type = f;
+                }
+            }
+        }
+        out[offset] = (byte) type;
+        for (int i = 0; i < n; i++) {
+            out[offset + 1 + i] = (byte) filterByte(type, row, prev, bpp, i);
+        }
+    }
+
+    private static int filterByte(int type, byte[] row, byte[] prev, int bpp, int i) {
+        int x = row[i] & 0xFF;
+        int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+        int b = prev != null ? prev[i] & 0xFF : 0;
+        switch (type) {
+            case FILTER_SUB:
+                return x - a;
+            case FILTER_UP:
+                return x - b;
+            case FILTER_AVERAGE:
+                return x - ((a + b) >> 1);
+            case FILTER_PAETH: {
+                int c = prev != null && i >= bpp ? prev[i - bpp] & 0xFF : 0;
+                int p = a + b - c;
+                int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+                int predictor = (pa <= pb && pa <= pc) ? a : (pb <= pc ? b : c);
+                return x - predictor;
+            }
+            default:
+                return x;
+        }
+    }
+}
@@ -0,0 +1,686 @@
+package com.paintforge;
+
+import java.awt.Rectangle;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+
+/**
+ * Native layered project file (.pfs) with incremental saves and lazy loading.
+ * <p>
+ * Layout: two {@value #SLOT_SIZE}-byte header slots, then an append-only data
+ * region of independently deflated {@value #TILE_SIZE}x{@value #TILE_SIZE}
+ * tiles, then the index. The index holds the layer table (name, visibility,
+ * opacity, blend mode) and, per layer, the offset and length of every tile
+ * (length 0 = fully transparent). Each header slot stores a generation
+ * number, the index location and CRCs of itself and the index; the valid
+ * slot with the highest generation wins.
+ * <p>
+ * A save appends only the tiles written since the previous save plus a new
+ * index, forces them to disk and then overwrites the older header slot, so
+ * the file switches to the new index in one small write and a crash at any
+ * point leaves the previous state readable. Once superseded data outweighs
+ * live data the file is compacted by copying the live tile blobs as they are
+ * into a new file.
+ * <p>
+ * Opening maps the file and reads only the header and index; tile pixels are
+ * inflated into the layers on first use through {@link #ensureLoaded}.
+ * <p>
+ * A new project is written to a temporary sibling and renamed over the
+ * target once its first save is committed, so creating a project over an
+ * existing file leaves that file untouched until there is something to
+ * replace it with.
+ */
+public class ProjectFile implements AutoCloseable {
+    public static final String EXTENSION = ".pfs";
+    public static final int TILE_SIZE = DocumentSnapshot.TILE_SIZE;
+
+    private static final int MAGIC = 0x50465331; // "PFS1"
+    private static final int VERSION = 1;
+    private static final int SLOT_SIZE = 64;
+    private static final long DATA_START = 2L * SLOT_SIZE;
+    private static final long MAP_SEGMENT = 1L << 30;
+    private static final long COMPACT_MIN_DEAD = 16L << 20;
+
+    private Path path;
+    private Path pending;      // file written until the first save commits, then null
+    private FileChannel channel;
+    private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    private long mappedSize;
+
+    private final int width, height, tilesX, tilesY;
+    private long generation;
+    private int slot;          // slot holding the current header
+    private long dataEnd;      // where the next save appends
+    private long liveBytes, deadBytes;
+    private final List<LayerRecord> records = new ArrayList<>();
+    private boolean saving = false;
+    private boolean fullyLoaded = true;
+
+    /** Saved state of one layer of the document. */
+    private static final class LayerRecord {
+        final Layer layer;
+        long[] offsets;
+        int[] lengths;
+        long[] dirty;
+        long[] loaded; // null once every tile is in memory
+
+        LayerRecord(Layer layer, int tiles) {
+            this.layer = layer;
+            this.offsets = new long[tiles];
+            this.lengths = new int[tiles];
+            this.dirty = new long[(tiles + 63) >>> 6];
+        }
+    }
+
+    private ProjectFile(Path path, FileChannel channel, int width, int height) {
+        this.path = path;
+        this.channel = channel;
+        this.width = width;
+        this.height = height;
+        this.tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        this.tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Creates a new project file for the document. Nothing is written to the
+     * path until the first {@link #save}, which stores every tile.
+     */
+    public static ProjectFile create(Path path, LayerStack stack) throws IOException {
+        Path pending = path.resolveSibling("." + path.getFileName() + ".new");
+        FileChannel channel = FileChannel.open(pending, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        ProjectFile project = new ProjectFile(path, channel, stack.getWidth(), stack.getHeight());
+        project.pending = pending;
+        project.dataEnd = DATA_START;
+        project.slot = 1;
+        return project;
+    }
+
+    /**
+     * Opens a project: reads the header and index and builds empty layers
+     * whose tiles are filled in lazily.
+     */
+    public static ProjectFile open(Path path, LayerStack[] document) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer slots = ByteBuffer.allocate((int) DATA_START);
+            readFully(channel, slots, 0);
+            Header best = null;
+            for (int i = 0; i < 2; i++) {
+                slots.position(i * SLOT_SIZE).limit((i + 1) * SLOT_SIZE);
+                Header h = Header.read(slots.slice(), i);
+                if (h != null && (best == null || h.generation > best.generation)) best = h;
+                slots.clear();
+            }
+            if (best == null) throw new IOException("Not a PaintForge project: " + path.getFileName());
+
+            ByteBuffer index = ByteBuffer.allocate(best.indexLength);
+            readFully(channel, index, best.indexOffset);
+            CRC32 crc = new CRC32();
+            crc.update(index.array());
+            if ((int) crc.getValue() != best.indexCrc) throw new IOException("Damaged project index: " + path.getFileName());
+
+            ProjectFile project = new ProjectFile(path, channel, best.width, best.height);
+            project.generation = best.generation;
+            project.slot = best.slot;
+            project.dataEnd = best.indexOffset + best.indexLength;
+            document[0] = project.readIndex(index.array());
+            project.fullyLoaded = false;
+            project.map();
+            return project;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private LayerStack readIndex(byte[] index) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(index));
+        int layerCount = in.readInt();
+        int activeIndex = in.readInt();
+        int tiles = tilesX * tilesY;
+        LayerStack stack = new LayerStack(width, height);
+        for (int i = 0; i < layerCount; i++) {
+            Layer layer = Layer.create(in.readUTF(), width, height, null);
+            layer.setVisible(in.readBoolean());
+            layer.setOpacity(in.readFloat());
+            BlendMode[] modes = BlendMode.values();
+            int mode = in.readUnsignedByte();
+            layer.setBlendMode(mode < modes.length ? modes[mode] : BlendMode.NORMAL);
+            if (in.readInt() != tiles) throw new IOException("Project tile index does not match its size");
+            LayerRecord record = new LayerRecord(layer, tiles);
+            record.loaded = new long[(tiles + 63) >>> 6];
+            for (int t = 0; t < tiles; t++) {
+                record.offsets[t] = in.readLong();
+                record.lengths[t] = in.readInt();
+                liveBytes += record.lengths[t];
+            }
+            records.add(record);
+            stack.addLayer(layer);
+        }
+        deadBytes = dataEnd - DATA_START - index.length - liveBytes;
+        stack.setActiveIndex(Math.max(0, Math.min(layerCount - 1, activeIndex)));
+        return stack;
+    }
+
+    private void map() throws IOException {
+        mappedSize = channel.size();
+        int count = (int) ((mappedSize + MAP_SEGMENT - 1) / MAP_SEGMENT);
+        segments = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long start = i * MAP_SEGMENT;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAP_SEGMENT, mappedSize - start));
+        }
+    }
+
+    // ----- Dirty tracking -----
+    /**
+     * The layer is about to change inside the rectangle.
+     */
+    public synchronized void markDirty(Layer layer, int x, int y, int w, int h) {
+        for (LayerRecord record : records) {
+            if (record.layer == layer) {
+                markTiles(record, x, y, w, h);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Any layer may have changed inside the rectangle (undo/redo).
+     */
+    public synchronized void markDirty(Rectangle r) {
+        for (LayerRecord record : records) {
+            markTiles(record, r.x, r.y, r.width, r.height);
+        }
+    }
+
+    private void markTiles(LayerRecord record, int x, int y, int w, int h) {
+        int x0 = Math.max(0, x), y0 = Math.max(0, y);
+        int x1 = Math.min(width, x + w), y1 = Math.min(height, y + h);
+        if (x0 >= x1 || y0 >= y1) return;
+        for (int ty = y0 / TILE_SIZE, tyEnd = (y1 - 1) / TILE_SIZE; ty <= tyEnd; ty++) {
+            for (int tx = x0 / TILE_SIZE, txEnd = (x1 - 1) / TILE_SIZE; tx <= txEnd; tx++) {
+                int tile = ty * tilesX + tx;
+                // A tile still on disk cannot have changed
+                if (record.loaded != null && (record.loaded[tile >>> 6] & (1L << tile)) == 0) continue;
+                record.dirty[tile >>> 6] |= 1L << tile;
+            }
+        }
+    }
+
+    // ----- Lazy loading -----
+    /**
+     * Inflates every not-yet-loaded tile of every layer that intersects the
+     * rectangle.
+     *
+     * @return the area whose pixels were filled in, or null if nothing was loaded
+     */
+    public synchronized Rectangle ensureLoaded(int x, int y, int w, int h) {
+        if (fullyLoaded) return null;
+        int x0 = Math.max(0, x), y0 = Math.max(0, y);
+        int x1 = Math.min(width, x + w), y1 = Math.min(height, y + h);
+        if (x0 >= x1 || y0 >= y1) return null;
+        Rectangle changed = null;
+        byte[] compressed = null;
+        TileCodec codec = null;
+        try {
+            for (LayerRecord record : records) {
+                if (record.loaded == null) continue;
+                for (int ty = y0 / TILE_SIZE, tyEnd = (y1 - 1) / TILE_SIZE; ty <= tyEnd; ty++) {
+                    for (int tx = x0 / TILE_SIZE, txEnd = (x1 - 1) / TILE_SIZE; tx <= txEnd; tx++) {
+                        int tile = ty * tilesX + tx;
+                        if ((record.loaded[tile >>> 6] & (1L << tile)) != 0) continue;
+                        record.loaded[tile >>> 6] |= 1L << tile;
+                        int length = record.lengths[tile];
+                        Rectangle t = tileBounds(tile);
+                        if (length > 0) {
+                            if (codec == null) codec = new TileCodec();
+                            if (compressed == null || compressed.length < length) compressed = new byte[length];
+                            readBlob(record.offsets[tile], compressed, length);
+                            codec.decode(compressed, 0, length, record.layer.getPixels(), width, t.x, t.y, t.width, t.height);
+                        }
+                        changed = changed == null ? t : changed.union(t);
+                    }
+                }
+                if (allLoaded(record)) record.loaded = null;
+            }
+        } catch (IOException | DataFormatException e) {
+            throw new IllegalStateException("Cannot read project tile from " + path.getFileName(), e);
+        } finally {
+            if (codec != null) codec.end();
+        }
+        fullyLoaded = true;
+        for (LayerRecord record : records) {
+            if (record.loaded != null) fullyLoaded = false;
+        }
+        return changed;
+    }
+
+    /**
+     * The compressed bytes (in {@link TileCodec} form) of a tile that is still
+     * only on disk, so it can be copied without being decoded. Returns an
+     * empty array for a transparent tile and null once the tile is in memory
+     * or the layer is not part of this project.
+     */
+    public synchronized byte[] storedTile(Layer layer, int tile) {
+        for (LayerRecord record : records) {
+            if (record.layer != layer) continue;
+            if (record.loaded == null || (record.loaded[tile >>> 6] & (1L << tile)) != 0) return null;
+            byte[] blob = new byte[record.lengths[tile]];
+            try {
+                readBlob(record.offsets[tile], blob, blob.length);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot read project tile from " + path.getFileName(), e);
+            }
+            return blob;
+        }
+        return null;
+    }
+
+    /** True once every tile of every layer is in memory. */
+    public synchronized boolean isFullyLoaded() {
+        return fullyLoaded;
+    }
+
+    /**
+     * Loads every remaining tile (before whole-layer operations such as fills and exports).
+     */
+    public Rectangle ensureAllLoaded() {
+        return ensureLoaded(0, 0, width, height);
+    }
+
+    private boolean allLoaded(LayerRecord record) {
+        int tiles = tilesX * tilesY;
+        for (int tile = 0; tile < tiles; tile++) {
+            if ((record.loaded[tile >>> 6] & (1L << tile)) == 0) return false;
+        }
+        return true;
+    }
+
+    private Rectangle tileBounds(int tile) {
+        int tx = (tile % tilesX) * TILE_SIZE, ty = (tile / tilesX) * TILE_SIZE;
+        return new Rectangle(tx, ty, Math.min(TILE_SIZE, width - tx), Math.min(TILE_SIZE, height - ty));
+    }
+
+    private void readBlob(long offset, byte[] dst, int length) throws IOException {
+        int segment = (int) (offset / MAP_SEGMENT);
+        long inSegment = offset - segment * MAP_SEGMENT;
+        if (offset + length <= mappedSize && inSegment + length <= MAP_SEGMENT) {
+            segments[segment].get((int) inSegment, dst, 0, length);
+        } else {
+            readFully(channel, ByteBuffer.wrap(dst, 0, length), offset);
+        }
+    }
+
+    // ----- Saving -----
+    public synchronized boolean isSaving() {
+        return saving;
+    }
+
+    /**
+     * What a save writes, captured on the EDT together with the snapshot.
+     */
+    public static final class SaveJob {
+        private final DocumentSnapshot snapshot;
+        private final LayerRecord[] layers;
+        private final long[][] dirty;
+        private final String[] names;
+        private final boolean[] visible;
+        private final float[] opacity;
+        private final BlendMode[] blendModes;
+        private final int activeIndex;
+
+        private SaveJob(DocumentSnapshot snapshot, int n, int activeIndex) {
+            this.snapshot = snapshot;
+            this.layers = new LayerRecord[n];
+            this.dirty = new long[n][];
+            this.names = new String[n];
+            this.visible = new boolean[n];
+            this.opacity = new float[n];
+            this.blendModes = new BlendMode[n];
+            this.activeIndex = activeIndex;
+        }
+    }
+
+    /**
+     * Starts a save of the document as it is now. Call with no writes in
+     * progress; the tiles dirtied so far are handed to the job and later
+     * writes count towards the next save.
+     */
+    public synchronized SaveJob beginSave(LayerStack stack, DocumentSnapshot snapshot) {
+        if (saving) throw new IllegalStateException("A save is already in progress");
+        if (stack.getWidth() != width || stack.getHeight() != height) {
+            throw new IllegalArgumentException("Document size changed");
+        }
+        saving = true;
+        int tiles = tilesX * tilesY;
+        SaveJob job = new SaveJob(snapshot, stack.size(), stack.getActiveIndex());
+        List<LayerRecord> current = new ArrayList<>();
+        for (int i = 0; i < stack.size(); i++) {
+            Layer layer = stack.get(i);
+            LayerRecord record = null;
+            for (LayerRecord r : records) {
+                if (r.layer == layer) record = r;
+            }
+            if (record == null) {
+                // New layer: every tile needs writing
+                record = new LayerRecord(layer, tiles);
+                Arrays.fill(record.dirty, -1L);
+            }
+            job.layers[i] = record;
+            job.dirty[i] = record.dirty.clone();
+            Arrays.fill(record.dirty, 0L);
+            job.names[i] = layer.getName();
+            job.visible[i] = layer.isVisible();
+            job.opacity[i] = layer.getOpacity();
+            job.blendModes[i] = layer.getBlendMode();
+            current.add(record);
+        }
+        // Tiles of deleted layers are no longer live
+        for (LayerRecord r : records) {
+            if (!current.contains(r)) {
+                for (int length : r.lengths) liveBytes -= length;
+            }
+        }
+        records.clear();
+        records.addAll(current);
+        return job;
+    }
+
+    /**
+     * Writes the job's dirty tiles and a new index, then commits them by
+     * rewriting the older header slot. Runs off the EDT.
+     *
+     * @return number of tiles written
+     */
+    public int save(SaveJob job) throws IOException {
+        boolean committed = false;
+        int tiles = tilesX * tilesY;
+        long[][] offsets = new long[job.layers.length][];
+        int[][] lengths = new int[job.layers.length][];
+        int written = 0;
+        try {
+            long position;
+            synchronized (this) {
+                position = dataEnd;
+                for (int i = 0; i < job.layers.length; i++) {
+                    offsets[i] = job.layers[i].offsets.clone();
+                    lengths[i] = job.layers[i].lengths.clone();
+                }
+            }
+            long superseded = 0, added = 0;
+            int[] tilePixels = new int[TILE_SIZE * TILE_SIZE];
+            TileCodec codec = new TileCodec();
+            try {
+                for (int i = 0; i < job.layers.length; i++) {
+                    for (int tile = 0; tile < tiles; tile++) {
+                        if ((job.dirty[i][tile >>> 6] & (1L << tile)) == 0) continue;
+                        job.snapshot.readTile(i, tile, tilePixels);
+                        superseded += lengths[i][tile];
+                        Rectangle t = tileBounds(tile);
+                        if (TileCodec.isTransparent(tilePixels, t.width, t.height)) {
+                            offsets[i][tile] = 0;
+                            lengths[i][tile] = 0;
+                            continue;
+                        }
+                        int length = codec.encode(tilePixels);
+                        writeFully(channel, ByteBuffer.wrap(codec.buffer(), 0, length), position);
+                        offsets[i][tile] = position;
+                        lengths[i][tile] = length;
+                        position += length;
+                        added += length;
+                        written++;
+                    }
+                }
+            } finally {
+                codec.end();
+            }
+
+            byte[] index = buildIndex(job, offsets, lengths);
+            writeFully(channel, ByteBuffer.wrap(index), position);
+            channel.force(false);
+            writeHeader(channel, 1 - slot, generation + 1, position, index);
+            channel.force(false);
+            if (pending != null) publish();
+
+            synchronized (this) {
+                for (int i = 0; i < job.layers.length; i++) {
+                    job.layers[i].offsets = offsets[i];
+                    job.layers[i].lengths = lengths[i];
+                }
+                generation++;
+                slot = 1 - slot;
+                liveBytes += added - superseded;
+                dataEnd = position + index.length;
+                // Everything but the live tiles and the current index is superseded
+                deadBytes = dataEnd - DATA_START - liveBytes - index.length;
+            }
+            committed = true;
+            if (deadBytes > liveBytes && deadBytes > COMPACT_MIN_DEAD) {
+                try {
+                    compact(job);
+                } catch (IOException e) {
+                    // The save is already on disk; compaction is tried again after the next one
+                    e.printStackTrace();
+                }
+            }
+            return written;
+        } finally {
+            synchronized (this) {
+                if (!committed) {
+                    // Keep the tiles for the next attempt
+                    for (int i = 0; i < job.layers.length; i++) {
+                        long[] bits = job.layers[i].dirty;
+                        for (int w = 0; w < bits.length; w++) bits[w] |= job.dirty[i][w];
+                    }
+                }
+                saving = false;
+            }
+        }
+    }
+
+    private byte[] buildIndex(SaveJob job, long[][] offsets, int[][] lengths) throws IOException {
+        int tiles = tilesX * tilesY;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + job.layers.length * (tiles * 12 + 64));
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(job.layers.length);
+        out.writeInt(job.activeIndex);
+        for (int i = 0; i < job.layers.length; i++) {
+            out.writeUTF(job.names[i]);
+            out.writeBoolean(job.visible[i]);
+            out.writeFloat(job.opacity[i]);
+            out.writeByte(job.blendModes[i].ordinal());
+            out.writeInt(tiles);
+            for (int t = 0; t < tiles; t++) {
+                out.writeLong(offsets[i][t]);
+                out.writeInt(lengths[i][t]);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private void writeHeader(FileChannel target, int slotIndex, long generation, long indexOffset, byte[] index)
+            throws IOException {
+        CRC32 indexCrc = new CRC32();
+        indexCrc.update(index);
+        ByteBuffer header = ByteBuffer.allocate(SLOT_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(generation)
+                .putInt(width).putInt(height).putInt(TILE_SIZE)
+                .putLong(indexOffset).putInt(index.length).putInt((int) indexCrc.getValue());
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 0, header.position());
+        header.putInt((int) crc.getValue());
+        header.clear();
+        writeFully(target, header, (long) slotIndex * SLOT_SIZE);
+    }
+
+    /**
+     * Moves the first save from its temporary file to the project path.
+     */
+    private synchronized void publish() throws IOException {
+        channel.close();
+        try {
+            replace(pending, path);
+        } finally {
+            // Either way keep appending to whichever file now holds the data
+            channel = FileChannel.open(Files.exists(pending) ? pending : path,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        pending = null;
+    }
+
+    /**
+     * Rewrites the file with only the live tile blobs, copied without
+     * decoding, and swaps it in for the current file. The copy runs outside
+     * the monitor so tiles keep loading from the current file meanwhile;
+     * only the swap holds it.
+     */
+    private void compact(SaveJob job) throws IOException {
+        Path temp = path.resolveSibling("." + path.getFileName() + ".compact");
+        int tiles = tilesX * tilesY;
+        List<LayerRecord> live;
+        long[][] from;
+        int[][] lengths;
+        FileChannel source;
+        long nextGeneration;
+        synchronized (this) {
+            live = new ArrayList<>(records);
+            from = new long[live.size()][];
+            lengths = new int[live.size()][];
+            for (int i = 0; i < live.size(); i++) {
+                from[i] = live.get(i).offsets.clone();
+                lengths[i] = live.get(i).lengths.clone();
+            }
+            source = channel;
+            nextGeneration = generation + 1;
+        }
+
+        long[][] offsets = new long[live.size()][];
+        long end;
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = DATA_START;
+            for (int i = 0; i < live.size(); i++) {
+                offsets[i] = new long[tiles];
+                for (int t = 0; t < tiles; t++) {
+                    int length = lengths[i][t];
+                    if (length == 0) continue;
+                    long copied = 0;
+                    out.position(position);
+                    while (copied < length) {
+                        copied += source.transferTo(from[i][t] + copied, length - copied, out);
+                    }
+                    offsets[i][t] = position;
+                    position += length;
+                }
+            }
+            byte[] index = buildIndex(job, offsets, lengths);
+            writeFully(out, ByteBuffer.wrap(index), position);
+            writeHeader(out, 0, nextGeneration, position, index);
+            out.force(true);
+            end = position + index.length;
+        } catch (IOException e) {
+            // The previous file is still intact; keep using it
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        synchronized (this) {
+            channel.close();
+            try {
+                replace(temp, path);
+            } catch (IOException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            } finally {
+                channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            for (int i = 0; i < live.size(); i++) {
+                live.get(i).offsets = offsets[i];
+            }
+            generation = nextGeneration;
+            slot = 0;
+            dataEnd = end;
+            deadBytes = 0;
+            map();
+        }
+    }
+
+    private static void replace(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        segments = new MappedByteBuffer[0];
+        channel.close();
+        // Never saved: nothing to keep
+        if (pending != null) Files.deleteIfExists(pending);
+    }
+
+    // ----- Helpers -----
+    private static final class Header {
+        int slot, width, height, indexLength, indexCrc;
+        long generation, indexOffset;
+
+        static Header read(ByteBuffer b, int slot) {
+            if (b.getInt(0) != MAGIC || b.getInt(4) != VERSION) return null;
+            CRC32 crc = new CRC32();
+            byte[] bytes = new byte[44];
+            b.get(0, bytes);
+            crc.update(bytes);
+            if (b.getInt(44) != (int) crc.getValue()) return null;
+            if (b.getInt(24) != TILE_SIZE) return null;
+            Header h = new Header();
+            h.slot = slot;
+            h.generation = b.getLong(8);
+            h.width = b.getInt(16);
+            h.height = b.getInt(20);
+            h.indexOffset = b.getLong(28);
+            h.indexLength = b.getInt(36);
+            h.indexCrc = b.getInt(40);
+            return h;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, position);
+            if (n < 0) throw new IOException("Unexpected end of project file");
+            position += n;
+        }
+        dst.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+}
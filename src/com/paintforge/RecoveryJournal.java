@@ -0,0 +1,829 @@
+package com.paintforge;
+
+import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.DoubleConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Crash-recovery journal of the open document.
+ * <p>
+ * The canvas periodically hands over the tiles written since the last
+ * capture together with a {@link DocumentSnapshot}; a low-priority writer
+ * thread compresses them and appends them as records, and the painting
+ * threads never wait for the disk. Every capture ends with a commit record.
+ * The writer drains all captures that are waiting before it forces the file,
+ * so several commits share one fsync (group commit).
+ * <p>
+ * A session file starts with a checkpoint (the layer table and every
+ * non-empty tile) followed by incremental layer-table and tile records. Once
+ * the increments outgrow the checkpoint, the next capture writes a fresh
+ * checkpoint to a new file that replaces the old one, which keeps the
+ * journal bounded. {@link #replay} rebuilds the document from the checkpoint
+ * and every complete commit after it; a torn tail is ignored.
+ * <p>
+ * While an indexed-colour document is edited instead, each capture is a
+ * checkpoint of just that image (palette and deflated indices, one byte per
+ * pixel) and replays as a one-layer document. The next capture of the
+ * layered document checkpoints it again.
+ * <p>
+ * Replacing the document (New, Open) or exiting keeps the old session as
+ * {@value #PREVIOUS_FILE}, so it can still be brought back afterwards.
+ */
+public class RecoveryJournal {
+    public static final int TILE_SIZE = DocumentSnapshot.TILE_SIZE;
+    public static final String SESSION_FILE = "session.pfj";
+    public static final String PREVIOUS_FILE = "previous.pfj";
+
+    private static final int MAGIC = 0x50464A31; // "PFJ1"
+    private static final byte HEADER = 'H', LAYERS = 'L', TILE = 'T', INDEXED = 'I', COMMIT = 'C';
+    private static final long COMPACT_SLACK = 8L << 20;
+    private static final int FLUSH_BYTES = 1 << 20;
+    private static final int RECORD_HEADER = 8;
+
+    private final Path directory;
+    private final Path sessionFile;
+    private final Path previousFile;
+    private final boolean uncleanShutdown;
+
+    // Capture side (canvas threads), guarded by this
+    private int width, height, tilesX, tilesY;
+    private Map<Layer, long[]> dirty = new IdentityHashMap<>();
+    private List<Layer> journaledLayers = new ArrayList<>();
+    private List<Object> journaledProperties = new ArrayList<>();
+    private int journaledActive = -1;
+    private boolean needsCheckpoint = true;
+    // The session file holds an indexed image rather than the layers
+    private boolean sessionIndexed = false;
+
+    // Writer side
+    private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean busy = false;
+    private volatile boolean failed = false;
+    private volatile boolean closed = false;
+    private volatile CompletableFuture<Void> rotation = CompletableFuture.completedFuture(null);
+    private volatile long journalBytes = 0;
+    private volatile long checkpointBytes = 0;
+    private FileChannel channel;
+    private final ByteArray out = new ByteArray();
+
+    /** Tiles and layer-table changes handed to the writer by one capture. */
+    public static final class Capture {
+        private final boolean checkpoint;
+        private final int width, height;
+        private final Layer[] layers;
+        private final int[] sources;
+        private final String[] names;
+        private final boolean[] visible;
+        private final float[] opacity;
+        private final BlendMode[] blendModes;
+        private final int activeIndex;
+        private final long[][] tiles;
+        private final boolean tableChanged;
+        private ProjectFile base;
+        private DocumentSnapshot snapshot;
+        private Runnable release;
+
+        private Capture(boolean checkpoint, LayerStack stack, int[] sources, long[][] tiles, boolean tableChanged) {
+            this.checkpoint = checkpoint;
+            this.width = stack.getWidth();
+            this.height = stack.getHeight();
+            int n = stack.size();
+            this.layers = new Layer[n];
+            this.names = new String[n];
+            this.visible = new boolean[n];
+            this.opacity = new float[n];
+            this.blendModes = new BlendMode[n];
+            for (int i = 0; i < n; i++) {
+                Layer layer = stack.get(i);
+                layers[i] = layer;
+                names[i] = layer.getName();
+                visible[i] = layer.isVisible();
+                opacity[i] = layer.getOpacity();
+                blendModes[i] = layer.getBlendMode();
+            }
+            this.activeIndex = stack.getActiveIndex();
+            this.sources = sources;
+            this.tiles = tiles;
+            this.tableChanged = tableChanged;
+        }
+    }
+
+    /** A copy of an indexed image handed to the writer. */
+    private static final class IndexedCapture {
+        private final int width, height;
+        private final int[] palette;
+        private final byte[] indices;
+
+        private IndexedCapture(IndexedImage image) {
+            this.width = image.getWidth();
+            this.height = image.getHeight();
+            Palette p = image.getPalette();
+            this.palette = Arrays.copyOf(p.lookupTable(), p.size());
+            this.indices = image.getPixels().clone();
+        }
+    }
+
+    /**
+     * Opens the journal in the given directory. A session file left there
+     * means the last run did not exit cleanly; it is kept as the previous
+     * session and {@link #hadUncleanShutdown()} reports it.
+     */
+    public RecoveryJournal(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        sessionFile = directory.resolve(SESSION_FILE);
+        previousFile = directory.resolve(PREVIOUS_FILE);
+        uncleanShutdown = Files.exists(sessionFile);
+        if (uncleanShutdown) {
+            move(sessionFile, previousFile);
+        }
+        writer = new Thread(this::run, "recovery-journal");
+        writer.setDaemon(true);
+        writer.setPriority(Thread.MIN_PRIORITY);
+        writer.start();
+    }
+
+    /** Per-user recovery directory. */
+    public static Path defaultDirectory() {
+        return Paths.get(System.getProperty("user.home"), ".paintforge", "recovery");
+    }
+
+    public boolean hadUncleanShutdown() {
+        return uncleanShutdown;
+    }
+
+    /**
+     * Journal of the document before the last New/Open or exit, if any.
+     * Waits for the writer to finish moving the last session there, so call
+     * it off the EDT.
+     */
+    public Path getPreviousSession() {
+        rotation.join();
+        return Files.exists(previousFile) ? previousFile : null;
+    }
+
+    // ----- Change tracking -----
+    /**
+     * The layer is about to change inside the rectangle.
+     */
+    public synchronized void markDirty(Layer layer, int x, int y, int w, int h) {
+        long[] bits = dirty.get(layer);
+        if (bits != null) markTiles(bits, x, y, w, h);
+    }
+
+    /**
+     * Any layer may have changed inside the rectangle (undo/redo).
+     */
+    public synchronized void markDirty(Rectangle r) {
+        for (long[] bits : dirty.values()) {
+            markTiles(bits, r.x, r.y, r.width, r.height);
+        }
+    }
+
+    private void markTiles(long[] bits, int x, int y, int w, int h) {
+        int x0 = Math.max(0, x), y0 = Math.max(0, y);
+        int x1 = Math.min(width, x + w), y1 = Math.min(height, y + h);
+        if (x0 >= x1 || y0 >= y1) return;
+        for (int ty = y0 / TILE_SIZE, tyEnd = (y1 - 1) / TILE_SIZE; ty <= tyEnd; ty++) {
+            for (int tx = x0 / TILE_SIZE, txEnd = (x1 - 1) / TILE_SIZE; tx <= txEnd; tx++) {
+                int tile = ty * tilesX + tx;
+                bits[tile >>> 6] |= 1L << tile;
+            }
+        }
+    }
+
+    /**
+     * Starts journaling a new document. The current session is closed and
+     * kept as the previous one if anything was written to it. The writer
+     * does that in the background, before any capture of the new document.
+     */
+    public void newDocument(LayerStack stack) {
+        if (failed || closed) return;
+        queueRotation(false);
+        synchronized (this) {
+            width = stack.getWidth();
+            height = stack.getHeight();
+            tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+            tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+            dirty.clear();
+            rememberTable(stack);
+            // Nothing to recover until the document is edited
+            needsCheckpoint = true;
+            sessionIndexed = false;
+        }
+    }
+
+    private void rememberTable(LayerStack stack) {
+        List<Layer> current = new ArrayList<>();
+        Map<Layer, long[]> tracked = new IdentityHashMap<>();
+        for (int i = 0; i < stack.size(); i++) {
+            Layer layer = stack.get(i);
+            current.add(layer);
+            long[] bits = dirty.get(layer);
+            tracked.put(layer, bits != null ? bits : new long[(tilesX * tilesY + 63) >>> 6]);
+        }
+        dirty = tracked;
+        journaledLayers = current;
+        journaledProperties = properties(stack);
+        journaledActive = stack.getActiveIndex();
+    }
+
+    private static List<Object> properties(LayerStack stack) {
+        List<Object> props = new ArrayList<>();
+        for (int i = 0; i < stack.size(); i++) {
+            Layer layer = stack.get(i);
+            props.add(layer.getName());
+            props.add(layer.isVisible());
+            props.add(layer.getOpacity());
+            props.add(layer.getBlendMode());
+        }
+        return props;
+    }
+
+    // ----- Capturing -----
+    /**
+     * True while the writer is still busy with an earlier capture; callers
+     * skip a capture then and their changes go into the next one.
+     */
+    public boolean isBusy() {
+        return busy || failed;
+    }
+
+    /**
+     * Takes the changes since the last capture, or returns null if there are
+     * none. Call with no document writes in progress and follow up with
+     * {@link #write} and a snapshot taken at the same moment.
+     */
+    public synchronized Capture prepare(LayerStack stack) {
+        if (failed || closed || stack.getWidth() != width || stack.getHeight() != height) return null;
+        boolean anyDirty = false;
+        for (long[] bits : dirty.values()) {
+            for (long b : bits) if (b != 0) anyDirty = true;
+        }
+        List<Layer> current = new ArrayList<>();
+        for (int i = 0; i < stack.size(); i++) current.add(stack.get(i));
+        boolean sameLayers = current.size() == journaledLayers.size();
+        for (int i = 0; sameLayers && i < current.size(); i++) sameLayers = current.get(i) == journaledLayers.get(i);
+        boolean tableChanged = !sameLayers || stack.getActiveIndex() != journaledActive
+                || !properties(stack).equals(journaledProperties);
+        if (!anyDirty && !tableChanged && !sessionIndexed) return null;
+
+        boolean checkpoint = needsCheckpoint || journalBytes - checkpointBytes > checkpointBytes + COMPACT_SLACK;
+        int words = (tilesX * tilesY + 63) >>> 6;
+        int[] sources = new int[current.size()];
+        long[][] tiles = new long[current.size()][];
+        for (int i = 0; i < current.size(); i++) {
+            int source = -1;
+            for (int j = 0; j < journaledLayers.size(); j++) {
+                if (journaledLayers.get(j) == current.get(i)) source = j;
+            }
+            sources[i] = checkpoint ? -1 : source;
+            long[] bits = dirty.get(current.get(i));
+            if (checkpoint || source < 0 || bits == null) {
+                // Whole layer; transparent tiles are skipped by the writer
+                tiles[i] = new long[words];
+                Arrays.fill(tiles[i], -1L);
+            } else {
+                tiles[i] = bits.clone();
+            }
+        }
+        rememberTable(stack);
+        for (long[] bits : dirty.values()) Arrays.fill(bits, 0L);
+        needsCheckpoint = false;
+        sessionIndexed = false;
+        busy = true;
+        return new Capture(checkpoint, stack, sources, tiles, tableChanged || checkpoint);
+    }
+
+    /**
+     * Queues a checkpoint of an indexed image edited in place of the layers.
+     * The image is copied here, so call it with no write in progress. The
+     * layers are checkpointed again by their next capture.
+     */
+    public synchronized void writeIndexed(IndexedImage image) {
+        if (failed || closed) return;
+        needsCheckpoint = true;
+        sessionIndexed = true;
+        busy = true;
+        queue.add(new IndexedCapture(image));
+    }
+
+    /**
+     * Queues a prepared capture for the writer. Tiles are read from the
+     * snapshot, or copied as stored from base (may be null) where the
+     * project has not loaded them; release runs once the snapshot is no
+     * longer needed.
+     */
+    public void write(Capture capture, DocumentSnapshot snapshot, ProjectFile base, Runnable release) {
+        if (closed) {
+            release.run();
+            return;
+        }
+        capture.snapshot = snapshot;
+        capture.base = base;
+        capture.release = release;
+        queue.add(capture);
+    }
+
+    /**
+     * Writes any queued capture, closes the session and keeps it as the
+     * previous one, then stops the writer thread (clean exit). Waits for the
+     * disk, so call it off the EDT.
+     */
+    public void close() {
+        if (closed) return;
+        closed = true;
+        queueRotation(true);
+        // Nothing more can be queued: the writer is idle in take() from here on
+        writer.interrupt();
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Queues a session rotation for the writer, optionally waiting for it. */
+    private void queueRotation(boolean wait) {
+        CompletableFuture<Void> rotated = new CompletableFuture<>();
+        rotation = rotated;
+        queue.add(rotated);
+        if (wait) rotated.join();
+    }
+
+    // ----- Writer thread -----
+    private void run() {
+        List<Object> batch = new ArrayList<>();
+        ByteArray buffer = new ByteArray();
+        TileCodec codec = new TileCodec();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            boolean pending = false;
+            // Group commit: keep appending whatever arrives while writing, then force once
+            while (!batch.isEmpty()) {
+                for (Object job : batch) {
+                    if (job instanceof Capture) {
+                        pending |= writeCapture((Capture) job, buffer, codec);
+                    } else if (job instanceof IndexedCapture) {
+                        writeIndexed((IndexedCapture) job, buffer);
+                    } else {
+                        if (pending) force();
+                        pending = false;
+                        rotate();
+                        ((CompletableFuture<?>) job).complete(null);
+                    }
+                }
+                batch.clear();
+                queue.drainTo(batch);
+            }
+            if (pending) force();
+            busy = !queue.isEmpty();
+        }
+    }
+
+    private boolean writeCapture(Capture capture, ByteArray buffer, TileCodec codec) {
+        if (failed) {
+            capture.release.run();
+            return false;
+        }
+        Path temp = directory.resolve("." + SESSION_FILE + ".tmp");
+        FileChannel target = channel;
+        long start = journalBytes;
+        try {
+            try {
+                if (capture.checkpoint) {
+                    target = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                            StandardOpenOption.TRUNCATE_EXISTING);
+                    start = 0;
+                    buffer.reset();
+                    buffer.writeByte(HEADER).writeInt(MAGIC).writeInt(capture.width).writeInt(capture.height);
+                    start = record(target, buffer, start);
+                }
+                if (capture.tableChanged) {
+                    buffer.reset();
+                    buffer.writeByte(LAYERS).writeInt(capture.activeIndex).writeInt(capture.layers.length);
+                    for (int i = 0; i < capture.layers.length; i++) {
+                        buffer.writeInt(capture.sources[i]).writeUTF(capture.names[i])
+                                .writeByte(capture.visible[i] ? 1 : 0).writeFloat(capture.opacity[i])
+                                .writeByte(capture.blendModes[i].ordinal());
+                    }
+                    start = record(target, buffer, start);
+                }
+                start = writeTiles(capture, target, buffer, codec, start);
+            } finally {
+                capture.release.run();
+            }
+            buffer.reset();
+            buffer.writeByte(COMMIT);
+            start = record(target, buffer, start);
+            flush(target, start);
+
+            if (capture.checkpoint) {
+                // The new checkpoint replaces the whole session file
+                target.force(true);
+                target.close();
+                if (channel != null) channel.close();
+                channel = null;
+                move(temp, sessionFile);
+                channel = FileChannel.open(sessionFile, StandardOpenOption.WRITE);
+                checkpointBytes = start;
+            }
+            journalBytes = start;
+            return true;
+        } catch (IOException | RuntimeException e) {
+            // Recovery is best effort: report once and stop journaling
+            e.printStackTrace();
+            failed = true;
+            out.reset();
+            if (target != channel) {
+                try {
+                    target.close();
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                    // Already failed
+                }
+            }
+            return false;
+        }
+    }
+
+    /** Replaces the session file with a checkpoint of the indexed image. */
+    private void writeIndexed(IndexedCapture capture, ByteArray buffer) {
+        if (failed) return;
+        Path temp = directory.resolve("." + SESSION_FILE + ".tmp");
+        try (FileChannel target = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            buffer.reset();
+            buffer.writeByte(HEADER).writeInt(MAGIC).writeInt(capture.width).writeInt(capture.height);
+            long position = record(target, buffer, 0);
+            buffer.reset();
+            buffer.writeByte(INDEXED).writeInt(capture.palette.length);
+            for (int argb : capture.palette) buffer.writeInt(argb);
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(capture.indices);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    buffer.ensure(8192);
+                    buffer.length += deflater.deflate(buffer.data, buffer.length, buffer.data.length - buffer.length);
+                }
+            } finally {
+                deflater.end();
+            }
+            position = record(target, buffer, position);
+            buffer.reset();
+            buffer.writeByte(COMMIT);
+            position = record(target, buffer, position);
+            flush(target, position);
+            target.force(true);
+            if (channel != null) channel.close();
+            channel = null;
+            move(temp, sessionFile);
+            channel = FileChannel.open(sessionFile, StandardOpenOption.WRITE);
+            checkpointBytes = position;
+            journalBytes = position;
+        } catch (IOException | RuntimeException e) {
+            // Recovery is best effort: report once and stop journaling
+            e.printStackTrace();
+            failed = true;
+            out.reset();
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+                // Already failed
+            }
+        }
+    }
+
+    private long writeTiles(Capture capture, FileChannel target, ByteArray buffer, TileCodec codec, long position)
+            throws IOException {
+        int[] tilePixels = new int[TILE_SIZE * TILE_SIZE];
+        int tiles = tilesOf(capture.width) * tilesOf(capture.height);
+        int tilesX = tilesOf(capture.width);
+        for (int i = 0; i < capture.layers.length; i++) {
+            boolean fresh = capture.sources[i] < 0;
+            for (int tile = 0; tile < tiles; tile++) {
+                if ((capture.tiles[i][tile >>> 6] & (1L << tile)) == 0) continue;
+                byte[] stored = capture.base != null ? capture.base.storedTile(capture.layers[i], tile) : null;
+                buffer.reset();
+                buffer.writeByte(TILE).writeInt(i).writeInt(tile);
+                if (stored != null) {
+                    if (stored.length == 0 && fresh) continue;
+                    buffer.write(stored, 0, stored.length);
+                } else {
+                    capture.snapshot.readTile(i, tile, tilePixels);
+                    int tw = Math.min(TILE_SIZE, capture.width - (tile % tilesX) * TILE_SIZE);
+                    int th = Math.min(TILE_SIZE, capture.height - (tile / tilesX) * TILE_SIZE);
+                    if (TileCodec.isTransparent(tilePixels, tw, th)) {
+                        // New layers start out transparent; elsewhere an empty record clears the tile
+                        if (fresh) continue;
+                    } else {
+                        int length = codec.encode(tilePixels);
+                        buffer.write(codec.buffer(), 0, length);
+                    }
+                }
+                position = record(target, buffer, position);
+            }
+        }
+        return position;
+    }
+
+    private static int tilesOf(int size) {
+        return (size + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    /**
+     * Appends the payload as one record (length, CRC32, payload) to the
+     * output buffer, writing the buffer out once it is large enough.
+     *
+     * @return file position after the record
+     */
+    private long record(FileChannel target, ByteArray payload, long position) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload.data, 0, payload.length);
+        out.writeInt(payload.length).writeInt((int) crc.getValue()).write(payload.data, 0, payload.length);
+        position += RECORD_HEADER + payload.length;
+        if (out.length >= FLUSH_BYTES) flush(target, position);
+        return position;
+    }
+
+    /** Writes the buffered records, which end at position. */
+    private void flush(FileChannel target, long position) throws IOException {
+        writeFully(target, ByteBuffer.wrap(out.data, 0, out.length), position - out.length);
+        out.reset();
+    }
+
+    private void force() {
+        try {
+            if (channel != null) channel.force(false);
+        } catch (IOException e) {
+            e.printStackTrace();
+            failed = true;
+        }
+    }
+
+    private void rotate() {
+        try {
+            if (channel != null) {
+                channel.force(true);
+                channel.close();
+                channel = null;
+                move(sessionFile, previousFile);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        journalBytes = 0;
+        checkpointBytes = 0;
+    }
+
+    // ----- Replay -----
+    /**
+     * Rebuilds the document recorded in a journal file: its checkpoint plus
+     * every complete commit after it. Returns null if the file holds no
+     * complete checkpoint.
+     */
+    public static LayerStack replay(Path file, DoubleConsumer progress) throws IOException {
+        long size = Files.size(file);
+        List<byte[]> batch = new ArrayList<>();
+        Replay state = new Replay();
+        long read = 0;
+        try (InputStream stream = new BufferedInputStream(Files.newInputStream(file), 1 << 16);
+             DataInputStream in = new DataInputStream(stream)) {
+            TileCodec codec = new TileCodec();
+            try {
+                while (true) {
+                    byte[] payload;
+                    try {
+                        int length = in.readInt();
+                        int crc = in.readInt();
+                        if (length <= 0 || length > size - read - RECORD_HEADER) break;
+                        payload = new byte[length];
+                        in.readFully(payload);
+                        CRC32 check = new CRC32();
+                        check.update(payload);
+                        if ((int) check.getValue() != crc) break;
+                        read += RECORD_HEADER + length;
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (payload[0] == COMMIT) {
+                        for (byte[] record : batch) state.apply(record, codec);
+                        batch.clear();
+                        progress.accept(size == 0 ? 1 : (double) read / size);
+                    } else {
+                        batch.add(payload);
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Damaged recovery journal", e);
+            } finally {
+                codec.end();
+            }
+        }
+        return state.toStack();
+    }
+
+    /** Document state while a journal is replayed. */
+    private static final class Replay {
+        int width, height, tilesX, activeIndex;
+        List<Layer> layers;
+        // Set when the checkpoint is an indexed image
+        LayerStack indexed;
+
+        void apply(byte[] record, TileCodec codec) throws IOException, DataFormatException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            byte type = in.readByte();
+            switch (type) {
+                case HEADER:
+                    if (in.readInt() != MAGIC) throw new IOException("Not a PaintForge recovery journal");
+                    width = in.readInt();
+                    height = in.readInt();
+                    tilesX = tilesOf(width);
+                    layers = new ArrayList<>();
+                    indexed = null;
+                    break;
+                case INDEXED: {
+                    if (layers == null) return;
+                    int colors = in.readInt();
+                    if (colors < 0 || colors > Palette.MAX_COLORS) throw new IOException("Damaged recovery journal");
+                    Palette palette = new Palette();
+                    for (int i = 0; i < colors; i++) palette.add(in.readInt());
+                    IndexedImage image = new IndexedImage(width, height, palette);
+                    int offset = 5 + 4 * palette.size();
+                    Inflater inflater = new Inflater();
+                    try {
+                        inflater.setInput(record, offset, record.length - offset);
+                        byte[] pixels = image.getPixels();
+                        int done = 0;
+                        while (done < pixels.length && !inflater.finished()) {
+                            int n = inflater.inflate(pixels, done, pixels.length - done);
+                            if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                            done += n;
+                        }
+                        if (done != pixels.length) throw new IOException("Damaged recovery journal");
+                    } finally {
+                        inflater.end();
+                    }
+                    indexed = new IndexedDocument(image).toLayers();
+                    break;
+                }
+                case LAYERS: {
+                    if (layers == null) return;
+                    activeIndex = in.readInt();
+                    int count = in.readInt();
+                    List<Layer> next = new ArrayList<>();
+                    BlendMode[] modes = BlendMode.values();
+                    for (int i = 0; i < count; i++) {
+                        int source = in.readInt();
+                        String name = readName(in);
+                        Layer layer = source >= 0 && source < layers.size()
+                                ? layers.get(source) : Layer.create(name, width, height, null);
+                        layer.setName(name);
+                        layer.setVisible(in.readByte() != 0);
+                        layer.setOpacity(in.readFloat());
+                        int mode = in.readUnsignedByte();
+                        layer.setBlendMode(mode < modes.length ? modes[mode] : BlendMode.NORMAL);
+                        next.add(layer);
+                    }
+                    layers = next;
+                    break;
+                }
+                case TILE: {
+                    if (layers == null) return;
+                    int layer = in.readInt();
+                    int tile = in.readInt();
+                    if (layer < 0 || layer >= layers.size()) return;
+                    int[] pixels = layers.get(layer).getPixels();
+                    int x = (tile % tilesX) * TILE_SIZE, y = (tile / tilesX) * TILE_SIZE;
+                    int w = Math.min(TILE_SIZE, width - x), h = Math.min(TILE_SIZE, height - y);
+                    if (y >= height) return;
+                    int length = record.length - 9;
+                    if (length == 0) {
+                        for (int row = 0; row < h; row++) {
+                            Arrays.fill(pixels, (y + row) * width + x, (y + row) * width + x + w, 0);
+                        }
+                    } else {
+                        codec.decode(record, 9, length, pixels, width, x, y, w, h);
+                    }
+                    break;
+                }
+                default:
+                    break;
+            }
+        }
+
+        private static String readName(DataInputStream in) throws IOException {
+            byte[] bytes = new byte[in.readUnsignedShort()];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        LayerStack toStack() {
+            if (indexed != null) return indexed;
+            if (layers == null || layers.isEmpty()) return null;
+            LayerStack stack = new LayerStack(width, height);
+            for (Layer layer : layers) stack.addLayer(layer);
+            stack.setActiveIndex(Math.max(0, Math.min(layers.size() - 1, activeIndex)));
+            return stack;
+        }
+    }
+
+    // ----- Helpers -----
+    private static void move(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static long writeFully(FileChannel channel, ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+        return position;
+    }
+
+    /** Growable record buffer with big-endian writes. */
+    private static final class ByteArray {
+        byte[] data = new byte[4096];
+        int length;
+
+        void reset() {
+            length = 0;
+        }
+
+        void ensure(int extra) {
+            if (length + extra > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, length + extra));
+        }
+
+        ByteArray writeByte(int v) {
+            ensure(1);
+            data[length++] = (byte) v;
+            return this;
+        }
+
+        ByteArray writeInt(int v) {
+            ensure(4);
+            data[length++] = (byte) (v >>> 24);
+            data[length++] = (byte) (v >>> 16);
+            data[length++] = (byte) (v >>> 8);
+            data[length++] = (byte) v;
+            return this;
+        }
+
+        ByteArray writeFloat(float v) {
+            return writeInt(Float.floatToIntBits(v));
+        }
+
+        ByteArray writeUTF(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            int n = Math.min(bytes.length, 0xFFFF);
+            ensure(2 + n);
+            data[length++] = (byte) (n >>> 8);
+            data[length++] = (byte) n;
+            System.arraycopy(bytes, 0, data, length, n);
+            length += n;
+            return this;
+        }
+
+        ByteArray write(byte[] src, int offset, int n) {
+            ensure(n);
+            System.arraycopy(src, offset, data, length, n);
+            length += n;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,478 @@
+package com.paintforge;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Span (scanline) flood fill that works directly on a packed int pixel array.
+ * <p>
+ * Seeds are kept on a primitive int stack and already-filled pixels are tracked
+ * in a bitset, so a fill does no per-pixel allocation. Both buffers are reused
+ * between fills and only grow when a larger canvas is filled.
+ * <p>
+ * Pixels match the seed when they are within {@code tolerance} of it (see
+ * {@link ColorDistanceKernel}). {@link #replaceAll} is the non-contiguous
+ * "global" mode and splits rows across a ForkJoinPool. {@link #select} runs
+ * the same walk for the magic wand, adding spans to a {@link SelectionMask}.
+ * A fill may be confined to a selection: the walk then treats the edges of
+ * the selection's spans as walls, like unmatched pixels.
+ * <p>
+ * The walk only asks whether a pixel matches, so the same fills run on the
+ * byte palette indices of an {@link IndexedImage}, where a pixel matches
+ * when it holds the seed's index.
+ * <p>
+ * With a {@link PixelReadListener} the contiguous walks announce each 64x64
+ * tile the first time they reach it, so a project only loads the tiles
+ * around the region; the global modes announce the whole area they scan.
+ */
+public class ScanlineFill {
+    // Rows per ForkJoin leaf task in global mode
+    private static final int ROWS_PER_TASK = 32;
+    private static final long NO_ROWS = -1L;
+    // Granularity of the read announcements of the contiguous walk
+    private static final int READ_TILE_SHIFT = 6;
+    private static final int READ_TILE_SIZE = 1 << READ_TILE_SHIFT;
+
+    private int tolerance = 0;
+    private boolean alphaAware = true;
+    private int[] stack = new int[1024];
+    private int stackSize;
+    private long[] visited = new long[0];
+    private int[] spans = new int[2];
+    // Told before pixels are read (null = all in memory), and the tiles already announced
+    private PixelReadListener reader;
+    private long[] readTiles = new long[0];
+    private int readTilesX;
+
+    // Bounding box of the last fill (inclusive)
+    private int minX, minY, maxX, maxY;
+
+    /** Maximum per-channel difference (0..255) a pixel may have from the seed. */
+    public void setTolerance(int tolerance) {
+        this.tolerance = Math.max(0, Math.min(255, tolerance));
+    }
+
+    public int getTolerance() {
+        return tolerance;
+    }
+
+    /** Whether alpha differences count towards the match. */
+    public void setAlphaAware(boolean alphaAware) {
+        this.alphaAware = alphaAware;
+    }
+
+    public boolean isAlphaAware() {
+        return alphaAware;
+    }
+
+    /** Where the pixels about to be read are announced (null = they are all in memory). */
+    public void setReadListener(PixelReadListener reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Fills the 4-connected region around (x, y) whose pixels match the seed pixel.
+     * The listener (may be null) is told about each span before it is written.
+     *
+     * @return the filled bounding box in canvas space, or null if nothing changed
+     */
+    public Rectangle fill(int[] pixels, int width, int height, int x, int y, int fillColor,
+                          PixelWriteListener listener) {
+        return fill(pixels, width, height, x, y, fillColor, null, listener);
+    }
+
+    /**
+     * Like {@link #fill(int[], int, int, int, int, int, PixelWriteListener)},
+     * but the region stops at the edge of the selection (null = none); a seed
+     * outside it fills nothing.
+     */
+    public Rectangle fill(int[] pixels, int width, int height, int x, int y, int fillColor,
+                          SelectionMask within, PixelWriteListener listener) {
+        if (x < 0 || y < 0 || x >= width || y >= height) return null;
+        if (within != null && !within.contains(x, y)) return null;
+        startReading(width, height);
+        readTile(x, y);
+        int target = pixels[y * width + x];
+        if (tolerance == 0 && target == fillColor) return null;
+
+        flood(width, height, x, y, i -> matches(pixels[i], target), within, (sy, lx, rx) -> {
+            if (listener != null) listener.beforeWrite(lx, sy, rx - lx + 1, 1);
+            Arrays.fill(pixels, sy * width + lx, sy * width + rx + 1, fillColor);
+        });
+        return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    }
+
+    /**
+     * {@link #fill(int[], int, int, int, int, int, SelectionMask, PixelWriteListener)}
+     * for palette indices: the region of pixels holding the seed's index.
+     */
+    public Rectangle fill(byte[] indices, int width, int height, int x, int y, int fillIndex,
+                          SelectionMask within, PixelWriteListener listener) {
+        if (x < 0 || y < 0 || x >= width || y >= height) return null;
+        if (within != null && !within.contains(x, y)) return null;
+        startReading(width, height);
+        readTile(x, y);
+        byte target = indices[y * width + x], fill = (byte) fillIndex;
+        if (target == fill) return null;
+
+        flood(width, height, x, y, i -> indices[i] == target, within, (sy, lx, rx) -> {
+            if (listener != null) listener.beforeWrite(lx, sy, rx - lx + 1, 1);
+            Arrays.fill(indices, sy * width + lx, sy * width + rx + 1, fill);
+        });
+        return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    }
+
+    /**
+     * Magic wand: adds the pixels matching the one at (x, y) to the mask,
+     * either the 4-connected region around it (the same span walk as
+     * {@link #fill}) or, when not contiguous, every matching run on the canvas.
+     *
+     * @return the selected bounding box, or null if (x, y) is off the canvas
+     */
+    public Rectangle select(int[] pixels, int width, int height, int x, int y, boolean contiguous,
+                            SelectionMask into) {
+        if (x < 0 || y < 0 || x >= width || y >= height) return null;
+        startReading(width, height);
+        readTile(x, y);
+        int target = pixels[y * width + x];
+        return select(width, height, x, y, i -> matches(pixels[i], target), contiguous, into);
+    }
+
+    /** {@link #select(int[], int, int, int, int, boolean, SelectionMask)} for palette indices. */
+    public Rectangle select(byte[] indices, int width, int height, int x, int y, boolean contiguous,
+                            SelectionMask into) {
+        if (x < 0 || y < 0 || x >= width || y >= height) return null;
+        startReading(width, height);
+        readTile(x, y);
+        byte target = indices[y * width + x];
+        return select(width, height, x, y, i -> indices[i] == target, contiguous, into);
+    }
+
+    private Rectangle select(int width, int height, int x, int y, PixelTest test, boolean contiguous,
+                             SelectionMask into) {
+        if (contiguous) {
+            flood(width, height, x, y, test, null, (sy, lx, rx) -> into.addSpan(sy, lx, rx + 1));
+            return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+        }
+        if (reader != null) reader.beforeRead(0, 0, width, height);
+        minX = width; maxX = -1; minY = height; maxY = -1;
+        for (int row = 0; row < height; row++) {
+            int offset = row * width;
+            for (int start = 0; start < width; start++) {
+                if (!test.matches(offset + start)) continue;
+                int end = start + 1;
+                while (end < width && test.matches(offset + end)) end++;
+                into.addSpan(row, start, end);
+                if (start < minX) minX = start;
+                if (end - 1 > maxX) maxX = end - 1;
+                if (row < minY) minY = row;
+                maxY = row;
+                start = end;
+            }
+        }
+        return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    }
+
+    /** Whether the pixel at a row-major index belongs to the region. */
+    private interface PixelTest {
+        boolean matches(int i);
+    }
+
+    /** Receives each span [lx, rx] (inclusive) found by {@link #flood}. */
+    private interface SpanVisitor {
+        void span(int y, int lx, int rx);
+    }
+
+    /**
+     * The scanline walk shared by fill and select: visits each maximal span of
+     * the matching region exactly once and tracks its bounding box. Spans are
+     * marked visited before the visitor runs, so the visitor may overwrite them.
+     * With a selection, spans are also cut at the selection's span edges.
+     */
+    private void flood(int width, int height, int x, int y, PixelTest test, SelectionMask within,
+                       SpanVisitor visitor) {
+        if (reader != null) test = new ReadingTest(width, test);
+        resetVisited(width * height);
+        if (within != null && spans.length < width + 2) spans = SelectionClip.rowBuffer(within);
+        minX = x; maxX = x; minY = y; maxY = y;
+        stackSize = 0;
+        push(x, y);
+
+        while (stackSize > 0) {
+            int sy = stack[--stackSize];
+            int sx = stack[--stackSize];
+            int row = sy * width;
+            if (isVisited(row + sx) || !test.matches(row + sx)) continue;
+
+            // Grow the span left and right from the seed, up to the selection span holding it
+            int lo = 0, hi = width - 1;
+            if (within != null) {
+                int s = spanAt(within, sy, sx);
+                if (s < 0) continue;
+                lo = within.spanStart(sy, s);
+                hi = within.spanEnd(sy, s) - 1;
+            }
+            int lx = sx;
+            while (lx > lo && !isVisited(row + lx - 1) && test.matches(row + lx - 1)) lx--;
+            int rx = sx;
+            while (rx < hi && !isVisited(row + rx + 1) && test.matches(row + rx + 1)) rx++;
+
+            for (int i = row + lx, end = row + rx; i <= end; i++) markVisited(i);
+            if (lx < minX) minX = lx;
+            if (rx > maxX) maxX = rx;
+            if (sy < minY) minY = sy;
+            if (sy > maxY) maxY = sy;
+
+            // Neighbours are scanned before the visitor runs, against the original pixels
+            if (sy > 0) scanRow(width, test, lx, rx, sy - 1, within);
+            if (sy < height - 1) scanRow(width, test, lx, rx, sy + 1, within);
+            visitor.span(sy, lx, rx);
+        }
+    }
+
+    /**
+     * A test that announces each pixel's tile before it is first read. The
+     * walk stays on a row for a while, so the row is only re-derived (by
+     * division) when the index leaves it.
+     */
+    private final class ReadingTest implements PixelTest {
+        private final int width;
+        private final PixelTest test;
+        private int y = -1, rowStart, rowEnd;
+
+        ReadingTest(int width, PixelTest test) {
+            this.width = width;
+            this.test = test;
+        }
+
+        @Override
+        public boolean matches(int i) {
+            if (i < rowStart || i >= rowEnd) {
+                y = i / width;
+                rowStart = y * width;
+                rowEnd = rowStart + width;
+            }
+            readTile(i - rowStart, y);
+            return test.matches(i);
+        }
+    }
+
+    /** Forgets the announced tiles before a walk over a width x height raster. */
+    private void startReading(int width, int height) {
+        if (reader == null) return;
+        readTilesX = (width + READ_TILE_SIZE - 1) >> READ_TILE_SHIFT;
+        int words = (readTilesX * ((height + READ_TILE_SIZE - 1) >> READ_TILE_SHIFT) + 63) >>> 6;
+        if (readTiles.length < words) readTiles = new long[words];
+        else Arrays.fill(readTiles, 0, words, 0L);
+    }
+
+    /** Announces the tile holding (x, y) unless the walk already did. */
+    private void readTile(int x, int y) {
+        if (reader == null) return;
+        int tile = (y >> READ_TILE_SHIFT) * readTilesX + (x >> READ_TILE_SHIFT);
+        if ((readTiles[tile >>> 6] & (1L << tile)) != 0) return;
+        readTiles[tile >>> 6] |= 1L << tile;
+        reader.beforeRead(x & -READ_TILE_SIZE, y & -READ_TILE_SIZE, READ_TILE_SIZE, READ_TILE_SIZE);
+    }
+
+    /** Index of the selection span on row y that holds x, or -1. */
+    private static int spanAt(SelectionMask mask, int y, int x) {
+        for (int s = 0, n = mask.spanCount(y); s < n; s++) {
+            if (mask.spanStart(y, s) > x) return -1;
+            if (x < mask.spanEnd(y, s)) return s;
+        }
+        return -1;
+    }
+
+    /** Seeds the matching runs of [lx, rx] on row y that lie inside the selection (null = all). */
+    private void scanRow(int width, PixelTest test, int lx, int rx, int y, SelectionMask within) {
+        int n = SelectionClip.clipRow(within, y, lx, rx + 1, spans);
+        for (int s = 0; s < n; s += 2) {
+            scanRow(width, test, spans[s], spans[s + 1] - 1, y);
+        }
+    }
+
+    /**
+     * Pushes one seed per run of matching, unvisited pixels in [lx, rx] on row y.
+     */
+    private void scanRow(int width, PixelTest test, int lx, int rx, int y) {
+        int row = y * width;
+        boolean inRun = false;
+        for (int x = lx; x <= rx; x++) {
+            int i = row + x;
+            boolean match = !isVisited(i) && test.matches(i);
+            if (match && !inRun) {
+                push(x, y);
+                inRun = true;
+            } else if (!match) {
+                inRun = false;
+            }
+        }
+    }
+
+    /**
+     * Replaces every pixel on the canvas that matches the pixel at (x, y),
+     * regardless of connectivity. Rows are split across the common ForkJoinPool;
+     * the listener (may be null, must be thread-safe) is told about each band of
+     * rows before it is processed.
+     *
+     * @return the bounding rows that changed (full width), or null if nothing changed
+     */
+    public Rectangle replaceAll(int[] pixels, int width, int height, int x, int y, int fillColor,
+                                PixelWriteListener listener) {
+        return replaceAll(pixels, width, height, x, y, fillColor, null, listener);
+    }
+
+    /**
+     * Like {@link #replaceAll(int[], int, int, int, int, int, PixelWriteListener)},
+     * but only pixels inside the selection's spans are replaced (null = all).
+     */
+    public Rectangle replaceAll(int[] pixels, int width, int height, int x, int y, int fillColor,
+                                SelectionMask within, PixelWriteListener listener) {
+        if (x < 0 || y < 0 || x >= width || y >= height) return null;
+        announceArea(width, height, x, y, within);
+        int target = pixels[y * width + x];
+        if (tolerance == 0 && target == fillColor) return null;
+
+        long rows = ForkJoinPool.commonPool().invoke(new ReplaceRowsTask(pixels, width, 0, height, target,
+                fillColor, tolerance, alphaAware, within, listener));
+        if (rows == NO_ROWS) return null;
+        int first = (int) (rows >> 32);
+        int last = (int) rows;
+        return new Rectangle(0, first, width, last - first + 1);
+    }
+
+    /**
+     * {@link #replaceAll(int[], int, int, int, int, int, SelectionMask, PixelWriteListener)}
+     * for palette indices. One byte per pixel is cheap enough to walk on the
+     * calling thread.
+     */
+    public Rectangle replaceAll(byte[] indices, int width, int height, int x, int y, int fillIndex,
+                                SelectionMask within, PixelWriteListener listener) {
+        if (x < 0 || y < 0 || x >= width || y >= height) return null;
+        announceArea(width, height, x, y, within);
+        byte target = indices[y * width + x], fill = (byte) fillIndex;
+        if (target == fill) return null;
+
+        if (listener != null) listener.beforeWrite(0, 0, width, height);
+        int first = -1, last = -1;
+        int[] row = SelectionClip.rowBuffer(within);
+        for (int ry = 0; ry < height; ry++) {
+            boolean replaced = false;
+            for (int s = 0, n = SelectionClip.clipRow(within, ry, 0, width, row); s < n; s += 2) {
+                for (int i = ry * width + row[s], end = ry * width + row[s + 1]; i < end; i++) {
+                    if (indices[i] == target) {
+                        indices[i] = fill;
+                        replaced = true;
+                    }
+                }
+            }
+            if (replaced) {
+                if (first < 0) first = ry;
+                last = ry;
+            }
+        }
+        return first < 0 ? null : new Rectangle(0, first, width, last - first + 1);
+    }
+
+    /** Announces what a global replace reads: the seed and the selection's bounds (null = everything). */
+    private void announceArea(int width, int height, int x, int y, SelectionMask within) {
+        if (reader == null) return;
+        reader.beforeRead(x, y, 1, 1);
+        if (within == null) {
+            reader.beforeRead(0, 0, width, height);
+            return;
+        }
+        Rectangle bounds = within.getBounds();
+        if (bounds != null) reader.beforeRead(bounds.x, bounds.y, bounds.width, bounds.height);
+    }
+
+    private boolean matches(int pixel, int target) {
+        return ColorDistanceKernel.matches(pixel, target, tolerance, alphaAware);
+    }
+
+    /**
+     * Replaces matching pixels over a band of rows and returns the first/last
+     * changed row packed into a long (or NO_ROWS).
+     */
+    private static final class ReplaceRowsTask extends RecursiveTask<Long> {
+        private final int[] pixels;
+        private final int width, fromRow, toRow, target, fillColor, tolerance;
+        private final boolean alphaAware;
+        private final SelectionMask within;
+        private final PixelWriteListener listener;
+
+        ReplaceRowsTask(int[] pixels, int width, int fromRow, int toRow, int target, int fillColor,
+                        int tolerance, boolean alphaAware, SelectionMask within, PixelWriteListener listener) {
+            this.pixels = pixels;
+            this.width = width;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.target = target;
+            this.fillColor = fillColor;
+            this.tolerance = tolerance;
+            this.alphaAware = alphaAware;
+            this.within = within;
+            this.listener = listener;
+        }
+
+        @Override
+        protected Long compute() {
+            if (toRow - fromRow <= ROWS_PER_TASK) {
+                if (listener != null) listener.beforeWrite(0, fromRow, width, toRow - fromRow);
+                int first = -1, last = -1;
+                int[] spans = SelectionClip.rowBuffer(within);
+                for (int y = fromRow; y < toRow; y++) {
+                    int row = y * width, replaced = 0;
+                    for (int s = 0, n = SelectionClip.clipRow(within, y, 0, width, spans); s < n; s += 2) {
+                        replaced += ColorDistanceKernel.replaceRow(pixels, row + spans[s], row + spans[s + 1],
+                                target, fillColor, tolerance, alphaAware);
+                    }
+                    if (replaced > 0) {
+                        if (first < 0) first = y;
+                        last = y;
+                    }
+                }
+                return first < 0 ? NO_ROWS : ((long) first << 32) | (last & 0xFFFFFFFFL);
+            }
+            int mid = (fromRow + toRow) >>> 1;
+            ReplaceRowsTask top = new ReplaceRowsTask(pixels, width, fromRow, mid, target, fillColor,
+                    tolerance, alphaAware, within, listener);
+            ReplaceRowsTask bottom = new ReplaceRowsTask(pixels, width, mid, toRow, target, fillColor,
+                    tolerance, alphaAware, within, listener);
+            top.fork();
+            long b = bottom.compute();
+            long t = top.join();
+            if (t == NO_ROWS) return b;
+            if (b == NO_ROWS) return t;
+            return (t & 0xFFFFFFFF00000000L) | (b & 0xFFFFFFFFL);
+        }
+    }
+
+    private void push(int x, int y) {
+        if (stackSize + 2 > stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+        }
+        stack[stackSize++] = x;
+        stack[stackSize++] = y;
+    }
+
+    private void resetVisited(int pixelCount) {
+        int words = (pixelCount + 63) >>> 6;
+        if (visited.length < words) {
+            visited = new long[words];
+        } else {
+            Arrays.fill(visited, 0, words, 0L);
+        }
+    }
+
+    private boolean isVisited(int i) {
+        return (visited[i >>> 6] & (1L << i)) != 0;
+    }
+
+    private void markVisited(int i) {
+        visited[i >>> 6] |= 1L << i;
+    }
+}
@@ -0,0 +1,39 @@
+package com.paintforge;
+
+/**
+ * Span clipping against a {@link SelectionMask}: tools intersect each row
+ * they are about to write with the selection's spans and write only the
+ * pieces inside, so nothing outside the selection is ever touched.
+ */
+public final class SelectionClip {
+    private SelectionClip() {
+    }
+
+    /**
+     * Intersects [x0, x1) on row y with the selection, writing the clipped
+     * spans as start/end pairs into out; returns the number of ints written.
+     * Without a selection the span itself is returned.
+     */
+    public static int clipRow(SelectionMask mask, int y, int x0, int x1, int[] out) {
+        if (mask == null) {
+            if (x0 >= x1) return 0;
+            out[0] = x0;
+            out[1] = x1;
+            return 2;
+        }
+        int n = 0;
+        for (int s = 0, count = mask.spanCount(y); s < count; s++) {
+            int start = Math.max(x0, mask.spanStart(y, s)), end = Math.min(x1, mask.spanEnd(y, s));
+            if (start < end) {
+                out[n++] = start;
+                out[n++] = end;
+            }
+        }
+        return n;
+    }
+
+    /** Enough room for {@link #clipRow} on any row of the mask. */
+    public static int[] rowBuffer(SelectionMask mask) {
+        return new int[mask == null ? 2 : Math.max(2, mask.getWidth() + 2)];
+    }
+}
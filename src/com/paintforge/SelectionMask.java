@@ -0,0 +1,341 @@
+package com.paintforge;
+
+import java.awt.Rectangle;
+import java.awt.geom.Path2D;
+import java.util.Arrays;
+
+/**
+ * Run-length encoded selection over a width x height document.
+ * <p>
+ * Each row is a sorted list of disjoint, non-touching spans
+ * {@code [start, end)}, stored flat as {@code start0, end0, start1, end1...}.
+ * A rectangle or lasso costs two ints per row whatever its size, and the
+ * set operations ({@link #combine}) merge two rows' span lists in one linear
+ * sweep instead of visiting pixels. Tools clip against a mask by walking the
+ * spans of the rows they touch ({@link #spanCount}, {@link #spanStart},
+ * {@link #spanEnd}).
+ */
+public class SelectionMask {
+    /** How a new selection combines with the current one. */
+    public enum Mode {
+        REPLACE, ADD, SUBTRACT, INTERSECT
+    }
+
+    private static final int[] NO_SPANS = new int[0];
+
+    private final int width, height;
+    private final int[][] rows;
+    // Ints used in each row's array
+    private final int[] lengths;
+
+    /** An empty selection. */
+    public SelectionMask(int width, int height) {
+        this.width = width;
+        this.height = height;
+        rows = new int[height][];
+        Arrays.fill(rows, NO_SPANS);
+        lengths = new int[height];
+    }
+
+    public static SelectionMask all(int width, int height) {
+        return rectangle(width, height, 0, 0, width, height);
+    }
+
+    /** The rectangle, clipped to the document. */
+    public static SelectionMask rectangle(int width, int height, int x, int y, int w, int h) {
+        SelectionMask mask = new SelectionMask(width, height);
+        int x0 = Math.max(0, x), x1 = Math.min(width, x + w);
+        if (x0 >= x1) return mask;
+        for (int row = Math.max(0, y), end = Math.min(height, y + h); row < end; row++) {
+            mask.rows[row] = new int[]{x0, x1};
+            mask.lengths[row] = 2;
+        }
+        return mask;
+    }
+
+    /**
+     * The inside of a closed polygon (lasso), even-odd rule: a pixel is
+     * selected when its centre lies inside.
+     */
+    public static SelectionMask polygon(int width, int height, int[] xs, int[] ys, int n) {
+        SelectionMask mask = new SelectionMask(width, height);
+        if (n < 3) return mask;
+        int minY = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
+        for (int i = 0; i < n; i++) {
+            minY = Math.min(minY, ys[i]);
+            maxY = Math.max(maxY, ys[i]);
+        }
+        double[] crossings = new double[n];
+        for (int y = Math.max(0, minY), end = Math.min(height - 1, maxY); y <= end; y++) {
+            double cy = y + 0.5;
+            int count = 0;
+            for (int i = 0, j = n - 1; i < n; j = i++) {
+                double y0 = ys[j] + 0.5, y1 = ys[i] + 0.5;
+                // Half-open test so a vertex shared by two edges counts once
+                if ((y0 <= cy) != (y1 <= cy)) {
+                    double x0 = xs[j] + 0.5, x1 = xs[i] + 0.5;
+                    crossings[count++] = x0 + (cy - y0) * (x1 - x0) / (y1 - y0);
+                }
+            }
+            Arrays.sort(crossings, 0, count);
+            for (int k = 0; k + 1 < count; k += 2) {
+                // Pixels whose centre x + 0.5 lies in [a, b)
+                int a = (int) Math.ceil(crossings[k] - 0.5), b = (int) Math.ceil(crossings[k + 1] - 0.5);
+                mask.addSpan(y, a, b);
+            }
+        }
+        return mask;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    // ----- Spans -----
+    public int spanCount(int y) {
+        return lengths[y] >> 1;
+    }
+
+    public int spanStart(int y, int span) {
+        return rows[y][span << 1];
+    }
+
+    /** Exclusive end of a span. */
+    public int spanEnd(int y, int span) {
+        return rows[y][(span << 1) + 1];
+    }
+
+    /**
+     * Adds [x0, x1) on row y, merging with the spans it overlaps or touches.
+     */
+    public void addSpan(int y, int x0, int x1) {
+        if (y < 0 || y >= height) return;
+        x0 = Math.max(0, x0);
+        x1 = Math.min(width, x1);
+        if (x0 >= x1) return;
+        int[] row = rows[y];
+        int n = lengths[y];
+        // First span ending at or after x0, and first span starting after x1
+        int first = 0;
+        while (first < n && row[first + 1] < x0) first += 2;
+        int last = first;
+        while (last < n && row[last] <= x1) last += 2;
+        if (first < last) {
+            x0 = Math.min(x0, row[first]);
+            x1 = Math.max(x1, row[last - 1]);
+        }
+        int newLength = n - (last - first) + 2;
+        int[] out = newLength <= row.length && row != NO_SPANS ? row : new int[Math.max(4, newLength * 2)];
+        if (out != row) System.arraycopy(row, 0, out, 0, first);
+        System.arraycopy(row, last, out, first + 2, n - last);
+        out[first] = x0;
+        out[first + 1] = x1;
+        rows[y] = out;
+        lengths[y] = newLength;
+    }
+
+    public boolean contains(int x, int y) {
+        if (y < 0 || y >= height) return false;
+        int[] row = rows[y];
+        for (int i = 0, n = lengths[y]; i < n && row[i] <= x; i += 2) {
+            if (x < row[i + 1]) return true;
+        }
+        return false;
+    }
+
+    public boolean isEmpty() {
+        for (int length : lengths) {
+            if (length != 0) return false;
+        }
+        return true;
+    }
+
+    /** Bounding box of the selected pixels, or null if none. */
+    public Rectangle getBounds() {
+        int minX = width, maxX = 0, minY = -1, maxY = -1;
+        for (int y = 0; y < height; y++) {
+            int n = lengths[y];
+            if (n == 0) continue;
+            if (minY < 0) minY = y;
+            maxY = y;
+            minX = Math.min(minX, rows[y][0]);
+            maxX = Math.max(maxX, rows[y][n - 1]);
+        }
+        return minY < 0 ? null : new Rectangle(minX, minY, maxX - minX, maxY - minY + 1);
+    }
+
+    // ----- Set Operations -----
+    /**
+     * Combines another mask of the same size into this one, row by row.
+     */
+    public void combine(SelectionMask other, Mode mode) {
+        if (other.width != width || other.height != height) {
+            throw new IllegalArgumentException("Selection size does not match");
+        }
+        int[] scratch = new int[16];
+        for (int y = 0; y < height; y++) {
+            int na = lengths[y], nb = other.lengths[y];
+            switch (mode) {
+                case REPLACE:
+                    rows[y] = nb == 0 ? NO_SPANS : Arrays.copyOf(other.rows[y], nb);
+                    lengths[y] = nb;
+                    continue;
+                case ADD:
+                    if (nb == 0) continue;
+                    break;
+                case SUBTRACT:
+                    if (na == 0 || nb == 0) continue;
+                    break;
+                default:
+                    if (na == 0) continue;
+                    if (nb == 0) {
+                        rows[y] = NO_SPANS;
+                        lengths[y] = 0;
+                        continue;
+                    }
+            }
+            if (scratch.length < na + nb) scratch = new int[(na + nb) * 2];
+            int n = combineRow(rows[y], na, other.rows[y], nb, mode, scratch);
+            rows[y] = n == 0 ? NO_SPANS : Arrays.copyOf(scratch, n);
+            lengths[y] = n;
+        }
+    }
+
+    /**
+     * The selection that results from applying a new shape to the current
+     * one (null = nothing selected). Neither argument is modified, since
+     * views may still be drawing the current mask.
+     */
+    public static SelectionMask combine(SelectionMask current, SelectionMask shape, Mode mode) {
+        if (mode == Mode.REPLACE || (current == null && mode == Mode.ADD)) return shape;
+        if (current == null) return null;
+        SelectionMask combined = current.copy();
+        combined.combine(shape, mode);
+        return combined;
+    }
+
+    /**
+     * Sweeps the span boundaries of both rows in order, tracking whether the
+     * sweep is inside a and inside b, and emits a boundary wherever the
+     * result of the operation flips.
+     */
+    private static int combineRow(int[] a, int na, int[] b, int nb, Mode mode, int[] out) {
+        int i = 0, j = 0, n = 0;
+        boolean inA = false, inB = false, inResult = false;
+        while (i < na || j < nb) {
+            int x;
+            if (j >= nb || (i < na && a[i] <= b[j])) {
+                x = a[i];
+            } else {
+                x = b[j];
+            }
+            // Apply every boundary at x before evaluating, so touching spans merge
+            while (i < na && a[i] == x) {
+                inA = !inA;
+                i++;
+            }
+            while (j < nb && b[j] == x) {
+                inB = !inB;
+                j++;
+            }
+            boolean result;
+            switch (mode) {
+                case ADD:
+                    result = inA || inB;
+                    break;
+                case SUBTRACT:
+                    result = inA && !inB;
+                    break;
+                default:
+                    result = inA && inB;
+            }
+            if (result != inResult) {
+                out[n++] = x;
+                inResult = result;
+            }
+        }
+        return n;
+    }
+
+    /** Selects what was not selected and vice versa. */
+    public void invert() {
+        for (int y = 0; y < height; y++) {
+            int[] row = rows[y];
+            int n = lengths[y];
+            // Complement: boundaries shift by one, with 0 and width added or cancelled at the ends
+            int[] out = new int[n + 2];
+            int m = 0;
+            if (n == 0 || row[0] != 0) out[m++] = 0;
+            for (int i = n == 0 || row[0] != 0 ? 0 : 1; i < n; i++) out[m++] = row[i];
+            if (m > 0 && out[m - 1] == width) m--;
+            else out[m++] = width;
+            rows[y] = m == 0 ? NO_SPANS : Arrays.copyOf(out, m);
+            lengths[y] = m;
+        }
+    }
+
+    public SelectionMask copy() {
+        SelectionMask copy = new SelectionMask(width, height);
+        copy.combine(this, Mode.REPLACE);
+        return copy;
+    }
+
+    // ----- Outline -----
+    /**
+     * Boundary of the selection as unit-grid line segments in document
+     * coordinates, for the rows in [fromRow, toRow).
+     */
+    public Path2D outline(int fromRow, int toRow) {
+        Path2D.Float path = new Path2D.Float();
+        fromRow = Math.max(0, fromRow);
+        toRow = Math.min(height, toRow);
+        int[] scratch = new int[16];
+        for (int y = fromRow; y <= toRow && y <= height; y++) {
+            // Horizontal edges on the line between rows y - 1 and y: spans in exactly one of them
+            int na = y > 0 ? lengths[y - 1] : 0, nb = y < height ? lengths[y] : 0;
+            if (na + nb > 0) {
+                if (scratch.length < (na + nb) * 2) scratch = new int[(na + nb) * 4];
+                int[] above = y > 0 ? rows[y - 1] : NO_SPANS, below = y < height ? rows[y] : NO_SPANS;
+                int n = symmetricDifference(above, na, below, nb, scratch);
+                for (int k = 0; k < n; k += 2) {
+                    path.moveTo(scratch[k], y);
+                    path.lineTo(scratch[k + 1], y);
+                }
+            }
+            // Vertical edges at every span boundary of row y
+            if (y < toRow) {
+                for (int k = 0; k < nb; k++) {
+                    path.moveTo(rows[y][k], y);
+                    path.lineTo(rows[y][k], y + 1);
+                }
+            }
+        }
+        return path;
+    }
+
+    private static int symmetricDifference(int[] a, int na, int[] b, int nb, int[] out) {
+        int i = 0, j = 0, n = 0;
+        boolean inA = false, inB = false, inResult = false;
+        while (i < na || j < nb) {
+            int x = j >= nb || (i < na && a[i] <= b[j]) ? a[i] : b[j];
+            while (i < na && a[i] == x) {
+                inA = !inA;
+                i++;
+            }
+            while (j < nb && b[j] == x) {
+                inB = !inB;
+                j++;
+            }
+            boolean result = inA != inB;
+            if (result != inResult) {
+                out[n++] = x;
+                inResult = result;
+            }
+        }
+        return n;
+    }
+}
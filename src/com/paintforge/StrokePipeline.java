@@ -0,0 +1,151 @@
+package com.paintforge;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves rasterization off the event dispatch thread.
+ * <p>
+ * The EDT records raw pointer samples (position plus a nanosecond timestamp)
+ * into a single-producer/single-consumer ring buffer and returns immediately,
+ * so input capture never waits for drawing. A dedicated render thread drains
+ * the ring in batches and replays the samples into a {@link StrokeSink} that
+ * writes the document; the EDT then only presents the dirty regions that
+ * result. Samples are never dropped: if the ring is ever full the producer
+ * spins until the render thread frees a slot.
+ * <p>
+ * Other document edits (fills, lines) are queued as tasks on the same ring so
+ * they run on the render thread in order with the strokes around them. Code
+ * on the EDT that reads or replaces document state queues a task as well and
+ * hands any result back to the EDT, so the EDT never waits for the render
+ * thread; only other threads (e.g. at shutdown) call {@link #awaitIdle()}.
+ */
+public class StrokePipeline {
+    private static final int CAPACITY = 4096;
+    private static final int MASK = CAPACITY - 1;
+
+    private static final int BEGIN = 0, MOVE = 1, END = 2, TASK = 3;
+
+    // Ring slots, indexed by sequence & MASK
+    private final int[] kinds = new int[CAPACITY];
+    private final int[] xs = new int[CAPACITY];
+    private final int[] ys = new int[CAPACITY];
+    private final long[] times = new long[CAPACITY];
+    private final Runnable[] tasks = new Runnable[CAPACITY];
+
+    // Next sequence to write (producer) and next sequence to read (consumer)
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+    private volatile boolean sleeping = false;
+
+    private final StrokeSink sink;
+    private final Thread renderThread;
+
+    public StrokePipeline(StrokeSink sink) {
+        this.sink = sink;
+        renderThread = new Thread(this::run, "stroke-render");
+        renderThread.setDaemon(true);
+        renderThread.setPriority(Thread.NORM_PRIORITY + 1);
+        renderThread.start();
+    }
+
+    public void begin(int x, int y) {
+        publish(BEGIN, x, y, null);
+    }
+
+    public void move(int x, int y) {
+        publish(MOVE, x, y, null);
+    }
+
+    public void end() {
+        publish(END, 0, 0, null);
+    }
+
+    /**
+     * Runs a document edit on the render thread after everything queued before it.
+     */
+    public void submit(Runnable task) {
+        publish(TASK, 0, 0, task);
+    }
+
+    /**
+     * Blocks until every queued sample and task has been processed. Returns
+     * immediately when called on the render thread.
+     */
+    public void awaitIdle() {
+        if (Thread.currentThread() == renderThread) return;
+        long target = published.get();
+        while (consumed.get() < target) {
+            LockSupport.parkNanos(50_000);
+        }
+    }
+
+    /**
+     * Number of samples and tasks waiting for the render thread.
+     */
+    public int getBacklog() {
+        return (int) (published.get() - consumed.get());
+    }
+
+    private void publish(int kind, int x, int y, Runnable task) {
+        long seq = published.get();
+        while (seq - consumed.get() >= CAPACITY) {
+            Thread.onSpinWait();
+        }
+        int slot = (int) (seq & MASK);
+        kinds[slot] = kind;
+        xs[slot] = x;
+        ys[slot] = y;
+        times[slot] = System.nanoTime();
+        tasks[slot] = task;
+        published.set(seq + 1);
+        if (sleeping) {
+            LockSupport.unpark(renderThread);
+        }
+    }
+
+    private void run() {
+        long next = 0;
+        while (true) {
+            long available = published.get();
+            if (next == available) {
+                sleeping = true;
+                if (published.get() == next) {
+                    LockSupport.parkNanos(this, 10_000_000L);
+                }
+                sleeping = false;
+                continue;
+            }
+            for (; next < available; next++) {
+                int slot = (int) (next & MASK);
+                try {
+                    switch (kinds[slot]) {
+                        case BEGIN:
+                            sink.strokeBegin(xs[slot], ys[slot], times[slot]);
+                            break;
+                        case MOVE:
+                            sink.strokeMove(xs[slot], ys[slot], times[slot]);
+                            break;
+                        case END:
+                            sink.strokeEnd(times[slot]);
+                            break;
+                        default:
+                            Runnable task = tasks[slot];
+                            tasks[slot] = null;
+                            task.run();
+                    }
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+                // Free slots as we go so a full ring unblocks the producer early
+                consumed.lazySet(next + 1);
+            }
+            try {
+                sink.batchDone();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            consumed.set(next);
+        }
+    }
+}
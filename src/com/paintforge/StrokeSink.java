@@ -0,0 +1,19 @@
+package com.paintforge;
+
+/**
+ * Receives pointer samples from a {@link StrokePipeline} on its render thread.
+ */
+public interface StrokeSink {
+    void strokeBegin(int x, int y, long nanoTime);
+
+    void strokeMove(int x, int y, long nanoTime);
+
+    void strokeEnd(long nanoTime);
+
+    /**
+     * Called after each batch of samples taken from the ring, before the
+     * render thread waits for more input.
+     */
+    default void batchDone() {
+    }
+}
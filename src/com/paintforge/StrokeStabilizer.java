@@ -0,0 +1,158 @@
+package com.paintforge;
+
+/**
+ * Smooths pointer samples before they are rasterized.
+ * <p>
+ * Each sample first passes a "lazy mouse": the stabilized position only moves
+ * once the pointer is more than {@link #getLazyRadius()} pixels away, and then
+ * only by the excess. The result is averaged exponentially over a window of
+ * samples, and the averaged points are joined with a Catmull-Rom spline that
+ * is resampled at one-pixel spacing. The spline needs one point of look-ahead,
+ * so output trails the input by a single sample; {@link #end()} draws the
+ * rest of the stroke up to the last pointer position.
+ * <p>
+ * Control points live in a four-slot primitive ring, so no objects are
+ * created per sample. Strength 0 passes samples through unchanged.
+ */
+public class StrokeStabilizer {
+    /** Receives the stabilized stroke as integer canvas points. */
+    public interface Output {
+        void point(int x, int y);
+    }
+
+    public static final int MAX_STRENGTH = 10;
+
+    private int strength = 0;
+    private float lazyRadius, alpha;
+
+    // Last four smoothed control points, oldest first from head
+    private final float[] ringX = new float[4], ringY = new float[4];
+    private int head = 0, count = 0;
+
+    // Lazy-mouse position, running average and raw pointer
+    private float lazyX, lazyY, emaX, emaY;
+    private int rawX, rawY;
+    private int lastOutX, lastOutY;
+
+    private Output output;
+
+    public void setStrength(int strength) {
+        this.strength = Math.max(0, Math.min(MAX_STRENGTH, strength));
+        lazyRadius = this.strength * 1.5f;
+        // Exponential average spanning a window of 1 + 2 * strength samples
+        int window = 1 + 2 * this.strength;
+        alpha = 2f / (window + 1);
+    }
+
+    public int getStrength() {
+        return strength;
+    }
+
+    public float getLazyRadius() {
+        return lazyRadius;
+    }
+
+    /**
+     * Starts a stroke at (x, y); the caller has already drawn that point.
+     */
+    public void begin(int x, int y, Output output) {
+        this.output = output;
+        lazyX = emaX = rawX = x;
+        lazyY = emaY = rawY = y;
+        head = 0;
+        count = 0;
+        push(x, y);
+        lastOutX = x;
+        lastOutY = y;
+    }
+
+    public void add(int x, int y) {
+        rawX = x;
+        rawY = y;
+        if (strength == 0) {
+            emit(x, y);
+            return;
+        }
+        float dx = x - lazyX, dy = y - lazyY;
+        float dist = (float) Math.sqrt(dx * dx + dy * dy);
+        if (dist <= lazyRadius) return;
+        float pull = (dist - lazyRadius) / dist;
+        lazyX += dx * pull;
+        lazyY += dy * pull;
+        emaX += alpha * (lazyX - emaX);
+        emaY += alpha * (lazyY - emaY);
+        push(emaX, emaY);
+        if (count >= 4) {
+            spline(1);
+        } else if (count == 3) {
+            // First segment: duplicate the start point as the leading control point
+            spline(0);
+        }
+    }
+
+    /**
+     * Finishes the stroke at the last pointer position.
+     */
+    public void end() {
+        if (strength == 0 || output == null) {
+            output = null;
+            return;
+        }
+        // Catch up: the remaining segments run through the raw end point
+        if (ringX[last()] != rawX || ringY[last()] != rawY) {
+            push(rawX, rawY);
+            if (count >= 4) spline(1);
+            else if (count == 3) spline(0);
+        }
+        // Close the final segment by repeating the end point
+        if (count >= 2) {
+            push(rawX, rawY);
+            if (count >= 4) spline(1);
+            else spline(0);
+        }
+        output = null;
+    }
+
+    private int last() {
+        return (head + count - 1) & 3;
+    }
+
+    private void push(float x, float y) {
+        if (count == 4) {
+            head = (head + 1) & 3;
+            count--;
+        }
+        int slot = (head + count) & 3;
+        ringX[slot] = x;
+        ringY[slot] = y;
+        count++;
+    }
+
+    /**
+     * Draws the Catmull-Rom segment between the two middle control points.
+     * With {@code first} = 0 there are only three points and the first one
+     * also acts as the one before it.
+     */
+    private void spline(int first) {
+        int i1 = (head + first) & 3, i2 = (head + first + 1) & 3, i3 = (head + first + 2) & 3;
+        int i0 = first == 0 ? i1 : head;
+        float x0 = ringX[i0], y0 = ringY[i0], x1 = ringX[i1], y1 = ringY[i1];
+        float x2 = ringX[i2], y2 = ringY[i2], x3 = ringX[i3], y3 = ringY[i3];
+        float length = (float) Math.sqrt((x2 - x1) * (x2 - x1) + (y2 - y1) * (y2 - y1));
+        int steps = Math.max(1, (int) Math.ceil(length));
+        for (int s = 1; s <= steps; s++) {
+            float t = (float) s / steps;
+            float t2 = t * t, t3 = t2 * t;
+            float px = 0.5f * (2 * x1 + (x2 - x0) * t + (2 * x0 - 5 * x1 + 4 * x2 - x3) * t2 + (3 * x1 - x0 - 3 * x2 + x3) * t3);
+            float py = 0.5f * (2 * y1 + (y2 - y0) * t + (2 * y0 - 5 * y1 + 4 * y2 - y3) * t2 + (3 * y1 - y0 - 3 * y2 + y3) * t3);
+            emit(Math.round(px), Math.round(py));
+        }
+    }
+
+    private void emit(int x, int y) {
+        if (x == lastOutX && y == lastOutY) return;
+        lastOutX = x;
+        lastOutY = y;
+        output.point(x, y);
+    }
+}
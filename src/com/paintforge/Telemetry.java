@@ -0,0 +1,266 @@
+package com.paintforge;
+
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.Timespan;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Performance counters and latency histograms for the canvas, plus matching
+ * Java Flight Recorder events so a session can be traced and analysed offline.
+ * <p>
+ * Everything here is cheap enough to stay on all the time: a measurement is
+ * a {@link System#nanoTime()} pair, one histogram increment and, only while
+ * a flight recording is running, one JFR event. Recording is thread-safe;
+ * strokes are timed on the render thread and painting on the EDT.
+ * <p>
+ * Measured:
+ * <ul>
+ *   <li>event-to-pixel latency: from the input event being queued to the end
+ *       of the first paint that shows its pixels (oldest event per frame)</li>
+ *   <li>paint duration of {@code paintComponent}</li>
+ *   <li>tool operation time, per tool (each stroke segment, fill, line...)</li>
+ *   <li>undo history memory and disk use</li>
+ * </ul>
+ */
+public class Telemetry {
+    private final LatencyHistogram eventToPixel = new LatencyHistogram();
+    private final LatencyHistogram paint = new LatencyHistogram();
+    private final Map<String, LatencyHistogram> tools = new ConcurrentHashMap<>();
+
+    private final LongAdder inputEvents = new LongAdder();
+    private final LongAdder paints = new LongAdder();
+    private final LongAdder toolOperations = new LongAdder();
+    private volatile long undoMemoryBytes, undoDiskBytes;
+
+    // Oldest input event rasterized but not yet painted (0 = none)
+    private final AtomicLong unpaintedInput = new AtomicLong();
+    private long flushedInput;
+
+    private Recording recording;
+
+    // ----- JFR events -----
+    @Name("com.paintforge.Paint")
+    @Label("Canvas Paint")
+    @Category({"PaintForge", "Rendering"})
+    @Description("One paintComponent call of the canvas")
+    static class PaintEvent extends Event {
+        @Label("Paint Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long paintTime;
+        @Label("Clip Width")
+        int clipWidth;
+        @Label("Clip Height")
+        int clipHeight;
+        @Label("Zoom")
+        double zoom;
+    }
+
+    @Name("com.paintforge.InputLatency")
+    @Label("Event To Pixel Latency")
+    @Category({"PaintForge", "Input"})
+    @Description("Time from an input event to the end of the paint that showed its result")
+    static class InputLatencyEvent extends Event {
+        @Label("Latency")
+        @Timespan(Timespan.NANOSECONDS)
+        long latency;
+    }
+
+    @Name("com.paintforge.ToolOperation")
+    @Label("Tool Operation")
+    @Category({"PaintForge", "Tools"})
+    static class ToolOperationEvent extends Event {
+        @Label("Tool")
+        String tool;
+        @Label("Operation Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long operationTime;
+    }
+
+    @Name("com.paintforge.UndoMemory")
+    @Label("Undo Memory")
+    @Category({"PaintForge", "History"})
+    static class UndoMemoryEvent extends Event {
+        @Label("Memory")
+        @DataAmount
+        long memory;
+        @Label("Disk")
+        @DataAmount
+        long disk;
+    }
+
+    // ----- Recording -----
+    /** An input event was received and handed to the tools. */
+    public void inputEvent() {
+        inputEvents.increment();
+    }
+
+    /**
+     * Pixels for an input event queued at eventNanos were written; the next
+     * paint after the dirty-region flush completes its latency.
+     */
+    public void inputRasterized(long eventNanos) {
+        unpaintedInput.compareAndSet(0, eventNanos);
+    }
+
+    /** The dirty region is being flushed to a repaint (EDT). */
+    public void repaintScheduled() {
+        long t = unpaintedInput.getAndSet(0);
+        if (t != 0 && (flushedInput == 0 || t < flushedInput)) flushedInput = t;
+    }
+
+    /**
+     * Starts timing a tool operation; pass the result to {@link #endTool}.
+     */
+    public long beginTool() {
+        return System.nanoTime();
+    }
+
+    public void endTool(String tool, long start) {
+        long end = System.nanoTime();
+        tools.computeIfAbsent(tool, t -> new LatencyHistogram()).record(end - start);
+        toolOperations.increment();
+        ToolOperationEvent event = new ToolOperationEvent();
+        if (event.isEnabled()) {
+            event.tool = tool;
+            event.operationTime = end - start;
+            event.commit();
+        }
+    }
+
+    public long beginPaint() {
+        return System.nanoTime();
+    }
+
+    /** A paint that started at start has finished (EDT). */
+    public void endPaint(long start, int clipWidth, int clipHeight, double zoom) {
+        long end = System.nanoTime();
+        paint.record(end - start);
+        paints.increment();
+        PaintEvent event = new PaintEvent();
+        if (event.isEnabled()) {
+            event.paintTime = end - start;
+            event.clipWidth = clipWidth;
+            event.clipHeight = clipHeight;
+            event.zoom = zoom;
+            event.commit();
+        }
+        if (flushedInput != 0) {
+            long latency = end - flushedInput;
+            flushedInput = 0;
+            eventToPixel.record(latency);
+            InputLatencyEvent latencyEvent = new InputLatencyEvent();
+            if (latencyEvent.isEnabled()) {
+                latencyEvent.latency = latency;
+                latencyEvent.commit();
+            }
+        }
+    }
+
+    /** Current undo history footprint, after each change of the history. */
+    public void undoMemory(long memoryBytes, long diskBytes) {
+        undoMemoryBytes = memoryBytes;
+        undoDiskBytes = diskBytes;
+        UndoMemoryEvent event = new UndoMemoryEvent();
+        if (event.isEnabled()) {
+            event.memory = memoryBytes;
+            event.disk = diskBytes;
+            event.commit();
+        }
+    }
+
+    // ----- Reading -----
+    public LatencyHistogram.Snapshot eventToPixel(boolean reset) {
+        return eventToPixel.snapshot(reset);
+    }
+
+    public LatencyHistogram.Snapshot paint(boolean reset) {
+        return paint.snapshot(reset);
+    }
+
+    /** Per-tool operation times, keyed by tool name. */
+    public Map<String, LatencyHistogram> tools() {
+        return tools;
+    }
+
+    public long getInputEvents() {
+        return inputEvents.sum();
+    }
+
+    public long getPaints() {
+        return paints.sum();
+    }
+
+    public long getToolOperations() {
+        return toolOperations.sum();
+    }
+
+    public long getUndoMemoryBytes() {
+        return undoMemoryBytes;
+    }
+
+    public long getUndoDiskBytes() {
+        return undoDiskBytes;
+    }
+
+    /** Total collections and collection time (ms) of all garbage collectors so far. */
+    public static long[] gcTotals() {
+        long count = 0, time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return new long[]{count, time};
+    }
+
+    // ----- Flight recording -----
+    public synchronized boolean isRecording() {
+        return recording != null;
+    }
+
+    /**
+     * Starts a flight recording with the JDK's default (low overhead)
+     * settings plus the PaintForge events.
+     */
+    public synchronized void startRecording() throws IOException, ParseException {
+        if (recording != null) return;
+        Recording r = new Recording(Configuration.getConfiguration("default"));
+        r.setName("PaintForge");
+        r.enable(PaintEvent.class);
+        r.enable(InputLatencyEvent.class);
+        r.enable(ToolOperationEvent.class);
+        r.enable(UndoMemoryEvent.class);
+        r.start();
+        recording = r;
+    }
+
+    /**
+     * Stops the flight recording and writes it to a .jfr file (for JDK
+     * Mission Control or {@code jfr print}).
+     */
+    public synchronized void stopRecording(Path file) throws IOException {
+        if (recording == null) return;
+        try {
+            recording.stop();
+            recording.dump(file);
+        } finally {
+            recording.close();
+            recording = null;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.paintforge;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressed form of one {@value #TILE_SIZE}x{@value #TILE_SIZE} tile, shared
+ * by the project file and the recovery journal: the tile's ARGB ints as
+ * big-endian bytes, deflated on their own so any tile can be decoded without
+ * its neighbours. A codec keeps its Deflater/Inflater and buffers for reuse
+ * and is used by one thread at a time; {@link #end()} frees the native state.
+ */
+public class TileCodec {
+    public static final int TILE_SIZE = DocumentSnapshot.TILE_SIZE;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+    private final byte[] raw = new byte[TILE_SIZE * TILE_SIZE * 4];
+    private byte[] compressed = new byte[raw.length + 1024];
+
+    /**
+     * Compresses a tile laid out with a stride of {@value #TILE_SIZE}.
+     *
+     * @return length of the result, which is in {@link #buffer()}
+     */
+    public int encode(int[] tilePixels) {
+        for (int i = 0, o = 0; i < tilePixels.length; i++, o += 4) {
+            int c = tilePixels[i];
+            raw[o] = (byte) (c >>> 24);
+            raw[o + 1] = (byte) (c >> 16);
+            raw[o + 2] = (byte) (c >> 8);
+            raw[o + 3] = (byte) c;
+        }
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == compressed.length) compressed = Arrays.copyOf(compressed, length * 2);
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        return length;
+    }
+
+    /** Output of the last {@link #encode}. */
+    public byte[] buffer() {
+        return compressed;
+    }
+
+    /**
+     * Inflates a tile into the w x h area at (x, y) of an image width pixels wide.
+     */
+    public void decode(byte[] data, int offset, int length, int[] pixels, int width, int x, int y, int w, int h)
+            throws DataFormatException {
+        inflater.reset();
+        inflater.setInput(data, offset, length);
+        int n = 0;
+        while (n < raw.length && !inflater.finished()) {
+            int read = inflater.inflate(raw, n, raw.length - n);
+            if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                throw new DataFormatException("Truncated tile");
+            }
+            n += read;
+        }
+        for (int row = 0; row < h; row++) {
+            int in = row * TILE_SIZE * 4, out = (y + row) * width + x;
+            for (int i = 0; i < w; i++, in += 4) {
+                pixels[out + i] = ((raw[in] & 0xFF) << 24) | ((raw[in + 1] & 0xFF) << 16)
+                        | ((raw[in + 2] & 0xFF) << 8) | (raw[in + 3] & 0xFF);
+            }
+        }
+    }
+
+    /**
+     * True if the top-left w x h pixels of a {@value #TILE_SIZE}-stride tile are fully transparent.
+     */
+    public static boolean isTransparent(int[] tilePixels, int w, int h) {
+        for (int row = 0; row < h; row++) {
+            for (int x = 0, i = row * TILE_SIZE; x < w; x++, i++) {
+                if ((tilePixels[i] >>> 24) != 0) return false;
+            }
+        }
+        return true;
+    }
+
+    public void end() {
+        deflater.end();
+        inflater.end();
+    }
+}
@@ -5,6 +5,10 @@ import java.awt.*;
 
 public class TopToolMenuBar extends JToolBar {
     private JCheckBox pixelPerfectCheckbox;
+    private JSlider stabilizerSlider;
+    private JSlider toleranceSlider;
+    private JCheckBox contiguousCheckbox;
+    private JCheckBox alphaMatchCheckbox;
 
     public TopToolMenuBar(PaintCanvas canvas) {
         setFloatable(false); // Prevents it from floating/moving
@@ -22,5 +26,48 @@ public class TopToolMenuBar extends JToolBar {
         pixelPerfectCheckbox.addActionListener(e -> canvas.setPixelPerfectMode(pixelPerfectCheckbox.isSelected()));
 
         add(pixelPerfectCheckbox);
+
+        // Stroke stabilizer strength
+        JLabel stabilizerLabel = new JLabel("Stabilizer: 0");
+        stabilizerLabel.setForeground(Color.WHITE);
+        stabilizerSlider = new JSlider(JSlider.HORIZONTAL, 0, StrokeStabilizer.MAX_STRENGTH, 0);
+        stabilizerSlider.setOpaque(false);
+        stabilizerSlider.setMaximumSize(new Dimension(100, 30));
+        stabilizerSlider.addChangeListener(e -> {
+            stabilizerLabel.setText("Stabilizer: " + stabilizerSlider.getValue());
+            canvas.setStabilizerStrength(stabilizerSlider.getValue());
+        });
+
+        add(stabilizerLabel);
+        add(stabilizerSlider);
+        addSeparator();
+
+        // Bucket fill options
+        JLabel toleranceLabel = new JLabel("Tolerance: 0");
+        toleranceLabel.setForeground(Color.WHITE);
+        toleranceSlider = new JSlider(JSlider.HORIZONTAL, 0, 255, 0);
+        toleranceSlider.setOpaque(false);
+        toleranceSlider.setMaximumSize(new Dimension(140, 30));
+        toleranceSlider.addChangeListener(e -> {
+            toleranceLabel.setText("Tolerance: " + toleranceSlider.getValue());
+            canvas.setFillTolerance(toleranceSlider.getValue());
+        });
+
+        contiguousCheckbox = new JCheckBox("Contiguous");
+        contiguousCheckbox.setForeground(Color.WHITE);
+        contiguousCheckbox.setOpaque(false);
+        contiguousCheckbox.setSelected(true);
+        contiguousCheckbox.addActionListener(e -> canvas.setFillContiguous(contiguousCheckbox.isSelected()));
+
+        alphaMatchCheckbox = new JCheckBox("Match Alpha");
+        alphaMatchCheckbox.setForeground(Color.WHITE);
+        alphaMatchCheckbox.setOpaque(false);
+        alphaMatchCheckbox.setSelected(true);
+        alphaMatchCheckbox.addActionListener(e -> canvas.setFillAlphaAware(alphaMatchCheckbox.isSelected()));
+
+        add(toleranceLabel);
+        add(toleranceSlider);
+        add(contiguousCheckbox);
+        add(alphaMatchCheckbox);
     }
 }
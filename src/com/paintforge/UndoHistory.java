@@ -0,0 +1,511 @@
+package com.paintforge;
+
+import java.awt.Rectangle;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Tile-based delta undo/redo over a {@link PixelRaster}: the packed ARGB
+ * pixels of a layer or the palette indices of an indexed image, whose tiles
+ * take a quarter of the memory and disk.
+ * <p>
+ * An operation (one stroke, fill, clear...) is bracketed by
+ * {@link #beginOperation} and {@link #commit}. Tools call
+ * {@link #beforeWrite} before touching pixels; the first time a
+ * {@value #TILE_SIZE}x{@value #TILE_SIZE} tile is touched during the
+ * operation its current contents are copied. On commit, tiles that ended up
+ * unchanged are dropped, and an operation that changed nothing records no
+ * entry at all. Undo and redo swap the stored tiles with the live pixels in
+ * place, so the canvas image is never reallocated.
+ * <p>
+ * History is kept within a memory budget. The {@code hotEntries} entries
+ * nearest the present on each stack stay as raw tiles; older ones are deflated in the background, and
+ * once the compressed entries exceed the budget the oldest are spilled to a
+ * {@link HistoryJournal} on disk. The hot window is held to the same budget:
+ * if raw entries alone exceed it (a few full-canvas edits), they are
+ * compressed and spilled oldest first too, down to the newest entry of
+ * each stack. Spilled and compressed entries are restored
+ * transparently when they are undone. Past the disk budget, the entries
+ * farthest from the present are dropped, from whichever stack (undo or redo)
+ * is deeper. {@link #close()} deletes the journal file.
+ * <p>
+ * Structure changes (layer add, delete and move, palette edits) are entries
+ * too, recorded with {@link #recordStructure}; they hold no tiles and stay in
+ * memory.
+ */
+public class UndoHistory implements PixelWriteListener {
+    public static final int TILE_SIZE = 64;
+
+    private final Deque<Entry> undoStack = new ArrayDeque<>();
+    private final Deque<Entry> redoStack = new ArrayDeque<>();
+
+    // Budget and tier bookkeeping
+    private int hotEntries = 8;
+    private long memoryBudget = 256L * 1024 * 1024;
+    private long diskBudget = 2L * 1024 * 1024 * 1024;
+    private final AtomicLong memoryBytes = new AtomicLong();
+    private final AtomicLong diskBytes = new AtomicLong();
+    private final HistoryJournal journal = new HistoryJournal();
+    private final AtomicBoolean rebalancePending = new AtomicBoolean();
+    private final ExecutorService tierExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "undo-history-tiers");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    // Operation in progress
+    private boolean active = false;
+    private PixelRaster raster;
+    private int width, height, tilesX, tilesY;
+    private long[] captured = new long[0];
+    private int[] capturedTiles = new int[16];
+    private Object[] capturedData = new Object[16];
+    private int capturedCount = 0;
+
+    /**
+     * Starts recording an operation on the given pixel buffer. Any operation
+     * still open is committed first.
+     */
+    public void beginOperation(int[] pixels, int width, int height) {
+        beginOperation(PixelRaster.of(pixels, width, height));
+    }
+
+    /**
+     * Starts recording an operation on the given raster. Any operation still
+     * open is committed first.
+     */
+    public synchronized void beginOperation(PixelRaster raster) {
+        if (active) commit();
+        this.raster = raster;
+        this.width = raster.getWidth();
+        this.height = raster.getHeight();
+        this.tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        this.tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        int words = (tilesX * tilesY + 63) >>> 6;
+        if (captured.length < words) {
+            captured = new long[words];
+        }
+        capturedCount = 0;
+        active = true;
+    }
+
+    public synchronized boolean isRecording() {
+        return active;
+    }
+
+    @Override
+    public synchronized void beforeWrite(int x, int y, int w, int h) {
+        if (!active) return;
+        int x0 = Math.max(0, x), y0 = Math.max(0, y);
+        int x1 = Math.min(width, x + w), y1 = Math.min(height, y + h);
+        if (x0 >= x1 || y0 >= y1) return;
+        for (int ty = y0 / TILE_SIZE, tyEnd = (y1 - 1) / TILE_SIZE; ty <= tyEnd; ty++) {
+            for (int tx = x0 / TILE_SIZE, txEnd = (x1 - 1) / TILE_SIZE; tx <= txEnd; tx++) {
+                int tile = ty * tilesX + tx;
+                if ((captured[tile >>> 6] & (1L << tile)) == 0) {
+                    captured[tile >>> 6] |= 1L << tile;
+                    captureTile(tile);
+                }
+            }
+        }
+    }
+
+    private void captureTile(int tile) {
+        if (capturedCount == capturedTiles.length) {
+            capturedTiles = Arrays.copyOf(capturedTiles, capturedCount * 2);
+            capturedData = Arrays.copyOf(capturedData, capturedCount * 2);
+        }
+        int tx = (tile % tilesX) * TILE_SIZE, ty = (tile / tilesX) * TILE_SIZE;
+        int tw = Math.min(TILE_SIZE, width - tx), th = Math.min(TILE_SIZE, height - ty);
+        capturedTiles[capturedCount] = tile;
+        capturedData[capturedCount] = raster.copy(tx, ty, tw, th);
+        capturedCount++;
+    }
+
+    /**
+     * Ends the current operation, keeping only the tiles that actually changed.
+     *
+     * @return true if an undo entry was recorded
+     */
+    public synchronized boolean commit() {
+        if (!active) return false;
+        active = false;
+        int kept = 0;
+        for (int i = 0; i < capturedCount; i++) {
+            int tile = capturedTiles[i];
+            captured[tile >>> 6] &= ~(1L << tile);
+            if (tileChanged(tile, capturedData[i])) {
+                capturedTiles[kept] = tile;
+                capturedData[kept] = capturedData[i];
+                kept++;
+            }
+        }
+        Entry entry = null;
+        if (kept > 0) {
+            entry = new Entry(raster, Arrays.copyOf(capturedTiles, kept), Arrays.copyOf(capturedData, kept));
+            undoStack.push(entry);
+            releaseAll(redoStack);
+            scheduleRebalance();
+        }
+        Arrays.fill(capturedData, 0, capturedCount, null);
+        capturedCount = 0;
+        raster = null;
+        return entry != null;
+    }
+
+    private boolean tileChanged(int tile, Object before) {
+        int tx = (tile % tilesX) * TILE_SIZE, ty = (tile / tilesX) * TILE_SIZE;
+        return !raster.matches(before, tx, ty, Math.min(TILE_SIZE, width - tx), Math.min(TILE_SIZE, height - ty));
+    }
+
+    /**
+     * Swaps a recorded document structure with the live one; calling it again
+     * swaps back. Returns the canvas area to redraw.
+     */
+    public interface StructureChange {
+        Rectangle swap();
+    }
+
+    /**
+     * Records a structure change that has already been applied, as one undo
+     * step. Any operation still open is committed first.
+     *
+     * @param bytes memory the change keeps alive (e.g. a deleted layer)
+     */
+    public synchronized void recordStructure(StructureChange change, long bytes) {
+        if (active) commit();
+        undoStack.push(new Entry(change, bytes));
+        releaseAll(redoStack);
+        scheduleRebalance();
+    }
+
+    public synchronized boolean canUndo() {
+        return !undoStack.isEmpty();
+    }
+
+    public synchronized boolean canRedo() {
+        return !redoStack.isEmpty();
+    }
+
+    /**
+     * Reverts the most recent entry.
+     *
+     * @return the canvas-space bounds that changed, or null if there was nothing to undo
+     */
+    public synchronized Rectangle undo() {
+        if (active) commit();
+        if (undoStack.isEmpty()) return null;
+        Entry entry = undoStack.pop();
+        Rectangle bounds = entry.swap();
+        redoStack.push(entry);
+        scheduleRebalance();
+        return bounds;
+    }
+
+    /**
+     * Re-applies the most recently undone entry.
+     *
+     * @return the canvas-space bounds that changed, or null if there was nothing to redo
+     */
+    public synchronized Rectangle redo() {
+        if (active) commit();
+        if (redoStack.isEmpty()) return null;
+        Entry entry = redoStack.pop();
+        Rectangle bounds = entry.swap();
+        undoStack.push(entry);
+        scheduleRebalance();
+        return bounds;
+    }
+
+    /**
+     * Drops all history, e.g. when the document is replaced.
+     */
+    public synchronized void clear() {
+        active = false;
+        Arrays.fill(capturedData, 0, capturedCount, null);
+        capturedCount = 0;
+        Arrays.fill(captured, 0L);
+        raster = null;
+        releaseAll(undoStack);
+        releaseAll(redoStack);
+        // Nothing is spilled any more: give the scratch file back
+        journal.close();
+    }
+
+    /**
+     * Drops all history, deletes the journal file and stops the tier thread
+     * (the document is closed). The history must not be used afterwards.
+     */
+    public synchronized void close() {
+        clear();
+        tierExecutor.shutdown();
+    }
+
+    private void releaseAll(Deque<Entry> stack) {
+        for (Entry entry : stack) {
+            entry.release();
+        }
+        stack.clear();
+    }
+
+    // ----- Memory budget -----
+
+    /** Number of most recent undo entries kept uncompressed. */
+    public void setHotEntries(int hotEntries) {
+        this.hotEntries = Math.max(1, hotEntries);
+        scheduleRebalance();
+    }
+
+    /** Bytes of history allowed in memory before old entries spill to disk. */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = Math.max(0, bytes);
+        scheduleRebalance();
+    }
+
+    /** Bytes of spilled history allowed on disk before the oldest entries are dropped. */
+    public void setDiskBudget(long bytes) {
+        this.diskBudget = Math.max(0, bytes);
+        scheduleRebalance();
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /** Bytes of undo/redo tiles currently held in memory (raw and compressed). */
+    public long getMemoryUsage() {
+        return memoryBytes.get();
+    }
+
+    /** Bytes of undo tiles currently spilled to the disk journal. */
+    public long getDiskUsage() {
+        return diskBytes.get();
+    }
+
+    private void scheduleRebalance() {
+        if (tierExecutor.isShutdown()) return;
+        if (rebalancePending.compareAndSet(false, true)) {
+            tierExecutor.execute(this::rebalance);
+        }
+    }
+
+    /**
+     * Moves undo and redo entries down the tiers until the budgets are met. Runs on the
+     * background tier thread; each entry is converted under its own lock so the
+     * paint path only waits if it undoes the very entry being compressed.
+     */
+    private void rebalance() {
+        rebalancePending.set(false);
+        List<Entry> undoNewestFirst, redoNewestFirst;
+        synchronized (this) {
+            undoNewestFirst = new ArrayList<>(undoStack);
+            redoNewestFirst = new ArrayList<>(redoStack);
+        }
+        compressBeyondHotWindow(undoNewestFirst);
+        compressBeyondHotWindow(redoNewestFirst);
+        spillOldest(undoNewestFirst, hotEntries);
+        spillOldest(redoNewestFirst, hotEntries);
+        // Still over budget: the hot window itself is too large
+        shrinkHotWindow(undoNewestFirst);
+        shrinkHotWindow(redoNewestFirst);
+        while (diskBytes.get() > diskBudget) {
+            Entry farthest;
+            synchronized (this) {
+                Deque<Entry> deeper = redoStack.size() > undoStack.size() ? redoStack : undoStack;
+                Iterator<Entry> it = deeper.descendingIterator();
+                if (!it.hasNext()) break;
+                farthest = it.next();
+                it.remove();
+            }
+            farthest.release();
+        }
+    }
+
+    private void compressBeyondHotWindow(List<Entry> newestFirst) {
+        for (int i = hotEntries; i < newestFirst.size(); i++) {
+            newestFirst.get(i).compress();
+        }
+    }
+
+    private void spillOldest(List<Entry> newestFirst, int keep) {
+        for (int i = newestFirst.size() - 1; i >= keep && memoryBytes.get() > memoryBudget; i--) {
+            newestFirst.get(i).spill();
+        }
+    }
+
+    /**
+     * Compresses and spills hot entries, oldest first, while memory is over
+     * budget. The newest entry stays raw so the next undo/redo is instant.
+     */
+    private void shrinkHotWindow(List<Entry> newestFirst) {
+        int end = Math.min(hotEntries, newestFirst.size()) - 1;
+        for (int i = end; i >= 1 && memoryBytes.get() > memoryBudget; i--) {
+            newestFirst.get(i).compress();
+        }
+        spillOldest(newestFirst, 1);
+    }
+
+    /**
+     * The tiles changed by one operation. Each stored tile holds the pixels that
+     * are not currently on the canvas; swapping exchanges them with the live ones,
+     * so the same entry serves both undo and redo.
+     * <p>
+     * The tiles live in exactly one tier: raw ({@code data}), deflated
+     * ({@code packed}) or spilled to the journal ({@code journalOffset}).
+     * Structure entries hold a {@link StructureChange} instead and never move tiers.
+     */
+    private final class Entry {
+        private final PixelRaster target;
+        private final int[] tiles;
+        private Object[] data;
+        private byte[] packed;
+        private long journalOffset = -1;
+        private int journalLength;
+        private boolean released = false;
+        private final StructureChange structure;
+        private final long structureBytes;
+
+        Entry(PixelRaster target, int[] tiles, Object[] data) {
+            this.target = target;
+            this.tiles = tiles;
+            this.data = data;
+            this.structure = null;
+            this.structureBytes = 0;
+            memoryBytes.addAndGet(rawBytes());
+        }
+
+        Entry(StructureChange structure, long bytes) {
+            this.target = null;
+            this.tiles = new int[0];
+            this.data = new Object[0];
+            this.structure = structure;
+            this.structureBytes = bytes;
+            memoryBytes.addAndGet(rawBytes());
+        }
+
+        private long rawBytes() {
+            long bytes = structureBytes;
+            for (Object tile : data) bytes += (long) target.bytesPerPixel() * target.length(tile);
+            return bytes;
+        }
+
+        synchronized Rectangle swap() {
+            if (structure != null) return structure.swap();
+            ensureRaw();
+            Rectangle bounds = null;
+            for (int i = 0; i < tiles.length; i++) {
+                Rectangle r = tileBounds(tiles[i]);
+                target.swap(data[i], r.x, r.y, r.width, r.height);
+                bounds = (bounds == null) ? r : bounds.union(r);
+            }
+            return bounds;
+        }
+
+        /** Deflates raw tiles into a single byte array. */
+        synchronized void compress() {
+            if (released || data == null || structure != null) return;
+            long raw = rawBytes();
+            ByteBuffer bytes = ByteBuffer.allocate((int) raw);
+            for (Object tile : data) target.pack(tile, bytes);
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            deflater.setInput(bytes.array());
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.max(64, raw / 4));
+            byte[] chunk = new byte[16 * 1024];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(chunk);
+                out.write(chunk, 0, n);
+            }
+            deflater.end();
+            packed = out.toByteArray();
+            data = null;
+            memoryBytes.addAndGet(packed.length - raw);
+        }
+
+        /** Writes the compressed tiles to the journal and drops them from memory. */
+        synchronized void spill() {
+            if (released || data != null || packed == null) return;
+            journalOffset = journal.append(packed);
+            journalLength = packed.length;
+            memoryBytes.addAndGet(-packed.length);
+            diskBytes.addAndGet(journalLength);
+            packed = null;
+        }
+
+        private void ensureRaw() {
+            if (data != null) return;
+            if (packed == null) {
+                packed = journal.read(journalOffset, journalLength);
+                journal.release(journalOffset, journalLength);
+                diskBytes.addAndGet(-journalLength);
+                memoryBytes.addAndGet(packed.length);
+                journalOffset = -1;
+            }
+            int total = 0;
+            for (int tile : tiles) {
+                Rectangle r = tileBounds(tile);
+                total += r.width * r.height;
+            }
+            byte[] bytes = new byte[total * target.bytesPerPixel()];
+            Inflater inflater = new Inflater();
+            inflater.setInput(packed);
+            try {
+                int off = 0;
+                while (off < bytes.length && !inflater.finished()) {
+                    off += inflater.inflate(bytes, off, bytes.length - off);
+                }
+            } catch (DataFormatException e) {
+                throw new IllegalStateException("Corrupt undo entry", e);
+            } finally {
+                inflater.end();
+            }
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            Object[] tilesData = new Object[tiles.length];
+            for (int i = 0; i < tiles.length; i++) {
+                Rectangle r = tileBounds(tiles[i]);
+                tilesData[i] = target.unpack(in, r.width * r.height);
+            }
+            memoryBytes.addAndGet(-packed.length);
+            packed = null;
+            data = tilesData;
+            memoryBytes.addAndGet(rawBytes());
+        }
+
+        private Rectangle tileBounds(int tile) {
+            int width = target.getWidth(), height = target.getHeight();
+            int tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+            int tx = (tile % tilesX) * TILE_SIZE, ty = (tile / tilesX) * TILE_SIZE;
+            return new Rectangle(tx, ty, Math.min(TILE_SIZE, width - tx), Math.min(TILE_SIZE, height - ty));
+        }
+
+        /** Frees whatever tier currently holds the tiles. */
+        synchronized void release() {
+            if (released) return;
+            released = true;
+            if (data != null) {
+                memoryBytes.addAndGet(-rawBytes());
+            } else if (packed != null) {
+                memoryBytes.addAndGet(-packed.length);
+            } else if (journalOffset >= 0) {
+                journal.release(journalOffset, journalLength);
+                diskBytes.addAndGet(-journalLength);
+            }
+            data = null;
+            packed = null;
+        }
+    }
+}
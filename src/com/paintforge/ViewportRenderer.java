@@ -0,0 +1,237 @@
+package com.paintforge;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ * Viewport-sized presentation buffer holding the zoomed canvas.
+ * <p>
+ * Only the part of the document that is visible is ever scaled: the buffer
+ * has the size of the component, and each buffer pixel is mapped back to the
+ * canvas pixel it shows with precomputed column/row tables (nearest neighbour,
+ * like the default Java2D scaling it replaces). The buffer is split into
+ * {@value #TILE}x{@value #TILE} screen tiles; drawing tools invalidate the
+ * tiles they touch and only those are rebuilt on the next paint. A change of
+ * zoom, pan, size or document invalidates everything. Whole-number zoom levels
+ * take a fast path that replicates source pixels with fills and row copies.
+ * <p>
+ * When zoomed out, the source is a {@link MipmapPyramid} level instead of the
+ * document: zoom and pan stay in canvas space and canvas coordinates are
+ * shifted down to the level's resolution.
+ * <p>
+ * Indexed-colour documents are shown from their index bytes, looking each
+ * pixel up in the palette as the tile is built, so a palette edit only
+ * needs {@link #invalidateAll()}: no image is recoloured.
+ */
+public class ViewportRenderer {
+    private static final int TILE = 64;
+
+    private BufferedImage buffer;
+    private int[] bufferPixels;
+    private int bufferW, bufferH, tilesX, tilesY;
+    private long[] dirtyTiles = new long[0];
+
+    // Mapping the buffer was built for
+    private int[] source;
+    // Indexed documents: index bytes and the palette they are looked up in
+    private byte[] indexedSource;
+    private int[] lookup;
+    private int sourceW, canvasW, canvasH, level;
+    private double zoom, panX, panY;
+    private int[] xMap = new int[0], yMap = new int[0];
+
+    /**
+     * Marks the screen tiles showing the given canvas-space rectangle as stale.
+     */
+    public void invalidate(Rectangle canvasRect) {
+        if (buffer == null) return;
+        int x1 = (int) Math.floor(canvasRect.x * zoom + panX) - 1;
+        int y1 = (int) Math.floor(canvasRect.y * zoom + panY) - 1;
+        int x2 = (int) Math.ceil((canvasRect.x + canvasRect.width) * zoom + panX) + 1;
+        int y2 = (int) Math.ceil((canvasRect.y + canvasRect.height) * zoom + panY) + 1;
+        markTiles(x1, y1, x2, y2);
+    }
+
+    /**
+     * Marks the whole buffer as stale.
+     */
+    public void invalidateAll() {
+        Arrays.fill(dirtyTiles, -1L);
+    }
+
+    /**
+     * Brings the tiles under the clip up to date and draws them.
+     *
+     * @param canvasW     document width at full resolution
+     * @param canvasH     document height at full resolution
+     * @param pixels      packed int pixels of the mipmap level being shown
+     * @param levelWidth  row stride of {@code pixels}
+     * @param level       mipmap level (0 = full resolution)
+     * @param hasAlpha    false for RGB documents, whose raw pixels carry no alpha
+     */
+    public void paint(Graphics2D g, Rectangle clip, int componentW, int componentH,
+                      int canvasW, int canvasH, int[] pixels, int levelWidth, int level, boolean hasAlpha,
+                      double zoom, double panX, double panY) {
+        if (componentW <= 0 || componentH <= 0) return;
+        if (indexedSource != null) {
+            indexedSource = null;
+            lookup = null;
+            source = null;
+        }
+        prepare(componentW, componentH, canvasW, canvasH, pixels, levelWidth, level, zoom, panX, panY);
+        drawTiles(g, clip, hasAlpha ? 0 : 0xFF000000);
+    }
+
+    /**
+     * Like {@link #paint} for an indexed-colour document at full resolution:
+     * each index is looked up in the palette while the tile is rebuilt.
+     *
+     * @param indices  row-major palette indices, one byte per pixel
+     * @param palette  ARGB palette; its contents are read, so an edited palette
+     *                 takes effect after {@link #invalidateAll()}
+     */
+    public void paintIndexed(Graphics2D g, Rectangle clip, int componentW, int componentH,
+                             byte[] indices, int[] palette, int canvasW, int canvasH,
+                             double zoom, double panX, double panY) {
+        if (componentW <= 0 || componentH <= 0) return;
+        if (indices != indexedSource) {
+            indexedSource = indices;
+            sourceW = -1;
+        }
+        lookup = palette;
+        prepare(componentW, componentH, canvasW, canvasH, null, canvasW, 0, zoom, panX, panY);
+        drawTiles(g, clip, 0);
+    }
+
+    /** Reallocates and remaps the buffer if the source or mapping changed. */
+    private void prepare(int componentW, int componentH, int canvasW, int canvasH, int[] pixels,
+                         int levelWidth, int level, double zoom, double panX, double panY) {
+        if (buffer == null || componentW != bufferW || componentH != bufferH) {
+            allocate(componentW, componentH);
+            this.source = null;
+            this.sourceW = -1;
+        }
+        if (pixels != source || levelWidth != sourceW || level != this.level
+                || canvasW != this.canvasW || canvasH != this.canvasH
+                || zoom != this.zoom || panX != this.panX || panY != this.panY) {
+            this.source = pixels;
+            this.sourceW = levelWidth;
+            this.level = level;
+            this.canvasW = canvasW;
+            this.canvasH = canvasH;
+            this.zoom = zoom;
+            this.panX = panX;
+            this.panY = panY;
+            buildMaps();
+            invalidateAll();
+        }
+    }
+
+    private void drawTiles(Graphics2D g, Rectangle clip, int alphaOr) {
+        Rectangle area = clip.intersection(new Rectangle(0, 0, bufferW, bufferH));
+        if (area.isEmpty()) return;
+        for (int ty = area.y / TILE, tyEnd = (area.y + area.height - 1) / TILE; ty <= tyEnd; ty++) {
+            for (int tx = area.x / TILE, txEnd = (area.x + area.width - 1) / TILE; tx <= txEnd; tx++) {
+                int tile = ty * tilesX + tx;
+                if ((dirtyTiles[tile >>> 6] & (1L << tile)) != 0) {
+                    dirtyTiles[tile >>> 6] &= ~(1L << tile);
+                    renderTile(tx * TILE, ty * TILE,
+                            Math.min(bufferW, tx * TILE + TILE), Math.min(bufferH, ty * TILE + TILE), alphaOr);
+                }
+            }
+        }
+        g.drawImage(buffer, area.x, area.y, area.x + area.width, area.y + area.height,
+                area.x, area.y, area.x + area.width, area.y + area.height, null);
+    }
+
+    private void allocate(int w, int h) {
+        buffer = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        bufferPixels = ((DataBufferInt) buffer.getRaster().getDataBuffer()).getData();
+        bufferW = w;
+        bufferH = h;
+        tilesX = (w + TILE - 1) / TILE;
+        tilesY = (h + TILE - 1) / TILE;
+        dirtyTiles = new long[(tilesX * tilesY + 63) >>> 6];
+        xMap = new int[w];
+        yMap = new int[h];
+    }
+
+    /**
+     * For every buffer column/row, the source column/row it shows (-1 if none).
+     */
+    private void buildMaps() {
+        for (int bx = 0; bx < bufferW; bx++) {
+            int cx = (int) Math.floor((bx - panX) / zoom);
+            xMap[bx] = (cx >= 0 && cx < canvasW) ? cx >> level : -1;
+        }
+        for (int by = 0; by < bufferH; by++) {
+            int cy = (int) Math.floor((by - panY) / zoom);
+            yMap[by] = (cy >= 0 && cy < canvasH) ? cy >> level : -1;
+        }
+    }
+
+    private void markTiles(int x1, int y1, int x2, int y2) {
+        x1 = Math.max(0, x1);
+        y1 = Math.max(0, y1);
+        x2 = Math.min(bufferW, x2);
+        y2 = Math.min(bufferH, y2);
+        if (x1 >= x2 || y1 >= y2) return;
+        for (int ty = y1 / TILE, tyEnd = (y2 - 1) / TILE; ty <= tyEnd; ty++) {
+            for (int tx = x1 / TILE, txEnd = (x2 - 1) / TILE; tx <= txEnd; tx++) {
+                int tile = ty * tilesX + tx;
+                dirtyTiles[tile >>> 6] |= 1L << tile;
+            }
+        }
+    }
+
+    private void renderTile(int bx0, int by0, int bx1, int by1, int alphaOr) {
+        boolean integerZoom = level == 0 && zoom >= 1 && zoom == Math.rint(zoom);
+        for (int by = by0; by < by1; by++) {
+            int dst = by * bufferW;
+            int cy = yMap[by];
+            if (cy < 0) {
+                Arrays.fill(bufferPixels, dst + bx0, dst + bx1, 0);
+            } else if (by > by0 && yMap[by - 1] == cy) {
+                // Same source row as the row above: copy it
+                System.arraycopy(bufferPixels, dst - bufferW + bx0, bufferPixels, dst + bx0, bx1 - bx0);
+            } else if (integerZoom) {
+                renderRowReplicated(cy * sourceW, dst, bx0, bx1, alphaOr);
+            } else {
+                int src = cy * sourceW;
+                for (int bx = bx0; bx < bx1; bx++) {
+                    int cx = xMap[bx];
+                    bufferPixels[dst + bx] = cx < 0 ? 0 : sample(src + cx, alphaOr);
+                }
+            }
+        }
+    }
+
+    /**
+     * Integer zoom: each source pixel covers a run of identical buffer pixels.
+     */
+    private void renderRowReplicated(int src, int dst, int bx0, int bx1, int alphaOr) {
+        int bx = bx0;
+        while (bx < bx1) {
+            int cx = xMap[bx];
+            int runEnd;
+            if (cx < 0) {
+                runEnd = bx + 1;
+                while (runEnd < bx1 && xMap[runEnd] < 0) runEnd++;
+            } else {
+                // Pixel cx covers buffer columns [cx * zoom + panX, (cx + 1) * zoom + panX)
+                runEnd = Math.min(bx1, Math.max(bx + 1, (int) Math.ceil((cx + 1) * zoom + panX)));
+            }
+            int value = cx < 0 ? 0 : sample(src + cx, alphaOr);
+            Arrays.fill(bufferPixels, dst + bx, dst + runEnd, value);
+            bx = runEnd;
+        }
+    }
+
+    /** The colour of source pixel i: packed, or looked up for indexed documents. */
+    private int sample(int i, int alphaOr) {
+        return indexedSource != null ? lookup[indexedSource[i] & 0xFF] : (source[i] | alphaOr);
+    }
+}
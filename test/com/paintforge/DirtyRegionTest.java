@@ -0,0 +1,73 @@
+package com.paintforge;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DirtyRegionTest {
+    private static final int W = 120, H = 90;
+
+    @Test
+    void mergesIntoOneBoxAndResets() {
+        DirtyRegion region = new DirtyRegion();
+        assertNull(region.take());
+        region.add(10, 10, 5, 5);
+        region.add(new Rectangle(40, 2, 10, 3));
+        region.add(0, 0, 0, 10);
+        assertEquals(new Rectangle(10, 2, 40, 13), region.take());
+        assertTrue(region.isEmpty());
+        assertNull(region.take());
+    }
+
+    @Test
+    void everyToolReportsTheAreaItChanged() {
+        assertCovered(e -> e.stroke(new int[]{10, 60, 80}, new int[]{10, 50, 20}));
+        assertCovered(e -> e.line(5, 80, 110, 5, Color.RED, 4));
+        assertCovered(e -> e.fill(100, 80, Color.BLUE));
+        assertCovered(EditEngine::clear);
+        assertCovered(e -> {
+            e.setFillContiguous(false);
+            e.fill(0, 0, Color.GREEN);
+        });
+    }
+
+    /**
+     * Runs an edit on a document with some content and checks that every
+     * pixel it changed lies inside the region its listener was told about.
+     */
+    private static void assertCovered(Consumer<EditEngine> edit) {
+        Document document = new Document(W, H);
+        EditEngine engine = new EditEngine(document);
+        engine.setColor(Color.BLACK);
+        engine.setBrushSize(6);
+        engine.line(0, 45, W, 45, Color.DARK_GRAY, 3);
+        int[] before = document.getActivePixels().clone();
+        DirtyRegion dirty = new DirtyRegion();
+        document.setListener(new DocumentListener() {
+            @Override
+            public void pixelsChanged(int x, int y, int width, int height) {
+                dirty.add(x, y, width, height);
+            }
+
+            @Override
+            public void layersChanged(Rectangle r) {
+                dirty.add(r);
+            }
+        });
+        edit.accept(engine);
+        Rectangle reported = dirty.take();
+        int[] after = document.getActivePixels();
+        int changed = 0;
+        for (int i = 0; i < after.length; i++) {
+            if (after[i] == before[i]) continue;
+            changed++;
+            assertNotNull(reported, "changes were not reported");
+            assertTrue(reported.contains(i % W, i / W), "pixel " + (i % W) + "," + (i / W) + " outside " + reported);
+        }
+        assertTrue(changed > 0, "the edit changed nothing");
+    }
+}
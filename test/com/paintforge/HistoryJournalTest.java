@@ -0,0 +1,77 @@
+package com.paintforge;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HistoryJournalTest {
+    @Test
+    void recordsSpanningRegionsReadBack() {
+        HistoryJournal journal = new HistoryJournal();
+        byte[] first = random(HistoryJournal.REGION_SIZE - 10, 1);
+        byte[] second = random(100, 2);
+        long a = journal.append(first);
+        long b = journal.append(second);
+        assertArrayEquals(first, journal.read(a, first.length));
+        assertArrayEquals(second, journal.read(b, second.length));
+        assertEquals(2, journal.getMappedRegions());
+    }
+
+    @Test
+    void releasedSpaceAndMappingsAreReused() {
+        HistoryJournal journal = new HistoryJournal();
+        for (int round = 0; round < 50; round++) {
+            byte[] data = random(1024 * 1024, round);
+            long offset = journal.append(data);
+            assertEquals(0, offset);
+            assertArrayEquals(data, journal.read(offset, data.length));
+            journal.release(offset, data.length);
+        }
+        assertEquals(0, journal.getLiveBytes());
+        assertEquals(1, journal.getMappedRegions());
+    }
+
+    @Test
+    void freedHolesAreReusedWhileOtherRecordsStayLive() {
+        HistoryJournal journal = new HistoryJournal();
+        byte[] pinned = random(1000, 0);
+        long pinnedAt = journal.append(random(3000, 1));
+        journal.append(pinned);
+        long tail = journal.append(random(500, 2));
+        journal.release(pinnedAt, 3000);
+        for (int round = 0; round < 100; round++) {
+            byte[] a = random(1000, round), b = random(2000, round + 1);
+            long at = journal.append(a), bt = journal.append(b);
+            assertArrayEquals(a, journal.read(at, a.length));
+            assertArrayEquals(b, journal.read(bt, b.length));
+            journal.release(at, a.length);
+            journal.release(bt, b.length);
+        }
+        assertEquals(4500, journal.getUsedBytes());
+        assertEquals(1500, journal.getLiveBytes());
+        assertArrayEquals(pinned, journal.read(3000, pinned.length));
+
+        // Freeing the tail gives the end of the file back, merged with the hole before it
+        journal.release(tail, 500);
+        assertEquals(4000, journal.getUsedBytes());
+    }
+
+    @Test
+    void closeDeletesTheFileAndAllowsReuse() {
+        HistoryJournal journal = new HistoryJournal();
+        journal.append(random(100, 0));
+        journal.close();
+        assertEquals(0, journal.getLiveBytes());
+        assertEquals(0, journal.getMappedRegions());
+        byte[] data = random(100, 1);
+        assertArrayEquals(data, journal.read(journal.append(data), data.length));
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,177 @@
+package com.paintforge;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IndexedEditEngineTest {
+    private static final int W = 16, H = 16;
+    private static final int WHITE = 0xFFFFFFFF, BLACK = 0xFF000000, CLEAR = 0x00000000;
+
+    /** All white, with black as entry 1 and transparent as entry 2. */
+    private static IndexedDocument document() {
+        return new IndexedDocument(new IndexedImage(W, H, new Palette(new int[]{WHITE, BLACK, CLEAR}, 3)));
+    }
+
+    private static int index(IndexedDocument document, int x, int y) {
+        return document.getImage().getPixels()[y * W + x];
+    }
+
+    @Test
+    void strokeWritesTheColoursEntry() {
+        IndexedDocument document = document();
+        IndexedEditEngine engine = new IndexedEditEngine(document);
+        engine.setColor(Color.BLACK);
+        engine.setBrushSize(3);
+        engine.stroke(new int[]{2, 12}, new int[]{8, 8});
+        for (int x = 2; x <= 12; x++) assertEquals(1, index(document, x, 8));
+        assertEquals(0, index(document, 7, 3));
+        assertEquals(3, document.getPalette().size());
+    }
+
+    @Test
+    void missingColourPaintsTheNearestEntryWithoutAddingOne() {
+        IndexedDocument document = document();
+        IndexedEditEngine engine = new IndexedEditEngine(document);
+        engine.setColor(new Color(30, 0, 0));
+        assertEquals(1, engine.paintIndex());
+        engine.stroke(new int[]{1, 5}, new int[]{1, 1});
+        engine.fill(10, 10, new Color(250, 250, 240));
+        engine.line(0, 14, 15, 14, new Color(20, 20, 20), 1);
+        assertEquals(1, index(document, 3, 1));
+        assertEquals(1, index(document, 8, 14));
+        assertEquals(3, document.getPalette().size());
+    }
+
+    @Test
+    void addedEntryIsOneUndoStep() {
+        IndexedDocument document = document();
+        IndexedEditEngine engine = new IndexedEditEngine(document);
+        engine.setColor(Color.RED);
+        assertEquals(3, engine.addPaletteEntry());
+        assertEquals(3, engine.addPaletteEntry());
+        assertEquals(3, engine.paintIndex());
+        engine.stroke(new int[]{4}, new int[]{4});
+        assertEquals(3, index(document, 4, 4));
+
+        engine.undo();
+        assertEquals(0, index(document, 4, 4));
+        assertEquals(4, document.getPalette().size());
+        engine.undo();
+        assertEquals(3, document.getPalette().size());
+        assertFalse(document.canUndo());
+    }
+
+    @Test
+    void strokeStaysInsideTheSelection() {
+        IndexedDocument document = document();
+        IndexedEditEngine engine = new IndexedEditEngine(document);
+        SelectionMask left = new SelectionMask(W, H);
+        for (int y = 0; y < H; y++) left.addSpan(y, 0, W / 2);
+        document.setSelection(left);
+        engine.setColor(Color.BLACK);
+        engine.setBrushSize(5);
+        engine.stroke(new int[]{1, 14}, new int[]{8, 8});
+        for (int y = 0; y < H; y++) {
+            for (int x = W / 2; x < W; x++) assertEquals(0, index(document, x, y), "outside at " + x + "," + y);
+        }
+        assertEquals(1, index(document, W / 2 - 1, 8));
+    }
+
+    @Test
+    void pixelPerfectStrokeWritesOnlyTheSelectionsSpans() {
+        IndexedDocument document = document();
+        IndexedEditEngine engine = new IndexedEditEngine(document);
+        SelectionMask holes = new SelectionMask(W, H);
+        for (int y = 0; y < H; y++) {
+            holes.addSpan(y, 0, 4);
+            holes.addSpan(y, 8, 12);
+        }
+        document.setSelection(holes);
+        engine.setColor(Color.BLACK);
+        engine.stroke(new int[]{0, W - 1}, new int[]{2, 2});
+        engine.stroke(new int[]{W - 1, 0}, new int[]{5, 5});
+        for (int x = 0; x < W; x++) {
+            assertEquals(holes.contains(x, 2) ? 1 : 0, index(document, x, 2), "at " + x + ",2");
+            assertEquals(holes.contains(x, 5) ? 1 : 0, index(document, x, 5), "at " + x + ",5");
+        }
+    }
+
+    @Test
+    void fillStopsAtBarriersAndTheSelection() {
+        IndexedDocument document = document();
+        IndexedEditEngine engine = new IndexedEditEngine(document);
+        engine.setColor(Color.BLACK);
+        engine.line(0, 4, W - 1, 4, Color.BLACK, 1);
+        SelectionMask top = new SelectionMask(W, H);
+        for (int y = 0; y < 3; y++) top.addSpan(y, 0, W);
+        top.addSpan(6, 0, W);
+        document.setSelection(top);
+
+        engine.fill(0, 0, new Color(0, 0, 0, 0));
+        for (int y = 0; y < 3; y++) assertEquals(2, index(document, 5, y));
+        assertEquals(0, index(document, 5, 3));
+        assertEquals(1, index(document, 5, 4));
+        assertEquals(0, index(document, 5, 6));
+
+        // Outside the selection the seed does nothing
+        engine.fill(5, 10, Color.BLACK);
+        assertEquals(0, index(document, 5, 10));
+    }
+
+    @Test
+    void globalFillReplacesTheIndexInTheSelectionOnly() {
+        IndexedDocument document = document();
+        IndexedEditEngine engine = new IndexedEditEngine(document);
+        engine.setFillContiguous(false);
+        engine.line(0, 4, W - 1, 4, Color.BLACK, 1);
+        SelectionMask right = new SelectionMask(W, H);
+        for (int y = 0; y < H; y++) right.addSpan(y, W / 2, W);
+        document.setSelection(right);
+
+        engine.fill(W - 1, 0, new Color(0, 0, 0, 0));
+        assertEquals(2, index(document, W - 1, 10));
+        assertEquals(1, index(document, W - 1, 4));
+        assertEquals(0, index(document, 0, 10));
+    }
+
+    @Test
+    void pixelPerfectStrokeDropsCorners() {
+        IndexedDocument document = document();
+        IndexedEditEngine engine = new IndexedEditEngine(document);
+        engine.setColor(Color.BLACK);
+        engine.stroke(new int[]{2, 3, 3, 4}, new int[]{2, 2, 3, 3});
+        assertEquals(1, index(document, 2, 2));
+        assertEquals(0, index(document, 3, 2));
+        assertEquals(1, index(document, 3, 3));
+        assertEquals(1, index(document, 4, 3));
+
+        engine.setPixelPerfectMode(false);
+        engine.stroke(new int[]{2, 3, 3}, new int[]{8, 8, 9});
+        assertEquals(1, index(document, 3, 8));
+    }
+
+    @Test
+    void eraserPaintsTheMostTransparentEntry() {
+        IndexedDocument document = document();
+        IndexedEditEngine engine = new IndexedEditEngine(document);
+        engine.setTool("ERASER");
+        assertEquals(2, engine.paintIndex());
+        engine.stroke(new int[]{6, 9}, new int[]{6, 6});
+        assertEquals(2, index(document, 7, 6));
+    }
+
+    @Test
+    void magicWandSelectsTheIndex() {
+        IndexedDocument document = document();
+        IndexedEditEngine engine = new IndexedEditEngine(document);
+        engine.line(0, 4, W - 1, 4, Color.BLACK, 1);
+        engine.magicWand(0, 0, SelectionMask.Mode.REPLACE);
+        SelectionMask selection = document.getSelection();
+        assertTrue(selection.contains(W - 1, 3));
+        assertFalse(selection.contains(0, 4));
+        assertFalse(selection.contains(0, 5));
+    }
+}
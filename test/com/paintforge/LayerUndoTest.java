@@ -0,0 +1,113 @@
+package com.paintforge;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LayerUndoTest {
+    @Test
+    void deletedLayerComesBackWithItsPixels() {
+        Document document = new Document(64, 64);
+        EditEngine engine = new EditEngine(document);
+        document.addLayer();
+        Layer added = document.getLayers().getActive();
+        engine.line(0, 10, 63, 10, Color.RED, 3);
+        int painted = added.getPixels()[10 * 64 + 30];
+
+        document.removeActiveLayer();
+        assertEquals(1, document.getLayers().size());
+        document.undo();
+        assertEquals(2, document.getLayers().size());
+        assertSame(added, document.getLayers().getActive());
+        assertSame(added.getPixels(), document.getActivePixels());
+        assertEquals(painted, added.getPixels()[10 * 64 + 30]);
+
+        // Then the stroke, then the added layer
+        document.undo();
+        assertEquals(0, added.getPixels()[10 * 64 + 30]);
+        document.undo();
+        assertEquals(1, document.getLayers().size());
+
+        document.redo();
+        document.redo();
+        document.redo();
+        assertEquals(1, document.getLayers().size());
+        assertFalse(document.canRedo());
+    }
+
+    @Test
+    void moveIsUndoable() {
+        Document document = new Document(16, 16);
+        Layer background = document.getLayers().get(0);
+        document.addLayer();
+        document.moveActiveLayer(-1);
+        assertNotSame(background, document.getLayers().get(0));
+        document.undo();
+        assertSame(background, document.getLayers().get(0));
+        assertEquals(1, document.getLayers().getActiveIndex());
+    }
+
+    @Test
+    void structureUndoReportsAStructureChange() {
+        Document document = new Document(16, 16);
+        int[] structure = new int[1];
+        document.setListener(new DocumentListener() {
+            @Override
+            public void structureChanged() {
+                structure[0]++;
+            }
+        });
+        document.addLayer();
+        document.undo();
+        assertEquals(2, structure[0]);
+    }
+
+    @Test
+    void replacedLayersComeBackOnUndo() {
+        Document document = new Document(16, 16);
+        document.addLayer();
+        Layer background = document.getLayers().get(0);
+
+        document.replaceLayers(LayerStack.withBackground(16, 16, Color.BLUE));
+        assertEquals(1, document.getLayers().size());
+        assertEquals(0xFF0000FF, document.getActivePixels()[0]);
+
+        document.undo();
+        assertEquals(2, document.getLayers().size());
+        assertSame(background, document.getLayers().get(0));
+        assertSame(document.getLayers().getActive().getPixels(), document.getActivePixels());
+        document.redo();
+        assertEquals(0xFF0000FF, document.getActivePixels()[0]);
+        document.undo();
+        document.undo();
+        assertEquals(1, document.getLayers().size());
+    }
+
+    @Test
+    void spilledLayersComeBackWithTheirPixelsAndHistory() {
+        Document document = new Document(300, 200);
+        EditEngine engine = new EditEngine(document);
+        engine.line(0, 10, 299, 190, Color.RED, 5);
+        document.addLayer();
+        engine.line(0, 190, 299, 10, Color.BLUE, 5);
+        int[] background = document.getLayers().get(0).getPixels().clone();
+        int[] top = document.getActivePixels().clone();
+        document.setHistoryMemoryBudget(1 << 20);
+
+        document.spillLayers();
+        assertTrue(document.isSpilled());
+        assertNull(document.getActivePixels());
+        assertEquals(1 << 20, document.getHistoryMemoryBudget());
+
+        document.restoreLayers();
+        assertFalse(document.isSpilled());
+        assertArrayEquals(background, document.getLayers().get(0).getPixels());
+        assertArrayEquals(top, document.getActivePixels());
+        assertEquals(1 << 20, document.getHistoryMemoryBudget());
+        document.undo();
+        assertEquals(0, document.getActivePixels()[100 * 300 + 150]);
+        document.close();
+    }
+}
@@ -0,0 +1,46 @@
+package com.paintforge;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Rectangle;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MipmapPyramidTest {
+    @Test
+    void transparentPixelsDoNotBleedIntoEdges() {
+        // Opaque red beside transparent white: the edge stays pure red
+        int[] pixels = {0xFFFF0000, 0x00FFFFFF, 0xFFFF0000, 0x00FFFFFF};
+        MipmapPyramid pyramid = new MipmapPyramid();
+        pyramid.setSource(pixels, 2, 2);
+        assertEquals(0x80FF0000, pyramid.level(1)[0]);
+    }
+
+    @Test
+    void fullyTransparentBlockIsTransparentBlack() {
+        int[] pixels = {0x00FFFFFF, 0x0000FF00, 0x000000FF, 0x00123456};
+        MipmapPyramid pyramid = new MipmapPyramid();
+        pyramid.setSource(pixels, 2, 2);
+        assertEquals(0, pyramid.level(1)[0]);
+    }
+
+    @Test
+    void opaqueBlocksAverage() {
+        int[] pixels = {0xFF000000, 0xFFFFFFFF, 0xFF000000, 0xFFFFFFFF};
+        MipmapPyramid pyramid = new MipmapPyramid();
+        pyramid.setSource(pixels, 2, 2);
+        assertEquals(0xFF808080, pyramid.level(1)[0]);
+    }
+
+    @Test
+    void invalidatedTilesAreRebuilt() {
+        int[] pixels = new int[8 * 8];
+        MipmapPyramid pyramid = new MipmapPyramid();
+        pyramid.setSource(pixels, 8, 8);
+        assertEquals(0, pyramid.level(2)[0]);
+        pixels[0] = pixels[1] = pixels[8] = pixels[9] = 0xFF00FF00;
+        pyramid.invalidate(new Rectangle(0, 0, 2, 2));
+        assertEquals(0xFF00FF00, pyramid.level(1)[0]);
+        assertEquals(0x4000FF00, pyramid.level(2)[0]);
+    }
+}
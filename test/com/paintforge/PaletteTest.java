@@ -0,0 +1,36 @@
+package com.paintforge;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PaletteTest {
+    @Test
+    void nearestPrefersTheExactEntry() {
+        Palette palette = new Palette(new int[]{0xFF000000, 0xFFFF0000, 0xFFFE0000}, 3);
+        assertEquals(2, palette.nearest(0xFFFE0000));
+        assertEquals(1, palette.nearest(0xFFFF1000));
+        assertEquals(0, palette.nearest(0xFF101010));
+        assertEquals(-1, new Palette().nearest(0xFF000000));
+    }
+
+    @Test
+    void mostTransparentIsTheLowestAlpha() {
+        Palette palette = new Palette(new int[]{0xFFFFFFFF, 0x80FF0000, 0x00000000, 0x00FFFFFF}, 4);
+        assertEquals(2, palette.mostTransparent());
+        assertEquals(0, new Palette(new int[]{0xFF000000}, 1).mostTransparent());
+        assertEquals(-1, new Palette().mostTransparent());
+    }
+
+    @Test
+    void fullPaletteRefusesEntries() {
+        Palette palette = new Palette();
+        for (int i = 0; i < Palette.MAX_COLORS; i++) assertEquals(i, palette.add(0xFF000000 | i));
+        assertTrue(palette.isFull());
+        assertEquals(-1, palette.add(0xFFFFFFFF));
+
+        IndexedDocument document = new IndexedDocument(new IndexedImage(4, 4, palette));
+        assertEquals(-1, document.addPaletteEntry(0xFFFFFFFF));
+        assertFalse(document.canUndo());
+    }
+}
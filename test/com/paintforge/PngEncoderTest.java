@@ -0,0 +1,91 @@
+package com.paintforge;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PngEncoderTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void opaqueTrueColourRoundTrips() throws IOException {
+        int[] argb = new int[301 * 257];
+        Random random = new Random(1);
+        for (int i = 0; i < argb.length; i++) argb[i] = 0xFF000000 | random.nextInt(0x1000000);
+        for (PngEncoder.Preset preset : PngEncoder.Preset.values()) {
+            assertRoundTrip(argb, 301, 257, preset);
+        }
+    }
+
+    @Test
+    void translucentPixelsKeepTheirAlpha() throws IOException {
+        int[] argb = new int[64 * 700];
+        Random random = new Random(2);
+        for (int i = 0; i < argb.length; i++) argb[i] = random.nextInt();
+        // Fully transparent pixels: only alpha is guaranteed
+        for (int i = 0; i < argb.length; i++) if (argb[i] >>> 24 == 0) argb[i] = 0;
+        assertRoundTrip(argb, 64, 700, PngEncoder.Preset.BALANCED);
+    }
+
+    @Test
+    void fewColoursRoundTripThroughAPalette() throws IOException {
+        int[] colours = {0xFFFF0000, 0x8000FF00, 0x00000000, 0xFF123456};
+        int[] argb = new int[97 * 89];
+        for (int i = 0; i < argb.length; i++) argb[i] = colours[(i / 7 + i % 5) % colours.length];
+        assertRoundTrip(argb, 97, 89, PngEncoder.Preset.SMALLEST);
+    }
+
+    @Test
+    void indexedImageKeepsItsPaletteAndIndices() throws IOException {
+        // Four entries pack two bits per pixel; entry 3 is unused but still written
+        Palette palette = new Palette(new int[]{0xFF000000, 0x00000000, 0xFF00FF00, 0xFFFFFFFF}, 4);
+        IndexedImage image = new IndexedImage(37, 23, palette);
+        byte[] indices = image.getPixels();
+        for (int i = 0; i < indices.length; i++) indices[i] = (byte) ((i / 3 + i % 7) % 3);
+        Path file = dir.resolve("indexed.png");
+        assertTrue(new PngEncoder(PngEncoder.Preset.BALANCED).writeFile(image, file, null, null));
+
+        BufferedImage read = ImageIO.read(file.toFile());
+        assertEquals(2, read.getColorModel().getPixelSize());
+        IndexedImage decoded = IndexedImage.fromImage(read);
+        assertNotNull(decoded);
+        assertEquals(palette, decoded.getPalette());
+        assertArrayEquals(indices, decoded.getPixels());
+    }
+
+    @Test
+    void cancelledSaveLeavesTheTargetUntouched() throws IOException {
+        Path target = dir.resolve("keep.png");
+        Files.write(target, new byte[]{1, 2, 3});
+        int[] argb = new int[512 * 512];
+        boolean complete = new PngEncoder(PngEncoder.Preset.FASTEST).writeFile(argb, 512, 512, target, null, () -> true);
+        assertFalse(complete);
+        assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(target));
+    }
+
+    private void assertRoundTrip(int[] argb, int width, int height, PngEncoder.Preset preset) throws IOException {
+        Path file = dir.resolve(preset + ".png");
+        assertTrue(new PngEncoder(preset).writeFile(argb, width, height, file, null, null));
+        BufferedImage read = ImageIO.read(file.toFile());
+        assertNotNull(read);
+        assertEquals(width, read.getWidth());
+        assertEquals(height, read.getHeight());
+        int[] decoded = read.getRGB(0, 0, width, height, null, 0, width);
+        for (int i = 0; i < argb.length; i++) {
+            int expected = argb[i] >>> 24 == 0 ? 0 : argb[i];
+            int actual = decoded[i] >>> 24 == 0 ? 0 : decoded[i];
+            if (expected != actual) {
+                fail(preset + ": pixel " + i + " expected " + Integer.toHexString(expected) + " got " + Integer.toHexString(actual));
+            }
+        }
+    }
+}
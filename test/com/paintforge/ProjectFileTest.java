@@ -0,0 +1,161 @@
+package com.paintforge;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProjectFileTest {
+    @TempDir
+    Path dir;
+
+    private static Document painted(int width, int height) {
+        Document document = new Document(width, height);
+        EditEngine engine = new EditEngine(document);
+        document.addLayer();
+        document.getLayers().getActive().setName("Ink");
+        document.getLayers().getActive().setOpacity(0.5f);
+        engine.line(0, 5, width - 1, height - 5, Color.RED, 4);
+        return document;
+    }
+
+    private static Document reopen(Path file) throws IOException {
+        Document document = new Document(1, 1);
+        document.openProject(file);
+        document.ensureLoaded(0, 0, document.getWidth(), document.getHeight());
+        return document;
+    }
+
+    @Test
+    void saveThenOpenRestoresLayersAndPixels() throws Exception {
+        Path file = dir.resolve("art" + ProjectFile.EXTENSION);
+        Document document = painted(150, 90);
+        document.createProject(file);
+        assertTrue(document.beginProjectSave().call() > 0);
+
+        Document loaded = reopen(file);
+        assertEquals(150, loaded.getWidth());
+        assertEquals(90, loaded.getHeight());
+        assertEquals(2, loaded.getLayers().size());
+        assertEquals(1, loaded.getLayers().getActiveIndex());
+        assertEquals("Ink", loaded.getLayers().get(1).getName());
+        assertEquals(0.5f, loaded.getLayers().get(1).getOpacity());
+        for (int i = 0; i < 2; i++) {
+            assertArrayEquals(document.getLayers().get(i).getPixels(), loaded.getLayers().get(i).getPixels());
+        }
+        loaded.closeProject();
+        document.closeProject();
+    }
+
+    @Test
+    void secondSaveWritesOnlyChangedTiles() throws Exception {
+        Path file = dir.resolve("art" + ProjectFile.EXTENSION);
+        Document document = painted(256, 256);
+        document.createProject(file);
+        document.beginProjectSave().call();
+        new EditEngine(document).line(2, 2, 10, 2, Color.BLUE, 1);
+        assertEquals(1, document.beginProjectSave().call());
+
+        Document loaded = reopen(file);
+        assertArrayEquals(document.getActivePixels(), loaded.getActivePixels());
+        loaded.closeProject();
+        document.closeProject();
+    }
+
+    @Test
+    void tornHeaderFallsBackToThePreviousSave() throws Exception {
+        Path file = dir.resolve("art" + ProjectFile.EXTENSION);
+        Document document = painted(100, 100);
+        document.createProject(file);
+        document.beginProjectSave().call();
+        int[] firstSave = document.getActivePixels().clone();
+        new EditEngine(document).line(0, 50, 99, 50, Color.GREEN, 6);
+        document.beginProjectSave().call();
+        document.closeProject();
+
+        // The second save went to slot 1; tear its header half-way through
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(20), 64 + 24);
+        }
+        Document loaded = reopen(file);
+        assertArrayEquals(firstSave, loaded.getActivePixels());
+        loaded.closeProject();
+    }
+
+    @Test
+    void bothHeadersTornIsReportedAsAnError() throws Exception {
+        Path file = dir.resolve("art" + ProjectFile.EXTENSION);
+        Document document = painted(32, 32);
+        document.createProject(file);
+        document.beginProjectSave().call();
+        document.closeProject();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(128), 0);
+        }
+        assertThrows(IOException.class, () -> new Document(1, 1).openProject(file));
+    }
+
+    @Test
+    void existingFileIsUntouchedUntilTheFirstSave() throws Exception {
+        Path file = dir.resolve("art" + ProjectFile.EXTENSION);
+        byte[] previous = {1, 2, 3, 4};
+        Files.write(file, previous);
+
+        Document document = painted(32, 32);
+        document.createProject(file);
+        assertArrayEquals(previous, Files.readAllBytes(file));
+        document.closeProject();
+        assertArrayEquals(previous, Files.readAllBytes(file));
+        try (var files = Files.list(dir)) {
+            assertEquals(1, files.count());
+        }
+
+        document.createProject(file);
+        document.beginProjectSave().call();
+        Document loaded = reopen(file);
+        assertArrayEquals(document.getActivePixels(), loaded.getActivePixels());
+        loaded.closeProject();
+        document.closeProject();
+        try (var files = Files.list(dir)) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    void compactionKeepsTheDocumentAndDropsSupersededTiles() throws Exception {
+        Path file = dir.resolve("art" + ProjectFile.EXTENSION);
+        Document document = new Document(1024, 1024);
+        document.createProject(file);
+        Random random = new Random(7);
+        int[] pixels = document.getActivePixels();
+        long previous = 0;
+        boolean shrank = false;
+        // Noise barely compresses, so each full rewrite supersedes about 4 MB
+        for (int save = 0; save < 8; save++) {
+            for (int i = 0; i < pixels.length; i++) pixels[i] = random.nextInt();
+            document.getProjectFile().markDirty(new Rectangle(0, 0, 1024, 1024));
+            document.beginProjectSave().call();
+            shrank |= Files.size(file) < previous;
+            previous = Files.size(file);
+        }
+        assertTrue(shrank, "file was never compacted");
+
+        Document loaded = reopen(file);
+        assertArrayEquals(pixels, loaded.getActivePixels());
+        loaded.closeProject();
+        document.closeProject();
+        try (var files = Files.list(dir)) {
+            assertEquals(1, files.count());
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.paintforge;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.Color;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RecoveryJournalTest {
+    @TempDir
+    Path dir;
+
+    /** Hands the changes to the writer and waits until they are on disk. */
+    private static void capture(Document document) throws InterruptedException {
+        document.captureRecovery();
+        while (document.isRecoveryBusy()) Thread.sleep(5);
+    }
+
+    /** Paints, captures twice and closes; returns the pixels after the first capture. */
+    private int[] journalTwoCommits(Document document) throws Exception {
+        EditEngine engine = new EditEngine(document);
+        document.startRecovery(dir);
+        engine.line(0, 10, 99, 10, Color.RED, 5);
+        capture(document);
+        int[] first = document.getActivePixels().clone();
+        engine.line(50, 0, 50, 79, Color.BLUE, 9);
+        capture(document);
+        document.stopRecovery();
+        return first;
+    }
+
+    private static long recoveryThreads() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(t -> t.getName().equals("recovery-journal")).count();
+    }
+
+    @Test
+    void replayRestoresTheLastCommit() throws Exception {
+        Document document = new Document(100, 80);
+        journalTwoCommits(document);
+        Path previous = dir.resolve(RecoveryJournal.PREVIOUS_FILE);
+        assertTrue(Files.exists(previous));
+        assertFalse(Files.exists(dir.resolve(RecoveryJournal.SESSION_FILE)));
+
+        LayerStack stack = RecoveryJournal.replay(previous, f -> { });
+        assertNotNull(stack);
+        assertEquals(100, stack.getWidth());
+        assertArrayEquals(document.getActivePixels(), stack.getActive().getPixels());
+    }
+
+    @Test
+    void tornTailIsIgnored() throws Exception {
+        Document document = new Document(100, 80);
+        int[] first = journalTwoCommits(document);
+        Path previous = dir.resolve(RecoveryJournal.PREVIOUS_FILE);
+
+        // A crash part-way through the second capture: its commit record never made it
+        try (FileChannel channel = FileChannel.open(previous, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 5);
+        }
+        assertArrayEquals(first, RecoveryJournal.replay(previous, f -> { }).getActive().getPixels());
+    }
+
+    @Test
+    void damagedTailIsIgnored() throws Exception {
+        Document document = new Document(100, 80);
+        int[] first = journalTwoCommits(document);
+        Path previous = dir.resolve(RecoveryJournal.PREVIOUS_FILE);
+
+        // Garbage in the second capture's last tile record fails its CRC
+        try (FileChannel channel = FileChannel.open(previous, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {1, 2, 3, 4}), channel.size() - 20);
+        }
+        assertArrayEquals(first, RecoveryJournal.replay(previous, f -> { }).getActive().getPixels());
+    }
+
+    @Test
+    void newDocumentKeepsTheOldSessionAsPrevious() throws Exception {
+        Document document = new Document(40, 40);
+        document.startRecovery(dir);
+        new EditEngine(document).line(0, 0, 39, 39, Color.RED, 3);
+        capture(document);
+        int[] before = document.getActivePixels().clone();
+
+        document.setLayers(LayerStack.withBackground(40, 40, Color.WHITE));
+        Path previous = document.getPreviousSession();
+        assertNotNull(previous);
+        assertArrayEquals(before, RecoveryJournal.replay(previous, f -> { }).getActive().getPixels());
+        document.stopRecovery();
+    }
+
+    @Test
+    void indexedDocumentIsJournaledInPlaceOfTheLayers() throws Exception {
+        Document document = new Document(40, 30);
+        document.startRecovery(dir);
+        new EditEngine(document).line(0, 0, 39, 29, Color.RED, 3);
+        capture(document);
+
+        IndexedDocument indexed = IndexedDocument.fromLayers(document.getLayers());
+        new IndexedEditEngine(indexed).line(0, 29, 39, 0, Color.RED, 1);
+        document.captureRecovery(indexed);
+        while (document.isRecoveryBusy()) Thread.sleep(5);
+        // Unchanged since: nothing new is queued
+        document.captureRecovery(indexed);
+        assertFalse(document.isRecoveryBusy());
+        document.stopRecovery(indexed);
+
+        LayerStack stack = RecoveryJournal.replay(dir.resolve(RecoveryJournal.PREVIOUS_FILE), f -> { });
+        assertEquals(1, stack.size());
+        assertArrayEquals(indexed.getImage().toArgb(), stack.getActive().getPixels());
+    }
+
+    @Test
+    void layersAreCheckpointedAgainAfterAnIndexedCapture() throws Exception {
+        Document document = new Document(40, 30);
+        document.startRecovery(dir);
+        new EditEngine(document).line(0, 0, 39, 29, Color.RED, 3);
+        capture(document);
+        IndexedDocument indexed = IndexedDocument.fromLayers(document.getLayers());
+        new IndexedEditEngine(indexed).line(0, 29, 39, 0, Color.RED, 1);
+        document.captureRecovery(indexed);
+        while (document.isRecoveryBusy()) Thread.sleep(5);
+
+        // Back to the untouched layers
+        document.stopRecovery();
+        LayerStack stack = RecoveryJournal.replay(dir.resolve(RecoveryJournal.PREVIOUS_FILE), f -> { });
+        assertArrayEquals(document.getActivePixels(), stack.getActive().getPixels());
+    }
+
+    @Test
+    void closeStopsTheWriterThread() throws Exception {
+        long before = recoveryThreads();
+        Document document = new Document(16, 16);
+        for (int i = 0; i < 3; i++) {
+            document.startRecovery(dir);
+            document.stopRecovery();
+        }
+        assertEquals(before, recoveryThreads());
+    }
+}
@@ -0,0 +1,184 @@
+package com.paintforge;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScanlineFillTest {
+    private static final int W = 8, H = 4;
+    private static final int RED = 0xFFFF0000, BLUE = 0xFF0000FF, BLACK = 0xFF000000, CLEAR = 0x00000000;
+
+    /** Left half transparent, right half opaque black: same RGB, different alpha. */
+    private static int[] halves() {
+        int[] pixels = new int[W * H];
+        for (int y = 0; y < H; y++) Arrays.fill(pixels, y * W + W / 2, (y + 1) * W, BLACK);
+        return pixels;
+    }
+
+    @Test
+    void alphaAwareIsTheDefault() {
+        assertTrue(new ScanlineFill().isAlphaAware());
+    }
+
+    @Test
+    void transparentDoesNotLeakIntoOpaqueBlack() {
+        int[] pixels = halves();
+        Rectangle filled = new ScanlineFill().fill(pixels, W, H, 0, 0, RED, null);
+        assertEquals(new Rectangle(0, 0, W / 2, H), filled);
+        assertEquals(RED, pixels[W / 2 - 1]);
+        assertEquals(BLACK, pixels[W / 2]);
+    }
+
+    @Test
+    void exactMatchAtToleranceZeroEvenWithoutAlpha() {
+        ScanlineFill fill = new ScanlineFill();
+        fill.setAlphaAware(false);
+        int[] pixels = halves();
+        fill.fill(pixels, W, H, 0, 0, RED, null);
+        assertEquals(BLACK, pixels[W / 2]);
+        assertFalse(ColorDistanceKernel.matches(BLACK, CLEAR, 0, false));
+    }
+
+    @Test
+    void toleranceIsTheLargestChannelDifference() {
+        int[] pixels = new int[W * H];
+        Arrays.fill(pixels, 0xFF808080);
+        pixels[3] = 0xFF808090;   // blue differs by 16
+        pixels[5] = 0xFF809080;   // green differs by 16, then 17 below
+        pixels[6] = 0xFF809180;
+        ScanlineFill fill = new ScanlineFill();
+        fill.setTolerance(16);
+        fill.fill(pixels, W, H, 0, 0, RED, null);
+        assertEquals(RED, pixels[3]);
+        assertEquals(RED, pixels[5]);
+        assertEquals(0xFF809180, pixels[6]);
+        assertEquals(16, ColorDistanceKernel.distance(0xFF808080, 0xFF808090, true));
+    }
+
+    @Test
+    void toleranceIgnoresAlphaOnlyWhenAsked() {
+        assertTrue(ColorDistanceKernel.matches(0x80FF0000, 0xFFFF0000, 1, false));
+        assertFalse(ColorDistanceKernel.matches(0x80FF0000, 0xFFFF0000, 1, true));
+    }
+
+    @Test
+    void rowKernelAgreesWithMatches() {
+        int[] pixels = {0xFF000000, 0x00000000, 0xFF0A0000, 0x80000000, 0xFF0B0000};
+        for (int tolerance : new int[]{0, 10}) {
+            for (boolean alphaAware : new boolean[]{false, true}) {
+                int[] copy = pixels.clone();
+                ColorDistanceKernel.replaceRow(copy, 0, copy.length, BLACK, RED, tolerance, alphaAware);
+                for (int i = 0; i < pixels.length; i++) {
+                    boolean hit = ColorDistanceKernel.matches(pixels[i], BLACK, tolerance, alphaAware);
+                    assertEquals(hit ? RED : pixels[i], copy[i], "pixel " + i + " tol " + tolerance + " alpha " + alphaAware);
+                }
+            }
+        }
+    }
+
+    @Test
+    void fillStopsAtWalls() {
+        int[] pixels = new int[W * H];
+        for (int y = 0; y < H; y++) pixels[y * W + 3] = BLUE;
+        new ScanlineFill().fill(pixels, W, H, 0, 0, RED, null);
+        assertEquals(RED, pixels[2]);
+        assertEquals(BLUE, pixels[3]);
+        assertEquals(0, pixels[4]);
+    }
+
+    @Test
+    void floodAnnouncesOnlyTheTilesItReaches() {
+        int size = 256;
+        int[] pixels = new int[size * size];
+        // Walls at x = 70 and y = 70 box the seed into the top-left 70x70
+        for (int i = 0; i < size; i++) {
+            pixels[i * size + 70] = BLACK;
+            pixels[70 * size + i] = BLACK;
+        }
+        List<Rectangle> reads = new ArrayList<>();
+        ScanlineFill fill = new ScanlineFill();
+        fill.setReadListener((x, y, w, h) -> reads.add(new Rectangle(x, y, w, h)));
+        fill.fill(pixels, size, size, 5, 5, RED, null);
+        assertEquals(List.of(new Rectangle(0, 0, 64, 64), new Rectangle(64, 0, 64, 64),
+                new Rectangle(0, 64, 64, 64), new Rectangle(64, 64, 64, 64)),
+                reads.stream().sorted((a, b) -> a.y != b.y ? a.y - b.y : a.x - b.x).toList());
+        assertEquals(RED, pixels[69 * size + 69]);
+        assertEquals(0, pixels[71 * size + 71]);
+    }
+
+    @Test
+    void replaceAllIgnoresConnectivity() {
+        int[] pixels = new int[W * H];
+        for (int y = 0; y < H; y++) pixels[y * W + 3] = BLUE;
+        Rectangle changed = new ScanlineFill().replaceAll(pixels, W, H, 0, 0, RED, null);
+        assertEquals(new Rectangle(0, 0, W, H), changed);
+        assertEquals(RED, pixels[7]);
+        assertEquals(BLUE, pixels[3]);
+    }
+
+    @Test
+    void replaceAllStaysInsideTheSelection() {
+        int[] pixels = new int[W * H];
+        SelectionMask within = SelectionMask.rectangle(W, H, 0, 0, 2, 2);
+        new ScanlineFill().replaceAll(pixels, W, H, 0, 0, RED, within, null);
+        assertEquals(RED, pixels[W + 1]);
+        assertEquals(0, pixels[2]);
+        assertEquals(0, pixels[2 * W]);
+    }
+
+    @Test
+    void floodStopsAtTheSelectionEdge() {
+        int[] pixels = new int[W * H];
+        // Two selected columns joined only through unselected pixels
+        SelectionMask within = SelectionMask.rectangle(W, H, 0, 0, 2, H);
+        within.combine(SelectionMask.rectangle(W, H, 5, 0, 2, H), SelectionMask.Mode.ADD);
+        Rectangle filled = new ScanlineFill().fill(pixels, W, H, 0, 0, RED, within, null);
+        assertEquals(new Rectangle(0, 0, 2, H), filled);
+        for (int y = 0; y < H; y++) {
+            for (int x = 0; x < W; x++) {
+                assertEquals(x < 2 ? RED : CLEAR, pixels[y * W + x], "pixel " + x + "," + y);
+            }
+        }
+    }
+
+    @Test
+    void floodFollowsSelectionSpansAcrossRows() {
+        int[] pixels = new int[W * H];
+        // An L: the top row plus the left column
+        SelectionMask within = SelectionMask.rectangle(W, H, 0, 0, W, 1);
+        within.combine(SelectionMask.rectangle(W, H, 0, 0, 1, H), SelectionMask.Mode.ADD);
+        new ScanlineFill().fill(pixels, W, H, W - 1, 0, RED, within, null);
+        assertEquals(RED, pixels[(H - 1) * W]);
+        assertEquals(CLEAR, pixels[W + 1]);
+    }
+
+    @Test
+    void floodFromOutsideTheSelectionFillsNothing() {
+        int[] pixels = new int[W * H];
+        SelectionMask within = SelectionMask.rectangle(W, H, 0, 0, 2, 2);
+        assertNull(new ScanlineFill().fill(pixels, W, H, 5, 3, RED, within, null));
+        assertArrayEquals(new int[W * H], pixels);
+    }
+
+    @Test
+    void engineFillLeavesUnselectedPixelsUntouched() {
+        Document document = new Document(W, H);
+        EditEngine engine = new EditEngine(document);
+        int[] before = document.getActivePixels().clone();
+        document.setSelection(SelectionMask.rectangle(W, H, 1, 1, 3, 2));
+        engine.fill(2, 2, new Color(RED));
+        int[] pixels = document.getActivePixels();
+        for (int y = 0; y < H; y++) {
+            for (int x = 0; x < W; x++) {
+                boolean inside = x >= 1 && x < 4 && y >= 1 && y < 3;
+                assertEquals(inside ? RED : before[y * W + x], pixels[y * W + x], "pixel " + x + "," + y);
+            }
+        }
+    }
+}
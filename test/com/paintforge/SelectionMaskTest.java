@@ -0,0 +1,128 @@
+package com.paintforge;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Rectangle;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SelectionMaskTest {
+    private static final int W = 40, H = 12;
+
+    private static SelectionMask randomMask(Random random) {
+        SelectionMask mask = new SelectionMask(W, H);
+        for (int i = 0; i < 30; i++) {
+            int x = random.nextInt(W + 4) - 2;
+            mask.addSpan(random.nextInt(H), x, x + random.nextInt(12));
+        }
+        return mask;
+    }
+
+    private static boolean[][] pixels(SelectionMask mask) {
+        boolean[][] set = new boolean[H][W];
+        for (int y = 0; y < H; y++) {
+            for (int x = 0; x < W; x++) set[y][x] = mask.contains(x, y);
+        }
+        return set;
+    }
+
+    /** Spans must stay sorted, non-empty and non-touching for the span walks to work. */
+    private static void assertCanonical(SelectionMask mask) {
+        for (int y = 0; y < H; y++) {
+            int previousEnd = -1;
+            for (int s = 0; s < mask.spanCount(y); s++) {
+                int start = mask.spanStart(y, s), end = mask.spanEnd(y, s);
+                assertTrue(start > previousEnd && start < end && start >= 0 && end <= W,
+                        "row " + y + " span " + start + ".." + end);
+                previousEnd = end;
+            }
+        }
+    }
+
+    @Test
+    void setOperationsMatchPerPixelLogic() {
+        Random random = new Random(42);
+        for (int round = 0; round < 50; round++) {
+            SelectionMask a = randomMask(random), b = randomMask(random);
+            boolean[][] pa = pixels(a), pb = pixels(b);
+            for (SelectionMask.Mode mode : SelectionMask.Mode.values()) {
+                SelectionMask combined = a.copy();
+                combined.combine(b, mode);
+                assertCanonical(combined);
+                for (int y = 0; y < H; y++) {
+                    for (int x = 0; x < W; x++) {
+                        boolean expected;
+                        switch (mode) {
+                            case REPLACE:
+                                expected = pb[y][x];
+                                break;
+                            case ADD:
+                                expected = pa[y][x] || pb[y][x];
+                                break;
+                            case SUBTRACT:
+                                expected = pa[y][x] && !pb[y][x];
+                                break;
+                            default:
+                                expected = pa[y][x] && pb[y][x];
+                        }
+                        assertEquals(expected, combined.contains(x, y), mode + " at " + x + "," + y);
+                    }
+                }
+            }
+            // Combining a copy leaves the original alone
+            assertArrayEquals(pa, pixels(a));
+        }
+    }
+
+    @Test
+    void touchingSpansMerge() {
+        SelectionMask mask = new SelectionMask(W, H);
+        mask.addSpan(0, 2, 5);
+        mask.addSpan(0, 5, 9);
+        mask.addSpan(0, 12, 14);
+        mask.addSpan(0, 8, 12);
+        assertEquals(1, mask.spanCount(0));
+        assertEquals(2, mask.spanStart(0, 0));
+        assertEquals(14, mask.spanEnd(0, 0));
+    }
+
+    @Test
+    void invertComplementsEveryRowAndTwiceIsIdentity() {
+        Random random = new Random(3);
+        for (int round = 0; round < 50; round++) {
+            SelectionMask mask = randomMask(random);
+            mask.addSpan(0, 0, W);
+            mask.addSpan(1, 0, 3);
+            mask.addSpan(2, W - 3, W);
+            boolean[][] before = pixels(mask);
+            SelectionMask inverted = mask.copy();
+            inverted.invert();
+            assertCanonical(inverted);
+            for (int y = 0; y < H; y++) {
+                for (int x = 0; x < W; x++) assertNotEquals(before[y][x], inverted.contains(x, y));
+            }
+            inverted.invert();
+            assertArrayEquals(before, pixels(inverted));
+        }
+    }
+
+    @Test
+    void boundsCoverExactlyTheSelectedPixels() {
+        assertNull(new SelectionMask(W, H).getBounds());
+        assertEquals(new Rectangle(0, 0, W, H), SelectionMask.all(W, H).getBounds());
+        assertEquals(new Rectangle(0, 2, 5, 3), SelectionMask.rectangle(W, H, -3, 2, 8, 3).getBounds());
+
+        SelectionMask mask = SelectionMask.rectangle(W, H, 10, 1, 2, 1);
+        mask.combine(SelectionMask.rectangle(W, H, 3, 7, 4, 2), SelectionMask.Mode.ADD);
+        assertEquals(new Rectangle(3, 1, 9, 8), mask.getBounds());
+        mask.combine(SelectionMask.rectangle(W, H, 3, 7, 4, 2), SelectionMask.Mode.SUBTRACT);
+        assertEquals(new Rectangle(10, 1, 2, 1), mask.getBounds());
+    }
+
+    @Test
+    void combineRejectsADifferentSize() {
+        SelectionMask mask = new SelectionMask(W, H);
+        assertThrows(IllegalArgumentException.class, () -> mask.combine(new SelectionMask(W + 1, H), SelectionMask.Mode.ADD));
+    }
+}
@@ -0,0 +1,166 @@
+package com.paintforge;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UndoHistoryTest {
+    private static final int W = 200, H = 130;
+
+    private static void paint(UndoHistory history, int[] pixels, int x, int y, int w, int h, int color) {
+        history.beginOperation(pixels, W, H);
+        history.beforeWrite(x, y, w, h);
+        for (int row = y; row < y + h; row++) Arrays.fill(pixels, row * W + x, row * W + x + w, color);
+        history.commit();
+    }
+
+    @Test
+    void undoAndRedoRoundTrip() {
+        UndoHistory history = new UndoHistory();
+        int[] pixels = new int[W * H];
+        int[] blank = pixels.clone();
+        paint(history, pixels, 10, 10, 20, 20, 0xFFFF0000);
+        int[] afterFirst = pixels.clone();
+        paint(history, pixels, 100, 70, 90, 50, 0xFF00FF00);
+        int[] afterSecond = pixels.clone();
+
+        Rectangle changed = history.undo();
+        assertArrayEquals(afterFirst, pixels);
+        assertTrue(changed.contains(100, 70) && changed.contains(189, 119));
+        history.undo();
+        assertArrayEquals(blank, pixels);
+        assertNull(history.undo());
+        history.redo();
+        history.redo();
+        assertArrayEquals(afterSecond, pixels);
+        assertNull(history.redo());
+    }
+
+    @Test
+    void unchangedTilesRecordNothing() {
+        UndoHistory history = new UndoHistory();
+        int[] pixels = new int[W * H];
+        history.beginOperation(pixels, W, H);
+        history.beforeWrite(0, 0, W, H);
+        assertFalse(history.commit());
+        assertFalse(history.canUndo());
+        assertEquals(0, history.getMemoryUsage());
+    }
+
+    @Test
+    void newEditClearsRedo() {
+        UndoHistory history = new UndoHistory();
+        int[] pixels = new int[W * H];
+        paint(history, pixels, 0, 0, 5, 5, 1);
+        history.undo();
+        assertTrue(history.canRedo());
+        paint(history, pixels, 0, 0, 5, 5, 2);
+        assertFalse(history.canRedo());
+    }
+
+    @Test
+    void compressedAndSpilledEntriesRestore() throws InterruptedException {
+        UndoHistory history = new UndoHistory();
+        history.setHotEntries(1);
+        history.setMemoryBudget(0);
+        int[] pixels = new int[W * H];
+        Random random = new Random(7);
+        int[][] states = new int[6][];
+        states[0] = pixels.clone();
+        for (int i = 1; i < states.length; i++) {
+            history.beginOperation(pixels, W, H);
+            history.beforeWrite(0, 0, W, H);
+            for (int p = 0; p < pixels.length; p += 1 + random.nextInt(7)) pixels[p] = random.nextInt();
+            history.commit();
+            states[i] = pixels.clone();
+        }
+        awaitDisk(history);
+        for (int i = states.length - 2; i >= 0; i--) {
+            history.undo();
+            assertArrayEquals(states[i], pixels, "state " + i);
+        }
+    }
+
+    @Test
+    void indexBytesRestoreFromCompressedAndSpilledEntries() throws InterruptedException {
+        UndoHistory history = new UndoHistory();
+        history.setHotEntries(1);
+        history.setMemoryBudget(0);
+        byte[] indices = new byte[W * H];
+        PixelRaster raster = PixelRaster.of(indices, W, H);
+        Random random = new Random(5);
+        byte[][] states = new byte[6][];
+        states[0] = indices.clone();
+        for (int i = 1; i < states.length; i++) {
+            history.beginOperation(raster);
+            history.beforeWrite(0, 0, W, H);
+            for (int p = 0; p < indices.length; p += 1 + random.nextInt(7)) indices[p] = (byte) random.nextInt(16);
+            history.commit();
+            states[i] = indices.clone();
+        }
+        awaitDisk(history);
+        for (int i = states.length - 2; i >= 0; i--) {
+            history.undo();
+            assertArrayEquals(states[i], indices, "state " + i);
+        }
+        for (int i = 1; i < states.length; i++) {
+            history.redo();
+            assertArrayEquals(states[i], indices, "state " + i);
+        }
+    }
+
+    @Test
+    void hotWindowIsHeldToTheBudget() throws InterruptedException {
+        UndoHistory history = new UndoHistory();
+        long budget = 4L * W * H;
+        history.setMemoryBudget(budget);
+        int[] pixels = new int[W * H];
+        // Eight full-canvas edits: the default hot window alone would hold 8x the budget
+        for (int i = 1; i <= 8; i++) paint(history, pixels, 0, 0, W, H, i);
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (history.getMemoryUsage() > budget * 2 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assertTrue(history.getMemoryUsage() <= budget * 2, "memory " + history.getMemoryUsage());
+        for (int i = 7; i >= 0; i--) {
+            history.undo();
+            assertEquals(i, pixels[W * H - 1]);
+        }
+    }
+
+    @Test
+    void spilledRedoEntriesCountAgainstTheDiskBudget() throws InterruptedException {
+        UndoHistory history = new UndoHistory();
+        history.setHotEntries(1);
+        history.setMemoryBudget(0);
+        Random random = new Random(3);
+        int[] pixels = new int[W * H];
+        for (int i = 0; i < 12; i++) {
+            history.beginOperation(pixels, W, H);
+            history.beforeWrite(0, 0, W, H);
+            for (int p = 0; p < pixels.length; p++) pixels[p] = random.nextInt();
+            history.commit();
+        }
+        for (int i = 0; i < 12; i++) history.undo();
+        awaitDisk(history);
+        // Let the spilling finish so the budget is a third of all of it
+        for (long spilled = -1; spilled != history.getDiskUsage(); Thread.sleep(200)) spilled = history.getDiskUsage();
+        long budget = history.getDiskUsage() / 3;
+        history.setDiskBudget(budget);
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (history.getDiskUsage() > budget && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assertTrue(history.getDiskUsage() <= budget, "disk " + history.getDiskUsage());
+        assertFalse(history.canUndo());
+        assertTrue(history.canRedo());
+        history.close();
+        assertEquals(0, history.getDiskUsage());
+    }
+
+    private static void awaitDisk(UndoHistory history) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (history.getDiskUsage() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assertTrue(history.getDiskUsage() > 0, "nothing was spilled");
+    }
+}